@@ -162,6 +162,9 @@ public class CADIProxy {
     proxy.setMaxTxRate(maxTxRate);
     proxy.setMovementProbabilities(movProbs);
     proxy.setPredictiveModel(predictiveModel);
+    proxy.setVirtualThreads(parser.getVirtualThreads());
+    proxy.setSessionTimeout(parser.getSessionTimeout());
+    proxy.setSessionsMemory(parser.getSessionsMemory());
 		proxy.run();
 	}
 	
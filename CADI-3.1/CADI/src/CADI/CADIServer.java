@@ -70,6 +70,15 @@ public class CADIServer {
     int trafficShaping = TrafficShaping.NONE;
     boolean independentMessageHeaders = true;
     boolean predictiveModel = false;
+    boolean virtualThreads = false;
+    boolean onDemandIndexing = false;
+    String warmUpTargets = null;
+    int preIndexingThreads = 0;
+    int packetHeadersCacheSize = 0;
+    int responsePlanCacheSize = 0;
+    int sessionTimeout = 0;
+    int sessionsMemory = 0;
+    int globalMaxRate = 0;
 
 
     // PARSE COMMAND LINE ARGUMENTS
@@ -146,6 +155,7 @@ public class CADIServer {
     // Max. Rate
     maxTxRate = parser.getMaxRate();
     trafficShaping = parser.getTrafficShaping();
+    globalMaxRate = parser.getGlobalMaxRate();
 
     // JPIP message form
     independentMessageHeaders = parser.getIndependentMessageHeaders();
@@ -153,6 +163,22 @@ public class CADIServer {
     // Predictive model
     predictiveModel = parser.getPredictiveModel();
 
+    // Virtual threads
+    virtualThreads = parser.getVirtualThreads();
+
+    // On-demand indexing
+    onDemandIndexing = parser.getOnDemandIndexing();
+
+    // Warm-up and pre-indexing of the logical targets
+    warmUpTargets = parser.getWarmUpTargets();
+    preIndexingThreads = parser.getPreIndexingThreads();
+    packetHeadersCacheSize = parser.getPacketHeadersCacheSize();
+    responsePlanCacheSize = parser.getResponsePlanCacheSize();
+
+    // Expiration and memory of the client sessions
+    sessionTimeout = parser.getSessionTimeout();
+    sessionsMemory = parser.getSessionsMemory();
+
 
     // CHECK PARAMETERS
     if (targetPath != null) {
@@ -171,6 +197,14 @@ public class CADIServer {
       }
     }
 
+    if (warmUpTargets != null) {
+      if (!(new File(warmUpTargets)).exists()) {
+        System.out.println("ARGUMENTS ERROR: warm-up targets file (\""
+                + warmUpTargets + "\") does not exist");
+        System.exit(1);
+      }
+    }
+
     // RUN SERVER
     Scheduler server = new Scheduler(ports, numThreads, logEnabled, logLevel,
                                      logFile, XMLLogFormat);
@@ -180,8 +214,17 @@ public class CADIServer {
     server.setKeepAliveTimeout(keepAliveTimeout);
     server.setMaxTxRate(maxTxRate);
     server.setTrafficShaping(trafficShaping);
+    server.setGlobalMaxRate(globalMaxRate);
     server.setIndependentMessageHeaders(independentMessageHeaders);
     server.setPredictiveModel(predictiveModel);
+    server.setVirtualThreads(virtualThreads);
+    server.setOnDemandIndexing(onDemandIndexing);
+    server.setWarmUpTargets(warmUpTargets);
+    server.setPreIndexingThreads(preIndexingThreads);
+    server.setPacketHeadersCacheSize(packetHeadersCacheSize);
+    server.setResponsePlanCacheSize(responsePlanCacheSize);
+    server.setSessionTimeout(sessionTimeout);
+    server.setSessionsMemory(sessionsMemory);
     server.start();
   }
 
@@ -63,7 +63,7 @@ import GiciException.WarningException;
  * Further information, please see see ISO/IEC 15444-1 section B.2
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.6 2011/12/03
+ * @version 1.0.8 2012/07/04
  */
 public class ClientSessionTarget extends ClientSideSessionTarget {
 
@@ -495,6 +495,8 @@ public class ClientSessionTarget extends ClientSideSessionTarget {
         }
         jpipRequestFields.cacheManagementField.model = cacheDescriptor;
       }
+
+      signalRemovedDataBins(jpipRequestFields, cache);
       
       responseViewWindow = new ViewWindowField();
 
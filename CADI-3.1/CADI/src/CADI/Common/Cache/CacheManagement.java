@@ -28,14 +28,25 @@ package CADI.Common.Cache;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import CADI.Common.Network.JPIP.ClassIdentifiers;
 import CADI.Common.Network.JPIP.JPIPMessage;
 
 /**
+ * This class extends the data-bins cache with a replacement policy which
+ * bounds the cached data to {@link #maxCacheSize} bytes.
+ * <p>
+ * The precinct data-bins are kept in a linked hash map in replacement order,
+ * so that accessing, updating and evicting a data-bin takes constant time.
+ * The bytes of each data-bin are accounted exactly, and the evicted data-bins
+ * are recorded in {@link #removedDataBins} to be signalled to the server as
+ * subtractive cache model elements.
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.3 2011/09/06
+ * @version 1.0.4 2012/07/04
  */
 public class CacheManagement extends DataBinsCacheManagement {
 
@@ -53,6 +64,11 @@ public class CacheManagement extends DataBinsCacheManagement {
    * Two cache management policies has been defined.
    * LRU (Last Recent Used): value, see {@link #LRU}
    * FIFO (First In, First Out): value see {@link #FIFO}
+   * <p>
+   * The LRU policy is cost-aware: the victim is chosen among the
+   * {@link #EVICTION_WINDOW} least recently used data-bins, evicting first the
+   * one with the largest length weighted by its resolution level, because
+   * the lowest resolution levels are needed by any window of interest.
    */
   protected int managementPolicy = NONE;
 
@@ -63,10 +79,17 @@ public class CacheManagement extends DataBinsCacheManagement {
   public static final int FIFO = 2;
 
   /**
-   * Is a list used to save the data-bins identifiers. It can be used either
-   * a LRU or a FIFO.
+   * Is the number of least recently used data-bins which are candidates to be
+   * evicted when the {@link #LRU} policy is used.
+   */
+  protected static final int EVICTION_WINDOW = 8;
+
+  /**
+   * Keeps the cached precinct data-bins in replacement order, the head of the
+   * map is the least recently used data-bin (LRU) or the first inserted one
+   * (FIFO). The key is the in-class identifier of the data-bin.
    */
-  protected ArrayList<Long> dataBinsList = null;
+  protected LinkedHashMap<Long, CachedDataBin> dataBinsList = null;
 
   /**
    * Contains the data-bins which has been removed from the cache. It is
@@ -74,6 +97,24 @@ public class CacheManagement extends DataBinsCacheManagement {
    */
   protected ArrayList<Long> removedDataBins = null;
 
+  /**
+   * Records the accounted length and the resolution level of a precinct
+   * data-bin in the {@link #dataBinsList}.
+   */
+  protected static class CachedDataBin {
+
+    /**
+     * Length (in bytes) of the data-bin accounted in {@link #cacheSize}.
+     */
+    long length = 0;
+
+    /**
+     * Resolution level the precinct belongs to.
+     */
+    int rLevel = 0;
+
+  }
+
   /**
    * This attributes is used to save the size of the cached data. Its value
    * must be shorter than {@link #maxCacheSize}.
@@ -97,6 +138,8 @@ public class CacheManagement extends DataBinsCacheManagement {
    */
   public CacheManagement(String fileName) {
     super();
+    dataBinsList = new LinkedHashMap<Long, CachedDataBin>();
+    removedDataBins = new ArrayList<Long>();
   }
 
   /**
@@ -109,7 +152,27 @@ public class CacheManagement extends DataBinsCacheManagement {
       throw new IllegalArgumentException("Wrong management policy value");
     }
 
-    this.managementPolicy = managementPolicy;
+    synchronized (this) {
+      this.managementPolicy = managementPolicy;
+
+      // Rebuild the replacement list with the data-bins already cached
+      dataBinsList = new LinkedHashMap<Long, CachedDataBin>(16, 0.75f,
+              managementPolicy == LRU);
+      cacheSize = 0;
+      if (managementPolicy != NONE) {
+        cacheSize = mainHeaderDataBin.getLength();
+        for (Map.Entry<Long, TileHeaderDataBin> entry : tileHeaderDataBins.entrySet()) {
+          cacheSize += entry.getValue().getLength();
+        }
+        for (Map.Entry<Long, MetaDataBin> entry : metaDataBins.entrySet()) {
+          cacheSize += entry.getValue().getLength();
+        }
+        for (Map.Entry<Long, PrecinctDataBin> entry : precinctsDataBins.entrySet()) {
+          updateLists(ClassIdentifiers.PRECINCT, entry.getKey(),
+                  entry.getValue().getLength());
+        }
+      }
+    }
   }
 
   /**
@@ -151,13 +214,82 @@ public class CacheManagement extends DataBinsCacheManagement {
    */
   @Override
   public void addJPIPMessage(JPIPMessage jpipMessage) {
+    if (managementPolicy == NONE) {
+      super.addJPIPMessage(jpipMessage);
+      return;
+    }
+
+    int classIdentifier = (jpipMessage.header.classIdentifier / 2) * 2;
+    long inClassIdentifier = jpipMessage.header.inClassIdentifier;
+
+    // Only the new bytes of the data-bin are accounted, so that overlapping
+    // or repeated messages do not inflate the cache size
+    long previousLength = Math.max(0, getDatabinLength(classIdentifier, inClassIdentifier));
+
     super.addJPIPMessage(jpipMessage);
 
-    if (managementPolicy != NONE) {
-      cacheSize += jpipMessage.messageBody.length;
+    long length = getDatabinLength(classIdentifier, inClassIdentifier);
+    if (length >= 0) {
+      synchronized (this) {
+        if (classIdentifier == ClassIdentifiers.PRECINCT) {
+          updateLists(classIdentifier, inClassIdentifier, length);
+        } else {
+          cacheSize += length - previousLength;
+        }
+      }
     }
   }
 
+  /**
+   * Returns the data-bin as in the
+   * {@link CADI.Common.Cache.DataBinsCacheManagement#getDataBin(int, long)}
+   * method and, if the {@link #LRU} policy is used, marks a precinct data-bin
+   * as the most recently used one.
+   *
+   * @param classIdentifier definition in {@linkplain CADI.Common.Network.JPIP.JPIPMessageHeader#classIdentifier}
+   * @param inClassIdentifier definition in {@linkplain CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}
+   *
+   * @return the data-bin, or <code>null</code> if it is not in the cache.
+   */
+  @Override
+  public DataBin getDataBin(int classIdentifier, long inClassIdentifier) {
+    DataBin dataBin = super.getDataBin(classIdentifier, inClassIdentifier);
+
+    if ((dataBin != null) && (managementPolicy == LRU)
+            && (classIdentifier == ClassIdentifiers.PRECINCT)) {
+      synchronized (this) {
+        dataBinsList.get(inClassIdentifier);
+      }
+    }
+
+    return dataBin;
+  }
+
+  /**
+   * Returns the data-bins which have been removed from the cache since the
+   * last call, and clears the {@link #removedDataBins} list. They should be
+   * sent to the server as subtractive cache model elements.
+   *
+   * @return an array list with the in-class identifiers of the removed
+   *          precinct data-bins.
+   */
+  public final ArrayList<Long> getRemovedDataBins() {
+    synchronized (this) {
+      ArrayList<Long> dataBins = new ArrayList<Long>(removedDataBins);
+      removedDataBins.clear();
+      return dataBins;
+    }
+  }
+
+  /**
+   * Returns the {@link #cacheSize} attribute.
+   *
+   * @return the {@link #cacheSize} attribute.
+   */
+  public final long getCacheSize() {
+    return cacheSize;
+  }
+
  /**
    * Returns the number of layers (or number of completed packets) for the
    * given precinct data-bin that are stored in the cache.
@@ -202,10 +334,8 @@ public class CacheManagement extends DataBinsCacheManagement {
   @Override
   public void reset() {
     super.reset();
-    if (dataBinsList != null) {
+    synchronized (this) {
       dataBinsList.clear();
-    }
-    if (removedDataBins != null) {
       removedDataBins.clear();
     }
     cacheSize = 0;
@@ -222,6 +352,10 @@ public class CacheManagement extends DataBinsCacheManagement {
    */
   public void clear() {
     super.reset();
+    synchronized (this) {
+      dataBinsList.clear();
+      cacheSize = 0;
+    }
   }
 
   /**
@@ -236,8 +370,9 @@ public class CacheManagement extends DataBinsCacheManagement {
   }
 
   /**
-   *
-   *
+   * Evicts precinct data-bins, following the {@link #managementPolicy}, until
+   * the cached data fits in {@link #maxCacheSize} bytes. The evicted
+   * data-bins are appended to the {@link #removedDataBins} list.
    */
   public void manage() {
 
@@ -245,22 +380,24 @@ public class CacheManagement extends DataBinsCacheManagement {
       return;
     }
 
-    while ((cacheSize > maxCacheSize) && (dataBinsList.size() > 1)) {
+    synchronized (this) {
+      while ((cacheSize > maxCacheSize) && (dataBinsList.size() > 1)) {
 
-      long inClassIdentifier = -1;
+        long inClassIdentifier = -1;
 
-      if (managementPolicy == LRU) {
-        inClassIdentifier = dataBinsList.get(0);
-        dataBinsList.remove(0);
-      } else if (managementPolicy == FIFO) {
-        inClassIdentifier = dataBinsList.get(0);
-        dataBinsList.remove(0);
-      }
+        if (managementPolicy == LRU) {
+          inClassIdentifier = selectLRUVictim();
+        } else if (managementPolicy == FIFO) {
+          inClassIdentifier = dataBinsList.keySet().iterator().next();
+        }
 
-      if (inClassIdentifier >= 0) {
-        cacheSize -= precinctsDataBins.get(inClassIdentifier).getLength();
-        precinctsDataBins.get(inClassIdentifier).reset();
-        precinctsDataBins.remove(inClassIdentifier);
+        CachedDataBin cachedDataBin = dataBinsList.remove(inClassIdentifier);
+        cacheSize -= cachedDataBin.length;
+
+        PrecinctDataBin dataBin = precinctsDataBins.remove(inClassIdentifier);
+        if (dataBin != null) {
+          dataBin.reset();
+        }
 
         removedDataBins.add(inClassIdentifier);
       }
@@ -320,30 +457,65 @@ public class CacheManagement extends DataBinsCacheManagement {
 
   // ============================ private methods ==============================
   /**
+   * Updates the replacement list and the cache size with the new length of a
+   * precinct data-bin. With the {@link #LRU} policy the data-bin becomes the
+   * most recently used one, with the {@link #FIFO} policy it keeps its
+   * position.
+   * <p>
+   * The caller must hold the lock of this object.
    *
-   * @param classIdentifier
-   * @param inClassIdentifier
+   * @param classIdentifier definition in {@linkplain CADI.Common.Network.JPIP.JPIPMessageHeader#classIdentifier}
+   * @param inClassIdentifier definition in {@linkplain CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}
+   * @param length the length (in bytes) of the data-bin.
    */
-  private void updateLists(int classIdentifier, long inClassIdentifier) {
+  private void updateLists(int classIdentifier, long inClassIdentifier,
+                           long length) {
 
     if (classIdentifier != BinDescriptor.PRECINCT) {
       return;
     }
 
-    if (managementPolicy == LRU) {
-      int index = dataBinsList.indexOf(inClassIdentifier);
-      if (index >= 0) {
-        dataBinsList.remove(index);
+    CachedDataBin cachedDataBin = dataBinsList.get(inClassIdentifier);
+    if (cachedDataBin == null) {
+      cachedDataBin = new CachedDataBin();
+      if (codestream != null) {
+        int[] tcrp = codestream.findTCRP(inClassIdentifier);
+        if (tcrp != null) {
+          cachedDataBin.rLevel = tcrp[2];
+        }
       }
-      dataBinsList.add(inClassIdentifier);
+      dataBinsList.put(inClassIdentifier, cachedDataBin);
+    }
+
+    cacheSize += length - cachedDataBin.length;
+    cachedDataBin.length = length;
+  }
 
-    } else if (managementPolicy == FIFO) {
-      int index = dataBinsList.indexOf(inClassIdentifier);
-      if (index < 0) {
-        dataBinsList.add(inClassIdentifier);
+  /**
+   * Chooses the data-bin to be evicted with the {@link #LRU} policy. Among
+   * the {@link #EVICTION_WINDOW} least recently used data-bins, the one with
+   * the largest length weighted by its resolution level is chosen. Iterating
+   * the map does not modify its access order.
+   * <p>
+   * The caller must hold the lock of this object.
+   *
+   * @return the in-class identifier of the data-bin to be evicted.
+   */
+  private long selectLRUVictim() {
+    long victim = -1;
+    long maxCost = -1;
+
+    Iterator<Map.Entry<Long, CachedDataBin>> it = dataBinsList.entrySet().iterator();
+    for (int i = 0; (i < EVICTION_WINDOW) && it.hasNext(); i++) {
+      Map.Entry<Long, CachedDataBin> entry = it.next();
+      long cost = entry.getValue().length * (entry.getValue().rLevel + 1);
+      if (cost > maxCost) {
+        maxCost = cost;
+        victim = entry.getKey();
       }
     }
 
+    return victim;
   }
 
   /**
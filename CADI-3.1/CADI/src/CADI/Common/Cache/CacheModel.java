@@ -27,6 +27,7 @@
 package CADI.Common.Cache;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -49,9 +50,14 @@ import java.util.ArrayList;
  * or
  * <code>public</code> in order to be used by other classes which extend this
  * one.
+ * <p>
+ * The precinct data-bins, which are the bulk of the model, are kept in two
+ * dense integer arrays indexed by the unique precinct identifier instead of
+ * one descriptor object per precinct, so the memory of a session model is
+ * 8 bytes per precinct of the codestream.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 2.0.1 2012/05/19
+ * @version 2.0.2 2012/07/04
  */
 public class CacheModel {
 
@@ -66,16 +72,27 @@ public class CacheModel {
   protected ExplicitBinDescriptor mainHeaderBinDescriptor = null;
 
   /**
-   * It is a hash table that storages the length/layers of delivered data-bins.
-   * The key of the hash is the unique data-bin identifier calculated as:<br>
+   * Is an array with the number of layers of the delivered precinct
+   * data-bins, as in {@link CADI.Common.Cache.ExplicitBinDescriptor#numberOfLayers}.
+   * The index of the array is the unique data-bin identifier calculated as:<br>
    * I = t + (c + s x num_components) + num_tiles<br>
    * where,<br>
    * &nbsp; I is the unique identifier of the precinct within its codestream;<br>
    * &nbsp; t is the index (starting from 0) of the tile to which the precinct belongs;<br>
    * &nbsp; c is the index (starting from 0) of the image component to which the precinct belongs;<br>
    * &nbsp; s is a sequence number which identifies the precinct within its tile-component.<br>
+   * <p>
+   * Precincts which are not in the model have both the number of layers and
+   * the number of bytes set to -1. The array is grown on demand.
    */
-  protected HashMap<Long, ExplicitBinDescriptor> precinctDataBins = null;
+  protected int[] precinctLayers = null;
+
+  /**
+   * Is an array with the number of bytes of the delivered precinct data-bins,
+   * as in {@link CADI.Common.Cache.ExplicitBinDescriptor#numberOfBytes}. It is
+   * indexed as the {@link #precinctLayers} attribute.
+   */
+  protected int[] precinctBytes = null;
 
   /**
    *
@@ -83,6 +100,18 @@ public class CacheModel {
   protected HashMap<Long, ExplicitBinDescriptor> tileHeaderDataBin = null;
 
   // INTERNAL ATTRIBUTES
+  /**
+   * Estimation of the memory (in bytes) used by a cache model regardless of
+   * the number of data-bins.
+   */
+  private static final long MODEL_OVERHEAD = 256;
+
+  /**
+   * Estimation of the memory (in bytes) used by a data-bin descriptor in a
+   * hash map.
+   */
+  private static final long DESCRIPTOR_MEMORY = 96;
+
   private JPEG2KTile tileObj = null;
 
   private JPEG2KComponent componentObj = null;
@@ -113,7 +142,8 @@ public class CacheModel {
     this.codestream = codestream;
 
     // Initializations
-    precinctDataBins = new HashMap<Long, ExplicitBinDescriptor>();
+    precinctLayers = new int[0];
+    precinctBytes = new int[0];
     mainHeaderBinDescriptor = new ExplicitBinDescriptor(ExplicitBinDescriptor.MAIN_HEADER, 0, -1, 0);
     tileHeaderDataBin = new HashMap<Long, ExplicitBinDescriptor>();
   }
@@ -127,10 +157,8 @@ public class CacheModel {
       mainHeaderBinDescriptor = null;
     }
 
-    for (Map.Entry<Long, ExplicitBinDescriptor> descriptor : precinctDataBins.entrySet()) {
-      descriptor.getValue().reset();
-    }
-    precinctDataBins.clear();
+    precinctLayers = new int[0];
+    precinctBytes = new int[0];
 
     for (Map.Entry<Long, ExplicitBinDescriptor> descriptor : tileHeaderDataBin.entrySet()) {
       descriptor.getValue().reset();
@@ -185,45 +213,7 @@ public class CacheModel {
     switch (classIdentifier) {
 
       case ClassIdentifiers.PRECINCT:
-        if (!precinctDataBins.containsKey(inClassIdentifier)) {
-          precinctDataBins.put(inClassIdentifier,
-                  new ExplicitBinDescriptor(classIdentifier, inClassIdentifier,
-                  numberOfLayers, numberOfBytes));
-        }
-        ExplicitBinDescriptor descriptor = precinctDataBins.get(inClassIdentifier);
-
-        if (additive) { // Additive
-          if (numberOfLayers >= 0) {
-            if (descriptor.numberOfLayers < numberOfLayers) {
-              descriptor.numberOfLayers = numberOfLayers;
-              descriptor.numberOfBytes = -1;
-            }
-          } else if (numberOfBytes >= 0) {
-            if (descriptor.numberOfBytes < numberOfBytes) {
-              descriptor.numberOfBytes = numberOfBytes;
-              descriptor.numberOfLayers = -1;
-            }
-          } else { // Its a wilcard
-            descriptor.setWilcard();
-          }
-
-        } else { // Subtractive
-          if (numberOfLayers >= 0) {
-            if (descriptor.numberOfLayers > numberOfLayers) {
-              descriptor.numberOfLayers = numberOfLayers;
-              descriptor.numberOfBytes = -1;
-            }
-          } else if (numberOfBytes >= 0) {
-            if (descriptor.numberOfBytes > numberOfBytes) {
-              descriptor.numberOfBytes = numberOfBytes;
-              descriptor.numberOfLayers = -1;
-            }
-          } else { // Its a wilcard
-            descriptor.numberOfBytes = 0;
-            descriptor.numberOfLayers = 0;
-          }
-        }
-
+        updatePrecinct(additive, inClassIdentifier, numberOfLayers, numberOfBytes);
         break;
 
       case ClassIdentifiers.TILE_HEADER:
@@ -339,19 +329,23 @@ public class CacheModel {
     assert ((firstResolutionLevel >= 0) && (lastResolutionLevel >= 0));
     assert ((firstPrecinct >= 0) && (lastPrecinct >= 0));
 
+    // Identifiers of consecutive precincts in a resolution level differ
+    // by the number of tile-components
+    long step = (long)codestream.getNumTiles() * codestream.getZSize();
+
     for (int t = firstTile; t <= lastTile; t++) {
       tileObj = codestream.getTile(t);
       for (int c = firstComponent; c <= lastComponent; c++) {
         componentObj = tileObj.getComponent(c);
         for (int r = firstResolutionLevel; r <= lastResolutionLevel; r++) {
           rLevelObj = componentObj.getResolutionLevel(r);
-          for (int p = firstPrecinct; p <= lastPrecinct; p++) {
-            long inClassIdentifier = rLevelObj.getInClassIdentifier(p);
-            if (!precinctDataBins.containsKey(inClassIdentifier)) {
-              precinctDataBins.put(inClassIdentifier, new ExplicitBinDescriptor());
-            }
-            update(additive, ExplicitBinDescriptor.PRECINCT,
-                    inClassIdentifier, numberOfLayers, -1);
+          int last = Math.min(lastPrecinct, rLevelObj.getNumPrecincts() - 1);
+          if (firstPrecinct > last) {
+            continue;
+          }
+          long inClassIdentifier = rLevelObj.getInClassIdentifier(firstPrecinct);
+          for (int p = firstPrecinct; p <= last; p++, inClassIdentifier += step) {
+            updatePrecinct(additive, inClassIdentifier, numberOfLayers, -1);
           }
         }
       }
@@ -486,16 +480,33 @@ public class CacheModel {
    * @return the length of the data-bin.
    */
   public int getPrecinctDataBinLength(long inClassIdentifier) {
-    ExplicitBinDescriptor dataBin = precinctDataBins.get(inClassIdentifier);
-    if (dataBin == null) {
+    if ((inClassIdentifier < 0) || (inClassIdentifier >= precinctBytes.length)) {
       return -1;
     }
+    int index = (int)inClassIdentifier;
 
-    if (dataBin.isWildcard()) {
+    if (isWildcard(index)) {
       return Integer.MAX_VALUE;
     }
 
-    return dataBin.numberOfBytes;
+    return precinctBytes[index];
+  }
+
+  /**
+   * Returns the lengths of a set of precinct data-bins, as in the
+   * {@link #getPrecinctDataBinLength(long)} method. It is useful to query the
+   * model once for all the relevant precincts of a response.
+   *
+   * @param inClassIdentifiers an array of unique precinct identifiers.
+   *
+   * @return an array with the length of each data-bin.
+   */
+  public final int[] getPrecinctDataBinLengths(long[] inClassIdentifiers) {
+    int[] lengths = new int[inClassIdentifiers.length];
+    for (int i = 0; i < inClassIdentifiers.length; i++) {
+      lengths[i] = getPrecinctDataBinLength(inClassIdentifiers[i]);
+    }
+    return lengths;
   }
 
   /**
@@ -511,16 +522,43 @@ public class CacheModel {
    * @return
    */
   public int getPrecinctDataBinLayers(long inClassIdentifier) {
-    ExplicitBinDescriptor dataBin = precinctDataBins.get(inClassIdentifier);
-    if (dataBin == null) {
+    if ((inClassIdentifier < 0) || (inClassIdentifier >= precinctLayers.length)) {
       return -1;
     }
+    int index = (int)inClassIdentifier;
 
-    if (dataBin.isWildcard()) {
+    if (isWildcard(index)) {
       return Integer.MAX_VALUE;
     }
 
-    return dataBin.numberOfLayers;
+    return precinctLayers[index];
+  }
+
+  /**
+   * Returns an estimation of the memory (in bytes) used by this cache model.
+   *
+   * @return the memory used by the cache model.
+   */
+  public long getMemoryUsage() {
+    return MODEL_OVERHEAD + 4L * (precinctLayers.length + precinctBytes.length)
+            + DESCRIPTOR_MEMORY * tileHeaderDataBin.size();
+  }
+
+  /**
+   * Releases the unused positions at the end of the precinct arrays. It is
+   * used when the memory of the sessions is short, and it does not modify
+   * the model.
+   */
+  public void compact() {
+    int length = precinctLayers.length;
+    while ((length > 0) && (precinctLayers[length - 1] == -1)
+            && (precinctBytes[length - 1] == -1)) {
+      length--;
+    }
+    if (length < precinctLayers.length) {
+      precinctLayers = Arrays.copyOf(precinctLayers, length);
+      precinctBytes = Arrays.copyOf(precinctBytes, length);
+    }
   }
 
   /**
@@ -562,8 +600,11 @@ public class CacheModel {
       str += descriptor.getValue().toString();
     }
 
-    for (Entry<Long, ExplicitBinDescriptor> descriptor : precinctDataBins.entrySet()) {
-      str += descriptor.getValue().toString();
+    for (int index = 0; index < precinctLayers.length; index++) {
+      if ((precinctLayers[index] != -1) || (precinctBytes[index] != -1)) {
+        str += new ExplicitBinDescriptor(ClassIdentifiers.PRECINCT, index,
+                precinctLayers[index], precinctBytes[index]).toString();
+      }
     }
 
     str += "]";
@@ -588,11 +629,107 @@ public class CacheModel {
       descriptor.getValue().list(out);
     }
 
-    for (Entry<Long, ExplicitBinDescriptor> descriptor : precinctDataBins.entrySet()) {
-      descriptor.getValue().list(out);
+    for (int index = 0; index < precinctLayers.length; index++) {
+      if ((precinctLayers[index] != -1) || (precinctBytes[index] != -1)) {
+        new ExplicitBinDescriptor(ClassIdentifiers.PRECINCT, index,
+                precinctLayers[index], precinctBytes[index]).list(out);
+      }
     }
 
     out.flush();
   }
   // ============================ private methods ==============================
+  /**
+   * Updates the number of layers or bytes of a precinct data-bin. It follows
+   * the same rules than the explicit form of the
+   * {@link #update(boolean, int, long, int, int)} method. A subtractive update
+   * of a precinct which is not in the model does not add it.
+   *
+   * @param additive definition in {@link CADI.Common.Cache.ModelElement#additive}.
+   * @param inClassIdentifier definition in {@link CADI.Common.Cache.ExplicitBinDescriptor#inClassIdentifier}.
+   * @param numberOfLayers definition in {@link CADI.Common.Cache.ExplicitBinDescriptor#numberOfLayers}.
+   * @param numberOfBytes definition in {@link CADI.Common.Cache.ExplicitBinDescriptor#numberOfBytes}.
+   */
+  private void updatePrecinct(boolean additive, long inClassIdentifier,
+                              int numberOfLayers, int numberOfBytes) {
+
+    if (inClassIdentifier >= precinctLayers.length) {
+      if (!additive) {
+        return;
+      }
+      ensureCapacity(inClassIdentifier);
+    }
+    int index = (int)inClassIdentifier;
+
+    if (additive) { // Additive
+      if (numberOfLayers >= 0) {
+        if (precinctLayers[index] < numberOfLayers) {
+          precinctLayers[index] = numberOfLayers;
+          precinctBytes[index] = -1;
+        }
+      } else if (numberOfBytes >= 0) {
+        if (precinctBytes[index] < numberOfBytes) {
+          precinctBytes[index] = numberOfBytes;
+          precinctLayers[index] = -1;
+        }
+      } else { // Its a wilcard
+        precinctLayers[index] = BinDescriptor.WILDCARD;
+        precinctBytes[index] = BinDescriptor.WILDCARD;
+      }
+
+    } else { // Subtractive
+      if ((precinctLayers[index] == -1) && (precinctBytes[index] == -1)) {
+        return;
+      }
+      if (numberOfLayers >= 0) {
+        if (precinctLayers[index] > numberOfLayers) {
+          precinctLayers[index] = numberOfLayers;
+          precinctBytes[index] = -1;
+        }
+      } else if (numberOfBytes >= 0) {
+        if (precinctBytes[index] > numberOfBytes) {
+          precinctBytes[index] = numberOfBytes;
+          precinctLayers[index] = -1;
+        }
+      } else { // Its a wilcard
+        precinctBytes[index] = 0;
+        precinctLayers[index] = 0;
+      }
+    }
+  }
+
+  /**
+   * Checks whether the precinct data-bin at <code>index</code> has been
+   * signalled with a wildcard.
+   *
+   * @param index the unique precinct identifier.
+   *
+   * @return <code>true</code> if the precinct is a wildcard.
+   */
+  private boolean isWildcard(int index) {
+    return (precinctLayers[index] == BinDescriptor.WILDCARD)
+            && (precinctBytes[index] == BinDescriptor.WILDCARD);
+  }
+
+  /**
+   * Grows the {@link #precinctLayers} and {@link #precinctBytes} arrays to
+   * hold the precinct <code>inClassIdentifier</code>. The new positions are
+   * set to -1 (not in the model).
+   *
+   * @param inClassIdentifier definition in {@link CADI.Common.Cache.ExplicitBinDescriptor#inClassIdentifier}.
+   */
+  private void ensureCapacity(long inClassIdentifier) {
+    if (inClassIdentifier >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("inClassIdentifier is too large");
+    }
+
+    int oldLength = precinctLayers.length;
+    int newLength = (int)Math.min(Integer.MAX_VALUE - 1,
+            Math.max(inClassIdentifier + 1, Math.max(64L, 2L * oldLength)));
+
+    precinctLayers = Arrays.copyOf(precinctLayers, newLength);
+    precinctBytes = Arrays.copyOf(precinctBytes, newLength);
+    Arrays.fill(precinctLayers, oldLength, newLength, -1);
+    Arrays.fill(precinctBytes, oldLength, newLength, -1);
+  }
 }
@@ -33,23 +33,55 @@ import CADI.Common.LogicalTarget.JPEG2000.Indexing.PacketHeaderIndexTable;
 import CADI.Common.LogicalTarget.JPEG2000.Indexing.PrecinctPacketIndexTable;
 import CADI.Common.LogicalTarget.JPEG2000.Indexing.TileHeaderIndexTable;
 import CADI.Common.LogicalTarget.JPEG2000.Indexing.TilePartIndexTable;
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PackedHeaderParameters;
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PacketLengthParameters;
 import GiciStream.BufferedDataInputStream;
 import GiciException.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class reads the image a store it in a concret structure to decompress.
  * <p>
+ * When the packet lengths are signalled in the codestream (PLM or PLT
+ * markers) and the coding passes structure is not required, the packet
+ * index is built from the signalled lengths without decoding the packet
+ * headers. Otherwise, packet headers are decoded.
+ * <p>
+ * When packet headers are packed (PPM or PPT markers), they are decoded from
+ * the packet header stream and packet bodies are read from the tile-part
+ * data. The location of each packet header in the packet header stream is
+ * recorded in the {@link #phix}, and the length of a packet in the
+ * {@link #ppix} is the length of its SOP marker segment, header and body, as
+ * they are in a precinct data-bin.
+ * <p>
+ * When the coding passes structure is read and the packet lengths are
+ * signalled in the codestream, the packet headers of different precincts
+ * are decoded in parallel (see {@link #setNumThreads(int)}). The coding
+ * passes of each precinct are compacted in the {@link #ppix} as soon as all
+ * its packets have been read.
+ * <p>
+ * The codestream can also be indexed on demand. Then, the tile-part header
+ * is read and packets are only scheduled in the progression order of the
+ * tile. Packets are read later, following that order, when the index of a
+ * precinct which has not been read yet is required.
+ * <p>
  * Usage example:<br>
  * &nbsp; construct<br>
- * &nbsp; run
+ * &nbsp; run (or start and indexPrecinct)
  * &nbsp; get functions<br>
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.1.4 2012/01/14
+ * @version 1.1.9 2012/07/02
  */
 public class CodestreamIndexing {
 
@@ -80,6 +112,127 @@ public class CodestreamIndexing {
    */
   private boolean readCodingPasses = false;
 
+  /**
+   * Are the packet lengths signalled in the PLM markers of the main header,
+   * or <code>null</code> if they are not signalled.
+   */
+  private PacketLengthParameters plmLengths = null;
+
+  /**
+   * Are the packet lengths signalled in the PLT markers of the tile-part
+   * header, or <code>null</code> if they are not signalled.
+   */
+  private PacketLengthParameters pltLengths = null;
+
+  /**
+   * Are the packet lengths used to index the packets. They are the
+   * {@link #plmLengths}, if available, or the {@link #pltLengths}.
+   */
+  private PacketLengthParameters packetLengths = null;
+
+  /**
+   * Indicates whether the packet lengths signalled in the codestream are
+   * used to index the packets instead of decoding the packet headers.
+   */
+  private boolean usePacketLengths = false;
+
+  /**
+   * Is the index of the next packet in the {@link #packetLengths} list.
+   */
+  private int packetIndex = 0;
+
+  /**
+   * Is the file pointer of the next packet when the {@link #packetLengths}
+   * are used.
+   */
+  private long packetFilePointer = 0;
+
+  /**
+   * Is the location of the packet headers packed in the PPM markers of the
+   * main header, or <code>null</code> if there are no PPM markers.
+   */
+  private PackedHeaderParameters ppmHeaders = null;
+
+  /**
+   * Is the location of the packet headers packed in the PPT markers of the
+   * tile-part header, or <code>null</code> if there are no PPT markers.
+   */
+  private PackedHeaderParameters pptHeaders = null;
+
+  /**
+   * Is an input stream with the packet header stream when packet headers are
+   * packed. Otherwise, it is <code>null</code> and packet headers are read
+   * from the {@link #in} stream.
+   */
+  private BufferedDataInputStream headerIn = null;
+
+  /**
+   * Is the length of the tile-part (Psot parameter of the SOT marker).
+   */
+  private long tilePartLength = 0;
+
+  /**
+   * Indicates whether packets are being scheduled, in the progression order
+   * of the tile, instead of being read. Scheduled packets are read on demand
+   * (see {@link #indexPrecinct(long)}).
+   */
+  private boolean schedulePackets = false;
+
+  /**
+   * Are the precinct identifiers of the scheduled packets. Each entry
+   * refers to {@link #scheduledNumLayers} packets, beginning at the layer
+   * {@link #scheduledStartLayers}.
+   */
+  private long[] scheduledPrecincts = null;
+
+  private int[] scheduledStartLayers = null;
+
+  private int[] scheduledNumLayers = null;
+
+  /**
+   * Is the number of entries in the {@link #scheduledPrecincts} list.
+   */
+  private int numScheduled = 0;
+
+  /**
+   * Is the index of the next entry of {@link #scheduledPrecincts} to be read.
+   */
+  private int nextScheduled = 0;
+
+  /**
+   * Is the file pointer of the next scheduled packet to be read.
+   */
+  private long nextFilePointer = 0;
+
+  /**
+   * Are the identifiers of the precincts whose packets have been read when
+   * packets are read on demand.
+   */
+  private ConcurrentHashMap<Long, Boolean> indexedPrecincts = null;
+
+  /**
+   * Indicates whether all the packets have been indexed.
+   */
+  private volatile boolean indexed = false;
+
+  /**
+   * Is the maximum number of threads used to index the codestream. When it
+   * is greater than 1, the coding passes structure is read in parallel if
+   * the packet lengths are signalled in the codestream.
+   */
+  private int numThreads = 1;
+
+  /**
+   * Is the first error found while the codestream is indexed in parallel.
+   */
+  private volatile ErrorException parallelError = null;
+
+  /**
+   * Is the maximum number of precincts read by a task when the codestream is
+   * indexed in parallel.
+   */
+  private static final int PRECINCTS_PER_TASK = 64;
+
   public TilePartIndexTable tpix = null;
 
   /**
@@ -142,6 +295,40 @@ public class CodestreamIndexing {
     this.readCodingPasses = readCodingPasses;
   }
 
+  /**
+   * Sets the {@link #numThreads} attribute.
+   *
+   * @param numThreads definition in {@link #numThreads}.
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Sets the packet lengths signalled in the main header (PLM markers). If
+   * they are not set, packet lengths are read from the PLT markers of the
+   * tile-part header, if any.
+   *
+   * @param plmParameters the packet lengths of the PLM markers.
+   */
+  public void setPacketLengths(PacketLengthParameters plmParameters) {
+    this.plmLengths = plmParameters;
+  }
+
+  /**
+   * Sets the location of the packet headers packed in the main header (PPM
+   * markers). If it is not set, packet headers are read from the PPT markers
+   * of the tile-part header, if any, or from the tile-part data.
+   *
+   * @param ppmParameters the location of the packed packet headers.
+   */
+  public void setPackedHeaders(PackedHeaderParameters ppmParameters) {
+    this.ppmHeaders = ppmParameters;
+  }
+
   /**
    * Reads file with selected progression order.
    *
@@ -153,31 +340,107 @@ public class CodestreamIndexing {
     in.lock();
     try {
 
-      readTilePartHeader();
+      readTileHeaders();
+      if (readCodingPasses && (numThreads > 1) && (headerIn == null)
+              && (in.getChannel() != null) && checkPacketLengths()) {
+        readCodingPassesInParallel();
+      } else {
+        readProgressionOrder();
+      }
 
-      //Call progression order functions
-      switch (tileObj.getProgressionOrder()) {
-        case 0://LRCP
-          LRCP();
-          break;
-        case 1://RLCP
-          RLCP();
-          break;
-        case 2://RPCL
-          RPCL();
-          break;
-        case 3://PCRL
-          PCRL();
-          break;
-        case 4://CPRL
-          CPRL();
-          break;
+      if (usePacketLengths) {
+        in.seek(packetFilePointer);
       }
 
+    } catch (IOException e) {
+      throw new ErrorException("I/O error (" + e.toString() + ").");
     } finally {
       in.unlock();
       PkDeheading.reset();
+      headerIn = null;
     }
+    indexed = true;
+  }
+
+  /**
+   * Starts an on-demand indexing. The tile-part header is read and the
+   * packets are scheduled in the progression order of the tile, but they are
+   * not read. Then, packets are read when they are required (see
+   * {@link #indexPrecinct(long)} and {@link #indexAll()}).
+   *
+   * @throws ErrorException when some error occurs
+   */
+  public void start() throws ErrorException {
+
+    // Acquires the resource
+    in.lock();
+    try {
+
+      readTileHeaders();
+      nextFilePointer = in.getPos();
+
+      schedulePackets = true;
+      readProgressionOrder();
+      indexedPrecincts = new ConcurrentHashMap<Long, Boolean>();
+
+    } finally {
+      schedulePackets = false;
+      in.unlock();
+    }
+
+    if (numScheduled == 0) {
+      finish();
+    }
+  }
+
+  /**
+   * Reads the scheduled packets, in the progression order of the tile, until
+   * all the packets of a precinct have been read.
+   *
+   * @param inClassIdentifier is the precinct identifier.
+   *
+   * @throws ErrorException when some error occurs
+   */
+  public synchronized void indexPrecinct(long inClassIdentifier) throws ErrorException {
+    if (!isIndexed(inClassIdentifier)) {
+      readScheduledPackets(inClassIdentifier);
+    }
+  }
+
+  /**
+   * Reads all the pending scheduled packets.
+   *
+   * @throws ErrorException when some error occurs
+   */
+  public synchronized void indexAll() throws ErrorException {
+    if (!indexed) {
+      readScheduledPackets(-1);
+    }
+  }
+
+  /**
+   * Checks whether all the packets of a precinct have been indexed. This
+   * method does not block while other precincts are being indexed.
+   *
+   * @param inClassIdentifier is the precinct identifier.
+   *
+   * @return <code>true</code> if the precinct has been indexed.
+   */
+  public boolean isIndexed(long inClassIdentifier) {
+    if (indexed) {
+      return true;
+    }
+    Map<Long, Boolean> precincts = indexedPrecincts;
+    return (precincts != null) && precincts.containsKey(inClassIdentifier);
+  }
+
+  /**
+   * Returns the {@link #indexed} attribute.
+   *
+   * @return the {@link #indexed} attribute.
+   */
+  public boolean isIndexed() {
+    return indexed;
   }
 
   public TilePartIndexTable getTilePartIndexTable() {
@@ -409,7 +672,9 @@ public class CodestreamIndexing {
   }
 
   /**
-   * Read a precinct from a file.
+   * Read a precinct from a file. When packets are being scheduled (see
+   * {@link #schedulePackets}), the index tables of the precinct are
+   * initialized but packets are not read.
    *
    * @param inClassIdentifier is the precinct identifier.
    * @param startLayer it refers to the first layer to be read.
@@ -420,23 +685,131 @@ public class CodestreamIndexing {
   private void readPrecinct(JPEG2KPrecinct precinctObj, int startLayer, int numLayers) throws ErrorException {
 
     long inClassIdentifier = precinctObj.getInClassIdentifier();
-    try {
+    if (!ppix.isInitializedIndexTable(inClassIdentifier)) {
       if (readCodingPasses) {
+        ppix.initializeIndexTable(FragmentArrayIndex.VERSION_0, inClassIdentifier, true, precinctObj);
+      } else {
+        ppix.initializeIndexTable(FragmentArrayIndex.VERSION_0, inClassIdentifier, codestream.getNumLayers());
+      }
+    }
+    if (!readCodingPasses && (headerIn != null)
+            && !phix.isInitializedIndexTable(inClassIdentifier)) {
+      phix.initializeIndexTable(inClassIdentifier, codestream.getNumLayers());
+    }
 
-        if (!ppix.isInitializedIndexTable(inClassIdentifier)) {
-          ppix.initializeIndexTable(FragmentArrayIndex.VERSION_0, inClassIdentifier, true, precinctObj);
-        }
+    if (schedulePackets) {
+      schedulePackets(inClassIdentifier, startLayer, numLayers);
+    } else {
+      readPackets(inClassIdentifier, startLayer, numLayers);
+    }
+  }
+
+  /**
+   * Reads the packets of a precinct.
+   *
+   * @param inClassIdentifier is the precinct identifier.
+   * @param startLayer it refers to the first layer to be read.
+   * @param numLayers it refers to the number of layers to read.
+   *
+   * @throws ErrorException when the file cannot be read correctly.
+   */
+  private void readPackets(long inClassIdentifier, int startLayer, int numLayers) throws ErrorException {
+    try {
+      if (readCodingPasses) {
         readCodingPassesStructure(inClassIdentifier, startLayer, numLayers);
       } else {
-
-        if (!ppix.isInitializedIndexTable(inClassIdentifier)) {
-          ppix.initializeIndexTable(FragmentArrayIndex.VERSION_0, inClassIdentifier, codestream.getNumLayers());
-        }
         readPacketStructure(inClassIdentifier, startLayer, numLayers);
       }
     } catch (IOException e) {
       throw new ErrorException();
     }
+
+    if (startLayer + numLayers == tileObj.getNumLayers()) {
+      ppix.compact(inClassIdentifier);
+      if (indexedPrecincts != null) {
+        indexedPrecincts.put(inClassIdentifier, Boolean.TRUE);
+      }
+    }
+  }
+
+  /**
+   * Appends the packets of a precinct to the list of scheduled packets.
+   *
+   * @param inClassIdentifier is the precinct identifier.
+   * @param startLayer it refers to the first layer to be read.
+   * @param numLayers it refers to the number of layers to read.
+   */
+  private void schedulePackets(long inClassIdentifier, int startLayer, int numLayers) {
+    if (numScheduled == scheduledPrecincts.length) {
+      int capacity = 2 * scheduledPrecincts.length;
+      long[] tmpPrecincts = new long[capacity];
+      System.arraycopy(scheduledPrecincts, 0, tmpPrecincts, 0, numScheduled);
+      scheduledPrecincts = tmpPrecincts;
+      int[] tmpLayers = new int[capacity];
+      System.arraycopy(scheduledStartLayers, 0, tmpLayers, 0, numScheduled);
+      scheduledStartLayers = tmpLayers;
+      tmpLayers = new int[capacity];
+      System.arraycopy(scheduledNumLayers, 0, tmpLayers, 0, numScheduled);
+      scheduledNumLayers = tmpLayers;
+    }
+    scheduledPrecincts[numScheduled] = inClassIdentifier;
+    scheduledStartLayers[numScheduled] = startLayer;
+    scheduledNumLayers[numScheduled] = numLayers;
+    numScheduled++;
+  }
+
+  /**
+   * Reads the scheduled packets until all the packets of a precinct have
+   * been read.
+   *
+   * @param inClassIdentifier is the precinct identifier, or -1 to read all
+   *          the scheduled packets.
+   *
+   * @throws ErrorException when the file cannot be read correctly.
+   */
+  private void readScheduledPackets(long inClassIdentifier) throws ErrorException {
+
+    if (indexedPrecincts == null) {
+      throw new ErrorException("Codestream indexing has not been started.");
+    }
+
+    // Acquires the resource
+    in.lock();
+    try {
+      in.seek(nextFilePointer);
+      while ((nextScheduled < numScheduled)
+              && !indexedPrecincts.containsKey(inClassIdentifier)) {
+        readPackets(scheduledPrecincts[nextScheduled],
+                    scheduledStartLayers[nextScheduled],
+                    scheduledNumLayers[nextScheduled]);
+        nextScheduled++;
+      }
+      nextFilePointer = in.getPos();
+    } catch (IOException e) {
+      throw new ErrorException("I/O error (" + e.toString() + ").");
+    } finally {
+      in.unlock();
+    }
+
+    if (nextScheduled == numScheduled) {
+      finish();
+    }
+  }
+
+  /**
+   * Releases the resources used to read the scheduled packets once all of
+   * them have been read.
+   *
+   * @throws ErrorException when some error occurs
+   */
+  private void finish() throws ErrorException {
+    PkDeheading.reset();
+    headerIn = null;
+    scheduledPrecincts = null;
+    scheduledStartLayers = null;
+    scheduledNumLayers = null;
+    indexed = true;
+    indexedPrecincts = null;
   }
 
   /**
@@ -453,13 +826,33 @@ public class CodestreamIndexing {
 
     int[][][][] precinctdata = null;
 
+    if (usePacketLengths) {
+      for (int layer = startLayer; layer < startLayer + numLayers; layer++) {
+        long length = packetLengths.getLength(packetIndex++);
+        ppix.setFilePointer(inClassIdentifier, layer, packetFilePointer);
+        ppix.setLength(inClassIdentifier, layer, length);
+        packetFilePointer += length;
+      }
+      return;
+    }
+
     for (int layer = startLayer; layer < startLayer + numLayers; layer++) {
 
       // Gets the file pointer for this packet
       long fpInitialPos = in.getPos();
       ppix.setFilePointer(inClassIdentifier, layer, fpInitialPos);
 
-      precinctdata = PkDeheading.packetHeaderDecoding(new PacketHeaderDataInputStream(in), inClassIdentifier);
+      int headerLength = 0;
+      if (headerIn != null) {
+        readSOP();
+        long headerInitialPos = headerIn.getPos();
+        precinctdata = PkDeheading.packetHeaderDecoding(new PacketHeaderDataInputStream(headerIn), inClassIdentifier);
+        headerLength = (int)(headerIn.getPos() - headerInitialPos);
+        phix.setOffset(inClassIdentifier, layer, headerInitialPos);
+        phix.setLength(inClassIdentifier, layer, headerLength);
+      } else {
+        precinctdata = PkDeheading.packetHeaderDecoding(new PacketHeaderDataInputStream(in), inClassIdentifier);
+      }
       //long fpIniDataPos = in.getPos();
 
       long bytesToSkip = 0;
@@ -490,8 +883,8 @@ public class CodestreamIndexing {
         throw new ErrorException();
       }
 
-      // Gets the packet body length
-      ppix.setLength(inClassIdentifier, layer, in.getPos() - fpInitialPos);
+      // Gets the packet length (packed headers are included)
+      ppix.setLength(inClassIdentifier, layer, in.getPos() - fpInitialPos + headerLength);
     }
   }
 
@@ -510,42 +903,20 @@ public class CodestreamIndexing {
     int[][][][] precinctData = null;
 
     for (int layer = startLayer; layer < startLayer + numLayers; layer++) {
-      precinctData = PkDeheading.packetHeaderDecoding(new PacketHeaderDataInputStream(in), inClassIdentifier);
-
-      if (precinctData != null) { // Subband
-
-        // Read file pointers and lengths of coding passes
-        for (int subband = 0; subband < precinctData.length; subband++) {
-          if (precinctData[subband] != null) {
-
-            for (int yBlock = 0; yBlock < precinctData[subband].length; yBlock++) {
-              if (precinctData[subband][yBlock] != null) {
-
-                for (int xBlock = 0; xBlock < precinctData[subband][yBlock].length; xBlock++) {
-                  if (precinctData[subband][yBlock][xBlock] != null) {
-
-                    long[] pointers = new long[precinctData[subband][yBlock][xBlock].length];
-                    for (int cp = 0; cp < precinctData[subband][yBlock][xBlock].length; cp++) {
-                      pointers[cp] = in.getPos();
-                      try {
-                        in.skipBytes(precinctData[subband][yBlock][xBlock][cp]);
-                      } catch (IOException e) {
-                        throw new ErrorException();
-                      }
-                      /* try {
-                       * System.out.println("\t\t\tsb="+subband+" yb="+yBlock+" xb="+xBlock+" cp="+cp+" fp="+pointers[cp]+" len="+precinctData[subband][yBlock][xBlock][cp]+" zbp="+PkDeheading.getZeroBitPlanes(inClassIdentifier)[subband][yBlock][xBlock]);
-                       * } catch (IllegalAccessException ex) {
-                       * Logger.getLogger(CodestreamIndexing.class.getName()).log(Level.SEVERE, null, ex);
-                       * } */
-                    }
-                    ppix.setFilePointer(inClassIdentifier, subband, yBlock, xBlock, pointers);
-                    ppix.setLength(inClassIdentifier, subband, yBlock, xBlock, precinctData[subband][yBlock][xBlock]);
-                  }
-                }
-              }
-            }
-          }
-        }
+      if (headerIn != null) {
+        readSOP();
+        precinctData = PkDeheading.packetHeaderDecoding(new PacketHeaderDataInputStream(headerIn), inClassIdentifier);
+      } else {
+        precinctData = PkDeheading.packetHeaderDecoding(new PacketHeaderDataInputStream(in), inClassIdentifier);
+      }
+
+      // Read file pointers and lengths of coding passes
+      long filePointer = in.getPos();
+      long bodyEnd = setCodingPasses(inClassIdentifier, precinctData, filePointer);
+      try {
+        in.skipBytes(bodyEnd - filePointer);
+      } catch (IOException e) {
+        throw new ErrorException();
       }
 
       try {
@@ -558,6 +929,249 @@ public class CodestreamIndexing {
     }
   }
 
+  /**
+   * Sets the file pointers and lengths of the coding passes of a packet.
+   *
+   * @param inClassIdentifier is the precinct identifier.
+   * @param precinctData the lengths of the coding passes decoded from the
+   *          packet header (see
+   *          {@link CADI.Common.LogicalTarget.JPEG2000.Codestream.PacketHeadersDecoder#packetHeaderDecoding(PacketHeaderDataInputStream, long)}).
+   * @param filePointer is the file pointer of the packet body.
+   *
+   * @return the file pointer of the end of the packet body.
+   */
+  private long setCodingPasses(long inClassIdentifier, int[][][][] precinctData,
+                               long filePointer) {
+
+    if (precinctData == null) {
+      return filePointer;
+    }
+
+    for (int subband = 0; subband < precinctData.length; subband++) {
+      if (precinctData[subband] != null) {
+
+        for (int yBlock = 0; yBlock < precinctData[subband].length; yBlock++) {
+          if (precinctData[subband][yBlock] != null) {
+
+            for (int xBlock = 0; xBlock < precinctData[subband][yBlock].length; xBlock++) {
+              if (precinctData[subband][yBlock][xBlock] != null) {
+
+                long[] pointers = new long[precinctData[subband][yBlock][xBlock].length];
+                for (int cp = 0; cp < precinctData[subband][yBlock][xBlock].length; cp++) {
+                  pointers[cp] = filePointer;
+                  filePointer += precinctData[subband][yBlock][xBlock][cp];
+                }
+                ppix.setFilePointer(inClassIdentifier, subband, yBlock, xBlock, pointers);
+                ppix.setLength(inClassIdentifier, subband, yBlock, xBlock, precinctData[subband][yBlock][xBlock]);
+              }
+            }
+          }
+        }
+      }
+    }
+
+    return filePointer;
+  }
+
+  /**
+   * Reads the coding passes structure of the precincts in parallel. The
+   * file pointer of each packet is computed from the {@link #packetLengths},
+   * so the packet headers of each precinct can be decoded independently of
+   * the packets of the other precincts. Precincts are split among the tasks
+   * of a fork-join pool, and each task reads the packets with positional
+   * reads on the file channel of the {@link #in} stream.
+   *
+   * @throws ErrorException when the file cannot be read correctly.
+   */
+  private void readCodingPassesInParallel() throws ErrorException, IOException {
+
+    // Packets are scheduled to know their order in the codestream
+    schedulePackets = true;
+    try {
+      readProgressionOrder();
+    } finally {
+      schedulePackets = false;
+    }
+
+    // File pointer of each packet, grouped by precinct
+    int numLayers = tileObj.getNumLayers();
+    int numPrecincts = packetLengths.getNumPackets() / numLayers;
+    long[] precincts = new long[numPrecincts];
+    int[] packetIndexes = new int[numPrecincts * numLayers];
+    long[] filePointers = new long[numPrecincts * numLayers];
+
+    HashMap<Long, Integer> ordinals = new HashMap<Long, Integer>(2 * numPrecincts);
+    long filePointer = packetFilePointer;
+    int packet = 0;
+    int precinct = 0;
+    for (int entry = 0; entry < numScheduled; entry++) {
+      Integer ordinal = ordinals.get(scheduledPrecincts[entry]);
+      if (ordinal == null) {
+        ordinal = precinct++;
+        ordinals.put(scheduledPrecincts[entry], ordinal);
+        precincts[ordinal] = scheduledPrecincts[entry];
+      }
+      int lastLayer = scheduledStartLayers[entry] + scheduledNumLayers[entry];
+      for (int layer = scheduledStartLayers[entry]; layer < lastLayer; layer++) {
+        packetIndexes[ordinal * numLayers + layer] = packet;
+        filePointers[ordinal * numLayers + layer] = filePointer;
+        filePointer += packetLengths.getLength(packet++);
+      }
+    }
+    ordinals = null;
+    scheduledPrecincts = null;
+    scheduledStartLayers = null;
+    scheduledNumLayers = null;
+
+    // Decodes the packet headers
+    parallelError = null;
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    try {
+      pool.invoke(new PrecinctsIndexingTask(precincts, packetIndexes,
+                                            filePointers, 0, numPrecincts));
+    } finally {
+      pool.shutdown();
+    }
+    if (parallelError != null) {
+      throw parallelError;
+    }
+
+    packetFilePointer = filePointer;
+    in.seek(packetFilePointer);
+  }
+
+  /**
+   * Reads the coding passes structure of a range of precincts. This method
+   * is run concurrently by the tasks of the fork-join pool, so it uses its
+   * own packet header decoder. As precincts are independent, each one is
+   * only modified by a task.
+   *
+   * @param precincts the identifiers of the precincts.
+   * @param packetIndexes the index of each packet in the tile, for each
+   *          precinct and layer.
+   * @param filePointers the file pointer of each packet, for each precinct
+   *          and layer.
+   * @param from the first precinct of the range.
+   * @param to the last precinct of the range (exclusive).
+   *
+   * @throws ErrorException when the file cannot be read correctly.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void readCodingPassesStructure(long[] precincts, int[] packetIndexes,
+                                         long[] filePointers, int from, int to)
+          throws ErrorException, IOException {
+
+    // SOP markers are read here because the decoder checks they are consecutive
+    PacketHeadersDecoder decoder = new PacketHeadersDecoder(codestream, false, tileObj.useEPH());
+    FileChannel channel = in.getChannel();
+    int numLayers = tileObj.getNumLayers();
+    boolean useSOP = tileObj.useSOP();
+
+    for (int precinct = from; (precinct < to) && (parallelError == null); precinct++) {
+      long inClassIdentifier = precincts[precinct];
+      for (int layer = 0; layer < numLayers; layer++) {
+        int packet = packetIndexes[precinct * numLayers + layer];
+        long filePointer = filePointers[precinct * numLayers + layer];
+
+        // Reads the whole packet
+        ByteBuffer buffer = ByteBuffer.allocate((int)packetLengths.getLength(packet));
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, filePointer + buffer.position()) < 0) {
+            throw new EOFException();
+          }
+        }
+        BufferedDataInputStream packetIn = new BufferedDataInputStream(buffer.array());
+
+        if (useSOP) {
+          if ((packetIn.read() != 0xFF) || (packetIn.read() != 0x91)
+                  || (packetIn.read() != 0x00) || (packetIn.read() != 0x04)
+                  || (((packetIn.read() << 8) | packetIn.read()) != (packet & 0xFFFF))) {
+            throw new ErrorException("Error reading CodeStream, expected SOP and it's not found.");
+          }
+        }
+
+        int[][][][] precinctData =
+                decoder.packetHeaderDecoding(new PacketHeaderDataInputStream(packetIn), inClassIdentifier);
+        setCodingPasses(inClassIdentifier, precinctData, filePointer + packetIn.getPos());
+
+        try {
+          ppix.setZeroBitPlanes(inClassIdentifier, decoder.getZeroBitPlanes(inClassIdentifier));
+        } catch (IllegalAccessException e) {
+          e.printStackTrace();
+          assert (true);
+        }
+      }
+      ppix.compact(inClassIdentifier);
+    }
+  }
+
+  /**
+   * Keeps the first error found by the tasks of the fork-join pool.
+   *
+   * @param e the error.
+   */
+  private synchronized void setParallelError(ErrorException e) {
+    if (parallelError == null) {
+      parallelError = e;
+    }
+  }
+
+  /**
+   * Reads the tile-part header and the packed packet headers, if any, and
+   * checks whether packets can be indexed from the signalled packet lengths.
+   *
+   * @throws ErrorException when some error occurs
+   */
+  private void readTileHeaders() throws ErrorException {
+
+    readTilePartHeader();
+
+    if ((ppmHeaders != null) || (pptHeaders != null)) {
+      readPackedHeaders();
+    }
+
+    packetLengths = (plmLengths != null) ? plmLengths : pltLengths;
+    usePacketLengths = !readCodingPasses && (headerIn == null)
+            && checkPacketLengths();
+    packetIndex = 0;
+    packetFilePointer = in.getPos();
+  }
+
+  /**
+   * Reads the packets of the tile with its progression order.
+   *
+   * @throws ErrorException when some error occurs
+   */
+  private void readProgressionOrder() throws ErrorException {
+
+    if (schedulePackets) {
+      scheduledPrecincts = new long[1024];
+      scheduledStartLayers = new int[1024];
+      scheduledNumLayers = new int[1024];
+      numScheduled = 0;
+      nextScheduled = 0;
+    }
+
+    //Call progression order functions
+    switch (tileObj.getProgressionOrder()) {
+      case 0://LRCP
+        LRCP();
+        break;
+      case 1://RLCP
+        RLCP();
+        break;
+      case 2://RPCL
+        RPCL();
+        break;
+      case 3://PCRL
+        PCRL();
+        break;
+      case 4://CPRL
+        CPRL();
+        break;
+    }
+  }
+
   /**
    *
    * @throws ErrorException
@@ -575,6 +1189,7 @@ public class CodestreamIndexing {
   private void readSOT() throws ErrorException {
 
     thix.tileHeaderFilePointer = in.getPos();
+    ppix.setBaseFilePointer(thix.tileHeaderFilePointer);
 
     // SOT marker segment's Lsot
     int Lsot = (readByte() << 8) | readByte();
@@ -589,10 +1204,11 @@ public class CodestreamIndexing {
     }
 
     //SOT marker segment's Psot
-    int Psot = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
-    if ((Psot < 12) || (Psot > (Math.pow(2, 32)) - 1)) {
+    long Psot = ((long)readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    if (((Psot != 0) && (Psot < 12)) || (Psot > (Math.pow(2, 32)) - 1)) {
       throw new ErrorException("Value of PSOT is exceded.");
     }
+    tilePartLength = Psot;
 
     //SOT marker segment's TPsot
     int TPsot = readByte();
@@ -614,6 +1230,40 @@ public class CodestreamIndexing {
     }
 
     thix.tileHeaderLength = (int)(in.getPos() - thix.tileHeaderFilePointer);
+
+    // Jumps to the end of the tile-part to check there are no more tile-parts
+    if (Psot != 0) {
+      readNextTilePart(thix.tileHeaderFilePointer - 2 + Psot);
+    }
+  }
+
+  /**
+   * Checks whether a tile-part begins at the given file pointer. It is used
+   * to find the next tile-part jumping over the current one with its Psot
+   * parameter, because the number of tile-parts (TNsot parameter) may not
+   * be signalled.
+   *
+   * @param filePointer the file pointer of the end of the current tile-part.
+   *
+   * @throws ErrorException when another tile-part is found.
+   */
+  private void readNextTilePart(long filePointer) throws ErrorException {
+    long currentPos = in.getPos();
+    if (filePointer + 2 > currentPos + in.length()) {
+      return;
+    }
+
+    int marker = 0;
+    try {
+      in.seek(filePointer);
+      marker = (in.read() << 8) | in.read();
+      in.seek(currentPos);
+    } catch (IOException e) {
+      throw new ErrorException("I/O error (" + e.toString() + ").");
+    }
+    if (marker == 0xFF90) {
+      throw new ErrorException("CADI does not support more than one tile or tile-part.");
+    }
   }
 
   /**
@@ -649,9 +1299,11 @@ public class CodestreamIndexing {
         case 0x5F://POC marker
           throw new ErrorException("CADI cannot decode codestreams with a POC marker.");
         case 0x58://PLT marker
-          throw new ErrorException("CADI cannot decode codestreams with a PLT marker.");
+          readPLT();
+          break;
         case 0x61://PPT marker
-          throw new ErrorException("CADI cannot decode codestreams with a PPT marker.");
+          readPPT();
+          break;
         case 0x64://COM marker
           System.out.println("Comment header will not be considered in this version of CADI");
           break;
@@ -662,6 +1314,158 @@ public class CodestreamIndexing {
     }
   }
 
+  /**
+   * Reads the PLT marker segment. Packet lengths are only kept when they
+   * have not been signalled in the main header.
+   *
+   * @throws ErrorException when the PLT marker segment is incorrect
+   */
+  private void readPLT() throws ErrorException {
+
+    // Lplt (length of marker segment)
+    int Lplt = (readByte() << 8) | readByte();
+    if (Lplt < 4) {
+      throw new ErrorException("Wrong length in PLT marker");
+    }
+
+    // Zplt (index of the marker segment)
+    readByte();
+
+    // Iplt
+    if (pltLengths == null) {
+      pltLengths = new PacketLengthParameters();
+    }
+    for (int i = Lplt - 3; i > 0; i--) {
+      pltLengths.decodeByte(readByte());
+    }
+  }
+
+  /**
+   * Reads the PPT marker segment. Packet headers are not read, only the
+   * location of the Ippt bytes is recorded.
+   *
+   * @throws ErrorException when the PPT marker segment is incorrect
+   */
+  private void readPPT() throws ErrorException {
+
+    // Lppt (length of marker segment)
+    int Lppt = (readByte() << 8) | readByte();
+    if (Lppt < 4) {
+      throw new ErrorException("Wrong length in PPT marker");
+    }
+
+    // Zppt (index of the marker segment)
+    readByte();
+
+    // Ippt
+    if (pptHeaders == null) {
+      pptHeaders = new PackedHeaderParameters();
+    }
+    pptHeaders.addFragment(in.getPos(), Lppt - 3);
+    try {
+      in.skipBytes(Lppt - 3);
+    } catch (IOException e) {
+      throw new ErrorException("I/O error (" + e.toString() + ").");
+    }
+  }
+
+  /**
+   * Reads the packet header stream of the tile-part, which is used to decode
+   * the packet headers instead of the tile-part data. The {@link #phix} is
+   * set with its location.
+   *
+   * @throws ErrorException when the packet header stream cannot be read
+   */
+  private void readPackedHeaders() throws ErrorException {
+
+    if ((ppmHeaders != null) && (pptHeaders != null)) {
+      throw new ErrorException("PPM and PPT markers cannot be used in the same codestream.");
+    }
+
+    PackedHeaderParameters packedHeaders = (ppmHeaders != null) ? ppmHeaders : pptHeaders;
+    long totalLength = packedHeaders.getTotalLength();
+    if (totalLength > Integer.MAX_VALUE) {
+      throw new ErrorException("Packed packet headers are too long.");
+    }
+
+    byte[] buffer = new byte[(int)totalLength];
+    long filePointer = in.getPos();
+    try {
+      int offset = 0;
+      for (int i = 0; i < packedHeaders.getNumFragments(); i++) {
+        in.seek(packedHeaders.getFilePointer(i));
+        in.readFully(buffer, offset, packedHeaders.getLength(i));
+        offset += packedHeaders.getLength(i);
+      }
+      in.seek(filePointer);
+    } catch (IOException e) {
+      throw new ErrorException("I/O error (" + e.toString() + ").");
+    }
+
+    headerIn = new BufferedDataInputStream(buffer);
+    phix.setPackedHeaders(packedHeaders, ppmHeaders != null);
+
+    // SOP markers are in the tile-part data, EPH markers in the header stream
+    PkDeheading = new PacketHeadersDecoder(codestream, false, tileObj.useEPH());
+  }
+
+  /**
+   * Reads the SOP marker segment which precedes a packet body when packet
+   * headers are packed.
+   *
+   * @throws ErrorException when the SOP marker segment is not found
+   */
+  private void readSOP() throws ErrorException {
+    if (!tileObj.useSOP()) {
+      return;
+    }
+    if ((readByte() != 0xFF) || (readByte() != 0x91)) {
+      throw new ErrorException("Error reading CodeStream, expected SOP and it's not found.");
+    }
+    // Lsop and Nsop
+    for (int i = 0; i < 4; i++) {
+      readByte();
+    }
+  }
+
+  /**
+   * Checks whether the {@link #packetLengths} can be used to index the
+   * packets. They must be completely decoded, there must be one length for
+   * each packet of the tile, and the packets must fit in the tile-part.
+   *
+   * @return <code>true</code> if the packet lengths can be used.
+   */
+  private boolean checkPacketLengths() {
+
+    if ((packetLengths == null) || !packetLengths.isComplete()) {
+      return false;
+    }
+
+    // Number of packets
+    long numPackets = 0;
+    int numLayers = tileObj.getNumLayers();
+    int numComponents = codestream.getZSize();
+    for (int z = 0; z < numComponents; z++) {
+      componentObj = tileObj.getComponent(z);
+      int maxRLevel = componentObj.getWTLevels() + 1;
+      for (int rLevel = 0; rLevel < maxRLevel; rLevel++) {
+        numPackets += (long)componentObj.getResolutionLevel(rLevel).getNumPrecincts() * numLayers;
+      }
+    }
+    if (numPackets != packetLengths.getNumPackets()) {
+      return false;
+    }
+
+    // Packets length
+    long totalLength = packetLengths.getTotalLength();
+    if (tilePartLength != 0) {
+      // The tile-part begins 2 bytes before the SOT marker segment
+      long tilePartEnd = thix.tileHeaderFilePointer - 2 + tilePartLength;
+      return (in.getPos() + totalLength == tilePartEnd);
+    }
+    return (totalLength <= in.length());
+  }
+
   /**
    * Finds the maximum number of precincts in the wide dimension across all
    * components.
@@ -821,4 +1625,51 @@ public class CodestreamIndexing {
 
     return maxRLevel;
   }
+
+  /**
+   * This class is a fork-join task which reads the coding passes structure
+   * of a range of precincts (see
+   * {@link CodestreamIndexing#readCodingPassesStructure(long[], int[], long[], int, int)}).
+   * Ranges longer than {@link #PRECINCTS_PER_TASK} are split in two halves.
+   */
+  private class PrecinctsIndexingTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private long[] precincts = null;
+
+    private int[] packetIndexes = null;
+
+    private long[] filePointers = null;
+
+    private int from = 0;
+
+    private int to = 0;
+
+    public PrecinctsIndexingTask(long[] precincts, int[] packetIndexes,
+                                 long[] filePointers, int from, int to) {
+      this.precincts = precincts;
+      this.packetIndexes = packetIndexes;
+      this.filePointers = filePointers;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= PRECINCTS_PER_TASK) {
+        try {
+          readCodingPassesStructure(precincts, packetIndexes, filePointers, from, to);
+        } catch (ErrorException e) {
+          setParallelError(e);
+        } catch (IOException e) {
+          setParallelError(new ErrorException("I/O error (" + e.toString() + ")."));
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new PrecinctsIndexingTask(precincts, packetIndexes, filePointers, from, middle),
+                  new PrecinctsIndexingTask(precincts, packetIndexes, filePointers, middle, to));
+      }
+    }
+  }
 }
\ No newline at end of file
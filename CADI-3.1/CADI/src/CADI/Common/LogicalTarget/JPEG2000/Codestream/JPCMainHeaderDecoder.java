@@ -30,6 +30,8 @@ import CADI.Common.LogicalTarget.JPEG2000.JPCParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.COCParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.MCCParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.MCTParameters;
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PackedHeaderParameters;
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PacketLengthParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.QCCParameters;
 import GiciStream.BufferedDataInputStream;
 import GiciException.*;
@@ -45,7 +47,7 @@ import java.util.regex.Pattern;
  * neccesary to decompress the image.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.1.4 2011/03/13
+ * @version 1.1.6 2012/06/22
  */
 public class JPCMainHeaderDecoder {
 
@@ -83,6 +85,17 @@ public class JPCMainHeaderDecoder {
    */
   boolean markerFound = false;
 
+  /**
+   * Is the number of bytes of the packet header stream of the current
+   * tile-part which have not been read yet (see {@link #readPPM()}).
+   */
+  private long ppmRemainingBytes = 0;
+
+  /**
+   * Is the number of tile-parts whose packet headers are in the PPM markers.
+   */
+  private int ppmNumTileParts = 0;
+
   // ============================= public methods ==============================
   /**
    * Constructor.
@@ -161,11 +174,13 @@ public class JPCMainHeaderDecoder {
             case (int) 0x55://TLM marker
               throw new ErrorException("CADI cannot decode codestreams with a TLM marker.");
             case (int) 0x57://PLM marker
-              throw new ErrorException("CADI cannot decode codestreams with a PLM marker.");
+              readPLM();
+              break;
             case (int) 0x58://PLT marker
               throw new ErrorException("PLT marker not is allowed in the main header.");
             case (int) 0x60://PPM marker
-              throw new ErrorException("CADI cannot decode codestreams with a PPM marker.");
+              readPPM();
+              break;
             case (int) 0x61://PPT marker
               throw new ErrorException("PPT marker not is allowed in the main header.");
             case (int) 0x63://CRG marker
@@ -1124,6 +1139,96 @@ public class JPCMainHeaderDecoder {
     markerFound = false;
   }
 
+  /**
+   * Reads the PLM marker segment and retrieves the packet lengths contained.
+   * Lengths of all the tile-parts are stored in the same list because CADI
+   * only supports codestreams with one tile-part.
+   *
+   * @throws ErrorException when the PLM marker segment is incorrect
+   * @throws IOException
+   */
+  private void readPLM() throws ErrorException, IOException {
+
+    // Lplm (length of marker segment)
+    int Lplm = in.readUnsignedShort();
+    if (Lplm < 4) {
+      throw new ErrorException("Wrong length in PLM marker");
+    }
+
+    // Zplm (index of the marker segment)
+    in.read();
+
+    if (jpcParameters.plmParameters == null) {
+      jpcParameters.plmParameters = new PacketLengthParameters();
+    }
+
+    // Nplm and Iplm
+    int remainingBytes = Lplm - 3;
+    while (remainingBytes > 0) {
+      int Nplm = in.read();
+      remainingBytes--;
+      if (Nplm > remainingBytes) {
+        throw new ErrorException("Wrong Nplm value in PLM marker");
+      }
+      for (int i = 0; i < Nplm; i++) {
+        jpcParameters.plmParameters.decodeByte(in.read());
+      }
+      remainingBytes -= Nplm;
+    }
+
+    markerFound = false;
+  }
+
+  /**
+   * Reads the PPM marker segment. Packet headers are not read, only the
+   * location of the Ippm bytes is recorded. The Nppm bytes of a tile-part
+   * may be split in several marker segments.
+   *
+   * @throws ErrorException when the PPM marker segment is incorrect
+   * @throws IOException
+   */
+  private void readPPM() throws ErrorException, IOException {
+
+    long markerFilePointer = in.getPos() - 2;
+
+    // Lppm (length of marker segment)
+    int Lppm = in.readUnsignedShort();
+    if (Lppm < 4) {
+      throw new ErrorException("Wrong length in PPM marker");
+    }
+
+    // Zppm (index of the marker segment)
+    in.read();
+
+    if (jpcParameters.ppmParameters == null) {
+      jpcParameters.ppmParameters = new PackedHeaderParameters();
+    }
+    jpcParameters.ppmParameters.addMarkerSegment(markerFilePointer, Lppm + 2);
+
+    // Nppm and Ippm
+    int remainingBytes = Lppm - 3;
+    while (remainingBytes > 0) {
+      if (ppmRemainingBytes == 0) {
+        if (ppmNumTileParts > 0) {
+          throw new ErrorException("CADI does not support more than one tile or tile-part.");
+        }
+        if (remainingBytes < 4) {
+          throw new ErrorException("Wrong Nppm value in PPM marker");
+        }
+        ppmRemainingBytes = in.readInt() & 0xFFFFFFFFL;
+        remainingBytes -= 4;
+        ppmNumTileParts++;
+      }
+      int length = (int)Math.min(remainingBytes, ppmRemainingBytes);
+      jpcParameters.ppmParameters.addFragment(in.getPos(), length);
+      in.skipBytes(length);
+      remainingBytes -= length;
+      ppmRemainingBytes -= length;
+    }
+
+    markerFound = false;
+  }
+
   /**
    *
    * @throws ErrorException
@@ -30,9 +30,17 @@ import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PackedHeaderParameters;
+
 /**
+ * This class records the location of the packet headers when they are packed
+ * in PPM or PPT marker segments. For each precinct and layer, the offset and
+ * length of the packet header in the packet header stream are recorded. The
+ * packet header stream is the concatenation of the fragments of
+ * {@link #packedHeaders}.
+ * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0 2009/09/12
+ * @version 1.1 2012/06/22
  */
 public class PacketHeaderIndexTable {
 
@@ -45,6 +53,24 @@ public class PacketHeaderIndexTable {
 	 * 
 	 */
 	public HashMap<Long, FragmentArrayIndex> faix = null;
+
+	/**
+	 * Is the location of the packet header stream, or <code>null</code> if
+	 * packet headers are not packed.
+	 */
+	private PackedHeaderParameters packedHeaders = null;
+
+	/**
+	 * Contains the offset in the packet header stream of the first byte of
+	 * each fragment of {@link #packedHeaders}.
+	 */
+	private long[] fragmentOffsets = null;
+
+	/**
+	 * Indicates whether packed headers have been read from the main header
+	 * (PPM) or from the tile-part header (PPT).
+	 */
+	private boolean mainHeaderPackedHeaders = false;
 	
 	// ============================= public methods ==============================
 	/**
@@ -67,6 +93,105 @@ public class PacketHeaderIndexTable {
 		this.faix = faix;
 	}
 	
+	/**
+	 * Sets the location of the packet header stream.
+	 *
+	 * @param packedHeaders definition in {@link #packedHeaders}.
+	 * @param mainHeader definition in {@link #mainHeaderPackedHeaders}.
+	 */
+	public void setPackedHeaders(PackedHeaderParameters packedHeaders,
+	                             boolean mainHeader) {
+		this.packedHeaders = packedHeaders;
+		this.mainHeaderPackedHeaders = mainHeader;
+
+		fragmentOffsets = null;
+		if (packedHeaders != null) {
+			int numFragments = packedHeaders.getNumFragments();
+			fragmentOffsets = new long[numFragments];
+			long offset = 0;
+			for (int i = 0; i < numFragments; i++) {
+				fragmentOffsets[i] = offset;
+				offset += packedHeaders.getLength(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the {@link #packedHeaders} attribute.
+	 *
+	 * @return the {@link #packedHeaders} attribute.
+	 */
+	public PackedHeaderParameters getPackedHeaders() {
+		return packedHeaders;
+	}
+
+	/**
+	 * Returns the {@link #mainHeaderPackedHeaders} attribute.
+	 *
+	 * @return the {@link #mainHeaderPackedHeaders} attribute.
+	 */
+	public boolean isMainHeaderPackedHeaders() {
+		return mainHeaderPackedHeaders;
+	}
+
+	/**
+	 * Indicates whether packet headers are packed.
+	 *
+	 * @return <code>true</code> if packet headers are packed.
+	 */
+	public boolean isPacked() {
+		return (packedHeaders != null);
+	}
+
+	/**
+	 * Returns the index of the fragment of {@link #packedHeaders} which
+	 * contains a byte of the packet header stream.
+	 *
+	 * @param offset the offset of the byte in the packet header stream.
+	 *
+	 * @return the fragment index.
+	 */
+	public int findFragment(long offset) {
+		int low = 0, high = fragmentOffsets.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (fragmentOffsets[mid] <= offset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the offset in the packet header stream of the first byte of a
+	 * fragment.
+	 *
+	 * @param index the fragment index.
+	 *
+	 * @return the offset of the fragment.
+	 */
+	public long getFragmentOffset(int index) {
+		return fragmentOffsets[index];
+	}
+
+  public void initializeIndexTable(long inClassIdentifier, int numLayers) {
+    faix.put(inClassIdentifier, new FragmentArrayIndex(FragmentArrayIndex.VERSION_0, 1, numLayers));
+  }
+
+  public boolean isInitializedIndexTable(long inClassIdentifier) {
+    return faix.containsKey(inClassIdentifier);
+  }
+
+  public void setOffset(long inClassIdentifier, int layer, long offset) {
+    faix.get(inClassIdentifier).setOffset(0, layer, offset);
+  }
+
+  public void setLength(long inClassIdentifier, int layer, int length) {
+    faix.get(inClassIdentifier).setLength(0, layer, length);
+  }
+
   public int getOffset(long inClassIdentifier, int layer) {
     return faix.get(inClassIdentifier).getIntOffset(0, layer);
   }
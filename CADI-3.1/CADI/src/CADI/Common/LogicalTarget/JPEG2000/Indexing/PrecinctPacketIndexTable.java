@@ -27,13 +27,40 @@
 package CADI.Common.LogicalTarget.JPEG2000.Indexing;
 
 import CADI.Common.LogicalTarget.JPEG2000.JPEG2KPrecinct;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
+ * This class records the location of the packets of each precinct or, when
+ * the codestream is indexed at coding pass level, the location of the coding
+ * passes and the zero bit planes of each code-block.
+ * <p>
+ * Tables are indexed by the precinct identifier (see
+ * {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}),
+ * which is a dense ordinal when the codestream has only one tile, so they
+ * are stored in flat arrays instead of maps:<br>
+ * &nbsp; packets: the offset and length of each packet are stored in two
+ * arrays of integers with an entry for each precinct and layer.<br>
+ * &nbsp; coding passes: the precinct is stored in nested arrays while it is
+ * being indexed. Once all its packets have been indexed, it is compacted
+ * (see {@link #compact(long)}) in a byte array where the lengths and the
+ * file pointers of the coding passes are encoded as variable-length
+ * integers. Each file pointer is encoded as the difference with the end of
+ * the previous coding pass, which is 0 for the coding passes of the same
+ * packet.<br>
+ * File pointers are stored relative to the beginning of the tile-part (see
+ * {@link #setBaseFilePointer(long)}), so they fit in 32 bits as the length of
+ * a tile-part does.
+ * <p>
+ * Arrays are only reallocated when a precinct is initialized, so the
+ * precincts can be indexed concurrently once all of them have been
+ * initialized. Compacted precincts are decoded each time they are read, so
+ * the last decoded precinct is kept for each thread.
+ *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0 2009/09/12
+ * @version 1.1.1 2012/07/04
  */
 public class PrecinctPacketIndexTable {
 
@@ -43,62 +70,104 @@ public class PrecinctPacketIndexTable {
   public Manifest manf = null;
 
   /**
-   * 
+   * Is the file pointer the offsets of the table are relative to. It is the
+   * beginning of the tile-part.
    */
-  private HashMap<Long, FragmentArrayIndex> faix = null;
+  private long baseFilePointer = 0;
 
   private boolean useCodingPasses = false;
 
   /**
-   * Contains a file pointer for each coding pass in the precinct-subband-codeblok. Indexes
-   * means:<br>
-   * &nbsp; subband
-   * &nbsp; yBlock
-   * &nbsp; xBlock
-   * &nbsp; coding pass
-   * 
+   * Is the number of layers of each precinct. Offsets and lengths of packets
+   * are stored in the position <code>precinct * numLayers + layer</code>.
+   */
+  private int numLayers = -1;
+
+  /**
+   * Contains the offset, relative to {@link #baseFilePointer}, of each packet.
+   * Offsets are unsigned integers.
    * <p>
-   * This attribute is only available when the {@link #isCodingPassesInfo}
-   * attribute is <code>true</code>
+   * This attribute is only available when the {@link #useCodingPasses}
+   * attribute is <code>false</code>
    */
-  private HashMap<Long, long[][][][]> fpCodingPasses = null;
+  private int[] offsets = null;
 
   /**
-   * Contains the length of each coding pass belonging to the precinct-subband-codeblock.
-   * Indexes are the same as in {@link #filePointersCodingPasses}.
+   * Contains the length of each packet. Lengths are unsigned integers.
+   * Indexes are the same as in {@link #offsets}.
    * <p>
-   * This attribute is only available when the {@link #isCodingPassesInfo}
+   * This attribute is only available when the {@link #useCodingPasses}
+   * attribute is <code>false</code>
+   */
+  private int[] lengths = null;
+
+  /**
+   * Indicates whether the table of each precinct has been initialized.
+   */
+  private boolean[] initialized = null;
+
+  /**
+   * Is the number of precincts whose table has been initialized.
+   */
+  private int numPrecincts = 0;
+
+  /**
+   * Contains the coding passes of each precinct which is being indexed. Once
+   * the precinct is compacted, its entry is set to <code>null</code>.
+   * <p>
+   * This attribute is only available when the {@link #useCodingPasses}
    * attribute is <code>true</code>
    */
-  private HashMap<Long, int[][][][]> lenCodingPasses = null;
+  private CodingPasses[] openPrecincts = null;
 
   /**
-   * Number of zero bit planes for each block in a precinct-subband. Each
-   * entry maps the precinct identifier with a three-dimensional array
-   * with the zero bit planes for each subband-block in the precinct.
-   * Indexes of the three-dimensional array mean:
-   * &nbsp; subband: 0 - HL, 1 - LH, 2 - HH (ifresolutionLevel == 0 --> 0 - LL) <br>
-   * &nbsp; yBlock: block row in the subband <br>
-   * &nbsp; xBlock: block column in the subband <br>
+   * Contains the coding passes and zero bit planes of each compacted
+   * precinct. The array of a precinct is:<br>
+   * &nbsp; number of subbands<br>
+   * &nbsp; for each subband, number of block rows and columns<br>
+   * &nbsp; for each block, the number of zero bit planes and the number of
+   * coding passes plus one (0 if the block has not been included)<br>
+   * &nbsp; for each coding pass, its length and the zig-zag encoded
+   * difference between its file pointer and the end of the previous coding
+   * pass (or {@link #baseFilePointer} for the first one)<br>
+   * All the values are encoded as variable-length integers (7 bits per byte,
+   * the most significant bit indicates that more bytes follow).
    * <p>
-   * Only positive values allowed (0 value is possible too. If 0 --> block has
-   * not empty/0 bit planes).
+   * This attribute is only available when the {@link #useCodingPasses}
+   * attribute is <code>true</code>
+   */
+  private byte[][] compactedPrecincts = null;
+
+  // INTERNAL ATTRIBUTES
+  /**
+   * Is the last compacted precinct decoded by each thread.
+   */
+  private final ThreadLocal<CodingPasses> lastDecodedPrecinct =
+          new ThreadLocal<CodingPasses>();
+
+  /**
+   * Approximate size, in bytes, of the header of a Java array.
+   */
+  private static final int ARRAY_HEADER_SIZE = 16;
+
+  /**
+   * Approximate size, in bytes, of a reference to an object.
    */
-  private HashMap<Long, int[][][]> zeroBitPlanes = null;
+  private static final int REFERENCE_SIZE = 8;
 
-  // TODO: storage of fpCodingPasses, lenCodingPasses, and zeroBitPlanes must be improved.
   // ============================= public methods ==============================
   /**
    * Constructor.
    */
   public PrecinctPacketIndexTable() {
-    faix = new HashMap<Long, FragmentArrayIndex>();
   }
 
   /**
    * Constructor.
    * 
-   * @param bh definition in {@link #bh}.
+   * @param manf definition in {@link #manf}.
+   * @param faix the fragment array index of each precinct. Its values are
+   * 	copied to the table.
    */
   public PrecinctPacketIndexTable(Manifest manf, HashMap<Long, FragmentArrayIndex> faix) {
     if (manf == null) {
@@ -109,89 +178,150 @@ public class PrecinctPacketIndexTable {
     }
 
     this.manf = manf;
-    this.faix = faix;
+    for (Map.Entry<Long, FragmentArrayIndex> entry : faix.entrySet()) {
+      FragmentArrayIndex arrayIndex = entry.getValue();
+      int layers = arrayIndex.getNumElementsPerRow();
+      initializeIndexTable(entry.getKey(), layers);
+      for (int l = 0; l < layers; l++) {
+        setFilePointer(entry.getKey(), l, arrayIndex.getOffset(0, l));
+        setLength(entry.getKey(), l, arrayIndex.getLength(0, l));
+      }
+    }
+  }
+
+  /**
+   * Sets the {@link #baseFilePointer} attribute. It must be set before any
+   * file pointer is set.
+   *
+   * @param baseFilePointer definition in {@link #baseFilePointer}.
+   */
+  public void setBaseFilePointer(long baseFilePointer) {
+    if (baseFilePointer < 0) {
+      throw new IllegalArgumentException();
+    }
+    if (numPrecincts > 0) {
+      throw new IllegalStateException("The base file pointer must be set before indexing.");
+    }
+    this.baseFilePointer = baseFilePointer;
   }
 
   public void initializeIndexTable(long inClassIdentifier, int numLayers) {
     initializeIndexTable(FragmentArrayIndex.VERSION_0, inClassIdentifier, numLayers);
   }
 
+  /**
+   * Initializes the table of a precinct for packets. The <code>version
+   * </code> parameter is kept for compatibility, as offsets and lengths are
+   * always stored as unsigned integers.
+   *
+   * @param version the version of the fragment array index.
+   * @param inClassIdentifier the precinct identifier.
+   * @param numLayers the number of layers of the precinct. It must be the
+   * 	same for all the precincts.
+   */
   public void initializeIndexTable(int version, long inClassIdentifier, int numLayers) {
-    faix.put(inClassIdentifier, new FragmentArrayIndex(version, 1, numLayers));
+    if ((this.numLayers >= 0) && (numLayers != this.numLayers)) {
+      throw new IllegalArgumentException("All the precincts must have the same number of layers.");
+    }
+    this.numLayers = numLayers;
+
+    int ordinal = getOrdinal(inClassIdentifier);
+    ensureCapacity(ordinal);
+    if (!initialized[ordinal]) {
+      initialized[ordinal] = true;
+      numPrecincts++;
+    }
   }
 
   public void initializeIndexTable(int version, long inClassIdentifier,
                                    boolean useCodingPasses, JPEG2KPrecinct precinctObj) {
     if (useCodingPasses) {
-      if (fpCodingPasses == null) {
-        fpCodingPasses = new HashMap<Long, long[][][][]>();
-        lenCodingPasses = new HashMap<Long, int[][][][]>();
-        zeroBitPlanes = new HashMap<Long, int[][][]>();
-      }
+      this.useCodingPasses = useCodingPasses;
+      int ordinal = getOrdinal(inClassIdentifier);
+      ensureCapacity(ordinal);
+
       int numSubbands = precinctObj.getNumSubbands();
-      fpCodingPasses.put(inClassIdentifier, new long[numSubbands][][][]);
-      lenCodingPasses.put(inClassIdentifier, new int[numSubbands][][][]);
-      zeroBitPlanes.put(inClassIdentifier, new int[numSubbands][][]);
+      CodingPasses precinct = new CodingPasses(numSubbands);
       for (int sb = 0; sb < numSubbands; sb++) {
         int numBlocksHigh = precinctObj.getNumBlocksHigh(numSubbands == 1 ? sb : sb + 1);
         int numBlocksWide = precinctObj.getNumBlocksWide(numSubbands == 1 ? sb : sb + 1);
-        fpCodingPasses.get(inClassIdentifier)[sb] = new long[numBlocksHigh][numBlocksWide][];
-        lenCodingPasses.get(inClassIdentifier)[sb] = new int[numBlocksHigh][numBlocksWide][];
-        zeroBitPlanes.get(inClassIdentifier)[sb] = new int[numBlocksHigh][numBlocksWide];
+        precinct.filePointers[sb] = new long[numBlocksHigh][numBlocksWide][];
+        precinct.lengths[sb] = new int[numBlocksHigh][numBlocksWide][];
+        precinct.zeroBitPlanes[sb] = new int[numBlocksHigh][numBlocksWide];
+      }
+      openPrecincts[ordinal] = precinct;
+      compactedPrecincts[ordinal] = null;
+      if (!initialized[ordinal]) {
+        initialized[ordinal] = true;
+        numPrecincts++;
       }
-      this.useCodingPasses = useCodingPasses;
-      faix = null;
     } else {
       initializeIndexTable(version, inClassIdentifier, precinctObj.getParent().getParent().getParent().getNumLayers());
     }
   }
 
   public boolean isInitializedIndexTable(long inClassIdentifier) {
-    return (!useCodingPasses ? faix.containsKey(inClassIdentifier)
-            : fpCodingPasses.containsKey(inClassIdentifier));
+    int ordinal = getOrdinal(inClassIdentifier);
+    return (initialized != null) && (ordinal < initialized.length)
+            && initialized[ordinal];
   }
 
   public void setFilePointer(long inClassIdentifier, int layer, int filePointer) {
-    faix.get(inClassIdentifier).setOffset(0, layer, filePointer);
+    setFilePointer(inClassIdentifier, layer, (long) filePointer);
   }
 
   public void setFilePointer(long inClassIdentifier, int layer, long filePointer) {
-    faix.get(inClassIdentifier).setOffset(0, layer, filePointer);
+    offsets[getPacketIndex(inClassIdentifier, layer)] =
+            toUnsignedInt(filePointer - baseFilePointer);
   }
 
   public void setLength(long inClassIdentifier, int layer, int length) {
-    faix.get(inClassIdentifier).setLength(0, layer, length);
+    setLength(inClassIdentifier, layer, (long) length);
   }
 
   public void setLength(long inClassIdentifier, int layer, long length) {
-    faix.get(inClassIdentifier).setLength(0, layer, length);
+    lengths[getPacketIndex(inClassIdentifier, layer)] = toUnsignedInt(length);
   }
 
   public long getFilePointer(long inClassIdentifier, int layer) {
-    return faix.get(inClassIdentifier).getOffset(0, layer);
+    return baseFilePointer
+            + (offsets[getPacketIndex(inClassIdentifier, layer)] & 0xFFFFFFFFL);
   }
 
+  /**
+   * Returns the file pointer of a packet as an <code>int</code>. See
+   * {@link #getFilePointer(long, int)}, which must be used for codestreams
+   * longer than 2 GB.
+   *
+   * @throws IllegalStateException if the file pointer does not fit in an
+   * 			<code>int</code>.
+   */
   public int getOffset(long inClassIdentifier, int layer) {
-    return (int) getFilePointer(inClassIdentifier, layer);
+    long filePointer = getFilePointer(inClassIdentifier, layer);
+    if (filePointer > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Packet offset " + filePointer
+              + " does not fit in an int");
+    }
+    return (int) filePointer;
   }
 
   public long getLength(long inClassIdentifier, int layer) {
-    return faix.get(inClassIdentifier).getLength(0, layer);
+    return lengths[getPacketIndex(inClassIdentifier, layer)] & 0xFFFFFFFFL;
   }
 
-  public int getLength(long inClassIdentifier) {
-    int len = 0;
-    FragmentArrayIndex arrayIndex = faix.get(inClassIdentifier);
-    int numLayers = arrayIndex.getNumElementsPerRow();
+  public long getLength(long inClassIdentifier) {
+    long len = 0;
+    int index = getPacketIndex(inClassIdentifier, 0);
     for (int l = 0; l < numLayers; l++) {
-      len += arrayIndex.getLength(0, l);
+      len += lengths[index + l] & 0xFFFFFFFFL;
     }
     return len;
   }
 
   public void setFilePointer(long inClassIdentifier, int subband, int yBlock, int xBlock, long[] pointers) {
+    long[][][][] fpCodingPasses = getOpenPrecinct(inClassIdentifier).filePointers;
     int numCodingPasses = 0;
-    long[] tmp = fpCodingPasses.get(inClassIdentifier)[subband][yBlock][xBlock];
+    long[] tmp = fpCodingPasses[subband][yBlock][xBlock];
     if (tmp != null) {
       numCodingPasses = tmp.length;
       long[] tempPointers = new long[numCodingPasses + pointers.length];
@@ -199,19 +329,36 @@ public class PrecinctPacketIndexTable {
       tmp = null;
       tmp = tempPointers;
       System.arraycopy(pointers, 0, tmp, numCodingPasses, pointers.length);
-      fpCodingPasses.get(inClassIdentifier)[subband][yBlock][xBlock] = tmp;
+      fpCodingPasses[subband][yBlock][xBlock] = tmp;
     } else {
-      fpCodingPasses.get(inClassIdentifier)[subband][yBlock][xBlock] = pointers;
+      fpCodingPasses[subband][yBlock][xBlock] = pointers;
     }
   }
 
   public long getFilePointer(long inClassIdentifier, int subband, int yBlock, int xBlock, int cp) {
-    return fpCodingPasses.get(inClassIdentifier)[subband][yBlock][xBlock][cp];
+    return getCodingPasses(inClassIdentifier).filePointers[subband][yBlock][xBlock][cp];
+  }
+
+  /**
+   * Returns the file pointers of the coding passes of a precinct. If the
+   * precinct has not been compacted, the array of the table is returned, so
+   * it can be filled in. Otherwise, the precinct is decoded and the array
+   * must not be modified.
+   *
+   * @param inClassIdentifier the precinct identifier.
+   *
+   * @return the file pointers of the coding passes, or <code>null</code> if
+   * 	the table of the precinct has not been initialized.
+   */
+  public long[][][][] getFilePointers(long inClassIdentifier) {
+    CodingPasses precinct = getCodingPasses(inClassIdentifier);
+    return (precinct == null) ? null : precinct.filePointers;
   }
 
   public void setLength(long inClassIdentifier, int subband, int yBlock, int xBlock, int[] lengths) {
+    int[][][][] lenCodingPasses = getOpenPrecinct(inClassIdentifier).lengths;
     int numCodingPasses = 0;
-    int[] tmp = lenCodingPasses.get(inClassIdentifier)[subband][yBlock][xBlock];
+    int[] tmp = lenCodingPasses[subband][yBlock][xBlock];
     if (tmp != null) {
       numCodingPasses = tmp.length;
       int[] tempPointers = new int[numCodingPasses + lengths.length];
@@ -219,53 +366,145 @@ public class PrecinctPacketIndexTable {
       tmp = null;
       tmp = tempPointers;
       System.arraycopy(lengths, 0, tmp, numCodingPasses, lengths.length);
-      lenCodingPasses.get(inClassIdentifier)[subband][yBlock][xBlock] = tmp;
+      lenCodingPasses[subband][yBlock][xBlock] = tmp;
     } else {
-      lenCodingPasses.get(inClassIdentifier)[subband][yBlock][xBlock] = lengths;
+      lenCodingPasses[subband][yBlock][xBlock] = lengths;
     }
   }
 
   public int getLength(long inClassIdentifier, int subband, int yBlock, int xBlock, int cp) {
-    return lenCodingPasses.get(inClassIdentifier)[subband][yBlock][xBlock][cp];
+    return getCodingPasses(inClassIdentifier).lengths[subband][yBlock][xBlock][cp];
   }
 
   /**
    * NOTE: METHOD TO BE DEPRECATED
+   * <p>
+   * See {@link #getFilePointers(long)}.
    * 
    * @param inClassIdentifier
    * @return 
    */
   public int[][][][] getLengths(long inClassIdentifier) {
-    return lenCodingPasses.get(inClassIdentifier);
+    CodingPasses precinct = getCodingPasses(inClassIdentifier);
+    return (precinct == null) ? null : precinct.lengths;
   }
 
   public void setZeroBitPlanes(long inClassIdentifier, int[][][] zeroBitPlanes) {
+    int[][][] zbp = getOpenPrecinct(inClassIdentifier).zeroBitPlanes;
     for (int sb = 0; sb < zeroBitPlanes.length; sb++) {
       for (int yb = 0; yb < zeroBitPlanes[sb].length; yb++) {
         for (int xb = 0; xb < zeroBitPlanes[sb][yb].length; xb++) {
-          this.zeroBitPlanes.get(inClassIdentifier)[sb][yb][xb] = zeroBitPlanes[sb][yb][xb];
+          zbp[sb][yb][xb] = zeroBitPlanes[sb][yb][xb];
         }
       }
     }
   }
 
+  /**
+   * Returns the zero bit planes of the blocks of a precinct. See
+   * {@link #getFilePointers(long)}.
+   *
+   * @param inClassIdentifier the precinct identifier.
+   *
+   * @return the zero bit planes, or <code>null</code> if the table of the
+   * 	precinct has not been initialized.
+   */
   public int[][][] getZeroBitPlanes(long inClassIdentifier) {
-    return zeroBitPlanes.get(inClassIdentifier);
+    CodingPasses precinct = getCodingPasses(inClassIdentifier);
+    return (precinct == null) ? null : precinct.zeroBitPlanes;
   }
 
   public int getZeroBitPlanes(long inClassIdentifier, int sb, int yBlock, int xBlock) {
-    return zeroBitPlanes.get(inClassIdentifier)[sb][yBlock][xBlock];
+    return getCodingPasses(inClassIdentifier).zeroBitPlanes[sb][yBlock][xBlock];
+  }
+
+  /**
+   * Compacts the coding passes of a precinct once all its packets have been
+   * indexed. Coding passes can not be set after the precinct has been
+   * compacted. Precincts indexed at packet level are not modified.
+   * <p>
+   * Different precincts can be compacted concurrently.
+   *
+   * @param inClassIdentifier the precinct identifier.
+   */
+  public void compact(long inClassIdentifier) {
+    if (!useCodingPasses || !isInitializedIndexTable(inClassIdentifier)) {
+      return;
+    }
+    int ordinal = getOrdinal(inClassIdentifier);
+    CodingPasses precinct = openPrecincts[ordinal];
+    if (precinct != null) {
+      compactedPrecincts[ordinal] = encode(precinct);
+      openPrecincts[ordinal] = null;
+    }
+  }
+
+  /**
+   * Compacts all the precincts. See {@link #compact(long)}.
+   */
+  public void compact() {
+    if (!useCodingPasses || (openPrecincts == null)) {
+      return;
+    }
+    for (int ordinal = 0; ordinal < openPrecincts.length; ordinal++) {
+      if (openPrecincts[ordinal] != null) {
+        compact(ordinal);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of precincts whose table has been initialized.
+   *
+   * @return the number of precincts.
+   */
+  public int getNumPrecincts() {
+    return numPrecincts;
+  }
+
+  /**
+   * Returns the approximate memory used by the table, including the
+   * precincts which have not been compacted yet.
+   *
+   * @return the memory used, in bytes.
+   */
+  public long getMemoryUsage() {
+    long size = 0;
+    if (initialized != null) {
+      size += ARRAY_HEADER_SIZE + initialized.length;
+    }
+    if (offsets != null) {
+      size += 2 * (ARRAY_HEADER_SIZE + 4L * offsets.length);
+    }
+    if (compactedPrecincts != null) {
+      size += 2 * (ARRAY_HEADER_SIZE + (long) REFERENCE_SIZE * compactedPrecincts.length);
+      for (int ordinal = 0; ordinal < compactedPrecincts.length; ordinal++) {
+        if (compactedPrecincts[ordinal] != null) {
+          size += ARRAY_HEADER_SIZE + compactedPrecincts[ordinal].length;
+        } else if (openPrecincts[ordinal] != null) {
+          size += openPrecincts[ordinal].getMemoryUsage();
+        }
+      }
+    }
+    return size;
   }
 
   /**
    * Sets the attributes to their initial values.
    */
   public void reset() {
-    manf.reset();
-    for (Map.Entry<Long, FragmentArrayIndex> entry : faix.entrySet()) {
-      entry.getValue().reset();
+    if (manf != null) {
+      manf.reset();
     }
-    faix.clear();
+    baseFilePointer = 0;
+    useCodingPasses = false;
+    numLayers = -1;
+    offsets = null;
+    lengths = null;
+    initialized = null;
+    numPrecincts = 0;
+    openPrecincts = null;
+    compactedPrecincts = null;
   }
 
   /*
@@ -277,10 +516,19 @@ public class PrecinctPacketIndexTable {
     String str = "";
 
     str = getClass().getName() + " [";
-    str += manf.toString();
-    str += ", mhix=";
-    for (Map.Entry<Long, FragmentArrayIndex> entry : faix.entrySet()) {
-      str += ", precinct=" + entry.getKey() + " values=" + entry.getValue().toString();
+    str += manf;
+    str += ", baseFilePointer=" + baseFilePointer;
+    str += ", useCodingPasses=" + useCodingPasses;
+    str += ", numPrecincts=" + numPrecincts;
+    if (!useCodingPasses && (initialized != null)) {
+      for (int ordinal = 0; ordinal < initialized.length; ordinal++) {
+        if (initialized[ordinal]) {
+          str += ", precinct=" + ordinal + " values=";
+          for (int l = 0; l < numLayers; l++) {
+            str += "(" + getFilePointer(ordinal, l) + "," + getLength(ordinal, l) + ")";
+          }
+        }
+      }
     }
     str += "]";
 
@@ -298,56 +546,358 @@ public class PrecinctPacketIndexTable {
     out.println("-- Precinct Packet Index Table --");
 
     //manf.list(out);
-    if (faix != null) {
-      out.print("faix: ");
-      for (Map.Entry<Long, FragmentArrayIndex> entry : faix.entrySet()) {
-        out.println("precinct: " + entry.getKey());
-        out.println("\tvalues: ");
-        entry.getValue().list(out);
-      }
+    out.println("Base file pointer: " + baseFilePointer);
+    out.println("Precincts: " + numPrecincts);
+    out.println("Memory usage: " + getMemoryUsage() + " bytes");
+    if (initialized == null) {
+      out.flush();
+      return;
     }
 
-    if (fpCodingPasses != null) {
-      out.println("File pointers / lengths");
-      for (Map.Entry<Long, long[][][][]> entry : fpCodingPasses.entrySet()) {
-        long[][][][] fp = entry.getValue();
-        out.println("InClassIdentifier=" + entry.getKey());
-        if (fp != null) {
-          for (int sb = 0; sb < fp.length; sb++) {
-            for (int yb = 0; yb < fp[sb].length; yb++) {
-              for (int xb = 0; xb < fp[sb][yb].length; xb++) {
-                if (fp[sb][yb][xb] == null) {
-                  continue;
-                }
-                for (int cp = 0; cp < fp[sb][yb][xb].length; cp++) {
-                  out.println("\tsb=" + sb + " yb=" + yb + " xb=" + xb + " cp=" + cp + " cp=" + fp[sb][yb][xb][cp] + " len=" + lenCodingPasses.get(entry.getKey())[sb][yb][xb][cp]);
-                }
-              }
+    for (int ordinal = 0; ordinal < initialized.length; ordinal++) {
+      if (!initialized[ordinal]) {
+        continue;
+      }
+
+      out.println("InClassIdentifier=" + ordinal);
+      if (!useCodingPasses) {
+        for (int l = 0; l < numLayers; l++) {
+          out.println("\tlayer=" + l + " fp=" + getFilePointer(ordinal, l) + " len=" + getLength(ordinal, l));
+        }
+        continue;
+      }
+
+      CodingPasses precinct = getCodingPasses(ordinal);
+      long[][][][] fp = precinct.filePointers;
+      int[][][] zbp = precinct.zeroBitPlanes;
+      for (int sb = 0; sb < fp.length; sb++) {
+        for (int yb = 0; yb < fp[sb].length; yb++) {
+          for (int xb = 0; xb < fp[sb][yb].length; xb++) {
+            out.println("\tsb=" + sb + " yb=" + yb + " xb=" + xb + " zbp=" + zbp[sb][yb][xb]);
+            if (fp[sb][yb][xb] == null) {
+              continue;
+            }
+            for (int cp = 0; cp < fp[sb][yb][xb].length; cp++) {
+              out.println("\t\tcp=" + cp + " fp=" + fp[sb][yb][xb][cp] + " len=" + precinct.lengths[sb][yb][xb][cp]);
             }
           }
         }
       }
     }
 
-    if (zeroBitPlanes != null) {
-      out.println("Zero bit planes");
-      for (Map.Entry<Long, int[][][]> entry : zeroBitPlanes.entrySet()) {
-        int[][][] zbp = entry.getValue();
-        out.println("InClassIdentifier=" + entry.getKey());
-        if (zbp != null) {
-          for (int sb = 0; sb < zbp.length; sb++) {
-            for (int yb = 0; yb < zbp[sb].length; yb++) {
-              for (int xb = 0; xb < zbp[sb][yb].length; xb++) {
-                out.println("\tsb=" + sb + " yb=" + yb + " xb=" + xb + " zbp=" + zbp[sb][yb][xb]);
+    out.flush();
+  }
 
-              }
-            }
+  // ============================ private methods ==============================
+  /**
+   * Returns the position of a precinct in the arrays of the table.
+   *
+   * @param inClassIdentifier the precinct identifier.
+   *
+   * @return the position of the precinct.
+   */
+  private static int getOrdinal(long inClassIdentifier) {
+    if ((inClassIdentifier < 0) || (inClassIdentifier > Integer.MAX_VALUE)) {
+      throw new IllegalArgumentException("Precinct identifier " + inClassIdentifier + " is out of range.");
+    }
+    return (int) inClassIdentifier;
+  }
+
+  /**
+   * Returns the position of a packet in the {@link #offsets} and
+   * {@link #lengths} arrays.
+   *
+   * @param inClassIdentifier the precinct identifier.
+   * @param layer the layer of the packet.
+   *
+   * @return the position of the packet.
+   */
+  private int getPacketIndex(long inClassIdentifier, int layer) {
+    if ((layer < 0) || (layer >= numLayers)) {
+      throw new ArrayIndexOutOfBoundsException(layer);
+    }
+    return getOrdinal(inClassIdentifier) * numLayers + layer;
+  }
+
+  /**
+   * Reallocates the arrays of the table, if needed, so they can contain a
+   * precinct.
+   *
+   * @param ordinal the position of the precinct.
+   */
+  private void ensureCapacity(int ordinal) {
+    int capacity = (initialized == null) ? 0 : initialized.length;
+    if (ordinal < capacity) {
+      return;
+    }
+
+    int newCapacity = Math.max(ordinal + 1, 2 * capacity);
+    boolean[] tmpInitialized = new boolean[newCapacity];
+    if (initialized != null) {
+      System.arraycopy(initialized, 0, tmpInitialized, 0, capacity);
+    }
+    initialized = tmpInitialized;
+
+    if (useCodingPasses) {
+      CodingPasses[] tmpOpen = new CodingPasses[newCapacity];
+      byte[][] tmpCompacted = new byte[newCapacity][];
+      if (openPrecincts != null) {
+        System.arraycopy(openPrecincts, 0, tmpOpen, 0, capacity);
+        System.arraycopy(compactedPrecincts, 0, tmpCompacted, 0, capacity);
+      }
+      openPrecincts = tmpOpen;
+      compactedPrecincts = tmpCompacted;
+    } else {
+      int[] tmpOffsets = new int[newCapacity * numLayers];
+      int[] tmpLengths = new int[newCapacity * numLayers];
+      if (offsets != null) {
+        System.arraycopy(offsets, 0, tmpOffsets, 0, offsets.length);
+        System.arraycopy(lengths, 0, tmpLengths, 0, lengths.length);
+      }
+      offsets = tmpOffsets;
+      lengths = tmpLengths;
+    }
+  }
+
+  /**
+   * Returns the coding passes of a precinct which has not been compacted.
+   *
+   * @param inClassIdentifier the precinct identifier.
+   *
+   * @return the coding passes of the precinct.
+   */
+  private CodingPasses getOpenPrecinct(long inClassIdentifier) {
+    CodingPasses precinct = openPrecincts[getOrdinal(inClassIdentifier)];
+    if (precinct == null) {
+      throw new IllegalStateException("Precinct " + inClassIdentifier
+              + " has not been initialized or it has been compacted.");
+    }
+    return precinct;
+  }
+
+  /**
+   * Returns the coding passes of a precinct, decoding them if the precinct
+   * has been compacted.
+   *
+   * @param inClassIdentifier the precinct identifier.
+   *
+   * @return the coding passes of the precinct, or <code>null</code> if the
+   * 	table of the precinct has not been initialized.
+   */
+  private CodingPasses getCodingPasses(long inClassIdentifier) {
+    if (!useCodingPasses || !isInitializedIndexTable(inClassIdentifier)) {
+      return null;
+    }
+
+    int ordinal = getOrdinal(inClassIdentifier);
+    CodingPasses precinct = openPrecincts[ordinal];
+    if (precinct != null) {
+      return precinct;
+    }
+
+    byte[] data = compactedPrecincts[ordinal];
+    if (data == null) {
+      return null;
+    }
+    precinct = lastDecodedPrecinct.get();
+    if ((precinct == null) || (precinct.data != data)) {
+      precinct = decode(data);
+      lastDecodedPrecinct.set(precinct);
+    }
+    return precinct;
+  }
+
+  /**
+   * Encodes the coding passes of a precinct in the format of
+   * {@link #compactedPrecincts}.
+   *
+   * @param precinct the coding passes of the precinct.
+   *
+   * @return the encoded precinct.
+   */
+  private byte[] encode(CodingPasses precinct) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    long[][][][] fp = precinct.filePointers;
+    writeVarInt(out, fp.length);
+    for (int sb = 0; sb < fp.length; sb++) {
+      writeVarInt(out, fp[sb].length);
+      writeVarInt(out, (fp[sb].length > 0) ? fp[sb][0].length : 0);
+    }
+
+    long expectedFilePointer = baseFilePointer;
+    for (int sb = 0; sb < fp.length; sb++) {
+      for (int yb = 0; yb < fp[sb].length; yb++) {
+        for (int xb = 0; xb < fp[sb][yb].length; xb++) {
+          writeVarInt(out, precinct.zeroBitPlanes[sb][yb][xb]);
+          long[] pointers = fp[sb][yb][xb];
+          if (pointers == null) {
+            writeVarInt(out, 0);
+            continue;
+          }
+          writeVarInt(out, pointers.length + 1L);
+          int[] lens = precinct.lengths[sb][yb][xb];
+          for (int cp = 0; cp < pointers.length; cp++) {
+            long delta = pointers[cp] - expectedFilePointer;
+            writeVarInt(out, lens[cp]);
+            writeVarInt(out, (delta << 1) ^ (delta >> 63));
+            expectedFilePointer = pointers[cp] + lens[cp];
           }
         }
       }
     }
 
+    return out.toByteArray();
+  }
 
-    out.flush();
+  /**
+   * Decodes a precinct encoded in the format of {@link #compactedPrecincts}.
+   *
+   * @param data the encoded precinct.
+   *
+   * @return the coding passes of the precinct.
+   */
+  private CodingPasses decode(byte[] data) {
+    int[] pos = {0};
+
+    int numSubbands = (int) readVarInt(data, pos);
+    CodingPasses precinct = new CodingPasses(numSubbands);
+    precinct.data = data;
+    for (int sb = 0; sb < numSubbands; sb++) {
+      int numBlocksHigh = (int) readVarInt(data, pos);
+      int numBlocksWide = (int) readVarInt(data, pos);
+      precinct.filePointers[sb] = new long[numBlocksHigh][numBlocksWide][];
+      precinct.lengths[sb] = new int[numBlocksHigh][numBlocksWide][];
+      precinct.zeroBitPlanes[sb] = new int[numBlocksHigh][numBlocksWide];
+    }
+
+    long expectedFilePointer = baseFilePointer;
+    for (int sb = 0; sb < numSubbands; sb++) {
+      long[][][] fp = precinct.filePointers[sb];
+      for (int yb = 0; yb < fp.length; yb++) {
+        for (int xb = 0; xb < fp[yb].length; xb++) {
+          precinct.zeroBitPlanes[sb][yb][xb] = (int) readVarInt(data, pos);
+          int numCodingPasses = (int) readVarInt(data, pos) - 1;
+          if (numCodingPasses < 0) {
+            continue;
+          }
+          long[] pointers = new long[numCodingPasses];
+          int[] lens = new int[numCodingPasses];
+          for (int cp = 0; cp < numCodingPasses; cp++) {
+            lens[cp] = (int) readVarInt(data, pos);
+            long value = readVarInt(data, pos);
+            pointers[cp] = expectedFilePointer + ((value >>> 1) ^ -(value & 1));
+            expectedFilePointer = pointers[cp] + lens[cp];
+          }
+          fp[yb][xb] = pointers;
+          precinct.lengths[sb][yb][xb] = lens;
+        }
+      }
+    }
+
+    return precinct;
+  }
+
+  /**
+   * Writes a non-negative value as a variable-length integer.
+   *
+   * @param out the output stream.
+   * @param value the value.
+   */
+  private static void writeVarInt(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /**
+   * Reads a variable-length integer.
+   *
+   * @param data the array where the value is read from.
+   * @param pos a one-element array with the position of the value. It is
+   * 	updated to the position of the next value.
+   *
+   * @return the value.
+   */
+  private static long readVarInt(byte[] data, int[] pos) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = data[pos[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  /**
+   * Checks that a value fits in an unsigned integer.
+   *
+   * @param value the value.
+   *
+   * @return the value as an integer.
+   */
+  private static int toUnsignedInt(long value) {
+    if ((value < 0) || (value > 0xFFFFFFFFL)) {
+      throw new IllegalArgumentException("Value " + value
+              + " does not fit in the index table (file pointers must be in the tile-part).");
+    }
+    return (int) value;
+  }
+
+  /**
+   * Contains the coding passes and zero bit planes of a precinct. Indexes of
+   * the arrays mean:<br>
+   * &nbsp; subband: 0 - HL, 1 - LH, 2 - HH (if resolutionLevel == 0 --> 0 - LL) <br>
+   * &nbsp; yBlock: block row in the subband <br>
+   * &nbsp; xBlock: block column in the subband <br>
+   * &nbsp; coding pass (only file pointers and lengths)<br>
+   */
+  private static class CodingPasses {
+
+    long[][][][] filePointers = null;
+
+    int[][][][] lengths = null;
+
+    /**
+     * Only positive values allowed (0 value is possible too. If 0 --> block
+     * has not empty/0 bit planes).
+     */
+    int[][][] zeroBitPlanes = null;
+
+    /**
+     * Is the compacted array the precinct has been decoded from, or
+     * <code>null</code> if it has not been compacted.
+     */
+    byte[] data = null;
+
+    CodingPasses(int numSubbands) {
+      filePointers = new long[numSubbands][][][];
+      lengths = new int[numSubbands][][][];
+      zeroBitPlanes = new int[numSubbands][][];
+    }
+
+    /**
+     * Returns the approximate memory used by the arrays.
+     *
+     * @return the memory used, in bytes.
+     */
+    long getMemoryUsage() {
+      long size = 3 * (ARRAY_HEADER_SIZE + (long) REFERENCE_SIZE * filePointers.length);
+      for (int sb = 0; sb < filePointers.length; sb++) {
+        for (int yb = 0; yb < filePointers[sb].length; yb++) {
+          size += 3 * (ARRAY_HEADER_SIZE + (long) REFERENCE_SIZE * filePointers[sb][yb].length);
+          for (int xb = 0; xb < filePointers[sb][yb].length; xb++) {
+            if (filePointers[sb][yb][xb] != null) {
+              size += 2 * ARRAY_HEADER_SIZE + 12L * filePointers[sb][yb][xb].length;
+            }
+          }
+        }
+      }
+      return size;
+    }
   }
 }
@@ -37,6 +37,8 @@ import CADI.Common.LogicalTarget.JPEG2000.Parameters.JPKParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.MCCParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.MCOParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.MCTParameters;
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PackedHeaderParameters;
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PacketLengthParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.QCCParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.QCDParameters;
 import CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters;
@@ -80,6 +82,12 @@ public class JPCParameters {
   // Comments (COM)
   public COMParameters comParameters = null;
 
+  // Packet lengths (PLM). It is null if the main header has not PLM markers.
+  public PacketLengthParameters plmParameters = null;
+
+  // Packed packet headers (PPM). It is null if the main header has not PPM markers.
+  public PackedHeaderParameters ppmParameters = null;
+
   // Wrapped used to store uncompliant parameters.
   public JPKParameters jpkParameters = null;
 
@@ -139,6 +147,12 @@ public class JPCParameters {
       }
     }
     comParameters = new COMParameters(jpcParameters.comParameters);
+    if (jpcParameters.plmParameters != null) {
+      plmParameters = new PacketLengthParameters(jpcParameters.plmParameters);
+    }
+    if (jpcParameters.ppmParameters != null) {
+      ppmParameters = new PackedHeaderParameters(jpcParameters.ppmParameters);
+    }
 
     if (jpcParameters.jpkParameters != null) {
       jpkParameters = new JPKParameters(jpcParameters.jpkParameters);
@@ -167,6 +181,12 @@ public class JPCParameters {
     }
     mcoParameters.reset();
     comParameters.reset();
+    if (plmParameters != null) {
+      plmParameters.reset();
+    }
+    if (ppmParameters != null) {
+      ppmParameters.reset();
+    }
 
     if (jpkParameters != null) {
       jpkParameters.reset();
@@ -207,6 +227,12 @@ public class JPCParameters {
     }
     str += mcoParameters.toString();
     str += comParameters.toString();
+    if (plmParameters != null) {
+      str += plmParameters.toString();
+    }
+    if (ppmParameters != null) {
+      str += ppmParameters.toString();
+    }
     if (jpkParameters != null) {
       str += jpkParameters.toString();
     }
@@ -260,6 +286,14 @@ public class JPCParameters {
     out.println();
     comParameters.list(out);
     out.println();
+    if (plmParameters != null) {
+      plmParameters.list(out);
+      out.println();
+    }
+    if (ppmParameters != null) {
+      ppmParameters.list(out);
+      out.println();
+    }
 
     if (jpkParameters != null) {
       jpkParameters.list(out);
@@ -65,7 +65,7 @@ import java.util.Map;
  * &nbsp; getMethods<br>
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0 2010/12/11
+ * @version 1.0.1 2012/07/04
  */
 public class JPEG2KCodestream {
 
@@ -330,7 +330,7 @@ public class JPEG2KCodestream {
    */
   public long findInClassIdentifier(int tile, int component,
                                     int rLevel, int precinct) {
-    return tiles.get(tile).getComponent(component).getResolutionLevel(rLevel).getPrecinct(precinct).inClassIdentifier;
+    return tiles.get(tile).getComponent(component).getResolutionLevel(rLevel).getInClassIdentifier(precinct);
   }
 
   /**
@@ -1084,9 +1084,15 @@ public class JPEG2KCodestream {
   public ArrayList<Long> findRelevantPrecinctsTRCP(ViewWindowField actualViewWindow,
                                                    int discardLevels) {
 
-    return RelevantPrecinctsFinder.TRCPOrder(this,
+    long[] precincts = RelevantPrecinctsFinder.TRCPOrder(this,
             actualViewWindow,
             discardLevels);
+
+    ArrayList<Long> relevantPrecincts = new ArrayList<Long>(precincts.length);
+    for (long inClassIdentifier : precincts) {
+      relevantPrecincts.add(inClassIdentifier);
+    }
+    return relevantPrecincts;
   }
 
   /**
@@ -32,8 +32,12 @@ import CADI.Common.Util.CADIDimension;
 import CADI.Common.Util.CADIRectangle;
 
 /**
+ * The geometry of the precinct is computed by its resolution level, so
+ * precinct objects only record their index and can be created when they are
+ * needed.
+ *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.3 2012/01/14
+ * @version 1.0.4 2012/07/03
  */
 public class JPEG2KPrecinct {
 
@@ -56,16 +60,6 @@ public class JPEG2KPrecinct {
    */
   protected JPEG2KResolutionLevel parent = null;
 
-  // INTERNAL ATTRIBUTES
-  /**
-   * Records the number of blocks in the wide dimension.
-   * <p>
-   * Used and computed by the {@link #getNumBlocksWide(int)} method.
-   */
-  private int[] numBlocksWide = {-1, -1, -1, -1};
-
-  private int[] numBlocksHigh = {-1, -1, -1, -1};
-
   // ============================= public methods ==============================
   /**
    * Constructor.
@@ -153,25 +147,7 @@ public class JPEG2KPrecinct {
    * @return
    */
   public int getNumBlocksWide(int subband) {
-    if ((parent.rLevel == 0) && (subband != JPEG2KResolutionLevel.LL)) {
-      throw new IllegalArgumentException("Res. level 0 has only one subband");
-    }
-
-    if (numBlocksWide[subband] < 0) {
-
-      CADIRectangle subbandBounds = parent.getSubbandBounds(subband);
-      subbandBounds.x <<= 1;
-      subbandBounds.width <<= 1;
-
-      CADIRectangle precinctBounds = getBounds();
-      CADIRectangle intersection = subbandBounds.intersection(precinctBounds);
-
-      numBlocksWide[subband] = (parent.rLevel > 0)
-              ? (int) Math.ceil(1.0 * intersection.width / (parent.getBlockWidth() << 1))
-              : (int) Math.ceil(1.0 * intersection.width / parent.getBlockWidth());
-    }
-
-    return numBlocksWide[subband];
+    return parent.getNumBlocksWide(precinctIndex, subband);
   }
 
   /**
@@ -184,23 +160,7 @@ public class JPEG2KPrecinct {
    * @return
    */
   public int getNumBlocksHigh(int subband) {
-    if ((parent.rLevel == 0) && (subband != JPEG2KResolutionLevel.LL)) {
-      throw new IllegalArgumentException("Res. level 0 has only one subband");
-    }
-
-    if (numBlocksHigh[subband] < 0) {
-      CADIRectangle subbandBounds = parent.getSubbandBounds(subband);
-      subbandBounds.y <<= 1;
-      subbandBounds.height <<= 1;
-
-      CADIRectangle precinctBounds = getBounds();
-      CADIRectangle intersection = subbandBounds.intersection(precinctBounds);
-
-      numBlocksHigh[subband] = (parent.rLevel > 0)
-              ? (int) Math.ceil(1.0 * intersection.height / (parent.getBlockWidth() << 1))
-              : (int) Math.ceil(1.0 * intersection.height / parent.getBlockWidth());
-    }
-    return numBlocksHigh[subband];
+    return parent.getNumBlocksHigh(precinctIndex, subband);
   }
 
   /**
@@ -332,13 +292,13 @@ public class JPEG2KPrecinct {
     str += ", InClassIdentifier=" + inClassIdentifier;
 
     str += ", Num. blocks wide=";
-    for (int i = 0; i < numBlocksWide.length; i++) {
-      str += numBlocksWide[i]+" ";
+    for (int sb = 0; sb < getNumSubbands(); sb++) {
+      str += getNumBlocksWide(parent.rLevel == 0 ? sb : sb + 1) + " ";
     }
     
     str += ", Num. blocks high=";
-    for (int i = 0; i < numBlocksHigh.length; i++) {
-      str += numBlocksHigh[i]+" ";
+    for (int sb = 0; sb < getNumSubbands(); sb++) {
+      str += getNumBlocksHigh(parent.rLevel == 0 ? sb : sb + 1) + " ";
     }
     
     str += "]";
@@ -359,13 +319,13 @@ public class JPEG2KPrecinct {
     out.println("PrecinctIndex: " + precinctIndex);
     out.println("InClassIdentifier: " + inClassIdentifier);
     out.print("Num. blocks wide: ");
-    for (int i = 0; i < numBlocksWide.length; i++) {
-      out.print(numBlocksWide[i]+" ");
+    for (int sb = 0; sb < getNumSubbands(); sb++) {
+      out.print(getNumBlocksWide(parent.rLevel == 0 ? sb : sb + 1) + " ");
     }
     out.println();
     out.print("Num. blocks high: ");
-    for (int i = 0; i < numBlocksHigh.length; i++) {
-      out.print(numBlocksHigh[i]+" ");
+    for (int sb = 0; sb < getNumSubbands(); sb++) {
+      out.print(getNumBlocksHigh(parent.rLevel == 0 ? sb : sb + 1) + " ");
     }
     out.println();
 
@@ -36,8 +36,15 @@ import CADI.Common.Util.CADIRectangle;
 import java.util.Map;
 
 /**
+ * Precinct geometry is computed from the coding parameters, so it does not
+ * need precinct objects. The number of code-blocks of a precinct only
+ * depends on its column (or row) of precincts, so it is computed once for
+ * each column and row (see {@link #getNumBlocksWide(int, int)}). Likewise,
+ * the unique identifiers of a range of precincts are computed from the
+ * precinct grid (see {@link #getInClassIdentifiers(int, int, int, int)}).
+ *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2011/03/14
+ * @version 1.0.3 2012/07/04
  */
 public class JPEG2KResolutionLevel {
 
@@ -85,11 +92,41 @@ public class JPEG2KResolutionLevel {
 
   private int maxNumPrecincts = -1;
 
+  /**
+   * Records the number of precincts in the wide dimension.
+   * <p>
+   * It is computed by the {@link #getNumPrecinctsWide()} method.
+   */
+  private int numPrecinctsWide = -1;
+
+  /**
+   * Records the number of precincts in the height dimension.
+   * <p>
+   * It is computed by the {@link #getNumPrecinctsHeigh()} method.
+   */
+  private int numPrecinctsHigh = -1;
+
   /**
    * Records the first precinct index for the tile-component-resolution level.
    */
   private int firstPrecinctIndex = -1;
 
+  /**
+   * Records the number of blocks in the wide dimension of the precincts of
+   * each column. Indexes mean subband and column of precincts.
+   * <p>
+   * It is computed by the {@link #getNumBlocksWide(int, int)} method.
+   */
+  private volatile int[][] numBlocksWide = null;
+
+  /**
+   * Records the number of blocks in the high dimension of the precincts of
+   * each row. Indexes mean subband and row of precincts.
+   * <p>
+   * It is computed by the {@link #getNumBlocksHigh(int, int)} method.
+   */
+  private volatile int[][] numBlocksHigh = null;
+
   // ============================= public methods ==============================
   /**
    * Constructor.
@@ -197,6 +234,61 @@ public class JPEG2KResolutionLevel {
             getFirstPrecinctIndex() + precinctIndex);
   }
 
+  /**
+   * Returns the unique precinct identifiers of the precincts whose column is
+   * in the range [<code>startXPrecinct</code>, <code>endXPrecinct</code>) and
+   * whose row is in the range [<code>startYPrecinct</code>,
+   * <code>endYPrecinct</code>). Ranges are clipped to the precincts of this
+   * resolution level.
+   * <p>
+   * Identifiers are consecutive terms of an arithmetic progression in the
+   * precinct index, so the cost only depends on the number of precincts
+   * returned.
+   *
+   * @param startXPrecinct first column of precincts.
+   * @param startYPrecinct first row of precincts.
+   * @param endXPrecinct last column of precincts (not included).
+   * @param endYPrecinct last row of precincts (not included).
+   *
+   * @return the unique precinct identifiers, in raster order.
+   */
+  public long[] getInClassIdentifiers(int startXPrecinct, int startYPrecinct,
+                                      int endXPrecinct, int endYPrecinct) {
+    int numXPrecincts = getNumPrecinctsWide();
+    int numYPrecincts = getNumPrecinctsHeigh();
+    if (startXPrecinct < 0) {
+      startXPrecinct = 0;
+    }
+    if (startYPrecinct < 0) {
+      startYPrecinct = 0;
+    }
+    if (endXPrecinct > numXPrecincts) {
+      endXPrecinct = numXPrecincts;
+    }
+    if (endYPrecinct > numYPrecincts) {
+      endYPrecinct = numYPrecincts;
+    }
+    if ((startXPrecinct >= endXPrecinct) || (startYPrecinct >= endYPrecinct)) {
+      return new long[0];
+    }
+
+    long firstInClassIdentifier = getInClassIdentifier(0);
+    long step = (long)parent.parent.parent.getNumTiles() * parent.parent.parent.getZSize();
+
+    long[] inClassIdentifiers = new long[(endYPrecinct - startYPrecinct) * (endXPrecinct - startXPrecinct)];
+    int index = 0;
+    for (int yPrecinct = startYPrecinct; yPrecinct < endYPrecinct; yPrecinct++) {
+      long inClassIdentifier = firstInClassIdentifier
+              + step * (yPrecinct * numXPrecincts + startXPrecinct);
+      for (int xPrecinct = startXPrecinct; xPrecinct < endXPrecinct; xPrecinct++) {
+        inClassIdentifiers[index++] = inClassIdentifier;
+        inClassIdentifier += step;
+      }
+    }
+
+    return inClassIdentifiers;
+  }
+
   /**
    *
    * @return
@@ -373,10 +465,13 @@ public class JPEG2KResolutionLevel {
    * @return number of precincts.
    */
   public int getNumPrecinctsWide() {
-    CADIRectangle bounds = getBounds();
-    int tmp = parent.getPrecinctWidths(rLevel);
-    return (int)Math.ceil(1.0 * (bounds.x + bounds.width) / tmp)
-           - (int)Math.floor(1.0 * bounds.x / tmp);
+    if (numPrecinctsWide < 0) {
+      CADIRectangle bounds = getBounds();
+      int tmp = parent.getPrecinctWidths(rLevel);
+      numPrecinctsWide = (int)Math.ceil(1.0 * (bounds.x + bounds.width) / tmp)
+                         - (int)Math.floor(1.0 * bounds.x / tmp);
+    }
+    return numPrecinctsWide;
   }
 
   /**
@@ -385,10 +480,13 @@ public class JPEG2KResolutionLevel {
    * @return number of precincts
    */
   public int getNumPrecinctsHeigh() {
-    CADIRectangle bounds = getBounds();
-    int tmp = parent.getPrecinctHeights(rLevel);
-    return (int)Math.ceil(1.0 * (bounds.y + bounds.height) / tmp)
-           - (int)Math.floor(1.0 * bounds.y / tmp);
+    if (numPrecinctsHigh < 0) {
+      CADIRectangle bounds = getBounds();
+      int tmp = parent.getPrecinctHeights(rLevel);
+      numPrecinctsHigh = (int)Math.ceil(1.0 * (bounds.y + bounds.height) / tmp)
+                         - (int)Math.floor(1.0 * bounds.y / tmp);
+    }
+    return numPrecinctsHigh;
   }
 
   /**
@@ -509,6 +607,82 @@ public class JPEG2KResolutionLevel {
     return bounds;
   }
 
+  /**
+   * Returns the number of blocks in the wide dimension of a precinct.
+   *
+   * @param precinctIndex the precinct index within the resolution level.
+   * @param subband a subband name. Allowed values are {@link #LL}, {@link #HL},
+   * {@link #LH}, or {@link #HH}.
+   *
+   * @return the number of blocks.
+   */
+  public int getNumBlocksWide(int precinctIndex, int subband) {
+    if ((rLevel == 0) && (subband != LL)) {
+      throw new IllegalArgumentException("Res. level 0 has only one subband");
+    }
+
+    int[][] blocks = numBlocksWide;
+    if (blocks == null) {
+      int numPrecinctsWide = getNumPrecinctsWide();
+      blocks = new int[HH + 1][];
+      for (int sb = (rLevel == 0 ? LL : HL); sb <= (rLevel == 0 ? LL : HH); sb++) {
+        blocks[sb] = new int[numPrecinctsWide];
+        for (int xPrecinct = 0; xPrecinct < numPrecinctsWide; xPrecinct++) {
+          // The intersection is saved in the subband bounds object
+          CADIRectangle subbandBounds = getSubbandBounds(sb);
+          subbandBounds.x <<= 1;
+          subbandBounds.width <<= 1;
+          CADIRectangle intersection =
+                  subbandBounds.intersection(getPrecinctBounds(xPrecinct));
+          blocks[sb][xPrecinct] = (rLevel > 0)
+                  ? (int)Math.ceil(1.0 * intersection.width / (getBlockWidth() << 1))
+                  : (int)Math.ceil(1.0 * intersection.width / getBlockWidth());
+        }
+      }
+      numBlocksWide = blocks;
+    }
+
+    return blocks[subband][precinctIndex % blocks[subband].length];
+  }
+
+  /**
+   * Returns the number of blocks in the high dimension of a precinct.
+   *
+   * @param precinctIndex the precinct index within the resolution level.
+   * @param subband a subband name. Allowed values are {@link #LL}, {@link #HL},
+   * {@link #LH}, or {@link #HH}.
+   *
+   * @return the number of blocks.
+   */
+  public int getNumBlocksHigh(int precinctIndex, int subband) {
+    if ((rLevel == 0) && (subband != LL)) {
+      throw new IllegalArgumentException("Res. level 0 has only one subband");
+    }
+
+    int[][] blocks = numBlocksHigh;
+    if (blocks == null) {
+      int numPrecinctsWide = getNumPrecinctsWide();
+      int numPrecinctsHigh = getNumPrecinctsHeigh();
+      blocks = new int[HH + 1][];
+      for (int sb = (rLevel == 0 ? LL : HL); sb <= (rLevel == 0 ? LL : HH); sb++) {
+        blocks[sb] = new int[numPrecinctsHigh];
+        for (int yPrecinct = 0; yPrecinct < numPrecinctsHigh; yPrecinct++) {
+          CADIRectangle subbandBounds = getSubbandBounds(sb);
+          subbandBounds.y <<= 1;
+          subbandBounds.height <<= 1;
+          CADIRectangle intersection = subbandBounds.intersection(
+                  getPrecinctBounds(yPrecinct * numPrecinctsWide));
+          blocks[sb][yPrecinct] = (rLevel > 0)
+                  ? (int)Math.ceil(1.0 * intersection.height / (getBlockWidth() << 1))
+                  : (int)Math.ceil(1.0 * intersection.height / getBlockWidth());
+        }
+      }
+      numBlocksHigh = blocks;
+    }
+
+    return blocks[subband][precinctIndex / getNumPrecinctsWide()];
+  }
+
   /**
    * Returns the number of blocks per precinct.
    * <p>
@@ -0,0 +1,275 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Common.LogicalTarget.JPEG2000.Parameters;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * This class storages the location of the packed packet headers signalled in
+ * the main header (PPM) or in the tile-part headers (PPT). Packet headers are
+ * not read, only the file pointer and length of the Ippm (or Ippt) bytes of
+ * each marker segment are recorded. The concatenation of these bytes is the
+ * packet header stream of the tile-part.
+ * Further and detailed information, see ISO/IEC 15444-1 sections A.7.4 and
+ * A.7.5.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/06/22
+ */
+public class PackedHeaderParameters {
+
+  /**
+   * Contains the file pointer of each fragment of the packet header stream.
+   * <p>
+   * Only the first {@link #numFragments} positions are valid.
+   */
+  private long[] filePointers = null;
+
+  /**
+   * Contains the length of each fragment of the packet header stream.
+   * <p>
+   * Only the first {@link #numFragments} positions are valid.
+   */
+  private int[] lengths = null;
+
+  /**
+   * Is the number of fragments of the packet header stream.
+   */
+  private int numFragments = 0;
+
+  /**
+   * Contains the file pointer of each marker segment (from the marker to the
+   * last byte of the segment).
+   * <p>
+   * Only the first {@link #numMarkerSegments} positions are valid.
+   */
+  private long[] markerSegmentFilePointers = null;
+
+  /**
+   * Contains the length of each marker segment, including the marker.
+   * <p>
+   * Only the first {@link #numMarkerSegments} positions are valid.
+   */
+  private int[] markerSegmentLengths = null;
+
+  /**
+   * Is the number of marker segments.
+   */
+  private int numMarkerSegments = 0;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   */
+  public PackedHeaderParameters() {
+    filePointers = new long[8];
+    lengths = new int[8];
+    markerSegmentFilePointers = new long[8];
+    markerSegmentLengths = new int[8];
+  }
+
+  /**
+   * Deep copy constructor.
+   *
+   * @param parameters an object of this class.
+   */
+  public PackedHeaderParameters(PackedHeaderParameters parameters) {
+    filePointers = Arrays.copyOf(parameters.filePointers, parameters.filePointers.length);
+    lengths = Arrays.copyOf(parameters.lengths, parameters.lengths.length);
+    numFragments = parameters.numFragments;
+    markerSegmentFilePointers = Arrays.copyOf(parameters.markerSegmentFilePointers,
+                                              parameters.markerSegmentFilePointers.length);
+    markerSegmentLengths = Arrays.copyOf(parameters.markerSegmentLengths,
+                                         parameters.markerSegmentLengths.length);
+    numMarkerSegments = parameters.numMarkerSegments;
+  }
+
+  /**
+   * Adds a fragment of the packet header stream.
+   *
+   * @param filePointer the file pointer of the first byte of the fragment.
+   * @param length the length of the fragment.
+   */
+  public void addFragment(long filePointer, int length) {
+    if (length <= 0) {
+      return;
+    }
+    if (numFragments == filePointers.length) {
+      filePointers = Arrays.copyOf(filePointers, numFragments * 2);
+      lengths = Arrays.copyOf(lengths, numFragments * 2);
+    }
+    filePointers[numFragments] = filePointer;
+    lengths[numFragments] = length;
+    numFragments++;
+  }
+
+  /**
+   * Adds a marker segment.
+   *
+   * @param filePointer the file pointer of the marker.
+   * @param length the length of the marker segment, including the marker.
+   */
+  public void addMarkerSegment(long filePointer, int length) {
+    if (numMarkerSegments == markerSegmentFilePointers.length) {
+      markerSegmentFilePointers = Arrays.copyOf(markerSegmentFilePointers, numMarkerSegments * 2);
+      markerSegmentLengths = Arrays.copyOf(markerSegmentLengths, numMarkerSegments * 2);
+    }
+    markerSegmentFilePointers[numMarkerSegments] = filePointer;
+    markerSegmentLengths[numMarkerSegments] = length;
+    numMarkerSegments++;
+  }
+
+  /**
+   * Returns the {@link #numFragments} attribute.
+   *
+   * @return the {@link #numFragments} attribute.
+   */
+  public int getNumFragments() {
+    return numFragments;
+  }
+
+  /**
+   * Returns the file pointer of a fragment of the packet header stream.
+   *
+   * @param index the fragment index.
+   *
+   * @return the file pointer of the fragment.
+   */
+  public long getFilePointer(int index) {
+    if ((index < 0) || (index >= numFragments)) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+    return filePointers[index];
+  }
+
+  /**
+   * Returns the length of a fragment of the packet header stream.
+   *
+   * @param index the fragment index.
+   *
+   * @return the length of the fragment.
+   */
+  public int getLength(int index) {
+    if ((index < 0) || (index >= numFragments)) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+    return lengths[index];
+  }
+
+  /**
+   * Returns the length of the packet header stream.
+   *
+   * @return the sum of the fragment lengths.
+   */
+  public long getTotalLength() {
+    long totalLength = 0;
+    for (int i = 0; i < numFragments; i++) {
+      totalLength += lengths[i];
+    }
+    return totalLength;
+  }
+
+  /**
+   * Returns the {@link #numMarkerSegments} attribute.
+   *
+   * @return the {@link #numMarkerSegments} attribute.
+   */
+  public int getNumMarkerSegments() {
+    return numMarkerSegments;
+  }
+
+  /**
+   * Returns the file pointer of a marker segment.
+   *
+   * @param index the marker segment index.
+   *
+   * @return the file pointer of the marker segment.
+   */
+  public long getMarkerSegmentFilePointer(int index) {
+    if ((index < 0) || (index >= numMarkerSegments)) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+    return markerSegmentFilePointers[index];
+  }
+
+  /**
+   * Returns the length of a marker segment.
+   *
+   * @param index the marker segment index.
+   *
+   * @return the length of the marker segment.
+   */
+  public int getMarkerSegmentLength(int index) {
+    if ((index < 0) || (index >= numMarkerSegments)) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+    return markerSegmentLengths[index];
+  }
+
+  /**
+   * Sets the attributes to its initial values.
+   */
+  public void reset() {
+    numFragments = 0;
+    numMarkerSegments = 0;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+    str = getClass().getName() + " [";
+
+    str += "Marker segments=" + numMarkerSegments;
+    str += " Fragments=" + numFragments;
+    str += " Total length=" + getTotalLength();
+
+    str += "]";
+    return str;
+  }
+
+  /**
+   * Prints this packed header parameters' fields to the specified output
+   * stream. This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Packed header prameters --");
+
+    out.println("Marker segments: " + numMarkerSegments);
+    out.println("Fragments: " + numFragments);
+    out.println("Total length: " + getTotalLength());
+
+    out.flush();
+  }
+}
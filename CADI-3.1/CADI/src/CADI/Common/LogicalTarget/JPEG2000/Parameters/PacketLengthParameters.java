@@ -0,0 +1,198 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Common.LogicalTarget.JPEG2000.Parameters;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * This class storages the packet lengths signalled in the packet length
+ * marker segments of the main header (PLM) or of the tile-part headers (PLT).
+ * Lengths are stored in the same order the packets are in the codestream.
+ * Further and detailed information, see ISO/IEC 15444-1 sections A.7.2 and
+ * A.7.3.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/06/20
+ */
+public class PacketLengthParameters {
+
+  /**
+   * Contains the length of each packet.
+   * <p>
+   * Only the first {@link #numPackets} positions are valid.
+   */
+  private long[] lengths = null;
+
+  /**
+   * Is the number of packets whose length has been completely decoded.
+   */
+  private int numPackets = 0;
+
+  /**
+   * Is the part of the packet length which is being decoded. Each length is
+   * coded in several bytes, the most significant bit of a byte indicating
+   * whether the next byte belongs to the same length.
+   */
+  private long partialLength = 0;
+
+  /**
+   * Indicates whether a packet length is not completely decoded yet.
+   */
+  private boolean pendingLength = false;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   */
+  public PacketLengthParameters() {
+    lengths = new long[256];
+  }
+
+  /**
+   * Deep copy constructor.
+   *
+   * @param parameters an object of this class.
+   */
+  public PacketLengthParameters(PacketLengthParameters parameters) {
+    lengths = Arrays.copyOf(parameters.lengths, parameters.lengths.length);
+    numPackets = parameters.numPackets;
+    partialLength = parameters.partialLength;
+    pendingLength = parameters.pendingLength;
+  }
+
+  /**
+   * Decodes a byte of the Iplm or Iplt parameters.
+   *
+   * @param value the byte to be decoded.
+   */
+  public void decodeByte(int value) {
+    partialLength = (partialLength << 7) | (value & 0x7F);
+    if ((value & 0x80) != 0) {
+      pendingLength = true;
+    } else {
+      if (numPackets == lengths.length) {
+        lengths = Arrays.copyOf(lengths, lengths.length * 2);
+      }
+      lengths[numPackets++] = partialLength;
+      partialLength = 0;
+      pendingLength = false;
+    }
+  }
+
+  /**
+   * Returns the {@link #numPackets} attribute.
+   *
+   * @return the {@link #numPackets} attribute.
+   */
+  public int getNumPackets() {
+    return numPackets;
+  }
+
+  /**
+   * Returns the length of a packet.
+   *
+   * @param packet the packet index, in codestream order.
+   *
+   * @return the length of the packet.
+   */
+  public long getLength(int packet) {
+    if ((packet < 0) || (packet >= numPackets)) {
+      throw new ArrayIndexOutOfBoundsException(packet);
+    }
+    return lengths[packet];
+  }
+
+  /**
+   * Returns the sum of the lengths of all the packets.
+   *
+   * @return the sum of the packet lengths.
+   */
+  public long getTotalLength() {
+    long totalLength = 0;
+    for (int i = 0; i < numPackets; i++) {
+      totalLength += lengths[i];
+    }
+    return totalLength;
+  }
+
+  /**
+   * Indicates whether the last packet length has been completely decoded.
+   *
+   * @return <code>true</code> if there is not a partially decoded length.
+   */
+  public boolean isComplete() {
+    return !pendingLength;
+  }
+
+  /**
+   * Sets the attributes to its initial values.
+   */
+  public void reset() {
+    numPackets = 0;
+    partialLength = 0;
+    pendingLength = false;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+    str = getClass().getName() + " [";
+
+    str += "Packets=" + numPackets;
+    str += " Total length=" + getTotalLength();
+    if (pendingLength) {
+      str += " (incomplete)";
+    }
+
+    str += "]";
+    return str;
+  }
+
+  /**
+   * Prints this packet length parameters' fields to the specified output
+   * stream. This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Packet length prameters --");
+
+    out.println("Packets: " + numPackets);
+    out.println("Total length: " + getTotalLength());
+    if (pendingLength) {
+      out.println("Last length is incomplete");
+    }
+
+    out.flush();
+  }
+}
@@ -67,7 +67,7 @@ import GiciException.ErrorException;
  * &nbsp; getEORReasonCode<br>
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.6 2011/08/12
+ * @version 1.0.7 2012/07/04
  */
 public class WindowScalingFactor {
 
@@ -385,7 +385,8 @@ public class WindowScalingFactor {
             codestream.getCOMParameters(), codestream.getNumLayers());
 
     // Get relevant precincts
-    findRelevantPrecinctsResequencedLayers(actualViewWindow);
+    RelevantPrecinct[] responsePlan = getResponsePlan(actualViewWindow, discardLevels);
+    filterRelevantPrecincts(responsePlan, actualViewWindow);
 
     //
     packetsSequencing();
@@ -567,15 +568,40 @@ public class WindowScalingFactor {
     out.flush();
   }
 
-  // ============================ private methods ==============================
-  
+  // ============================ protected methods ============================
+  /**
+   * Returns the response plan of the requested Window Of Interest, that is,
+   * the ordered list of relevant precincts regardless of the data already
+   * sent to the client.
+   * <p>
+   * This implementation always computes the plan. It can be overridden to
+   * share plans between clients requesting the same window.
+   *
+   * @param actualViewWindow the view window fitted to the codestream.
+   * @param discardLevels number of discarded resolution levels.
+   *
+   * @return the ordered list of relevant precincts. It must not be modified.
+   *
+   * @throws ErrorException if the plan cannot be computed.
+   */
+  protected RelevantPrecinct[] getResponsePlan(ViewWindowField actualViewWindow,
+                                               int discardLevels) throws ErrorException {
+    return computeResponsePlan(actualViewWindow, discardLevels);
+  }
+
   /**
    * This methods determines which precincts are relevant to the requested
-   * Window Of Interest.
+   * Window Of Interest, and sorts them by overlap factor within each
+   * resolution level. The client cache is not taken into account, so the
+   * result only depends on the logical target and the view window.
    * 
-   * @param actualViewWindow 
+   * @param actualViewWindow the view window fitted to the codestream.
+   * @param discardLevels number of discarded resolution levels.
+   *
+   * @return the ordered list of relevant precincts.
    */
-  private void findRelevantPrecinctsResequencedLayers(ViewWindowField actualViewWindow) {
+  protected final RelevantPrecinct[] computeResponsePlan(ViewWindowField actualViewWindow,
+                                                         int discardLevels) {
 
     assert (discardLevels >= 0);
     assert (actualViewWindow != null);
@@ -585,7 +611,7 @@ public class WindowScalingFactor {
       scalingFactors = new PredictiveScalingFactors(1F);
     }
 
-    relevantPrecincts = new ArrayList<RelevantPrecinct>();
+    ArrayList<RelevantPrecinct> relevantPrecincts = new ArrayList<RelevantPrecinct>();
 
     int[] components = ArraysUtil.rangesToIndexes(actualViewWindow.comps);
     ArrayList<Integer> relevantTiles = codestream.calculateRelevantTiles(actualViewWindow, discardLevels);
@@ -674,25 +700,6 @@ public class WindowScalingFactor {
             for (int xPrecinct = startXPrecinct; xPrecinct < endXPrecinct; xPrecinct++) {
               long inClassIdentifier = rLevelObj.getInClassIdentifier(yPrecinct * numPrecinctsWidth + xPrecinct);
 
-              int lengthOfDataBinSent = (int)serverCache.getPrecinctDataBinLength(inClassIdentifier);
-              int layerOfDataSent = serverCache.getPrecinctDataBinLayers(inClassIdentifier);
-              if ((lengthOfDataBinSent < 0) && (layerOfDataSent < 0)) {
-                lengthOfDataBinSent = 0;
-                layerOfDataSent = 0;
-              } else if ((lengthOfDataBinSent > 0) && (layerOfDataSent < 0)) {
-                layerOfDataSent = logicalTarget.getLastCompleteLayer(inClassIdentifier, lengthOfDataBinSent);
-              } /*else if ((lengthOfDataBinSent < 0) && (layerOfDataSent > 0)) {
-                lengthOfDataBinSent = logicalTarget.getPacketOffsetWithDataBin(inClassIdentifier, layerOfDataSent)
-                                      + logicalTarget.getPacketLength(inClassIdentifier, layerOfDataSent);
-              }*/
-              
-              assert(layerOfDataSent >= 0);
-
-              if (actualViewWindow.layers <= layerOfDataSent) {
-                // All layers are already in client cache.
-                continue;
-              }
-
               CADIRectangle precinct = new CADIRectangle(xPrecinct * precinctWidth, yPrecinct * precinctHeight, precinctWidth, precinctHeight);
               
               RelevantPrecinct rp = new RelevantPrecinct(inClassIdentifier);
@@ -772,6 +779,52 @@ public class WindowScalingFactor {
 
     //for (RelevantPrecinct rp : relevantPrecincts) System.out.println(rp.toStringSummary()); // DEBUG
     tmpPrecinctsList = null;
+
+    return relevantPrecincts.toArray(new RelevantPrecinct[relevantPrecincts.size()]);
+  }
+
+  // ============================ private methods ==============================
+  /**
+   * Builds the {@link #relevantPrecincts} list from a response plan, removing
+   * the precincts whose requested layers are already in the client cache.
+   * Precincts of the plan are copied, so the plan is not modified.
+   *
+   * @param responsePlan the ordered list of relevant precincts.
+   * @param actualViewWindow the view window fitted to the codestream.
+   */
+  private void filterRelevantPrecincts(RelevantPrecinct[] responsePlan,
+                                       ViewWindowField actualViewWindow) {
+
+    relevantPrecincts = new ArrayList<RelevantPrecinct>(responsePlan.length);
+
+    for (RelevantPrecinct planned : responsePlan) {
+      long inClassIdentifier = planned.inClassIdentifier;
+
+      int lengthOfDataBinSent = (int)serverCache.getPrecinctDataBinLength(inClassIdentifier);
+      int layerOfDataSent = serverCache.getPrecinctDataBinLayers(inClassIdentifier);
+      if ((lengthOfDataBinSent < 0) && (layerOfDataSent < 0)) {
+        lengthOfDataBinSent = 0;
+        layerOfDataSent = 0;
+      } else if ((lengthOfDataBinSent > 0) && (layerOfDataSent < 0)) {
+        layerOfDataSent = logicalTarget.getLastCompleteLayer(inClassIdentifier, lengthOfDataBinSent);
+      }
+
+      assert (layerOfDataSent >= 0);
+
+      if (actualViewWindow.layers <= layerOfDataSent) {
+        // All layers are already in client cache.
+        continue;
+      }
+
+      RelevantPrecinct rp = new RelevantPrecinct(inClassIdentifier);
+      rp.overlapFactor = planned.overlapFactor;
+      rp.tile = planned.tile;
+      rp.component = planned.component;
+      rp.rLevel = planned.rLevel;
+      rp.precinct = planned.precinct;
+      rp.wsf = planned.wsf;
+      relevantPrecincts.add(rp);
+    }
   }
 
   /**
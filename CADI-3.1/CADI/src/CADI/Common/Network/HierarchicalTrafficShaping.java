@@ -0,0 +1,548 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Common.Network;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class shares a maximum transmission rate among all the responses
+ * which are being sent by the server. Bandwidth is shared following a
+ * hierarchy of buckets: the global bucket is shared fairly among the client
+ * addresses, the bucket of each client address among its sessions, and
+ * the bucket of each session among its channels (the responses which are
+ * being sent). Furthermore, a channel can have its own maximum rate.
+ * <p>
+ * Each bucket follows the token-bucket algorithm, but tokens are reserved
+ * with an atomic operation instead of a lock, so threads sending responses
+ * do not block each other. The rate of a bucket is its max-min fair share
+ * of the rate of its parent: the children whose maximum rate (the sum of
+ * the maximum rates of their channels for a client or a session) is lower
+ * than an equal share take only their maximum rate, and the surplus is
+ * shared equally among the other children. Rates are recomputed each time
+ * a response is registered or unregistered.
+ * <p>
+ * The demand of a response is only known through its maximum rate, so the
+ * share of a response which does not use it (p.e. because the client reads
+ * slowly) is not given to the other responses until it finishes.
+ * <p>
+ * Responses are served as in the deficit round-robin algorithm. Each time a
+ * response runs out of credit, it reserves a quantum of bytes in all the
+ * buckets from its channel to the global one, and waits for its turn. Then,
+ * it sends its chunks from its credit, which is not shared, until it is
+ * exhausted. As each response only has a quantum reserved at a time, the
+ * active responses are served in turns.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; open<br>
+ * &nbsp; getTokens<br>
+ * &nbsp; ....<br>
+ * &nbsp; close<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.1 2012/07/04
+ */
+public class HierarchicalTrafficShaping {
+
+  /**
+   * Is the maximum rate (in bytes per second) shared by all the responses.
+   */
+  private long maxRate = 0;
+
+  /**
+   * Is the number of bytes reserved by a response in each turn.
+   */
+  private int quantum = DEFAULT_QUANTUM;
+
+  // INTERNAL ATTRIBUTES
+  /**
+   * Is the default value of {@link #quantum}.
+   */
+  public static final int DEFAULT_QUANTUM = 16384;
+
+  /**
+   * Is the time (in nanoseconds) of transmission a bucket can accumulate
+   * while it is idle, so short bursts are allowed.
+   */
+  private static final long BURST_TIME = 100000000L; // 100 ms
+
+  /**
+   * Is the global bucket.
+   */
+  private Node root = null;
+
+  /**
+   * Contains the buckets of the active client addresses.
+   */
+  private HashMap<String, Node> clients = null;
+
+  /**
+   * Contains the buckets of the active sessions. The key is the session
+   * identifier.
+   */
+  private HashMap<String, Node> sessions = null;
+
+  /**
+   * Is the number of responses which are being sent.
+   */
+  private int numOfFlows = 0;
+
+  /**
+   * Is the number of bytes sent by the responses which have finished.
+   */
+  private long sentBytes = 0;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param maxRate definition in {@link #maxRate}.
+   */
+  public HierarchicalTrafficShaping(long maxRate) {
+    // Check input parameters
+    if (maxRate <= 0) {
+      throw new IllegalArgumentException();
+    }
+
+    // Copy input parameters
+    this.maxRate = maxRate;
+
+    root = new Node(null, null, null, maxRate);
+    clients = new HashMap<String, Node>();
+    sessions = new HashMap<String, Node>();
+  }
+
+  /**
+   * Sets the {@link #quantum} attribute.
+   *
+   * @param quantum definition in {@link #quantum}.
+   */
+  public void setQuantum(int quantum) {
+    if (quantum <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.quantum = quantum;
+  }
+
+  /**
+   * Registers a new response which is going to be sent.
+   *
+   * @param clientAddress the address of the client. It is not used if the
+   * 			session is already receiving responses, as they share the bucket
+   * 			of the client where the session was registered.
+   * @param sessionID the identifier of the session the response belongs to,
+   * 			or <code>null</code> if it does not belong to any session.
+   * @param maxRate maximum rate (in bytes per second) of the channel. If it
+   * 			is 0, the channel only takes its fair share.
+   *
+   * @return the flow which must be used to send the response.
+   */
+  public synchronized Flow open(String clientAddress, String sessionID, long maxRate) {
+    if (clientAddress == null) {
+      throw new NullPointerException();
+    }
+
+    Node parent = (sessionID != null) ? sessions.get(sessionID) : null;
+    if (parent == null) {
+      parent = clients.get(clientAddress);
+      if (parent == null) {
+        parent = new Node(root, clients, clientAddress, 0);
+        clients.put(clientAddress, parent);
+      }
+      if (sessionID != null) {
+        parent = new Node(parent, sessions, sessionID, 0);
+        sessions.put(sessionID, parent);
+      }
+    }
+
+    Node channel = new Node(parent, null, null, (maxRate > 0) ? maxRate : 0);
+    numOfFlows++;
+    updateRates();
+
+    return new Flow(channel);
+  }
+
+  /**
+   * Returns the {@link #maxRate} attribute.
+   *
+   * @return the {@link #maxRate} attribute.
+   */
+  public long getMaxRate() {
+    return maxRate;
+  }
+
+  /**
+   * Returns the number of responses which are being sent.
+   *
+   * @return the number of responses which are being sent.
+   */
+  public synchronized int getNumOfFlows() {
+    return numOfFlows;
+  }
+
+  /**
+   * Returns the number of client addresses which are receiving responses.
+   *
+   * @return the number of active clients.
+   */
+  public synchronized int getNumOfClients() {
+    return clients.size();
+  }
+
+  /**
+   * Returns the {@link #sentBytes} attribute.
+   *
+   * @return the {@link #sentBytes} attribute.
+   */
+  public synchronized long getSentBytes() {
+    return sentBytes;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public synchronized String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "maxRate=" + maxRate;
+    str += ", quantum=" + quantum;
+    str += ", clients=" + clients.size();
+    str += ", sessions=" + sessions.size();
+    str += ", flows=" + numOfFlows;
+    str += ", sentBytes=" + sentBytes;
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Hierarchical Traffic Shaping out to the specified output
+   * stream. This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public synchronized void list(PrintStream out) {
+
+    out.println("-- Hierarchical Traffic Shaping --");
+    out.println("maxRate: " + maxRate);
+    out.println("quantum: " + quantum);
+    out.println("clients: " + clients.size());
+    out.println("sessions: " + sessions.size());
+    out.println("flows: " + numOfFlows);
+    out.println("sentBytes: " + sentBytes);
+    out.flush();
+  }
+
+  // ============================ private methods ==============================
+  /**
+   * Unregisters a response which has been sent. The credit which has not
+   * been used is returned to the buckets, and the buckets of the session
+   * and client which do not have more active responses are removed.
+   *
+   * @param flow the flow of the response.
+   */
+  private synchronized void close(Flow flow) {
+    Node node = flow.channel;
+    if (flow.credit > 0) {
+      node.release(flow.credit);
+    }
+    numOfFlows--;
+    sentBytes += flow.sentBytes;
+
+    // Removes the buckets which do not have more active responses
+    while ((node != root) && node.children.isEmpty()) {
+      node.parent.children.remove(node);
+      if (node.registry != null) {
+        node.registry.remove(node.key);
+      }
+      node = node.parent;
+    }
+    updateRates();
+  }
+
+  /**
+   * Recomputes the rates of all the buckets. It must be called, holding the
+   * lock of the shaper, each time the hierarchy changes.
+   */
+  private void updateRates() {
+    root.updateLimit();
+    root.share(maxRate);
+  }
+
+  // ============================ internal classes =============================
+  /**
+   * This class is a bucket of the hierarchy.
+   */
+  private static final class Node {
+
+    /**
+     * Is the parent bucket, or <code>null</code> for the global bucket.
+     */
+    final Node parent;
+
+    /**
+     * Is the map where the bucket is registered, or <code>null</code> if it
+     * is not registered.
+     */
+    final HashMap<String, Node> registry;
+
+    /**
+     * Is the key of the bucket in the {@link #registry}.
+     */
+    final String key;
+
+    /**
+     * Is the maximum rate (in bytes per second) of the bucket. If it is 0,
+     * the bucket only takes its fair share of the parent rate.
+     */
+    final long maxRate;
+
+    /**
+     * Contains the children which are sending responses. It is only used
+     * while the lock of the shaper is held.
+     */
+    final ArrayList<Node> children;
+
+    /**
+     * Is the maximum rate (in bytes per second) the bucket can use, i.e., its
+     * own maximum rate limited by the sum of the limits of its children. It
+     * is <code>Long.MAX_VALUE</code> if there is no limit.
+     */
+    long limit = Long.MAX_VALUE;
+
+    /**
+     * Is the current rate (in bytes per second) of the bucket. See
+     * {@link #share(long)}.
+     */
+    volatile long rate = 1;
+
+    /**
+     * Is the time (in nanoseconds) when the tokens reserved so far will
+     * have been generated.
+     */
+    final AtomicLong nextTime;
+
+    Node(Node parent, HashMap<String, Node> registry, String key, long maxRate) {
+      this.parent = parent;
+      this.registry = registry;
+      this.key = key;
+      this.maxRate = maxRate;
+      children = new ArrayList<Node>();
+      nextTime = new AtomicLong(System.nanoTime() - BURST_TIME);
+      if (parent != null) {
+        parent.children.add(this);
+      }
+    }
+
+    /**
+     * Returns the current rate of the bucket.
+     *
+     * @return the rate in bytes per second.
+     */
+    long getRate() {
+      return rate;
+    }
+
+    /**
+     * Computes the {@link #limit} of the bucket and of its descendants.
+     *
+     * @return the limit of the bucket.
+     */
+    long updateLimit() {
+      long sum = children.isEmpty() ? Long.MAX_VALUE : 0;
+      for (Node child : children) {
+        long childLimit = child.updateLimit();
+        sum = (childLimit > Long.MAX_VALUE - sum) ? Long.MAX_VALUE : sum + childLimit;
+      }
+      limit = ((maxRate > 0) && (maxRate < sum)) ? maxRate : sum;
+      return limit;
+    }
+
+    /**
+     * Sets the rate of the bucket, limited by its {@link #limit}, and shares
+     * it among its children following the max-min fairness: children are
+     * visited from the lowest limit, and each one takes the minimum of its
+     * limit and an equal share of the rate which has not been taken yet.
+     *
+     * @param rate the rate (in bytes per second) given by the parent.
+     */
+    void share(long rate) {
+      this.rate = Math.max(1, Math.min(rate, limit));
+      if (children.isEmpty()) {
+        return;
+      }
+
+      Node[] sorted = children.toArray(new Node[children.size()]);
+      Arrays.sort(sorted, new Comparator<Node>() {
+        public int compare(Node node1, Node node2) {
+          return (node1.limit < node2.limit) ? -1 : ((node1.limit == node2.limit) ? 0 : 1);
+        }
+      });
+      long remaining = this.rate;
+      for (int i = 0; i < sorted.length; i++) {
+        long childRate = Math.min(sorted[i].limit, remaining / (sorted.length - i));
+        sorted[i].share(childRate);
+        remaining -= childRate;
+      }
+    }
+
+    /**
+     * Reserves a number of tokens.
+     *
+     * @param numTokens the number of tokens.
+     * @param now the current time in nanoseconds.
+     *
+     * @return the time (in nanoseconds) when the tokens can be used.
+     */
+    long reserve(int numTokens, long now) {
+      long cost = numTokens * 1000000000L / getRate();
+      while (true) {
+        long time = nextTime.get();
+        long start = Math.max(time, now - BURST_TIME);
+        if (nextTime.compareAndSet(time, start + cost)) {
+          return start;
+        }
+      }
+    }
+
+    /**
+     * Returns tokens which have been reserved but not used.
+     *
+     * @param numTokens the number of tokens.
+     */
+    void release(int numTokens) {
+      long now = System.nanoTime();
+      for (Node node = this; node != null; node = node.parent) {
+        long cost = numTokens * 1000000000L / node.getRate();
+        while (true) {
+          long time = node.nextTime.get();
+          if ((time <= now) || node.nextTime.compareAndSet(time, Math.max(now, time - cost))) {
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * This class is used by a response to get the tokens before sending its
+   * data. It must only be used by the thread which is sending the response.
+   */
+  public final class Flow {
+
+    /**
+     * Is the bucket of the channel.
+     */
+    private Node channel = null;
+
+    /**
+     * Is the number of bytes which have been reserved and not sent yet.
+     */
+    private int credit = 0;
+
+    /**
+     * Is the number of bytes sent.
+     */
+    private long sentBytes = 0;
+
+    /**
+     * Indicates whether the flow has been closed.
+     */
+    private boolean closed = false;
+
+    private Flow(Node channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Gets tokens to send data. If the flow has run out of credit, this
+     * method waits until a new quantum is available.
+     *
+     * @param length the number of bytes to be sent.
+     *
+     * @return the number of bytes which can be sent. It is greater than 0
+     * 			and not greater than <code>length</code>.
+     */
+    public int getTokens(int length) {
+      assert (length > 0);
+
+      if (credit <= 0) {
+        // Reserves a quantum from the channel to the global bucket
+        long now = System.nanoTime();
+        long sendTime = now;
+        for (Node node = channel; node != null; node = node.parent) {
+          sendTime = Math.max(sendTime, node.reserve(quantum, now));
+        }
+        long waitTime = sendTime - now;
+        if (waitTime > 0) {
+          try {
+            Thread.sleep(waitTime / 1000000L, (int)(waitTime % 1000000L));
+          } catch (InterruptedException e) {
+          }
+        }
+        credit = quantum;
+      }
+
+      int allowed = Math.min(length, credit);
+      credit -= allowed;
+      sentBytes += allowed;
+
+      return allowed;
+    }
+
+    /**
+     * Returns tokens which have been got by the {@link #getTokens(int)}
+     * method but have not been used.
+     *
+     * @param numTokens the number of tokens.
+     */
+    public void returnTokens(int numTokens) {
+      assert ((numTokens >= 0) && (numTokens <= sentBytes));
+      credit += numTokens;
+      sentBytes -= numTokens;
+    }
+
+    /**
+     * Unregisters the flow. It must be called when the response has been
+     * sent.
+     */
+    public void close() {
+      if (!closed) {
+        closed = true;
+        HierarchicalTrafficShaping.this.close(this);
+      }
+    }
+  }
+}
@@ -39,7 +39,9 @@ import java.util.UUID;
 import CADI.Client.Session.ClientJPIPChannel;
 import CADI.Common.Cache.CacheManagement;
 import CADI.Common.Cache.DataBinsCacheManagement;
+import CADI.Common.Cache.ModelElement;
 import CADI.Common.Log.CADILog;
+import CADI.Common.Network.JPIP.ClassIdentifiers;
 import CADI.Common.Network.JPIP.JPIPRequestFields;
 import CADI.Common.Network.JPIP.JPIPResponseFields;
 import CADI.Common.Network.JPIP.ViewWindowField;
@@ -66,7 +68,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * Further information, please see see ISO/IEC 15444-1 section B.2
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.2 2011/03/07
+ * @version 1.0.3 2012/07/04
  */
 public class ClientSideSessionTarget extends SessionTarget {
 
@@ -779,6 +781,28 @@ public class ClientSideSessionTarget extends SessionTarget {
    return new ArrayList<ViewWindowField>(woiHistory);
  }
   
+  /**
+   * Adds to the cache model of a request the data-bins which have been
+   * evicted from the cache, as subtractive elements, so the server does not
+   * rely on them anymore.
+   *
+   * @param jpipRequestFields the request.
+   * @param cache the cache whose evicted data-bins are signalled.
+   */
+  protected void signalRemovedDataBins(JPIPRequestFields jpipRequestFields,
+                                       CacheManagement cache) {
+    ArrayList<Long> removedDataBins = cache.getRemovedDataBins();
+    if (!removedDataBins.isEmpty()) {
+      if (jpipRequestFields.cacheManagementField.model == null) {
+        jpipRequestFields.cacheManagementField.model = new ArrayList<ModelElement>();
+      }
+      for (long inClassIdentifier : removedDataBins) {
+        jpipRequestFields.cacheManagementField.model.add(
+                new ModelElement(ClassIdentifiers.PRECINCT, inClassIdentifier, -1, -1, false));
+      }
+    }
+  }
+
   /**
    *
    * @return
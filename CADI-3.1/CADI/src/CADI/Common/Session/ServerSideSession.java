@@ -34,7 +34,7 @@ import java.io.PrintStream;
  * For further information about JPIP sessions, see ISO/IEC 15444-9 section B.2 
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.2 2010/12/12
+ * @version 1.0.3 2012/07/04
  */
 public class ServerSideSession extends Session {
 			
@@ -82,7 +82,8 @@ public class ServerSideSession extends Session {
 	 */
   @Override
 	protected void updateExpirationTime() {
-		expirationTime = System.currentTimeMillis() + DEFAULT_EXPIRATION_TIME;
+		lastAccessTime = System.currentTimeMillis();
+		expirationTime = lastAccessTime + idleTimeout;
 	}
 	
 }
\ No newline at end of file
@@ -35,7 +35,7 @@ import CADI.Common.Cache.CacheModel;
  * belongs to a session.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2010/12/12
+ * @version 1.0.2 2012/07/04
  */
 public class ServerSideSessionTarget extends SessionTarget {
 	
@@ -65,6 +65,27 @@ public class ServerSideSessionTarget extends SessionTarget {
 		super(tid, returnType);
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see CADI.Common.Session.SessionTarget#getMemoryUsage()
+	 */
+  @Override
+	public long getMemoryUsage() {
+		return super.getMemoryUsage()
+		        + (cache != null ? cache.getMemoryUsage() : 0);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see CADI.Common.Session.SessionTarget#compact()
+	 */
+  @Override
+	public void compact() {
+		if (cache != null) {
+			cache.compact();
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Object#toString()
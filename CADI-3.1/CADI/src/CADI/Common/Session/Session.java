@@ -41,7 +41,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * For further information about JPIP sessions, see ISO/IEC 15444-9 section B.2 
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.2 2010/02/21
+ * @version 1.0.4 2012/07/04
  */
 public class Session {
 	
@@ -66,7 +66,27 @@ public class Session {
 	 * Expiration time of the session. When this expiration time is reached, the
 	 * session will be removed.
 	 */
-	protected long expirationTime = 0L;	// It has not been implemented yet
+	protected long expirationTime = 0L;
+	
+	/**
+	 * Time (in milliseconds) of the last request received within the session.
+	 */
+	protected long lastAccessTime = 0L;
+	
+	/**
+	 * Time (in milliseconds) the session is kept alive without receiving any
+	 * request. Its default value is {@link #DEFAULT_EXPIRATION_TIME}.
+	 */
+	protected long idleTimeout = 0L;
+	
+	/**
+	 * Number of requests within the session which are being processed. While
+	 * it is greater than 0, the session is neither compacted nor removed by
+	 * {@link CADI.Common.Session.Sessions#reap()}. It is guarded by the lock
+	 * of the {@link CADI.Common.Session.Sessions} object the session belongs
+	 * to.
+	 */
+	private int numOfPins = 0;
 	
 	/**
 	 * The default expiration time.
@@ -80,6 +100,7 @@ public class Session {
 	public Session() {			
 		mutex = new ReentrantReadWriteLock();
 		targets = new HashMap<String,SessionTarget>();
+		idleTimeout = DEFAULT_EXPIRATION_TIME;
 		updateExpirationTime();
 		
 		sessionID = UUID.randomUUID().toString();
@@ -288,6 +309,87 @@ public class Session {
 		return ( expirationTime < System.currentTimeMillis() ? true : false);
 	}
 	
+	/**
+	 * Sets the time the session is kept alive without receiving any request.
+	 * 
+	 * @param idleTimeout definition in {@link #idleTimeout}.
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		if (idleTimeout <= 0) throw new IllegalArgumentException();
+		
+		this.idleTimeout = idleTimeout;
+		expirationTime = lastAccessTime + idleTimeout;
+	}
+	
+	/**
+	 * Records that a request has been received within the session, so its
+	 * expiration time is postponed.
+	 */
+	public void touch() {
+		updateExpirationTime();
+	}
+	
+	/**
+	 * Records that a request within the session is being processed. See
+	 * {@link #numOfPins}.
+	 */
+	void pin() {
+		numOfPins++;
+	}
+	
+	/**
+	 * Records that a request within the session has been processed. See
+	 * {@link #numOfPins}.
+	 */
+	void unpin() {
+		if (numOfPins <= 0) throw new IllegalStateException();
+		
+		numOfPins--;
+	}
+	
+	/**
+	 * Checks whether a request within the session is being processed.
+	 * 
+	 * @return <code>true</code> if the session is pinned. Otherwise,
+	 * 			returns <code>false</code>.
+	 */
+	boolean isPinned() {
+		return numOfPins > 0;
+	}
+	
+	/**
+	 * Returns the {@link #lastAccessTime} attribute.
+	 * 
+	 * @return the {@link #lastAccessTime} attribute.
+	 */
+	public long getLastAccessTime() {
+		return lastAccessTime;
+	}
+	
+	/**
+	 * Returns an estimation of the memory (in bytes) used by the session
+	 * targets of this session.
+	 * 
+	 * @return the memory used by the session.
+	 */
+	public long getMemoryUsage() {
+		long memory = 0;
+		for (Map.Entry<String, SessionTarget> entry : targets.entrySet()) {
+			memory += entry.getValue().getMemoryUsage();
+		}
+		return memory;
+	}
+	
+	/**
+	 * Releases the memory which is not strictly needed by the session targets.
+	 * See {@link CADI.Common.Session.SessionTarget#compact()}.
+	 */
+	public void compact() {
+		for (Map.Entry<String, SessionTarget> entry : targets.entrySet()) {
+			entry.getValue().compact();
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Object#toString()
@@ -300,6 +402,7 @@ public class Session {
 		
 		str += "SessionID="+sessionID;
 		str += "ExpirationTime="+expirationTime;
+		str += "IdleTimeout="+idleTimeout;
 		
 		for (Map.Entry<String, SessionTarget> entry : targets.entrySet())
 			str += entry.getValue().toString();
@@ -321,6 +424,7 @@ public class Session {
 		
 		out.println("SessionID="+sessionID);
 		out.println("ExpirationTime="+expirationTime);
+		out.println("IdleTimeout="+idleTimeout);
 		
 		for (Map.Entry<String, SessionTarget> entry : targets.entrySet())
 			entry.getValue().list(out);
@@ -334,7 +438,8 @@ public class Session {
 	 *
 	 */
 	protected void updateExpirationTime() {
-		expirationTime = System.currentTimeMillis() + DEFAULT_EXPIRATION_TIME;
+		lastAccessTime = System.currentTimeMillis();
+		expirationTime = lastAccessTime + idleTimeout;
 	}
 	
 }
\ No newline at end of file
@@ -38,7 +38,7 @@ import java.util.Set;
  * belongs to a session.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2010/12/12
+ * @version 1.0.2 2012/07/04
  */
 public class SessionTarget {
 	
@@ -57,6 +57,18 @@ public class SessionTarget {
 	 */
 	protected Map<String, JPIPChannel> channels = null;
 	
+	// INTERNAL ATTRIBUTES
+	/**
+	 * Estimation of the memory (in bytes) used by a session target regardless
+	 * of its channels and cache.
+	 */
+	private static final long TARGET_OVERHEAD = 256;
+	
+	/**
+	 * Estimation of the memory (in bytes) used by each channel.
+	 */
+	private static final long CHANNEL_MEMORY = 256;
+	
 	// ============================= public methods ==============================
 	/**
 	 * Constructor.
@@ -202,6 +214,24 @@ public class SessionTarget {
 		return channels.size();
 	}
 	
+	/**
+	 * Returns an estimation of the memory (in bytes) used by this session
+	 * target.
+	 * 
+	 * @return the memory used by the session target.
+	 */
+	public long getMemoryUsage() {
+		return TARGET_OVERHEAD + CHANNEL_MEMORY * channels.size();
+	}
+	
+	/**
+	 * Releases the memory which is not strictly needed by the session target.
+	 * Nothing is done by default, it must be overridden by the session
+	 * targets which keep a cache model.
+	 */
+	public void compact() {
+	}
+	
 	/**
 	 * Removes all the attributes.
 	 */
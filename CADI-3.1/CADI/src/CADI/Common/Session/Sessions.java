@@ -27,7 +27,12 @@
 package CADI.Common.Session;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -35,9 +40,14 @@ import java.util.Set;
  * This class is used to save the sessions of the clients. This object will
  * be shared among the {@link CADI.Server.Core.Worker} threads, therefore
  * methods must guarantee the access to the list.
+ * <p>
+ * Sessions which have not received any request for longer than the idle
+ * timeout, and the least recently used sessions when the memory used by the
+ * sessions exceeds the memory budget, are removed by the {@link #reap()}
+ * method (see {@link CADI.Common.Session.SessionsReaper}).
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.1 2010/12/12
+ * @version 1.2.1 2012/07/04
  */
 public class Sessions {
 	
@@ -49,6 +59,40 @@ public class Sessions {
 	 */
 	protected HashMap<String, Session> sessions = null;
 	
+	/**
+	 * Time (in milliseconds) a session is kept alive without receiving any
+	 * request. If it is 0, the default timeout of the sessions is used.
+	 * <p>
+	 * Further information, see {@link CADI.Common.Session.Session#idleTimeout}.
+	 */
+	protected long idleTimeout = 0;
+	
+	/**
+	 * Maximum memory (in bytes) to be used by the sessions. If it is 0, there
+	 * is no limit.
+	 */
+	protected long memoryBudget = 0;
+	
+	/**
+	 * Number of sessions which have been removed because they had expired.
+	 */
+	protected long numOfExpiredSessions = 0;
+	
+	/**
+	 * Number of sessions which have been removed because the memory budget
+	 * had been exceeded.
+	 */
+	protected long numOfEvictedSessions = 0;
+	
+	// INTERNAL ATTRIBUTES
+	/**
+	 * Time (in milliseconds) a session must have been idle to be compacted or
+	 * evicted when the memory budget is exceeded, so the sessions of the
+	 * clients which are browsing the image are kept. Sessions which are
+	 * serving a request are never modified (see {@link #acquire(String)}).
+	 */
+	private static final long MIN_IDLE_TIME = 10000;
+	
 	// ============================= public methods ==============================
 	/**
 	 * Constructor.
@@ -64,6 +108,9 @@ public class Sessions {
 	 * @return true (as specified by Collection.add(E))
 	 */
 	public synchronized void add(Session session) {
+		if (idleTimeout > 0) {
+			session.setIdleTimeout(idleTimeout);
+		}
 		sessions.put(session.getSessionID(), session);
 	}
 		
@@ -93,12 +140,44 @@ public class Sessions {
 		if (cid == null) throw new NullPointerException();
 		
 		for (Entry<String,Session> session : sessions.entrySet())
-			if (session.getValue().contains(cid))
+			if (session.getValue().contains(cid)) {
+				session.getValue().touch();
 				return session.getValue();
+			}
 		
 		return null;			
 	}
 	
+	/**
+	 * Returns the session a channel identifier belongs to and pins it, so it
+	 * is neither compacted nor removed by {@link #reap()} until it is
+	 * released by {@link #release(Session)}. It must be used by the threads
+	 * which process the requests within the session.
+	 * 
+	 * @param cid the channel identifier.
+	 * 
+	 * @return the session, or <code>null</code> if there is not any session
+	 * 			the channel identifier belongs to.
+	 */
+	public synchronized Session acquire(String cid) {
+		Session session = get(cid);
+		if (session != null) {
+			session.pin();
+		}
+		return session;
+	}
+	
+	/**
+	 * Releases a session pinned by {@link #acquire(String)}.
+	 * 
+	 * @param session the session.
+	 */
+	public synchronized void release(Session session) {
+		if (session == null) throw new NullPointerException();
+		
+		session.unpin();
+	}
+	
 	/**
 	 * Returns true if the clients list contains the specified element.
 	 * 
@@ -174,13 +253,145 @@ public class Sessions {
 	}	
 	
   /**
+   * Returns a copy of the session identifiers, so it can be iterated while
+   * sessions are being added or removed.
    * 
-   * @return
+   * @return the session identifiers.
    */
   public synchronized Set<String> getKeySet() {
-    return sessions.keySet();
+    return new HashSet<String>(sessions.keySet());
   }
 
+	/**
+	 * Sets the {@link #idleTimeout} attribute. The new timeout is also applied
+	 * to the current sessions.
+	 * 
+	 * @param idleTimeout definition in {@link #idleTimeout}.
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		if (idleTimeout < 0) throw new IllegalArgumentException();
+		
+		this.idleTimeout = idleTimeout;
+		if (idleTimeout > 0) {
+			for (Entry<String,Session> session : sessions.entrySet())
+				session.getValue().setIdleTimeout(idleTimeout);
+		}
+	}
+	
+	/**
+	 * Sets the {@link #memoryBudget} attribute.
+	 * 
+	 * @param memoryBudget definition in {@link #memoryBudget}.
+	 */
+	public synchronized void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget < 0) throw new IllegalArgumentException();
+		
+		this.memoryBudget = memoryBudget;
+	}
+	
+	/**
+	 * Returns an estimation of the memory (in bytes) used by the sessions.
+	 * 
+	 * @return the memory used by the sessions.
+	 */
+	public synchronized long getMemoryUsage() {
+		long memory = 0;
+		for (Entry<String,Session> session : sessions.entrySet())
+			memory += session.getValue().getMemoryUsage();
+		
+		return memory;
+	}
+	
+	/**
+	 * Returns the {@link #numOfExpiredSessions} attribute.
+	 * 
+	 * @return the {@link #numOfExpiredSessions} attribute.
+	 */
+	public synchronized long getNumOfExpiredSessions() {
+		return numOfExpiredSessions;
+	}
+	
+	/**
+	 * Returns the {@link #numOfEvictedSessions} attribute.
+	 * 
+	 * @return the {@link #numOfEvictedSessions} attribute.
+	 */
+	public synchronized long getNumOfEvictedSessions() {
+		return numOfEvictedSessions;
+	}
+	
+	/**
+	 * Removes the sessions which have expired. Then, if the memory used by the
+	 * sessions exceeds the {@link #memoryBudget}, the idle sessions are
+	 * compacted and, if it is not enough, the least recently used sessions are
+	 * removed until the memory budget is met. Compacting a session only
+	 * releases the unused capacity of its cache models, so the budget is
+	 * mainly met by removing sessions. Sessions which are pinned (see
+	 * {@link #acquire(String)}) or have received a request in the last
+	 * {@link #MIN_IDLE_TIME} milliseconds are neither compacted nor removed.
+	 * 
+	 * @return the number of sessions which have been removed.
+	 */
+	public synchronized int reap() {
+		int numOfRemovedSessions = 0;
+		long currentTime = System.currentTimeMillis();
+		
+		// Expired sessions
+		Iterator<Entry<String,Session>> it = sessions.entrySet().iterator();
+		while (it.hasNext()) {
+			Session session = it.next().getValue();
+			if (session.hasExpired() && !session.isPinned()) {
+				session.remove();
+				it.remove();
+				numOfExpiredSessions++;
+				numOfRemovedSessions++;
+			}
+		}
+		
+		if (memoryBudget <= 0) {
+			return numOfRemovedSessions;
+		}
+		long memory = getMemoryUsage();
+		if (memory <= memoryBudget) {
+			return numOfRemovedSessions;
+		}
+		
+		// Compact the idle sessions
+		ArrayList<Session> idleSessions = new ArrayList<Session>();
+		for (Entry<String,Session> session : sessions.entrySet()) {
+			if (!session.getValue().isPinned()
+			    && (currentTime - session.getValue().getLastAccessTime() >= MIN_IDLE_TIME)) {
+				idleSessions.add(session.getValue());
+			}
+		}
+		for (Session session : idleSessions) {
+			memory -= session.getMemoryUsage();
+			session.compact();
+			memory += session.getMemoryUsage();
+		}
+		
+		// Evict the least recently used sessions
+		Collections.sort(idleSessions, new Comparator<Session>() {
+			public int compare(Session session1, Session session2) {
+				long time1 = session1.getLastAccessTime();
+				long time2 = session2.getLastAccessTime();
+				return (time1 < time2) ? -1 : ((time1 == time2) ? 0 : 1);
+			}
+		});
+		for (Session session : idleSessions) {
+			if (memory <= memoryBudget) {
+				break;
+			}
+			memory -= session.getMemoryUsage();
+			session.remove();
+			sessions.remove(session.getSessionID());
+			numOfEvictedSessions++;
+			numOfRemovedSessions++;
+		}
+		
+		return numOfRemovedSessions;
+	}
+	
 	/**
 	 * Remove all elements from the clients list
 	 */
@@ -0,0 +1,180 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Common.Session;
+
+import java.io.PrintStream;
+
+import CADI.Common.Log.CADILog;
+
+/**
+ * This class is a thread which periodically removes the sessions which have
+ * expired and bounds the memory used by the sessions. See
+ * {@link CADI.Common.Session.Sessions#reap()}.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; start<br>
+ * &nbsp; ....<br>
+ * &nbsp; finish<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0.1 2012/07/04
+ */
+public class SessionsReaper extends Thread {
+
+  /**
+   * Is the list of sessions to be reaped.
+   */
+  private Sessions sessions = null;
+
+  /**
+   * Is the time (in milliseconds) between two consecutive reaps.
+   */
+  private long period = 0;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#log}.
+   */
+  private CADILog log = null;
+
+  /**
+   * Indicates whether the thread has to finish.
+   */
+  private volatile boolean finish = false;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param sessions definition in {@link #sessions}.
+   * @param period definition in {@link #period}.
+   * @param log definition in {@link #log}.
+   */
+  public SessionsReaper(Sessions sessions, long period, CADILog log) {
+
+    // Check input parameters
+    if (sessions == null) {
+      throw new NullPointerException();
+    }
+    if (period <= 0) {
+      throw new IllegalArgumentException();
+    }
+    if (log == null) {
+      throw new NullPointerException();
+    }
+
+    // Copy input parameters
+    this.sessions = sessions;
+    this.period = period;
+    this.log = log;
+
+    setName("SessionsReaper");
+    setDaemon(true);
+  }
+
+  /**
+   * Removes the expired sessions every {@link #period} milliseconds until
+   * the thread is finished.
+   */
+  @Override
+  public void run() {
+    while (!finish) {
+      synchronized (this) {
+        try {
+          wait(period);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      if (finish) {
+        break;
+      }
+
+      // An unexpected error must not stop the reaper, otherwise sessions
+      // would not be removed anymore
+      try {
+        int numOfRemovedSessions = sessions.reap();
+        if ((numOfRemovedSessions > 0) && log.isLog(CADILog.LEVEL_INFO)) {
+          log.logInfo(getName() + ": " + numOfRemovedSessions + " sessions removed, "
+                  + sessions.size() + " active sessions ("
+                  + sessions.getMemoryUsage() / 1024 + " KB), "
+                  + sessions.getNumOfExpiredSessions() + " expired and "
+                  + sessions.getNumOfEvictedSessions() + " evicted sessions");
+        }
+      } catch (RuntimeException e) {
+        log.logWarning(getName() + ": sessions could not be reaped ("
+                + e.toString() + ")");
+      }
+    }
+  }
+
+  /**
+   * This method is used to indicate that the thread has to finish.
+   */
+  public void finish() {
+    finish = true;
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "period=" + period;
+    str += ", activeSessions=" + sessions.size();
+    str += ", expiredSessions=" + sessions.getNumOfExpiredSessions();
+    str += ", evictedSessions=" + sessions.getNumOfEvictedSessions();
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Sessions Reaper out to the specified output stream. This
+   * method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Sessions Reaper --");
+
+    out.println("period: " + period);
+    out.println("activeSessions: " + sessions.size());
+    out.println("expiredSessions: " + sessions.getNumOfExpiredSessions());
+    out.println("evictedSessions: " + sessions.getNumOfEvictedSessions());
+
+    out.flush();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Common.Util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class implements a {@link SingleFlightCache} whose memory is bounded.
+ * When the maximum memory is exceeded, the least recently used values are
+ * removed. The memory used by each entry is estimated by the subclasses (see
+ * {@link #getMemory(Object, Object)}).
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/07/04
+ */
+public abstract class MemoryBoundedCache<K, V> extends SingleFlightCache<K, V> {
+
+  /**
+   * Is the maximum memory, in bytes, which can be used by the cache.
+   */
+  private long maxMemory = 0;
+
+  // INTERNAL ATTRIBUTES
+  /**
+   * Contains the cached values, in access order.
+   * <p>
+   * It must be accessed holding the lock of this object.
+   */
+  private LinkedHashMap<K, V> entries = null;
+
+  /**
+   * Is the estimated memory, in bytes, used by the {@link #entries}.
+   * <p>
+   * It must be accessed holding the lock of this object.
+   */
+  private long usedMemory = 0;
+
+  /**
+   * Number of values removed from the cache to free memory.
+   */
+  private AtomicLong evictions = null;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param maxMemory definition in {@link #maxMemory}.
+   * @param initialCapacity the initial capacity of the {@link #entries}.
+   */
+  public MemoryBoundedCache(long maxMemory, int initialCapacity) {
+    if (maxMemory < 0) {
+      throw new IllegalArgumentException();
+    }
+
+    this.maxMemory = maxMemory;
+
+    entries = new LinkedHashMap<K, V>(initialCapacity, 0.75f, true);
+    evictions = new AtomicLong();
+  }
+
+  /**
+   * Removes all the values from the cache. Counters are not reset.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    usedMemory = 0;
+  }
+
+  /**
+   * Returns the {@link #maxMemory} attribute.
+   *
+   * @return the {@link #maxMemory} attribute.
+   */
+  public long getMaxMemory() {
+    return maxMemory;
+  }
+
+  /**
+   * Returns the {@link #usedMemory} attribute.
+   *
+   * @return the {@link #usedMemory} attribute.
+   */
+  public synchronized long getUsedMemory() {
+    return usedMemory;
+  }
+
+  /**
+   * Returns the number of values in the cache.
+   *
+   * @return the number of values in the cache.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the {@link #evictions} attribute.
+   *
+   * @return the {@link #evictions} attribute.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  // =========================== protected methods =============================
+  /*
+   * (non-Javadoc)
+   * @see CADI.Common.Util.SingleFlightCache#lookup(java.lang.Object)
+   */
+  @Override
+  protected synchronized V lookup(K key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Stores a value in the cache, removing the least recently used values if
+   * the {@link #maxMemory} is exceeded. Values larger than the
+   * {@link #maxMemory} are not stored.
+   *
+   * @param key the key of the value.
+   * @param value the value.
+   */
+  @Override
+  protected synchronized void store(K key, V value) {
+    long memory = getMemory(key, value);
+    if (memory > maxMemory) {
+      return;
+    }
+
+    V oldValue = entries.put(key, value);
+    if (oldValue != null) {
+      usedMemory -= getMemory(key, oldValue);
+    }
+    usedMemory += memory;
+
+    Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+    while ((usedMemory > maxMemory) && it.hasNext()) {
+      Map.Entry<K, V> entry = it.next();
+      usedMemory -= getMemory(entry.getKey(), entry.getValue());
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Estimates the memory used by an entry of the cache.
+   *
+   * @param key the key of the entry.
+   * @param value the value of the entry.
+   *
+   * @return the estimated memory, in bytes.
+   */
+  protected abstract long getMemory(K key, V value);
+}
@@ -0,0 +1,222 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Common.Util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class implements a cache whose values are computed on demand and
+ * shared by several threads. When several threads request a value which
+ * is not in the cache, it is computed only once and the rest of threads
+ * wait for it (single flight).
+ * <p>
+ * The storage of the values is defined by the subclasses (see
+ * {@link #lookup(Object)} and {@link #store(Object, Object)}), so the same
+ * mechanism is used by caches with different eviction policies. A value is
+ * stored before its job is removed from the pending jobs, so it can always
+ * be found by other threads.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; get<br>
+ * &nbsp; getHitRate<br>
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/07/04
+ */
+public abstract class SingleFlightCache<K, V> {
+
+  /**
+   * Contains the jobs of the values which are being computed.
+   */
+  private ConcurrentHashMap<K, FutureTask<V>> pendingValues = null;
+
+  /**
+   * Number of requests which have been served from the cache, including
+   * the requests which have waited for a value computed by other thread.
+   */
+  private AtomicLong hits = null;
+
+  /**
+   * Number of requests which have computed the value.
+   */
+  private AtomicLong misses = null;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   */
+  public SingleFlightCache() {
+    pendingValues = new ConcurrentHashMap<K, FutureTask<V>>();
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+  }
+
+  /**
+   * Gets a value from the cache or, if it is not in the cache, computes it
+   * by means of the <code>loader</code> and stores it in the cache.
+   * <p>
+   * If other thread is already computing the same value, the loader is not
+   * called and the thread waits for the value computed by the other one. If
+   * the computation fails, all waiting threads receive the same exception
+   * and the value is not stored, so it will be computed again the next time
+   * it is requested.
+   *
+   * @param key the key of the value.
+   * @param loader the job which computes the value.
+   *
+   * @return the value.
+   *
+   * @throws ExecutionException if the value cannot be computed. Its cause is
+   * 	the exception thrown by the loader.
+   */
+  public V get(final K key, final Callable<V> loader) throws ExecutionException {
+    if (key == null) {
+      throw new NullPointerException();
+    }
+    if (loader == null) {
+      throw new NullPointerException();
+    }
+
+    V value = lookup(key);
+    if (value != null) {
+      hits.incrementAndGet();
+      return value;
+    }
+
+    // Other thread may store the value between the look-up above and the
+    // registration of the job, so the job looks it up again before computing.
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+
+      public V call() throws Exception {
+        V storedValue = lookup(key);
+        return (storedValue != null) ? storedValue : loader.call();
+      }
+    });
+    FutureTask<V> pendingTask = pendingValues.putIfAbsent(key, task);
+
+    if (pendingTask == null) {
+      // This thread computes the value
+      misses.incrementAndGet();
+      try {
+        task.run();
+        value = getResult(task);
+        store(key, value);
+      } finally {
+        pendingValues.remove(key, task);
+      }
+      return value;
+    }
+
+    hits.incrementAndGet();
+    return getResult(pendingTask);
+  }
+
+  /**
+   * Returns the {@link #hits} attribute.
+   *
+   * @return the {@link #hits} attribute.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the {@link #misses} attribute.
+   *
+   * @return the {@link #misses} attribute.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the ratio of requests which have been served from the cache.
+   *
+   * @return the hit rate, in the range [0, 1].
+   */
+  public float getHitRate() {
+    long numHits = hits.get();
+    long numRequests = numHits + misses.get();
+    return (numRequests == 0) ? 0F : (float)numHits / (float)numRequests;
+  }
+
+  // =========================== protected methods =============================
+  /**
+   * Returns a value stored in the cache.
+   *
+   * @param key the key of the value.
+   *
+   * @return the value, or <code>null</code> if it is not in the cache.
+   */
+  protected abstract V lookup(K key);
+
+  /**
+   * Stores a computed value in the cache.
+   *
+   * @param key the key of the value.
+   * @param value the value.
+   */
+  protected abstract void store(K key, V value);
+
+  // ============================ private methods ==============================
+  /**
+   * Waits for a job and returns its result. The wait is not interrupted,
+   * since other threads may be waiting for the same job, but the interrupt
+   * status of the thread is restored.
+   *
+   * @param task the job.
+   *
+   * @return the computed value.
+   *
+   * @throws ExecutionException if the job has failed.
+   */
+  private V getResult(FutureTask<V> task) throws ExecutionException {
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
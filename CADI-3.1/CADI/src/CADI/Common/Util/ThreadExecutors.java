@@ -0,0 +1,96 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012 Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Common.Util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class contains several functions to build the executors used to run
+ * the server and proxy workers on demand.
+ * <p>
+ * Virtual threads are only available from the Java platform 21 onwards.
+ * Since the rest of the software does not require such a recent version,
+ * the virtual thread executor is looked up by reflection and, when it is
+ * not available, a cached thread pool is used instead. The cached pool also
+ * creates a thread for each task, although it is a platform thread.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/06/06
+ */
+public class ThreadExecutors {
+
+  /**
+   * Name of the factory method of the {@link java.util.concurrent.Executors}
+   * class which returns a virtual thread per task executor.
+   */
+  private static final String VIRTUAL_THREAD_EXECUTOR =
+          "newVirtualThreadPerTaskExecutor";
+
+  /**
+   * Checks whether the Java platform supports virtual threads.
+   *
+   * @return <code>true</code> if virtual threads are supported. Otherwise,
+   * 	returns <code>false</code>.
+   */
+  public static boolean isVirtualThreadSupported() {
+    return getVirtualThreadFactoryMethod() != null;
+  }
+
+  /**
+   * Returns an executor which launches a new virtual thread for each task.
+   * If virtual threads are not supported, an executor which creates
+   * platform threads as needed is returned.
+   *
+   * @return an executor service.
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor() {
+    Method method = getVirtualThreadFactoryMethod();
+    if (method != null) {
+      try {
+        return (ExecutorService)method.invoke(null);
+      } catch (Exception e) {
+      }
+    }
+    return Executors.newCachedThreadPool();
+  }
+
+  // ============================ private methods ==============================
+  /**
+   * Returns the factory method of virtual thread executors.
+   *
+   * @return the factory method, or <code>null</code> if it is not available.
+   */
+  private static Method getVirtualThreadFactoryMethod() {
+    try {
+      return Executors.class.getMethod(VIRTUAL_THREAD_EXECUTOR);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -53,7 +53,7 @@ import java.util.HashMap;
  being served by the proxy.
 
  @author Group on Interactive Coding of Images (GICI)
- @version 1.0.4 2012/03/09
+ @version 1.0.6 2012/07/04
  */
 public class ProxySessionTarget extends ClientSideSessionTarget {
 
@@ -371,6 +371,8 @@ public class ProxySessionTarget extends ClientSideSessionTarget {
         jpipRequestFields.cacheManagementField.model = cacheDescriptor;
       }
 
+      signalRemovedDataBins(jpipRequestFields, cache);
+
 
       responseViewWindow = new ViewWindowField();
 
@@ -78,7 +78,7 @@ import java.util.Properties;
  * &nbsp; run<br>
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.2 2012/03/09
+ * @version 1.0.4 2012/07/04
  */
 public class CachedProxyWorker extends ProxyWorker implements StatusCodes, EORCodes {
 
@@ -114,6 +114,13 @@ public class CachedProxyWorker extends ProxyWorker implements StatusCodes, EORCo
    */
   private ProxyClientSession proxySession = null;
 
+  /**
+   * Is the session which is pinned while the request is being processed, so
+   * it is not removed by the sessions reaper, or <code>null</code> if none.
+   * See {@link CADI.Common.Session.Sessions#acquire(String)}.
+   */
+  private ProxyClientSession acquiredSession = null;
+
   /**
    * Definition in {@link CADI.Common.Network.JPIP.ChannelField#cid}.
    */
@@ -284,19 +291,23 @@ public class CachedProxyWorker extends ProxyWorker implements StatusCodes, EORCo
     while (!finish) {
 
       busy = false;
-      keepAlive = true;
+      keepAlive = false;
 
       // Thread is sleeping until a new work is added to the queue
       RequestQueueNode requestNode = null;
       try {
-        requestNode = requestQueue.get();
+        requestNode = nextRequest();
       } catch (InterruptedException ie) {
         continue;
       }
+      if (requestNode == null) {
+        continue;
+      }
 
       // Set status to busy
       busy = true;
 
+      this.connection = requestNode.getConnection();
       this.socket = requestNode.getSocket();
       this.httpRequest = requestNode.getHTTPRequest();
 
@@ -309,73 +320,44 @@ public class CachedProxyWorker extends ProxyWorker implements StatusCodes, EORCo
       } catch (IOException e) {
         // Frees resources and goes to sleep
         log.logInfo(getName() + ": error opening output stream");
-
-        try {
-          socket.shutdownInput();
-          socket.shutdownOutput();
-          socket.close();
-          os = null;
-          httpResponseSender = null;
-          socket = null;
-        } catch (IOException ioe) {
-        }
-
-        // Goes to sleep
+        releaseConnection(false);
         continue;
       }
 
-      while (keepAlive && !finish) {
-
-        proxyMutex.suspendPrefetching();
-
-        // Process the client request
-        try {
-          processRequest();
-        } catch (WarningException e) {
-          break;
-        } catch (ErrorException e) {
-          break;
-        } catch (IOException e) {
-          break;
-        } finally {
-          proxyMutex.resumePrefetching();
+      proxyMutex.suspendPrefetching();
+
+      // Process the client request
+      boolean error = false;
+      try {
+        processRequest();
+      } catch (WarningException e) {
+        error = true;
+      } catch (ErrorException e) {
+        error = true;
+      } catch (IOException e) {
+        error = true;
+      } finally {
+        if (acquiredSession != null) {
+          listOfClientSessions.release(acquiredSession);
+          acquiredSession = null;
         }
+        proxyMutex.resumePrefetching();
+      }
 
+      if (!error) {
         //	Check if keep-alive mode is set
         String value = httpRequest.getHeaderField("Connection");
         if ((value != null) && !value.equals("keep-alive")) {
-          // HTTP keep-alive mode is not set. Thread goes to sleep
-          keepAlive = false;
+          // HTTP keep-alive mode is not set
           log.logInfo(getName() + ": response has been sent");
-
-        } else { // HTTP keep-alive mode is set, then wait for a new request
-          log.logInfo(getName() + ": listening to keep-alive connections");
-
-          try {
-            listenNewRequest();
-          } catch (WarningException we) {
-            int statusCode = we.getErrorCode();
-            String reasonPhrase = we.getMessage();
-            sendHTTPResponseError(statusCode, reasonPhrase);
-            break;
-          } catch (ErrorException ee) {
-            // <<<<<<<<<< to log file
-            keepAlive = false;
-          }
+        } else {
+          // HTTP keep-alive mode is set, the listener waits for a new request
+          keepAlive = true;
         }
       }
 
       // Frees resources and goes to sleep
-      try {
-        socket.shutdownInput();
-        socket.shutdownOutput();
-        socket.close();
-        os = null;
-        httpResponseSender = null;
-        socket = null;
-      } catch (IOException ioe) {
-      }
-
+      releaseConnection(keepAlive);
 
       // Thread is sleeping until the scheduler sends a signal
       log.logInfo(getName() + ": going to sleep");
@@ -484,7 +466,8 @@ public class CachedProxyWorker extends ProxyWorker implements StatusCodes, EORCo
 
     // MANAGE LOGICAL TARGET
     if (jpipRequestFields.channelField.cid != null) {
-      proxySession = listOfClientSessions.get(jpipRequestFields.channelField.cid);
+      acquiredSession = listOfClientSessions.acquire(jpipRequestFields.channelField.cid);
+      proxySession = acquiredSession;
       if (proxySession != null) {
         jpipRequestFields.targetField.tid =
                 proxySession.getTID(jpipRequestFields.channelField.cid);
@@ -793,8 +776,8 @@ public class CachedProxyWorker extends ProxyWorker implements StatusCodes, EORCo
           throw new WarningException();
         }
 
-        // Get the client properties
-        proxySession = listOfClientSessions.get(cid);
+        // Get the client properties (session has been pinned)
+        proxySession = acquiredSession;
         jpipRequestFields.targetField.tid = proxySession.getTID(cid);
         proxyCacheModel = proxySession.getCache(cid);
 
@@ -821,6 +804,7 @@ public class CachedProxyWorker extends ProxyWorker implements StatusCodes, EORCo
                 "jpp-stream", "http", true);
 
         listOfClientSessions.add(proxySession);
+        acquiredSession = listOfClientSessions.acquire(cid);
         proxySessionTarget.unlock();
 
         jpipResponseFields.cid = cid;
@@ -845,6 +829,7 @@ public class CachedProxyWorker extends ProxyWorker implements StatusCodes, EORCo
               proxySessionTarget.getJP2KProxyLogicalTarget().getCodestream(0),
               "jpp-stream", "http", true);
       listOfClientSessions.add(proxySession);
+      acquiredSession = listOfClientSessions.acquire(cid);
       proxySessionTarget.unlock();
     }
   }
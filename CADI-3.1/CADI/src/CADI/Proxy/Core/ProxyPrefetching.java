@@ -38,7 +38,7 @@ import java.util.ArrayList;
  * to show a more accurate interface to the Proxy package.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.4 2011/12/03
+ * @version 1.0.5 2012/07/04
  */
 public class ProxyPrefetching extends Prefetching {
 
@@ -216,6 +216,9 @@ public class ProxyPrefetching extends Prefetching {
             break;
           }
           ProxyClientSession proxyClientSession = listOfClientSessions.getBySID(sessionID);
+          if (proxyClientSession == null) {
+            continue; // session removed meanwhile
+          }
 
           // Loop on client session's targets
           for (String tid : proxyClientSession.tidKeySet()) {
@@ -261,7 +264,7 @@ public class ProxyPrefetching extends Prefetching {
             ProxyClientSession proxyClientSession = listOfClientSessions.getBySID(sessionID);
 
             // Check if this session includes the target
-            if (!proxyClientSession.containsTID(proxyTID)) {
+            if ((proxyClientSession == null) || !proxyClientSession.containsTID(proxyTID)) {
               continue;
             }
 
@@ -26,14 +26,10 @@
  */
 package CADI.Proxy.Core;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 
 import CADI.Common.Log.CADILog;
 import CADI.Common.Network.HTTP.HTTPRequest;
@@ -42,15 +38,15 @@ import CADI.Common.Network.HTTP.StatusCodes;
 import CADI.Common.Network.JPIP.JPIPResponseFields;
 import CADI.Server.Network.HTTPResponseSender;
 import CADI.Common.Network.TrafficShaping;
-import CADI.Server.Request.HTTPRequestReader;
+import CADI.Server.Request.ClientConnection;
 import CADI.Server.Request.RequestQueue;
-import GiciException.ErrorException;
+import CADI.Server.Request.RequestQueueNode;
 import GiciException.WarningException;
 
 /**
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0 2009/08/22
+ * @version 1.0.2 2012/07/04
  */
 public class ProxyWorker extends Thread {
 
@@ -77,7 +73,22 @@ public class ProxyWorker extends Thread {
 	 * for a new task, the <code>busy</code> attribute is <code>false</code>.
 	 */	
 	protected boolean busy = false;
+
+	/**
+	 * Indicates whether the worker has been launched on demand to process
+	 * the requests of its own queue (see {@link CADI.Proxy.Proxy#virtualThreads}).
+	 * In that case, the worker does not wait for new requests, it finishes as
+	 * soon as the queue is empty.
+	 */
+	protected boolean onDemand = false;
 	
+	/**
+	 * Is the connection of the client whose request is being processed. It is
+	 * returned to its listener when the response has been sent with the
+	 * keep-alive mode set.
+	 */
+	protected ClientConnection connection = null;
+
 	/**
 	 * Contains the client socket of which request is being processed.
 	 */
@@ -88,11 +99,6 @@ public class ProxyWorker extends Thread {
 	 */
 	protected HTTPRequest httpRequest = null;
 	
-	/**
-	 * Definition in {@link CADI.Server.Core.Scheduler#keepAliveTimeout}.
-	 */
-	protected int keepAliveTimeout = 5;
-	
 	/**
 	 * Definition in {@link CADI.Server.Core.Scheduler#maxTxRate}.
 	 */
@@ -195,12 +201,12 @@ public class ProxyWorker extends Thread {
 	}
 	
 	/**
-	 * Sets the {@link #keepAliveTimeout} attribute.
+	 * Sets the {@link #onDemand} attribute.
 	 * 
-	 * @param keepAliveTimeout definition in {@link #keepAliveTimeout}.
+	 * @param onDemand definition in {@link #onDemand}.
 	 */
-	public void setKeepAliveTimeout(int keepAliveTimeout) {
-		this.keepAliveTimeout = keepAliveTimeout;
+	public void setOnDemand(boolean onDemand) {
+		this.onDemand = onDemand;
 	}
 	
 	/**
@@ -259,47 +265,52 @@ public class ProxyWorker extends Thread {
 	
 	// ============================ private methods ==============================
 	/**
+	 * Gets the next request to be processed from the {@link #requestQueue}.
+	 * The thread is sleeping until a new request is added to the queue, except
+	 * if the worker has been launched on demand. Then, the {@link #finish}
+	 * attribute is set when the queue is empty.
 	 * 
-	 * @throws WarningException
-	 * @throws ErrorException
+	 * @return the next request, or <code>null</code> if there is not any.
+	 * 
+	 * @throws InterruptedException
 	 */
-	protected void listenNewRequest() throws WarningException, ErrorException {
-				
-		HTTPRequestReader httpRequestReader = new HTTPRequestReader();
-				
-		if (socket.isInputShutdown()) {
-			throw new ErrorException();
-		} 
-		
-		// Set keep alive timeout
-		if (keepAliveTimeout >= 0) {
-			try {
-				socket.setSoTimeout(keepAliveTimeout);
-			} catch (SocketException e) {
-				log.logWarning(getName() + ": keep alive time out cannot be set");
-				throw new ErrorException();
+	protected RequestQueueNode nextRequest() throws InterruptedException {
+		if (onDemand) {
+			RequestQueueNode requestNode = requestQueue.poll();
+			if (requestNode == null) {
+				finish = true;
 			}
+			return requestNode;
 		}
-		
-		
-		// Wait for client connections or until timeout is reached
-		try {
-			BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			httpRequestReader.readHTTPRequest(bufferedReader);
-		} catch (ErrorException ee) {
-			log.logInfo(getName()+": malformed URL");
-			throw new ErrorException(ee.getMessage(), ee.getErrorCode());
-		} catch (SocketTimeoutException ste) {
-			log.logInfo(getName() + ": keep alive timeout has been reached");			
-			throw new ErrorException();
-		} catch (IOException e) {
-			log.logInfo(getName() + ": remote host (" + socket.getRemoteSocketAddress() + ") has been closed unexpectedly");
-			throw new ErrorException();
+		return requestQueue.get();
+	}
+	
+	/**
+	 * Releases the {@link #connection} once the response has been sent. If
+	 * the keep-alive mode is set, the connection is returned to the listener
+	 * which accepted it, so the next request of the client (including the bytes
+	 * of a pipelined request which have already been received) is read by the
+	 * listener and dispatched to any free worker. Otherwise, the connection is
+	 * closed.
+	 * 
+	 * @param keepAlive indicates whether the connection has to be kept alive.
+	 */
+	protected void releaseConnection(boolean keepAlive) {
+		if (keepAlive && !finish && !socket.isInputShutdown()) {
+			log.logInfo(getName() + ": connection returned to the listener (keep-alive)");
+			connection.getListener().keepAlive(connection);
+		} else {
+			try {
+				socket.shutdownInput();
+				socket.shutdownOutput();
+			} catch (IOException ioe) {
+			}
+			connection.close();
 		}
-		
-		httpRequest = httpRequestReader.getHTTPRequest();
-		
-		log.logInfo(getName() + "(Received request):\n" + (socket + "\n" + httpRequest.toString()));
+		os = null;
+		httpResponseSender = null;
+		socket = null;
+		connection = null;
 	}
 	
 	/**
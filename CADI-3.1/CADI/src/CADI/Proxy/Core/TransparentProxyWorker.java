@@ -60,7 +60,7 @@ import java.net.UnknownHostException;
  * &nbsp; run<br>
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0 2010/01/13
+ * @version 1.0.1 2012/07/04
  */
 public class TransparentProxyWorker extends ProxyWorker {
 
@@ -84,7 +84,7 @@ public class TransparentProxyWorker extends ProxyWorker {
   @Override
   public void run() {
 
-    boolean keepAlive = true;
+    boolean keepAlive = false;
     boolean error = false;
 
     log.logInfo(getName() + ": started");
@@ -97,15 +97,19 @@ public class TransparentProxyWorker extends ProxyWorker {
       // Thread is sleeping until a new work is added to the queue
       RequestQueueNode requestNode = null;
       try {
-        requestNode = requestQueue.get();
+        requestNode = nextRequest();
       } catch (InterruptedException ie) {
         finish = true;
         break;
       }
+      if (requestNode == null) {
+        continue;
+      }
 
       // Set status to busy
       busy = true;
 
+      this.connection = requestNode.getConnection();
       this.socket = requestNode.getSocket();
       this.httpRequest = requestNode.getHTTPRequest();
 
@@ -118,66 +122,37 @@ public class TransparentProxyWorker extends ProxyWorker {
       } catch (IOException e) {
         log.logInfo(getName() + ": error opening output stream");
         // Goes to sleep
-        keepAlive = false;
         error = true;
       }
 
       if (!error) {
 
-        keepAlive = true;
-
-        while (keepAlive && !error && !finish) {
-
-          // Process the client request
-          try {
-            processRequest(socket, httpRequest, log);
-          } catch (WarningException e) {
-            error = true;
-          } catch (ErrorException e) {
-            error = true;
-          } catch (IOException e) {
-            error = true;
-          }
-
+        // Process the client request
+        try {
+          processRequest(socket, httpRequest, log);
+        } catch (WarningException e) {
+          error = true;
+        } catch (ErrorException e) {
+          error = true;
+        } catch (IOException e) {
+          error = true;
+        }
 
-          if (!error) {
-            //	Check if keep-alive mode is set
-            String value = httpRequest.getHeaderField("Connection");
-            if ((value != null) && !value.equals("keep-alive")) {
-              // HTTP keep-alive mode is not set. Thread goes to sleepJPIPResponseFields
-              keepAlive = false;
-              log.logInfo(getName() + ": response has been sent");
-
-            } else { // HTTP keep-alive mode is set, then wait for a new request
-              log.logInfo(getName() + ": listening to keep-alive connections");
-
-              try {
-                listenNewRequest();
-              } catch (WarningException we) {
-                int statusCode = we.getErrorCode();
-                String reasonPhrase = we.getMessage();
-                sendHTTPResponseError(statusCode, reasonPhrase);
-                error = true;
-              } catch (ErrorException ee) {
-                // <<<<<<<<<< to log file
-                keepAlive = false;
-              }
-            }
+        if (!error) {
+          //	Check if keep-alive mode is set
+          String value = httpRequest.getHeaderField("Connection");
+          if ((value != null) && !value.equals("keep-alive")) {
+            // HTTP keep-alive mode is not set
+            log.logInfo(getName() + ": response has been sent");
+          } else {
+            // HTTP keep-alive mode is set, the listener waits for a new request
+            keepAlive = true;
           }
-
-        } // while (keepAlive && ....
-
-      }
-      try {
-        socket.shutdownInput();
-        socket.shutdownOutput();
-        socket.close();
-        os = null;
-        httpResponseSender = null;
-        socket = null;
-      } catch (IOException ioe) {
+        }
       }
 
+      releaseConnection(keepAlive);
+
       keepAlive = false;
       error = false;
 
@@ -46,7 +46,7 @@ import GiciStream.BufferedDataInputStream;
  *
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2011/10/12
+ * @version 1.0.2 2012/07/03
  */
 public class JP2KProxyLogicalTarget extends JPEG2KLogicalTarget {
 
@@ -217,7 +217,6 @@ public class JP2KProxyLogicalTarget extends JPEG2KLogicalTarget {
     int numComponents = 0;
     ProxyJPEG2KTile tileObj = null;
     ProxyJPEG2KComponent componentObj = null;
-    ProxyJPEG2KResolutionLevel rLevelObj = null;
     for (int t = 0; t < numTiles; t++) {
       codestream.createTile(t);
       tileObj = codestream.getTile(t);
@@ -226,14 +225,9 @@ public class JP2KProxyLogicalTarget extends JPEG2KLogicalTarget {
         tileObj.createComponent(c);
         componentObj = tileObj.getComponent(c);
         int maxWTLevels = componentObj.getWTLevels();
+        // Precincts are not created, see ProxyJPEG2KResolutionLevel
         for (int r = 0; r <= maxWTLevels; r++) {
           componentObj.createResolutionLevel(r);
-          rLevelObj = componentObj.getResolutionLevel(r);
-          int numPrecincts = rLevelObj.getNumPrecincts();
-          for (int precinct = 0; precinct < numPrecincts; precinct++) {
-            rLevelObj.createPrecinct(precinct);
-          }
-
         }
       }
     }
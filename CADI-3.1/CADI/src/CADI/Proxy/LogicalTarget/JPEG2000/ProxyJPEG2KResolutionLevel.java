@@ -32,8 +32,11 @@ import CADI.Common.LogicalTarget.JPEG2000.JPEG2KResolutionLevel;
 import CADI.Common.Util.CADIRectangle;
 
 /**
+ * Precincts are not stored, they are created each time they are requested
+ * (see {@link #getPrecinct(int)}).
+ *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2011/10/12
+ * @version 1.0.2 2012/07/03
  */
 public class ProxyJPEG2KResolutionLevel extends JPEG2KResolutionLevel {
 
@@ -50,15 +53,35 @@ public class ProxyJPEG2KResolutionLevel extends JPEG2KResolutionLevel {
 		super(parent, rLevel);
 	}
 	
+	/**
+	 * Precinct objects are created when they are requested (see
+	 * {@link #getPrecinct(int)}), so this method only checks the index.
+	 */
   @Override
 	public void createPrecinct(int index) {
-		if (!precincts.containsKey(index))
-			precincts.put(index, new ProxyJPEG2KPrecinct(this, index));
+		if (!isPrecinct(index))
+			throw new IllegalArgumentException();
 	}
 	
+	/**
+	 * Returns a precinct object. The object is created each time it is
+	 * requested, as the geometry of the precinct is computed from the coding
+	 * parameters.
+	 * 
+	 * @param index the precinct index within the tile-component-resolution
+	 * 			level.
+	 * 
+	 * @return a precinct object, or <code>null</code> if the index is out of
+	 * 			range.
+	 */
   @Override
 	public ProxyJPEG2KPrecinct getPrecinct(int index) {
-		return (ProxyJPEG2KPrecinct)precincts.get(index);
+		return isPrecinct(index) ? new ProxyJPEG2KPrecinct(this, index) : null;
+	}
+	
+	@Override
+	public boolean isPrecinct(int index) {
+		return (index >= 0) && (index < getNumPrecincts());
 	}
 	
 	/*
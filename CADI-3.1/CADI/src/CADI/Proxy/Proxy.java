@@ -27,8 +27,11 @@
 package CADI.Proxy;
 
 import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
 
 import CADI.Common.Log.CADILog;
+import CADI.Common.Session.SessionsReaper;
+import CADI.Common.Util.ThreadExecutors;
 import CADI.Proxy.Client.ProxySessionTargets;
 import CADI.Proxy.Core.CachedProxyWorker;
 import CADI.Proxy.Core.ProxyPrefSemaphore;
@@ -39,13 +42,14 @@ import CADI.Proxy.Server.ProxyClientSessions;
 import CADI.Common.Network.TrafficShaping;
 import CADI.Server.Request.RequestListener;
 import CADI.Server.Request.RequestQueue;
+import CADI.Server.Request.RequestQueueNode;
 import GiciException.ErrorException;
 
 /**
  * This class 
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.1 2010/01/24
+ * @version 1.1.2 2012/07/04
  */
 public class Proxy {
 
@@ -113,6 +117,35 @@ public class Proxy {
    */
   private String predictiveModel = null;
 
+  /**
+   * Indicates whether a proxy worker is launched on demand for each client
+   * connection, on its own virtual thread, instead of using a fixed pool of
+   * {@link #numOfWorkers} threads. Thus, the number of connections served
+   * concurrently is only limited by the available memory.
+   * <p>
+   * If the Java platform does not support virtual threads, platform threads
+   * are launched on demand instead.
+   */
+  private boolean virtualThreads = ProxyDefaultValues.VIRTUAL_THREADS;
+
+  /**
+   * Is the time, in seconds, a client session is kept alive without
+   * receiving any request.
+   */
+  private int sessionTimeout = ProxyDefaultValues.SESSION_TIMEOUT;
+
+  /**
+   * Is the maximum memory, in megabytes, used by the client sessions. If it
+   * is 0, there is no limit.
+   */
+  private int sessionsMemory = ProxyDefaultValues.SESSIONS_MEMORY;
+
+  /**
+   * Is the time, in milliseconds, an idle connection is kept open waiting
+   * for a new client request when the HTTP keep-alive mode is set.
+   */
+  private int keepAliveTimeout = ProxyDefaultValues.KEEP_ALIVE_TIMEOUT;
+
   // INTERNAL ATTRIBUTES
   /**
    * This thread pool will listen to in a port to receive client requests.
@@ -132,6 +165,19 @@ public class Proxy {
    */
   private ProxyWorker[] workersPool = null;
 
+  /**
+   * Is the executor used to launch the proxy workers on demand (see
+   * {@link #virtualThreads}).
+   */
+  private ExecutorService workersExecutor = null;
+
+  /**
+   * Is the thread which gets the client requests from the
+   * {@link #requestQueue} and launches the proxy workers on demand (see
+   * {@link #virtualThreads}).
+   */
+  private Thread dispatcher = null;
+
   /**
    *
    */
@@ -152,6 +198,18 @@ public class Proxy {
    */
   private ProxyClientSessions listOfClientSessions = null;
 
+  /**
+   * Thread which removes the expired client sessions and bounds the memory
+   * used by them.
+   */
+  private SessionsReaper sessionsReaper = null;
+
+  /**
+   * Time, in milliseconds, between two consecutive reaps of the client
+   * sessions.
+   */
+  private static final long SESSIONS_REAPER_PERIOD = 10000;
+
   /**
    * Obs: the name of the object is not appropriate. Something like
    * prefetchingMutex or blockPrefectching could be better.
@@ -254,6 +312,51 @@ public class Proxy {
     this.predictiveModel = predModel;
   }
 
+  /**
+   * Sets the {@link #virtualThreads} attribute.
+   *
+   * @param virtualThreads definition in {@link #virtualThreads}.
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Sets the {@link #sessionTimeout} attribute.
+   *
+   * @param sessionTimeout definition in {@link #sessionTimeout}.
+   */
+  public void setSessionTimeout(int sessionTimeout) {
+    if (sessionTimeout <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.sessionTimeout = sessionTimeout;
+  }
+
+  /**
+   * Sets the {@link #keepAliveTimeout} attribute.
+   *
+   * @param keepAliveTimeout definition in {@link #keepAliveTimeout}.
+   */
+  public void setKeepAliveTimeout(int keepAliveTimeout) {
+    if (keepAliveTimeout < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.keepAliveTimeout = keepAliveTimeout;
+  }
+
+  /**
+   * Sets the {@link #sessionsMemory} attribute.
+   *
+   * @param sessionsMemory definition in {@link #sessionsMemory}.
+   */
+  public void setSessionsMemory(int sessionsMemory) {
+    if (sessionsMemory < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.sessionsMemory = sessionsMemory;
+  }
+
   /**
    *
    *
@@ -262,6 +365,10 @@ public class Proxy {
 
     log.logInfo("CADI Server starting ...");
 
+    listOfClientSessions.setIdleTimeout(sessionTimeout * 1000L);
+    listOfClientSessions.setMemoryBudget(sessionsMemory * 1024L * 1024L);
+    sessionsReaper = new SessionsReaper(listOfClientSessions, SESSIONS_REAPER_PERIOD, log);
+
     // Launch listeners and workers
     try {
       launchListeners();
@@ -273,6 +380,7 @@ public class Proxy {
       // Stop listeners and workers
       return;
     }
+    sessionsReaper.start();
   }
 
   /*
@@ -306,6 +414,10 @@ public class Proxy {
     }
     out.println();
     out.println("Num. proxy workers: " + numOfWorkers);
+    out.println("Virtual threads: " + virtualThreads);
+    out.println("Session timeout: " + sessionTimeout);
+    out.println("Sessions memory: " + sessionsMemory);
+    out.println("Keep-alive timeout: " + keepAliveTimeout);
     out.println("Log file: " + logFile);
     out.println("\tEnabled: " + logEnabled);
     out.println("\tXML format" + XMLLogFormat);
@@ -318,7 +430,9 @@ public class Proxy {
     requestQueue.list(out);
     out.print("Proxy worker: ");
     for (ProxyWorker worker : workersPool) {
-      worker.list(out);
+      if (worker != null) {
+        worker.list(out);
+      }
     }
     out.println();
     out.println("Proxy prefetching: ");
@@ -343,6 +457,7 @@ public class Proxy {
     for (int i = 0; i < ports.length; i++) {
       requestListenersPool[i] = new RequestListener("Listener-" + i, ports[i],
               requestQueue, log);
+      requestListenersPool[i].setKeepAliveTimeout(keepAliveTimeout);
       requestListenersPool[i].start();
     }
   }
@@ -352,21 +467,80 @@ public class Proxy {
    */
   private void launchProxyWorkers() {
 
+    if (virtualThreads) {
+      if (!ThreadExecutors.isVirtualThreadSupported()) {
+        log.logWarning("Virtual threads are not supported, platform threads"
+                + " will be launched on demand");
+      }
+      workersExecutor = ThreadExecutors.newVirtualThreadPerTaskExecutor();
+      dispatcher = new Thread("ProxyDispatcher") {
+
+        @Override
+        public void run() {
+          dispatchRequests();
+        }
+      };
+      dispatcher.start();
+      return;
+    }
+
     for (int i = 0; i < numOfWorkers; i++) {
-      if (proxyType == ProxyDefaultValues.TRANSPARENT_PROXY) {
-        workersPool[i] = new TransparentProxyWorker("ProxyWorker-" + i,
-                requestQueue, log);
-        workersPool[i].setMaxTxRate(maxTxRate);
-        workersPool[i].start();
-      } else {
-        workersPool[i] = new CachedProxyWorker("ProxyWorker-" + i, requestQueue,
-                proxySessionTargets, listOfClientSessions,
-                proxyMutex, log);
-        workersPool[i].setMaxTxRate(maxTxRate);
-        ((CachedProxyWorker)workersPool[i]).setPredictiveModel(predictiveModel);
-        workersPool[i].start();
+      workersPool[i] = createProxyWorker("ProxyWorker-" + i, requestQueue);
+      workersPool[i].start();
+    }
+  }
+
+  /**
+   * Creates a proxy worker which will process the requests of a queue.
+   *
+   * @param name name of the proxy worker.
+   * @param queue queue of client requests.
+   *
+   * @return the new proxy worker.
+   */
+  private ProxyWorker createProxyWorker(String name, RequestQueue queue) {
+    ProxyWorker worker = null;
+    if (proxyType == ProxyDefaultValues.TRANSPARENT_PROXY) {
+      worker = new TransparentProxyWorker(name, queue, log);
+      worker.setMaxTxRate(maxTxRate);
+    } else {
+      worker = new CachedProxyWorker(name, queue, proxySessionTargets,
+              listOfClientSessions, proxyMutex, log);
+      worker.setMaxTxRate(maxTxRate);
+      ((CachedProxyWorker)worker).setPredictiveModel(predictiveModel);
+    }
+    return worker;
+  }
+
+  /**
+   * Gets the client requests from the {@link #requestQueue} and launches a
+   * proxy worker on demand for each one. The proxy worker processes the
+   * request and the following ones received through the same keep-alive
+   * connection.
+   */
+  private void dispatchRequests() {
+    long numOfLaunchedWorkers = 0;
+
+    while (true) {
+      RequestQueueNode requestNode = null;
+      try {
+        requestNode = requestQueue.get();
+      } catch (InterruptedException e) {
+        break;
+      }
+      if (requestNode == null) {
+        continue;
       }
+
+      RequestQueue queue = new RequestQueue();
+      queue.add(requestNode);
+      ProxyWorker worker = createProxyWorker(
+              "ProxyWorker-" + (numOfLaunchedWorkers++), queue);
+      worker.setOnDemand(true);
+      workersExecutor.execute(worker);
     }
+
+    workersExecutor.shutdown();
   }
 
   /**
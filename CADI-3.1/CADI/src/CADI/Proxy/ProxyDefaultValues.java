@@ -51,6 +51,11 @@ public interface ProxyDefaultValues {
 	 */
 	boolean XML_LOGFILE_FORMAT = false; 
 	
+	/**
+	 * Timeout used when HTTP keep-alive feature is used. Value is milliseconds.
+	 */
+	int KEEP_ALIVE_TIMEOUT = 1000;
+	
 	/**
 	 * Indicates the type of proxy that will be used. Allowed values are:
 	 * &nbsp;1 - transparent proxy: EXPLANATION !!!!!!
@@ -61,4 +66,23 @@ public interface ProxyDefaultValues {
 	int CACHED_PREFETCHING_PROXY = 3;
 	int PROXY_TYPE = CACHED_PREFETCHING_PROXY;
 
+	/**
+	 * Indicates whether proxy workers are launched on demand on virtual
+	 * threads instead of using a fixed pool of threads.
+	 */
+	boolean VIRTUAL_THREADS = false;
+
+	/**
+	 * Time, in seconds, a client session is kept alive without receiving
+	 * any request.
+	 */
+	int SESSION_TIMEOUT = 86400;
+
+	/**
+	 * Maximum memory, in megabytes, used by the client sessions. When it is
+	 * exceeded, the least recently used sessions are removed. Value 0 means
+	 * that there is no limit.
+	 */
+	int SESSIONS_MEMORY = 256;
+
 }
\ No newline at end of file
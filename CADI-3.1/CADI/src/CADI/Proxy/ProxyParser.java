@@ -39,7 +39,7 @@ import GiciException.ParameterException;
 
 /**
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2011/03/04
+ * @version 1.0.2 2012/07/04
  */
 public class ProxyParser extends ArgumentsParser {
 
@@ -116,6 +116,15 @@ public class ProxyParser extends ArgumentsParser {
       + "\t" + TrafficShaping.LEAKY_BUCKET + "- The leaky-bucket algoritm is applied. Data are delivered at the constant rate defined in the \"-mr\" option."
       + "OBS: This parameter requires the \"-mr\" parameter."
     },
+    {"-vt", "--virtualThreads", "{boolean}", ProxyDefaultValues.VIRTUAL_THREADS ? "1" : "0", "0", "1",
+     "Each client connection is served by a proxy worker launched on demand on its own virtual thread, instead of using the pool of threads set by the \"-nt\" parameter. Thus, the number of connections served concurrently is only limited by the available memory. If the Java platform does not support virtual threads, platform threads are launched on demand."
+    },
+    {"-st", "--sessionTimeout", "{int}", "" + ProxyDefaultValues.SESSION_TIMEOUT, "0", "1",
+     "Time (in seconds) a client session is kept alive without receiving any request. Expired sessions, and their cache models, are removed in background."
+    },
+    {"-sm", "--sessionsMemory", "{int}", "" + ProxyDefaultValues.SESSIONS_MEMORY, "0", "1",
+     "Maximum memory (in megabytes) used by the client sessions, mainly by their cache models. When the memory is exceeded, the cache models of the idle sessions are compacted and, if it is not enough, the least recently active sessions are removed. Value 0 means that there is no limit."
+    },
     {"-h", "--help", "", "", "0", "1",
      "Displays this help and exits program."
     },
@@ -159,6 +168,12 @@ public class ProxyParser extends ArgumentsParser {
 
   private float[] movProbabilities = null;
 
+  private boolean virtualThreads = ProxyDefaultValues.VIRTUAL_THREADS;
+
+  private int sessionTimeout = ProxyDefaultValues.SESSION_TIMEOUT;
+
+  private int sessionsMemory = ProxyDefaultValues.SESSIONS_MEMORY;
+
   // ============================= public methods ==============================
   /**
    * Receives program arguments and parses it, setting to arguments variables.
@@ -206,6 +221,11 @@ public class ProxyParser extends ArgumentsParser {
         throw new ParameterException("The sum of the movement probabilities must be lower or equal than 1");
       }
     }
+
+    if (sessionTimeout <= 0) {
+      throw new ParameterException("The session timeout parameter (\"-st\")"
+              + " must be greater than 0");
+    }
   }
 
   /**
@@ -263,7 +283,16 @@ public class ProxyParser extends ArgumentsParser {
       case 13: // -ts  --trafficShapping
         trafficShaping = parseIntegerPositive(options);
         break;
-      case 14: // -h  --help
+      case 14: // -vt  --virtualThreads
+        virtualThreads = parseBoolean(options);
+        break;
+      case 15: // -st  --sessionTimeout
+        sessionTimeout = parseIntegerPositive(options);
+        break;
+      case 16: // -sm  --sessionsMemory
+        sessionsMemory = parseIntegerPositive(options);
+        break;
+      case 17: // -h  --help
         try {
           Properties cadiInfo = new Properties();
           InputStream cadiInfoURL = getClass().getClassLoader().getResourceAsStream("CADI/Common/Info/cadiInfo.properties");
@@ -277,15 +306,15 @@ public class ProxyParser extends ArgumentsParser {
         //showArgsInfoLatexTable();
         System.exit(0);
         break;
-      case 15: // -w  --warranty
+      case 18: // -w  --warranty
         printWarranty();
         System.exit(0);
         break;
-      case 16: // -l  --liability
+      case 19: // -l  --liability
         printLiability();
         System.exit(0);
         break;
-      case 17: // -c  --copyright
+      case 20: // -c  --copyright
         printCopyright();
         System.exit(0);
         break;
@@ -350,6 +379,18 @@ public class ProxyParser extends ArgumentsParser {
     return movProbabilities;
   }
 
+  public boolean getVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public int getSessionTimeout() {
+    return sessionTimeout;
+  }
+
+  public int getSessionsMemory() {
+    return sessionsMemory;
+  }
+
   // ============================ private methods ==============================
   /**
    * Prints out the warranty.
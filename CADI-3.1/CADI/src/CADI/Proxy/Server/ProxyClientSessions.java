@@ -36,7 +36,7 @@ import CADI.Common.Session.Sessions;
  * 
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2010/12/13
+ * @version 1.0.3 2012/07/04
  */
 public class ProxyClientSessions extends Sessions {
 	
@@ -55,7 +55,7 @@ public class ProxyClientSessions extends Sessions {
 	 * @param session element to be appended to this list.
 	 */
 	public synchronized void add(ProxyClientSession session) {	
-		sessions.put(session.getSessionID(), session);
+		super.add(session);
 	}
 		
 	/**
@@ -81,8 +81,10 @@ public class ProxyClientSessions extends Sessions {
 		if (cid == null) throw new NullPointerException();
 		
 		for (Entry<String,Session> session : sessions.entrySet())
-			if (session.getValue().contains(cid))
+			if (session.getValue().contains(cid)) {
+				session.getValue().touch();
 				return (ProxyClientSession)session.getValue();
+			}
 		
 		return null;				
 	}
@@ -101,6 +103,18 @@ public class ProxyClientSessions extends Sessions {
     return null;
   }
 	
+	/**
+	 * Returns the session a channel identifier belongs to and pins it. See
+	 * {@link CADI.Common.Session.Sessions#acquire(String)}.
+	 * 
+	 * @param cid the channel identifier.
+	 * 
+	 * @return the session.
+	 */
+	public synchronized ProxyClientSession acquire(String cid) {
+		return (ProxyClientSession)super.acquire(cid);
+	}
+	
 	/**
 	 * Closes all channels that belongs to the same sessions, so the session
 	 * is closed but not removed. 
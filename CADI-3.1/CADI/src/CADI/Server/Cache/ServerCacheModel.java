@@ -40,7 +40,7 @@ import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
  * This class implements a server cache model.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.2 2012/05/19
+ * @version 1.0.3 2012/07/04
  */
 public class ServerCacheModel extends CacheModel {
 
@@ -110,8 +110,9 @@ public class ServerCacheModel extends CacheModel {
               }
               
               for (long inClassIdentifier: codestream.findRelevantPrecincts(woi)) {
-                cacheDescriptor.explicitForm.inClassIdentifier = inClassIdentifier;
-                super.update(descriptor);
+                super.update(cacheDescriptor.additive, ClassIdentifiers.PRECINCT,
+                        inClassIdentifier, cacheDescriptor.explicitForm.numberOfLayers,
+                        cacheDescriptor.explicitForm.numberOfBytes);
               }
             }
             break;
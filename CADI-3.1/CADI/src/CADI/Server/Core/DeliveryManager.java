@@ -28,9 +28,11 @@ package CADI.Server.Core;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 
 import CADI.Common.Log.CADILog;
+import CADI.Common.Network.JPIP.EORCodes;
 import CADI.Common.Network.JPIP.JPIPMessageHeader;
 import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
 import CADI.Server.Network.HTTPResponseSender;
@@ -39,10 +41,14 @@ import GiciException.ErrorException;
 
 /**
  * This class is addressed to send the response to a client.
- *
+ * <p>
+ * A response can be preempted when a newer request makes it obsolete (see
+ * {@link #setPreemption(Preemption)}). Then, the response is finished after
+ * the JPIP message which is being sent, with an End Of Response message
+ * whose reason is {@link CADI.Common.Network.JPIP.EORCodes#IMAGE_CHANGE}.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2011/05/31
+ * @version 1.0.2 2012/07/04
  */
 public class DeliveryManager {
 
@@ -68,11 +74,37 @@ public class DeliveryManager {
    */
   private ArrayList<ResponseData> deliveryData = null;
 
+  /**
+   * Contains the encoded JPIP message headers of the {@link #deliveryData}.
+   * Index <code>i</code> keeps the header of the <code>i</code>-th element,
+   * or <code>null</code> if it has no header. They are encoded only once,
+   * in the same order they are sent, because the header encoding depends on
+   * the previous headers.
+   */
+  private ArrayList<byte[]> jpipHeaders = null;
+
   /**
    *
    */
   private CADILog log = null;
 
+  /**
+   * Is used to check whether the response has to be preempted, or
+   * <code>null</code> if the response cannot be preempted.
+   */
+  private Preemption preemption = null;
+
+  /**
+   * Is the number of elements of the {@link #deliveryData} which have been
+   * sent.
+   */
+  private int numOfSentData = 0;
+
+  /**
+   * Indicates whether the response has been preempted.
+   */
+  private boolean preempted = false;
+
   // DEBUG
   /**
    * Attribute only for debugging purposes.
@@ -123,40 +155,61 @@ public class DeliveryManager {
     this.jpipMessageEncoder = jpipMessageEncoder;
   }
 
+  /**
+   * Sets the {@link #preemption} attribute. The response must be sent with
+   * the chunked transfer coding, because its length is not known in advance
+   * if it is preempted.
+   *
+   * @param preemption definition in {@link #preemption}.
+   */
+  public void setPreemption(Preemption preemption) {
+    this.preemption = preemption;
+  }
+
   /**
    * Performs the dispatching of the data.
+   * <p>
+   * Codestream data are sent straight from the target file to the client
+   * when the logical target is read from a file. JPIP message headers and
+   * the HTTP chunk framing are the only data written from memory, and they
+   * are packed in large chunks by the {@link #httpResponseSender}.
    *
    * @throws IOException if an I/O error has ocurred.
    * @throws ErrorException
    */
   public void run() throws IOException, ErrorException {
 
-    for (ResponseData data : deliveryData) {
+    FileChannel fileChannel = logicalTarget.getDataSource().getChannel();
+
+    if (jpipHeaders == null) {
+      encodeHeaders();
+    }
+
+    numOfSentData = 0;
+    preempted = false;
+    int numData = deliveryData.size();
+    for (int i = 0; i < numData; i++) {
+      ResponseData data = deliveryData.get(i);
       //System.out.println(data.toString()); // DEBUG
 
+      // Responses are preempted between JPIP messages
+      if ((preemption != null) && (data.jpipMessageHeader != null)
+              && !data.jpipMessageHeader.isEOR && preemption.isPreempted()) {
+        preempted = true;
+        break;
+      }
+
       if (data.jpipMessageHeader != null) {
         //System.out.println(data.jpipMessageHeader.toString()); // DEBUG
+        byte[] jpipHeader = jpipHeaders.get(i);
         if (!data.jpipMessageHeader.isEOR) {
-          //System.out.println(data.jpipMessageHeader.toString()); // DEBUG
-          byte[] jpipHeader = jpipMessageEncoder.encoderHeader(data.jpipMessageHeader);
           httpResponseSender.sendChunk(jpipHeader);
           cumMessageHeadersLength += jpipHeader.length;
           cumMessageBodiesLength += data.jpipMessageHeader.msgLength;
         } else {
-          //System.out.println(data.jpipMessageHeader.toString()); // DEBUG
-          String EORReasonMessage = data.jpipMessageHeader.EORReasonMessage;
-          int EORReasonCode = data.jpipMessageHeader.EORCode;
-
-          byte[] jpipMessageBody = null;
-          long length = 0;
-          if (EORReasonMessage != null) {
-            jpipMessageBody = EORReasonMessage.getBytes();
-            length = jpipMessageBody.length;
-          }
-
-          byte[] jpipHeader = jpipMessageEncoder.encoderHeader(new JPIPMessageHeader(EORReasonCode, (int)length));
+          byte[] jpipMessageBody = getEORMessageBody(data.jpipMessageHeader);
           httpResponseSender.sendChunks(jpipHeader, jpipMessageBody);
-          cumMessageBodiesLength += length;
+          cumMessageBodiesLength += (jpipMessageBody != null) ? jpipMessageBody.length : 0;
           cumMessageHeadersLength += jpipHeader.length;
         }
       }
@@ -169,26 +222,80 @@ public class DeliveryManager {
 
       }
 
-      if (data.filePointers != null) {
+      if ((data.extents != null) && (fileChannel != null)) {
+        // Data are transferred from the file to the client without copies
+        int size = data.extents.size();
+        for (int index = 0; index < size; index++) {
+          httpResponseSender.sendChunk(fileChannel, data.extents.getFilePointer(index),
+                                       data.extents.getLength(index));
+        }
+      } else if (data.extents != null) {
         int len = 0;
         byte[] jpipMessageBody = null;
-        int size = data.filePointers.size();
+        int size = data.extents.size();
         for (int index = 0; index < size; index++) {
-          len = data.lengths.get(index);
+          len = data.extents.getLength(index);
           if((jpipMessageBody == null) || (jpipMessageBody.length < len)) {
             jpipMessageBody = null;
             jpipMessageBody = new byte[len];
           }
-          logicalTarget.readFully(data.filePointers.get(index), jpipMessageBody, 0, len);
+          logicalTarget.readFully(data.extents.getFilePointer(index), jpipMessageBody, 0, len);
           httpResponseSender.sendChunk(jpipMessageBody, 0, len);
         }
       }
+      numOfSentData = i + 1;
+    }
+
+    if (preempted) {
+      byte[] jpipHeader = jpipMessageEncoder.encoderHeader(
+              new JPIPMessageHeader(EORCodes.IMAGE_CHANGE, 0));
+      httpResponseSender.sendChunk(jpipHeader);
+      cumMessageHeadersLength += jpipHeader.length;
     }
 
     httpResponseSender.endOfChunk();
     httpResponseSender.flush();
   }
 
+  /**
+   * Returns the length of the response body, that is, the length of all the
+   * JPIP messages which will be sent by the {@link #run()} method. It allows
+   * the response to be sent with a <code>Content-Length</code> header
+   * instead of the chunked transfer coding.
+   *
+   * @return the length of the response body in bytes.
+   */
+  public long getContentLength() {
+
+    if (jpipHeaders == null) {
+      encodeHeaders();
+    }
+
+    long length = 0;
+    int numData = deliveryData.size();
+    for (int i = 0; i < numData; i++) {
+      ResponseData data = deliveryData.get(i);
+
+      if (data.jpipMessageHeader != null) {
+        length += jpipHeaders.get(i).length;
+        if (data.jpipMessageHeader.isEOR) {
+          byte[] jpipMessageBody = getEORMessageBody(data.jpipMessageHeader);
+          length += (jpipMessageBody != null) ? jpipMessageBody.length : 0;
+        }
+      }
+      if (data.chunks != null) {
+        for (byte[] chunk : data.chunks) {
+          length += (chunk != null) ? chunk.length : 0;
+        }
+      }
+      if (data.extents != null) {
+        length += data.extents.getTotalLength();
+      }
+    }
+
+    return length;
+  }
+
   /**
    * Resets the counters {@link #cumMessageHeadersLength} and
    * {@link #cumMessageBodiesLength}.
@@ -198,6 +305,26 @@ public class DeliveryManager {
     cumMessageBodiesLength = 0;
   }
 
+  /**
+   * Returns the {@link #numOfSentData} attribute. Only the first
+   * <code>numOfSentData</code> elements of the response data have been sent
+   * to the client.
+   *
+   * @return the {@link #numOfSentData} attribute.
+   */
+  public int getNumOfSentData() {
+    return numOfSentData;
+  }
+
+  /**
+   * Returns the {@link #preempted} attribute.
+   *
+   * @return the {@link #preempted} attribute.
+   */
+  public boolean isPreempted() {
+    return preempted;
+  }
+
   public long getCumMessageHeadersLength() {
     return cumMessageHeadersLength;
   }
@@ -237,4 +364,55 @@ public class DeliveryManager {
     out.flush();
   }
   // ============================ private methods ==============================
+  /**
+   * Encodes the JPIP message headers of the {@link #deliveryData} and saves
+   * them in the {@link #jpipHeaders} attribute.
+   */
+  private void encodeHeaders() {
+    jpipHeaders = new ArrayList<byte[]>(deliveryData.size());
+
+    for (ResponseData data : deliveryData) {
+      byte[] jpipHeader = null;
+      if (data.jpipMessageHeader != null) {
+        if (!data.jpipMessageHeader.isEOR) {
+          jpipHeader = jpipMessageEncoder.encoderHeader(data.jpipMessageHeader);
+        } else {
+          byte[] jpipMessageBody = getEORMessageBody(data.jpipMessageHeader);
+          int length = (jpipMessageBody != null) ? jpipMessageBody.length : 0;
+          jpipHeader = jpipMessageEncoder.encoderHeader(
+                  new JPIPMessageHeader(data.jpipMessageHeader.EORCode, length));
+        }
+      }
+      jpipHeaders.add(jpipHeader);
+    }
+  }
+
+  /**
+   * Returns the body of an EOR message, that is, its reason message.
+   *
+   * @param jpipMessageHeader the header of the EOR message.
+   *
+   * @return the body of the EOR message, or <code>null</code> if it has no
+   * 			reason message.
+   */
+  private static byte[] getEORMessageBody(JPIPMessageHeader jpipMessageHeader) {
+    String EORReasonMessage = jpipMessageHeader.EORReasonMessage;
+    return (EORReasonMessage != null) ? EORReasonMessage.getBytes() : null;
+  }
+
+  // ============================ internal classes =============================
+  /**
+   * This interface is used by the {@link DeliveryManager} to check, between
+   * JPIP messages, whether the response has to be preempted.
+   */
+  public interface Preemption {
+
+    /**
+     * Checks whether the response has to be finished because a newer request
+     * has made it obsolete.
+     *
+     * @return <code>true</code> if the response has to be finished.
+     */
+    boolean isPreempted();
+  }
 }
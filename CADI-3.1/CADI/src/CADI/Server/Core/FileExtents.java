@@ -0,0 +1,257 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.Core;
+
+import java.io.PrintStream;
+
+/**
+ * This class is a list of file extents (file pointer and length) which are
+ * sent as the body of a JPIP message.
+ * <p>
+ * Extents are stored in arrays of primitive types, which avoids an object
+ * for each file pointer and length. An extent which begins just where the
+ * last one ends is merged with it, so contiguous data of the file are read
+ * and sent by a single operation.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; add<br>
+ * &nbsp; ...<br>
+ * &nbsp; size<br>
+ * &nbsp; getFilePointer<br>
+ * &nbsp; getLength<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/06/15
+ */
+public class FileExtents {
+
+  /**
+   * Is the file pointer of each extent.
+   */
+  private long[] filePointers = null;
+
+  /**
+   * Is the length of each extent.
+   */
+  private int[] lengths = null;
+
+  /**
+   * Is the number of extents in the list.
+   */
+  private int size = 0;
+
+  /**
+   * Is the sum of the lengths of all extents.
+   */
+  private long totalLength = 0;
+
+  /**
+   * Initial capacity of the list.
+   */
+  private static final int INITIAL_CAPACITY = 4;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   */
+  public FileExtents() {
+    this(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param initialCapacity the initial capacity of the list.
+   */
+  public FileExtents(int initialCapacity) {
+    if (initialCapacity < 1) {
+      initialCapacity = 1;
+    }
+    filePointers = new long[initialCapacity];
+    lengths = new int[initialCapacity];
+  }
+
+  /**
+   * Constructor of a list with only one extent.
+   *
+   * @param filePointer the file pointer of the extent.
+   * @param length the length of the extent.
+   */
+  public FileExtents(long filePointer, int length) {
+    this(1);
+    add(filePointer, length);
+  }
+
+  /**
+   * Appends an extent to the end of the list. If it begins where the last
+   * extent ends, both extents are merged. Extents with a length of 0 are
+   * discarded.
+   *
+   * @param filePointer the file pointer of the extent.
+   * @param length the length of the extent.
+   */
+  public void add(long filePointer, int length) {
+    if ((filePointer < 0) || (length < 0)) {
+      throw new IllegalArgumentException();
+    }
+    if (length == 0) {
+      return;
+    }
+
+    totalLength += length;
+
+    if (size > 0) {
+      int last = size - 1;
+      if ((filePointers[last] + lengths[last] == filePointer)
+              && (lengths[last] <= Integer.MAX_VALUE - length)) {
+        lengths[last] += length;
+        return;
+      }
+    }
+
+    if (size == filePointers.length) {
+      int capacity = 2 * filePointers.length;
+      long[] tmpFilePointers = new long[capacity];
+      int[] tmpLengths = new int[capacity];
+      System.arraycopy(filePointers, 0, tmpFilePointers, 0, size);
+      System.arraycopy(lengths, 0, tmpLengths, 0, size);
+      filePointers = tmpFilePointers;
+      lengths = tmpLengths;
+    }
+
+    filePointers[size] = filePointer;
+    lengths[size] = length;
+    size++;
+  }
+
+  /**
+   * Returns the number of extents in the list.
+   *
+   * @return the number of extents.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Checks whether the list is empty.
+   *
+   * @return <code>true</code> if the list has no extents.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the file pointer of an extent.
+   *
+   * @param index index of the extent.
+   *
+   * @return the file pointer of the extent.
+   */
+  public long getFilePointer(int index) {
+    if ((index < 0) || (index >= size)) {
+      throw new IndexOutOfBoundsException();
+    }
+    return filePointers[index];
+  }
+
+  /**
+   * Returns the length of an extent.
+   *
+   * @param index index of the extent.
+   *
+   * @return the length of the extent.
+   */
+  public int getLength(int index) {
+    if ((index < 0) || (index >= size)) {
+      throw new IndexOutOfBoundsException();
+    }
+    return lengths[index];
+  }
+
+  /**
+   * Returns the {@link #totalLength} attribute.
+   *
+   * @return the {@link #totalLength} attribute.
+   */
+  public long getTotalLength() {
+    return totalLength;
+  }
+
+  /**
+   * Removes all the extents of the list.
+   */
+  public void clear() {
+    size = 0;
+    totalLength = 0;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    for (int i = 0; i < size; i++) {
+      str += (i > 0 ? ", " : "") + filePointers[i] + ":" + lengths[i];
+    }
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this File Extents fields out to the specified output stream. This
+   * method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- File extents --");
+
+    out.print("File pointers: ");
+    for (int i = 0; i < size; i++) {
+      out.print(filePointers[i] + " ");
+    }
+    out.println();
+
+    out.print("Lengths: ");
+    for (int i = 0; i < size; i++) {
+      out.print(lengths[i] + " ");
+    }
+    out.println();
+
+    out.flush();
+  }
+  // ============================ private methods ==============================
+}
@@ -414,11 +414,9 @@ public class ProcessWOI {
 
       // Send jpip message header
       JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.MAIN_HEADER, 0, 0, length, true, -1);
-      ArrayList<Long> filePointers = new ArrayList<Long>();
-      filePointers.add(logicalTarget.getMainHeaderInitialPos());
-      ArrayList<Integer> lengths = new ArrayList<Integer>();
-      lengths.add((int) length);
-      responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+      FileExtents extents = new FileExtents();
+      logicalTarget.addMainHeaderExtents(extents, 0, (int) length);
+      responseDataList.add(new ResponseData(jpipMessageHeader, extents));
       responseLength += length;
 
     } else {
@@ -618,11 +616,9 @@ public class ProcessWOI {
 
           // Send jpip message header
           JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.MAIN_HEADER, 0, bytesInClientCache, pendingBytes, true, -1);
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          filePointers.add(logicalTarget.getMainHeaderInitialPos() + bytesInClientCache);
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
-          lengths.add(pendingBytes);
-          responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+          FileExtents extents = new FileExtents();
+          logicalTarget.addMainHeaderExtents(extents, bytesInClientCache, pendingBytes);
+          responseDataList.add(new ResponseData(jpipMessageHeader, extents));
           responseLength += pendingBytes;
         }
       } else {
@@ -701,11 +697,8 @@ public class ProcessWOI {
   private void addTileHeader() {
     JPIPMessageHeader jpipMessageHeader =
             new JPIPMessageHeader(-1, JPIPMessageHeader.TILE_HEADER, 0, 0, logicalTarget.getTileHeaderLength(0), true, -1);
-    ArrayList<Long> filePointers = new ArrayList<Long>();
-    ArrayList<Integer> lengths = new ArrayList<Integer>();
-    filePointers.add(logicalTarget.getTileHeaderFilePointer(0));
-    lengths.add(logicalTarget.getTileHeaderLength(0));
-    responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+    FileExtents extents = new FileExtents(logicalTarget.getTileHeaderFilePointer(0), logicalTarget.getTileHeaderLength(0));
+    responseDataList.add(new ResponseData(jpipMessageHeader, extents));
 
   }
 
@@ -51,14 +51,10 @@ public class ResponseData {
 	public ArrayList<byte[]> chunks = null;
 	
 	/**
-	 * 
+	 * Are the extents of the file which are sent as the message body.
+	 * Contiguous extents are merged (see {@link FileExtents#add(long, int)}).
 	 */
-	public ArrayList<Long> filePointers = null;
-	
-	/**
-	 * 
-	 */
-	public ArrayList<Integer> lengths = null;
+	public FileExtents extents = null;
 	
 	// ============================= public methods ==============================
   /**
@@ -85,15 +81,13 @@ public class ResponseData {
 		this.chunks = chunks;
 	}
 	
-	public ResponseData(ArrayList<Long> filePointers, ArrayList<Integer> lengths) {
-		this.filePointers = filePointers;
-		this.lengths = lengths;
+	public ResponseData(FileExtents extents) {
+		this.extents = extents;
 	}
 	
-	public ResponseData(JPIPMessageHeader jpipMessageHeader, ArrayList<Long> filePointers, ArrayList<Integer> lengths) {
+	public ResponseData(JPIPMessageHeader jpipMessageHeader, FileExtents extents) {
 		this.jpipMessageHeader = jpipMessageHeader;
-		this.filePointers = filePointers;
-		this.lengths = lengths;
+		this.extents = extents;
 	}
 	
 	/**
@@ -101,8 +95,7 @@ public class ResponseData {
 	 */
 	public void reset() {
 		jpipMessageHeader.reset();
-		filePointers.clear();
-		lengths.clear();
+		extents.clear();
 	}
 	
 	/**
@@ -120,20 +113,17 @@ public class ResponseData {
 			str +=", length="+length;
 		}
 
-		if ((filePointers != null) && !filePointers.isEmpty()) {
-      int length = filePointers.size();
+		if ((extents != null) && !extents.isEmpty()) {
+      int length = extents.size();
 			str += ", filePointers={";
       for (int i = 0; i < length-1; i++)
-        str += filePointers.get(i)+", ";
-      str += filePointers.get(length-1);
+        str += extents.getFilePointer(i)+", ";
+      str += extents.getFilePointer(length-1);
 			str += "}";
-		}
-		if ((lengths != null) && !lengths.isEmpty()) {
-      int length = lengths.size();
 			str += ", lengths={";
       for (int i = 0; i < length-1; i++)
-        str += lengths.get(i)+", ";
-      str += lengths.get(length-1);
+        str += extents.getLength(i)+", ";
+      str += extents.getLength(length-1);
 			str += "}";
 		}
 		str += "]";
@@ -162,17 +152,10 @@ public class ResponseData {
 		} else
 			out.println("null");
 		
-		out.print("File pointers: ");
-		if (filePointers != null)
-			for (long pointer : filePointers) out.print(pointer+" ");
-		else out.print("null");
-		out.println();
-		
-		out.print("Lengths: ");
-		if (lengths != null) 
-		for (int length : lengths) out.print(length+" ");
-		else out.print("null");
-		out.println("");
+		if (extents != null)
+			extents.list(out);
+		else
+			out.println("Extents: null");
 		
 		out.flush();
 	}
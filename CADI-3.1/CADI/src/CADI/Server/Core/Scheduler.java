@@ -26,28 +26,32 @@
  */
 package CADI.Server.Core;
 
+import CADI.Common.Network.HierarchicalTrafficShaping;
 import CADI.Common.Network.TrafficShaping;
-import CADI.Common.Network.JPIP.JPIPRequestDecoder;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.net.Socket;
+import java.util.Properties;
 
 import CADI.Common.Log.CADILog;
-import CADI.Common.Network.HTTP.HTTPRequest;
-import CADI.Common.Network.HTTP.StatusCodes;
-import CADI.Common.Network.JPIP.JPIPRequestFields;
+import CADI.Common.Session.SessionsReaper;
+import CADI.Common.Util.ThreadExecutors;
+import CADI.Server.LogicalTarget.LogicalTargetLoader;
+import CADI.Server.LogicalTarget.LogicalTargetsPreloader;
 import CADI.Server.LogicalTarget.ServerLogicalTargetList;
-import CADI.Server.Network.*;
+import CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache;
+import CADI.Server.LogicalTarget.JPEG2000.DeliveringModes.ResponsePlanCache;
 import CADI.Server.Request.*;
+import CADI.Server.ServerDefaultValues;
 import CADI.Server.Session.ServerClientSessions;
 import GiciException.ErrorException;
-import GiciException.WarningException;
 
 /**
  * This class performs the control of the listener/s and workers threads.
  * <p>
  * The listener/s are the thread/s where the client request are received, and
  * workers are a thread pool that process the requests and send the response to
- * the client.
+ * the client. Requests are passed from the listeners to the workers through
+ * a {@link CADI.Server.Core.TasksDispatcher}.
  * <p>
  * Usage example:<br>
  * &nbsp; construct<br>
@@ -55,7 +59,7 @@ import GiciException.WarningException;
  * &nbsp; run<br>
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.1.4 2011/03/03
+ * @version 1.1.9 2012/07/04
  */
 public class Scheduler extends Thread {
 
@@ -105,6 +109,12 @@ public class Scheduler extends Thread {
    */
   private int trafficShaping = TrafficShaping.NONE;
 
+  /**
+   * Is the maximum rate (bytes per second) shared by all the responses sent
+   * by the server. 0 value means unlimited.
+   */
+  private long globalMaxRate = 0L;
+
   /**
    * Definition in {@link CADI.Server.Network.JPIPMessageEncoder#independentForm}.
    */
@@ -142,7 +152,106 @@ public class Scheduler extends Thread {
    */
   private int deliveringSubtype = -1;
 
+  /**
+   * Indicates whether the workers are launched on demand, each one on its own
+   * virtual thread, instead of using a fixed pool of {@link #numOfWorkers}
+   * threads. Thus, the number of requests processed concurrently is only
+   * limited by the available memory.
+   * <p>
+   * As in the pool of workers, requests belonging to the same session are
+   * processed in order by only one worker at a time (see
+   * {@link CADI.Server.Core.TasksDispatcher}).
+   * <p>
+   * If the Java platform does not support virtual threads, platform threads
+   * are launched on demand instead.
+   */
+  private boolean virtualThreads = false;
+
+  /**
+   * Indicates whether the precincts of the logical targets are indexed on
+   * demand (see
+   * {@link CADI.Server.LogicalTarget.JPEG2000.OnDemandCodestreamIndexing}).
+   */
+  private boolean onDemandIndexing = false;
+
+  /**
+   * Is the name of the file with the logical targets which are loaded before
+   * the listeners are launched. If it is <code>null</code>, there is no
+   * warm-up.
+   */
+  private String warmUpTargets = null;
+
+  /**
+   * Is the number of threads used to pre-index, in background, the logical
+   * targets of the {@link #targetsPath}. If it is 0, logical targets are only
+   * indexed when they are requested.
+   */
+  private int preIndexingThreads = 0;
+
+  /**
+   * Is the maximum memory, in megabytes, used to cache the packet headers
+   * encoded by the CPI and CoRD delivering modes. If it is 0, packet headers
+   * are not cached.
+   */
+  private int packetHeadersCacheSize = 0;
+
+  /**
+   * Is the maximum memory, in megabytes, used to cache the response plans
+   * of the Window Scaling Factor delivering mode. If it is 0, response plans
+   * are not cached.
+   */
+  private int responsePlanCacheSize = 0;
+
+  /**
+   * Is the time, in seconds, a client session is kept alive without
+   * receiving any request.
+   */
+  private int sessionTimeout = ServerDefaultValues.SESSION_TIMEOUT;
+
+  /**
+   * Is the maximum memory, in megabytes, used by the client sessions. If it
+   * is 0, there is no limit.
+   */
+  private int sessionsMemory = ServerDefaultValues.SESSIONS_MEMORY;
+
   // INTERNAL ATTRIBUTES
+  /**
+   * Packet headers cache shared by all the logical targets. It is only
+   * created if the delivering mode re-encodes the packet headers.
+   */
+  private PacketHeadersCache packetHeadersCache = null;
+
+  /**
+   * Response plans cache shared by all the logical targets. It is only
+   * created if the delivering mode is the Window Scaling Factor.
+   */
+  private ResponsePlanCache responsePlanCache = null;
+
+  /**
+   * Thread which removes the expired client sessions and bounds the memory
+   * used by them.
+   */
+  private SessionsReaper sessionsReaper = null;
+
+  /**
+   * Shares the {@link #globalMaxRate} among the responses. It is only
+   * created if the global rate is limited.
+   */
+  private HierarchicalTrafficShaping sharedTrafficShaping = null;
+
+  /**
+   * Is the version of the server which is sent in the <code>Server</code>
+   * header of the responses. It is read once from the CADI information file
+   * and passed to the workers.
+   */
+  private String version = null;
+
+  /**
+   * Time, in milliseconds, between two consecutive reaps of the client
+   * sessions.
+   */
+  private static final long SESSIONS_REAPER_PERIOD = 10000;
+
   /**
    * This thread pool will listen to in a port to receive client requests.
    */
@@ -155,11 +264,11 @@ public class Scheduler extends Thread {
   private Worker[] workersPool = null;
 
   /**
-   * It is a queue where the client request are stored. This queue is shared
-   * memory between the <data>daemon</data> which stored the client requests
-   * and the <data>RequestDispatcher</data> which gets them to process.
+   * Is the object where the listeners dispatch the client requests and the
+   * workers take them from. Further information, see
+   * {@link CADI.Server.Core.TasksDispatcher}.
    */
-  private RequestQueue requestQueue = null;
+  private TasksDispatcher tasksDispatcher = null;
 
   /**
    * It is a list that contais information about the logical targets
@@ -174,16 +283,15 @@ public class Scheduler extends Thread {
   private ServerClientSessions clientSessions = null;
 
   /**
-   * Is an array of queues to storage the tasks for each {@link
-   * CADI.Server.Core.Worker} thread. Therefore, each queue of the array
-   * belongs to a <code>Workder</code>.
+   * It is an object that will be used to log the server process
    */
-  private TasksQueue[] tasksQueue = null;
+  private CADILog log = null;
 
   /**
-   * It is an object that will be used to log the server process
+   * Loads the logical targets before they are requested. Further
+   * information, see {@link CADI.Server.LogicalTarget.LogicalTargetsPreloader}.
    */
-  private CADILog log = null;
+  private LogicalTargetsPreloader preloader = null;
 
   /**
    * Indicates when the scheduler has to finish
@@ -216,17 +324,23 @@ public class Scheduler extends Thread {
     setName("Scheduler");
 
     // Initialisations
-    requestQueue = new RequestQueue();
+    tasksDispatcher = new TasksDispatcher(this);
     logicalTargetList = new ServerLogicalTargetList();
     clientSessions = new ServerClientSessions();
     workersPool = new Worker[numOfWorkers];
     requestListenersPool = new RequestListener[ports.length];
-    tasksQueue = new TasksQueue[numOfWorkers];
 
     // Creates CADI server log
     log = new CADILog(logFile, XMLLogFormat);
     log.setEnabled(logEnabled);
     log.setLogLevel(logLevel);
+
+    try {
+      Properties cadiInfo = new Properties();
+      cadiInfo.load(getClass().getClassLoader().getResourceAsStream("CADI/Common/Info/cadiInfo.properties"));
+      version = cadiInfo.getProperty("version");
+    } catch (Exception e) {
+    }
   }
 
   /**
@@ -285,6 +399,18 @@ public class Scheduler extends Thread {
     this.trafficShaping = trafficShaping;
   }
 
+  /**
+   * Sets the {@link #globalMaxRate} attribute.
+   *
+   * @param globalMaxRate definition in {@link #globalMaxRate} attribute.
+   */
+  public void setGlobalMaxRate(long globalMaxRate) {
+    if (globalMaxRate < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.globalMaxRate = globalMaxRate;
+  }
+
   /**
    * Sets the {@link #independentMesssageHeaders} attribute.
    *
@@ -303,6 +429,93 @@ public class Scheduler extends Thread {
     this.predictiveModel = predictiveModel;
   }
 
+  /**
+   * Sets the {@link #virtualThreads} attribute.
+   *
+   * @param virtualThreads definition in {@link #virtualThreads}.
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Sets the {@link #onDemandIndexing} attribute.
+   *
+   * @param onDemandIndexing definition in {@link #onDemandIndexing}.
+   */
+  public void setOnDemandIndexing(boolean onDemandIndexing) {
+    this.onDemandIndexing = onDemandIndexing;
+  }
+
+  /**
+   * Sets the {@link #warmUpTargets} attribute.
+   *
+   * @param warmUpTargets definition in {@link #warmUpTargets}.
+   */
+  public void setWarmUpTargets(String warmUpTargets) {
+    this.warmUpTargets = warmUpTargets;
+  }
+
+  /**
+   * Sets the {@link #preIndexingThreads} attribute.
+   *
+   * @param preIndexingThreads definition in {@link #preIndexingThreads}.
+   */
+  public void setPreIndexingThreads(int preIndexingThreads) {
+    if (preIndexingThreads < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.preIndexingThreads = preIndexingThreads;
+  }
+
+  /**
+   * Sets the {@link #packetHeadersCacheSize} attribute.
+   *
+   * @param packetHeadersCacheSize definition in {@link #packetHeadersCacheSize}.
+   */
+  public void setPacketHeadersCacheSize(int packetHeadersCacheSize) {
+    if (packetHeadersCacheSize < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.packetHeadersCacheSize = packetHeadersCacheSize;
+  }
+
+  /**
+   * Sets the {@link #responsePlanCacheSize} attribute.
+   *
+   * @param responsePlanCacheSize definition in {@link #responsePlanCacheSize}.
+   */
+  public void setResponsePlanCacheSize(int responsePlanCacheSize) {
+    if (responsePlanCacheSize < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.responsePlanCacheSize = responsePlanCacheSize;
+  }
+
+  /**
+   * Sets the {@link #sessionTimeout} attribute.
+   *
+   * @param sessionTimeout definition in {@link #sessionTimeout}.
+   */
+  public void setSessionTimeout(int sessionTimeout) {
+    if (sessionTimeout <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.sessionTimeout = sessionTimeout;
+  }
+
+  /**
+   * Sets the {@link #sessionsMemory} attribute.
+   *
+   * @param sessionsMemory definition in {@link #sessionsMemory}.
+   */
+  public void setSessionsMemory(int sessionsMemory) {
+    if (sessionsMemory < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.sessionsMemory = sessionsMemory;
+  }
+
   /**
    * This method manages the <code>RequestListener</code> pool and the <code>
    * Worker</code> pool. It gets the client request (received by the <code>
@@ -319,100 +532,45 @@ public class Scheduler extends Thread {
       log.logInfo("CADI Server starting ...");
     }
 
+    if ((packetHeadersCacheSize > 0)
+            && ((deliveringMode == ServerDefaultValues.DELIVERING_CPI)
+                || (deliveringMode == ServerDefaultValues.DELIVERING_CoRD))) {
+      packetHeadersCache = new PacketHeadersCache(packetHeadersCacheSize * 1024L * 1024L);
+    }
+    if ((responsePlanCacheSize > 0)
+            && (deliveringMode == ServerDefaultValues.DELIVERING_WINDOW_SCALING_FACTOR)) {
+      responsePlanCache = new ResponsePlanCache(responsePlanCacheSize * 1024L * 1024L);
+    }
+
+    if (globalMaxRate > 0) {
+      sharedTrafficShaping = new HierarchicalTrafficShaping(globalMaxRate);
+    }
+
+    clientSessions.setIdleTimeout(sessionTimeout * 1000L);
+    clientSessions.setMemoryBudget(sessionsMemory * 1024L * 1024L);
+    sessionsReaper = new SessionsReaper(clientSessions, SESSIONS_REAPER_PERIOD, log);
+
     // Launch listeners and workers
     try {
-      launchListeners();
       launchWorkers();
+      launchPreloader();
+      launchListeners();
     } catch (ErrorException e2) {
       // Stop listeners and workers
       return;
     }
-
-    int thread = 0;
-    boolean error = false;
-    JPIPRequestDecoder jpipRequestDecoder = new JPIPRequestDecoder();
-
-    while (!finish) {
-      error = false;
-
-      // Get request from the queue
-      RequestQueueNode nodeInfo = null;
-      try {
-        nodeInfo = requestQueue.get();
-      } catch (InterruptedException e1) {
-        nodeInfo = null;
-      }
-
-      if (nodeInfo != null) {
-
-        // Get client socket and request
-        Socket socket = nodeInfo.getSocket();
-        HTTPRequest httpRequest = nodeInfo.getHTTPRequest();
-        if (log.isLog(CADILog.LEVEL_INFO)) {
-          log.logInfo(getName() + "(Received request):\n" + nodeInfo.toString());
-        }
-
-        // The work is assigned to:
-        // 1- the first free worker
-        // 2- the worker with less pending works
-        thread = -1;
-        int works = Integer.MAX_VALUE;
-        boolean found = false;
-        for (int i = 0; i < workersPool.length && !found; i++) {
-          //System.out.println("Worker-" + i + " -> pending works: " + tasksQueue[i].size() + " busy:" + workersPool[i].isBusy());
-          if ((tasksQueue[i].size() == 0)) {// && (!workersPool[i].isBusy()) ) {
-            thread = i;
-            found = true;
-          } else if (works > tasksQueue[i].size()) {
-            thread = i;
-            works = tasksQueue[i].size();
-          }
-        }
-        if (log.isLog(CADILog.LEVEL_INFO)) {
-          log.logInfo(getName() + ": task assigned to the Worker-" + thread);
-        }
-
-
-        //	HTTP REQUEST PARSER
-        // HTTP headers must be parsed
-
-
-        if (!error) {
-
-          // JPIP REQUEST PARSER
-          try {
-            jpipRequestDecoder.decoder(httpRequest.getRequestURI());
-          } catch (WarningException we) { // Send an error response and goes to sleep
-            error = true;
-            tasksQueue[thread].add(new TasksQueueNode(socket, we.getErrorCode(), we.getMessage()));
-          }
-
-          if (!error) {
-
-            JPIPRequestFields jpipRequestFields = jpipRequestDecoder.getJPIPRequestFields();
-
-            // Check if the request belongs to a session and it is registered in the client session list
-            if (jpipRequestFields.channelField.cid != null) {
-              // Request belongs to a session
-              if (log.isLog(CADILog.LEVEL_DEBUG)) {
-                log.logDebug(getName() + ": Request belongs to a sessions (cid="
-                        + jpipRequestFields.channelField.cid + ")");
-              }
-              if (!clientSessions.contains(jpipRequestFields.channelField.cid)) {
-                error = true;
-                tasksQueue[thread].add(new TasksQueueNode(socket,
-                        StatusCodes.BAD_REQUEST,
-                        "The \"channel idenfier\" is wrong or from an old session"));
-              }
-            }
-
-            if (!error) { // Pass data to the thread and awakes it
-              if (log.isLog(CADILog.LEVEL_INFO)) {
-                log.logInfo(getName() + ": request data has been passed to the Worker-" + thread);
-              }
-              tasksQueue[thread].add(new TasksQueueNode(socket, httpRequest, jpipRequestFields));
-            }
-          }
+    if (preIndexingThreads > 0) {
+      preloader.start();
+    }
+    sessionsReaper.start();
+
+    // Requests are dispatched by the listeners and decoded by the workers, so
+    // the scheduler only waits until the server has to finish
+    synchronized (this) {
+      while (!finish) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
         }
       }
     }
@@ -426,27 +584,68 @@ public class Scheduler extends Thread {
       requestListenersPool[i].finish();
     }
 
-    for (int i = 0; i < numOfWorkers; i++) {
-      workersPool[i].finish();
+    if (!virtualThreads) {
+      for (int i = 0; i < numOfWorkers; i++) {
+        workersPool[i].finish();
+      }
+    }
+    tasksDispatcher.finish();
+    sessionsReaper.finish();
+    if (preloader != null) {
+      preloader.finish();
     }
 
     try {
+      if ((preloader != null) && preloader.isAlive()) {
+        preloader.join();
+      }
       for (int i = 0; i < requestListenersPool.length; i++) {
         requestListenersPool[i].join();
       }
-      for (int i = 0; i < numOfWorkers; i++) {
-        workersPool[i].join();
+      if (!virtualThreads) {
+        for (int i = 0; i < numOfWorkers; i++) {
+          workersPool[i].join();
+        }
       }
     } catch (InterruptedException e) {
       e.printStackTrace();
     }
 
+    if ((packetHeadersCache != null) && log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": packet headers cache: hits="
+              + packetHeadersCache.getHits() + ", misses="
+              + packetHeadersCache.getMisses() + ", evictions="
+              + packetHeadersCache.getEvictions() + ", hit rate="
+              + packetHeadersCache.getHitRate() + ", used memory="
+              + packetHeadersCache.getUsedMemory() + " bytes");
+    }
+    if ((responsePlanCache != null) && log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": response plan cache: hits="
+              + responsePlanCache.getHits() + ", misses="
+              + responsePlanCache.getMisses() + ", evictions="
+              + responsePlanCache.getEvictions() + ", hit rate="
+              + responsePlanCache.getHitRate() + ", used memory="
+              + responsePlanCache.getUsedMemory() + " bytes");
+    }
+    if ((sharedTrafficShaping != null) && log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": shared traffic shaping: max. rate="
+              + sharedTrafficShaping.getMaxRate() + " bytes/sec, sent="
+              + sharedTrafficShaping.getSentBytes() + " bytes");
+    }
+    if (log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": client sessions: active="
+              + clientSessions.size() + ", expired="
+              + clientSessions.getNumOfExpiredSessions() + ", evicted="
+              + clientSessions.getNumOfEvictedSessions() + ", used memory="
+              + clientSessions.getMemoryUsage() + " bytes");
+    }
+
 
     // ACORDARSE DE DESTRUIR TODOS LOS OBJETOS Y CERRAR LOS FICHEROS ABIERTOS !!!!!
 
 
     // FREE MEMORY
-    requestQueue = null;
+    tasksDispatcher = null;
     logicalTargetList = null;
     clientSessions = null;
     for (int i = 0; i < numOfWorkers; i++) {
@@ -463,6 +662,7 @@ public class Scheduler extends Thread {
    */
   public synchronized void finish() {
     this.finish = true;
+    notify();
   }
 
   /*
@@ -481,6 +681,7 @@ public class Scheduler extends Thread {
     }
     str += ports[ports.length - 1];
     str += ", numOfWorkers=" + numOfWorkers;
+    str += ", virtualThreads=" + virtualThreads;
 
     str += ", logFile=" + logFile;
     str += ", XMLLogFormat=" + XMLLogFormat;
@@ -489,9 +690,17 @@ public class Scheduler extends Thread {
     str += ", keepAliveTimeout=" + keepAliveTimeout;
 
     str += ", maxTxRate=" + maxTxRate;
+    str += ", globalMaxRate=" + globalMaxRate;
 
     str += ", targetsPath=" + targetsPath;
     str += ", cachePath=" + cachePath;
+    str += ", onDemandIndexing=" + onDemandIndexing;
+    str += ", warmUpTargets=" + warmUpTargets;
+    str += ", preIndexingThreads=" + preIndexingThreads;
+    str += ", packetHeadersCacheSize=" + packetHeadersCacheSize;
+    str += ", responsePlanCacheSize=" + responsePlanCacheSize;
+    str += ", sessionTimeout=" + sessionTimeout;
+    str += ", sessionsMemory=" + sessionsMemory;
 
     str += ", deliveringMode=" + deliveringMode;
     str += ", deliveringSubtype=" + deliveringSubtype;
@@ -515,6 +724,7 @@ public class Scheduler extends Thread {
     }
     out.println(ports[ports.length - 1]);
     out.println("numOfWorkers: " + numOfWorkers);
+    out.println("virtualThreads: " + virtualThreads);
 
     out.println("logFile: " + logFile);
     out.println("XMLLogFormat: " + XMLLogFormat);
@@ -523,9 +733,17 @@ public class Scheduler extends Thread {
     out.println("keepAliveTimeout: " + keepAliveTimeout);
 
     out.println("maxTxRate: " + maxTxRate);
+    out.println("globalMaxRate: " + globalMaxRate);
 
     out.println("targetsPath: " + targetsPath);
     out.println("cachePath: " + cachePath);
+    out.println("onDemandIndexing: " + onDemandIndexing);
+    out.println("warmUpTargets: " + warmUpTargets);
+    out.println("preIndexingThreads: " + preIndexingThreads);
+    out.println("packetHeadersCacheSize: " + packetHeadersCacheSize);
+    out.println("responsePlanCacheSize: " + responsePlanCacheSize);
+    out.println("sessionTimeout: " + sessionTimeout);
+    out.println("sessionsMemory: " + sessionsMemory);
 
     out.println("deliveringMode: " + deliveringMode);
     out.println("deliveringSubtype: " + deliveringSubtype);
@@ -540,30 +758,92 @@ public class Scheduler extends Thread {
    */
   private void launchListeners() throws ErrorException {
     for (int i = 0; i < ports.length; i++) {
-      requestListenersPool[i] = new RequestListener("Listener-" + i, ports[i], requestQueue, log);
+      requestListenersPool[i] = new RequestListener("Listener-" + i, ports[i], tasksDispatcher, log);
+      requestListenersPool[i].setKeepAliveTimeout(keepAliveTimeout);
       requestListenersPool[i].start();
     }
   }
 
   private void launchWorkers() {
-    for (int i = 0; i < numOfWorkers; i++) {
-      tasksQueue[i] = new TasksQueue();
-      workersPool[i] = new Worker("Worker-" + i,
-              tasksQueue[i],
-              logicalTargetList, clientSessions,
-              log);
-
-      workersPool[i].setTargetsPath(targetsPath);
-      workersPool[i].setCachePath(cachePath);
-      workersPool[i].setDeliveringMode(deliveringMode, deliveringSubtype);
-      workersPool[i].setKeepAliveTimeout(keepAliveTimeout);
-      workersPool[i].setMaxTxRate(maxTxRate);
-      workersPool[i].setTrafficShaping(trafficShaping);
-      workersPool[i].setIndependentMessageHeaders(independentMessageHeaders);
-      workersPool[i].setPredictiveModel(predictiveModel);
+    if (virtualThreads) {
+      if (!ThreadExecutors.isVirtualThreadSupported()) {
+        log.logWarning(getName() + ": virtual threads are not supported, "
+                + "platform threads will be launched on demand");
+      }
+      tasksDispatcher.setWorkersExecutor(ThreadExecutors.newVirtualThreadPerTaskExecutor());
+      return;
+    }
 
+    for (int i = 0; i < numOfWorkers; i++) {
+      workersPool[i] = createWorker("Worker-" + i, i);
+    }
+    tasksDispatcher.setWorkers(workersPool);
+    for (int i = 0; i < numOfWorkers; i++) {
       workersPool[i].start();
     }
   }
 
+  /**
+   * Creates the {@link #preloader} and loads the logical targets of the
+   * {@link #warmUpTargets} file. The preloader is only created if there are
+   * targets to be warmed up or pre-indexed.
+   */
+  private void launchPreloader() {
+    if ((warmUpTargets == null) && (preIndexingThreads == 0)) {
+      return;
+    }
+
+    LogicalTargetLoader loader = new LogicalTargetLoader(targetsPath, log);
+    loader.setCachePath(cachePath);
+    loader.setDeliveringMode(deliveringMode);
+    loader.setPredictiveModel(predictiveModel);
+    loader.setOnDemandIndexing(onDemandIndexing);
+    loader.setPacketHeadersCache(packetHeadersCache);
+    loader.setResponsePlanCache(responsePlanCache);
+
+    preloader = new LogicalTargetsPreloader(logicalTargetList, loader, log);
+    preloader.setNumThreads(Math.max(1, preIndexingThreads));
+    preloader.setMaxTargets(ServerDefaultValues.PRE_INDEXING_MAX_TARGETS);
+    preloader.setMaxMemoryUsage(ServerDefaultValues.PRE_INDEXING_MAX_MEMORY);
+    preloader.setCachePath(cachePath);
+
+    if (warmUpTargets != null) {
+      try {
+        preloader.readWarmUpTargets(warmUpTargets);
+      } catch (IOException e) {
+        log.logWarning(getName() + ": warm-up targets file \"" + warmUpTargets
+                + "\" cannot be read (" + e.getMessage() + ")");
+      }
+      preloader.warmUp();
+    }
+  }
+
+  /**
+   * Creates a worker which will take its tasks from the
+   * {@link #tasksDispatcher}.
+   *
+   * @param name name of the worker.
+   * @param workerIndex index of the worker in the pool, or -1 if it is
+   * 	launched on demand.
+   *
+   * @return the new worker.
+   */
+  Worker createWorker(String name, int workerIndex) {
+    Worker worker = new Worker(name, workerIndex, tasksDispatcher,
+                               logicalTargetList, clientSessions, log);
+    worker.setTargetsPath(targetsPath);
+    worker.setCachePath(cachePath);
+    worker.setDeliveringMode(deliveringMode, deliveringSubtype);
+    worker.setMaxTxRate(maxTxRate);
+    worker.setTrafficShaping(trafficShaping);
+    worker.setSharedTrafficShaping(sharedTrafficShaping);
+    worker.setIndependentMessageHeaders(independentMessageHeaders);
+    worker.setPredictiveModel(predictiveModel);
+    worker.setOnDemandIndexing(onDemandIndexing);
+    worker.setPacketHeadersCache(packetHeadersCache);
+    worker.setResponsePlanCache(responsePlanCache);
+    worker.setVersion(version);
+    return worker;
+  }
+
 }
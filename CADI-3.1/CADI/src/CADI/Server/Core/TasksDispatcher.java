@@ -0,0 +1,377 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.Core;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import CADI.Server.Request.ClientConnection;
+import CADI.Server.Request.RequestDispatcher;
+import CADI.Server.Request.RequestQueueNode;
+
+/**
+ * This class assigns the client requests received by the listeners to the
+ * workers. Requests are dispatched directly from the listener threads, and
+ * they are decoded by the workers, so there is not any thread through which
+ * all requests have to pass.
+ * <p>
+ * When a pool of workers is used, each worker has its own lock-free deque of
+ * tasks. The requests of a client connection are always added to the deque
+ * of the same worker, and a worker whose deque is empty steals tasks from
+ * the tail of the other ones. When workers are launched on demand (see
+ * {@link CADI.Server.Core.Scheduler#virtualThreads}), a new worker is
+ * launched for each request.
+ * <p>
+ * Once a request has been decoded, the requests of a session are passed
+ * through a queue of the session (see
+ * {@link #assignSessionTask(String, TasksQueueNode)}), so they are
+ * processed in order by only one worker at a time.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; setWorkers or setWorkersExecutor<br>
+ * &nbsp; dispatch<br>
+ * &nbsp; take<br>
+ * &nbsp; ...<br>
+ * &nbsp; finish<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/06/08
+ */
+public class TasksDispatcher implements RequestDispatcher {
+
+  /**
+   * Is the scheduler which creates the workers launched on demand.
+   */
+  private Scheduler scheduler = null;
+
+  /**
+   * Is the pool of workers. It is <code>null</code> if workers are launched
+   * on demand.
+   */
+  private Worker[] workers = null;
+
+  /**
+   * Is the executor used to launch the workers on demand. It is
+   * <code>null</code> if a pool of workers is used.
+   */
+  private ExecutorService workersExecutor = null;
+
+  // INTERNAL ATTRIBUTES
+  /**
+   * Is the deque of tasks of each worker of the pool.
+   */
+  private ConcurrentLinkedDeque<TasksQueueNode>[] deques = null;
+
+  /**
+   * Indicates, for each worker of the pool, whether it is parked waiting for
+   * new tasks (1) or not (0).
+   */
+  private AtomicIntegerArray parked = null;
+
+  /**
+   * Is used to assign the client connections to the workers of the pool in
+   * a round-robin fashion.
+   */
+  private AtomicInteger nextAffinity = new AtomicInteger(0);
+
+  /**
+   * Is the number of workers which have been launched on demand. It is used
+   * to name them.
+   */
+  private AtomicInteger numOfLaunchedWorkers = new AtomicInteger(0);
+
+  /**
+   * Contains the queue of each session which is being processed. Queues are
+   * indexed by the channel identifier, and they are removed once they are
+   * empty.
+   */
+  private ConcurrentHashMap<String, TasksQueue> sessionTasksQueues = null;
+
+  /**
+   * Indicates whether the dispatcher has been finished.
+   */
+  private volatile boolean finish = false;
+
+  /**
+   * Maximum time (in nanoseconds) that an idle worker is parked before
+   * checking the deques again.
+   */
+  private static final long PARK_TIMEOUT = 1000000000L;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param scheduler definition in {@link #scheduler}.
+   */
+  public TasksDispatcher(Scheduler scheduler) {
+    if (scheduler == null) {
+      throw new NullPointerException();
+    }
+
+    this.scheduler = scheduler;
+    sessionTasksQueues = new ConcurrentHashMap<String, TasksQueue>();
+  }
+
+  /**
+   * Sets the pool of workers which will take the tasks.
+   *
+   * @param workers definition in {@link #workers}.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void setWorkers(Worker[] workers) {
+    if (workers == null) {
+      throw new NullPointerException();
+    }
+    if (workers.length == 0) {
+      throw new IllegalArgumentException();
+    }
+
+    this.workers = workers;
+    deques = new ConcurrentLinkedDeque[workers.length];
+    for (int i = 0; i < deques.length; i++) {
+      deques[i] = new ConcurrentLinkedDeque<TasksQueueNode>();
+    }
+    parked = new AtomicIntegerArray(workers.length);
+  }
+
+  /**
+   * Sets the executor used to launch the workers on demand.
+   *
+   * @param workersExecutor definition in {@link #workersExecutor}.
+   */
+  public void setWorkersExecutor(ExecutorService workersExecutor) {
+    if (workersExecutor == null) {
+      throw new NullPointerException();
+    }
+
+    this.workersExecutor = workersExecutor;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see CADI.Server.Request.RequestDispatcher#dispatch(CADI.Server.Request.RequestQueueNode)
+   */
+  public void dispatch(RequestQueueNode nodeInfo) {
+    ClientConnection connection = nodeInfo.getConnection();
+    TasksQueueNode task = new TasksQueueNode(connection, nodeInfo.getHTTPRequest());
+
+    if (workersExecutor != null) {
+      Worker worker = scheduler.createWorker(
+              "Worker-" + numOfLaunchedWorkers.getAndIncrement(), -1);
+      worker.setTask(task);
+      workersExecutor.execute(worker);
+      return;
+    }
+
+    int home = connection.getAffinity();
+    if (home < 0) {
+      home = (nextAffinity.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+      connection.setAffinity(home);
+    }
+    deques[home].addLast(task);
+
+    // Awakes the worker or, if it is busy, an idle one to steal the task
+    if (parked.get(home) == 1) {
+      LockSupport.unpark(workers[home]);
+    } else {
+      for (int i = 1; i < workers.length; i++) {
+        int index = (home + i) % workers.length;
+        if (parked.get(index) == 1) {
+          LockSupport.unpark(workers[index]);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the next task to be done by a worker of the pool. Tasks are taken
+   * from its own deque or, if it is empty, stolen from the other ones. If
+   * there is not any task, the worker is parked until a new one is dispatched
+   * or a timeout is reached.
+   *
+   * @param index index of the worker in the pool.
+   *
+   * @return the next task, or <code>null</code> if there is not any.
+   */
+  public TasksQueueNode take(int index) {
+    TasksQueueNode task = poll(index);
+    if (task != null) {
+      return task;
+    }
+
+    // The deques are checked again once the worker is marked as parked, so
+    // tasks dispatched meanwhile are not missed
+    parked.set(index, 1);
+    task = poll(index);
+    if ((task == null) && !finish) {
+      LockSupport.parkNanos(this, PARK_TIMEOUT);
+    }
+    parked.set(index, 0);
+
+    return task;
+  }
+
+  /**
+   * Adds a decoded task to the queue of its session. If no other worker is
+   * processing requests of the session, the caller becomes the worker of the
+   * queue, and it must process all its tasks (see
+   * {@link CADI.Server.Core.TasksQueue#poll()}) and then release it by
+   * means of the {@link #releaseSessionTasksQueue(String, TasksQueue)}.
+   *
+   * @param cid channel identifier of the session.
+   * @param task the task.
+   *
+   * @return the queue of the session if the caller has to process it.
+   * 	Otherwise, <code>null</code>.
+   */
+  public TasksQueue assignSessionTask(String cid, TasksQueueNode task) {
+    while (true) {
+      TasksQueue queue = sessionTasksQueues.get(cid);
+      if (queue == null) {
+        TasksQueue newQueue = new TasksQueue();
+        queue = sessionTasksQueues.putIfAbsent(cid, newQueue);
+        if (queue == null) {
+          queue = newQueue;
+        }
+      }
+
+      switch (queue.addAndAssign(task)) {
+        case TasksQueue.ASSIGNED:
+          return queue;
+        case TasksQueue.QUEUED:
+          return null;
+        default: // The queue is being released
+          sessionTasksQueues.remove(cid, queue);
+      }
+    }
+  }
+
+  /**
+   * Removes the queue of a session once all its tasks have been processed.
+   *
+   * @param cid channel identifier of the session.
+   * @param queue the queue of the session.
+   */
+  public void releaseSessionTasksQueue(String cid, TasksQueue queue) {
+    sessionTasksQueues.remove(cid, queue);
+  }
+
+  /**
+   * Finishes the dispatcher and awakes the parked workers. If workers are
+   * launched on demand, waits for the running ones.
+   */
+  public void finish() {
+    finish = true;
+
+    if (workers != null) {
+      for (int i = 0; i < workers.length; i++) {
+        LockSupport.unpark(workers[i]);
+      }
+    }
+
+    if (workersExecutor != null) {
+      workersExecutor.shutdown();
+      try {
+        workersExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    if (deques != null) {
+      str += "pending tasks=";
+      for (int i = 0; i < deques.length; i++) {
+        str += (i > 0 ? "," : "") + deques[i].size();
+      }
+      str += ", ";
+    }
+    str += "sessions=" + sessionTasksQueues.size();
+    str += ", finish=" + finish;
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Tasks Dispatcher fields out to the specified output stream.
+   * This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Tasks dispatcher --");
+
+    if (deques != null) {
+      for (int i = 0; i < deques.length; i++) {
+        out.println("Worker-" + i + " pending tasks: " + deques[i].size()
+                + (parked.get(i) == 1 ? " (parked)" : ""));
+      }
+    } else {
+      out.println("Workers launched on demand: " + numOfLaunchedWorkers.get());
+    }
+    out.println("Sessions being processed: " + sessionTasksQueues.size());
+    out.println("Finish: " + finish);
+
+    out.flush();
+  }
+
+  // ============================ private methods ==============================
+  /**
+   * Takes a task from the head of the deque of a worker or, if it is empty,
+   * steals one from the tail of the other deques.
+   *
+   * @param index index of the worker in the pool.
+   *
+   * @return a task, or <code>null</code> if all deques are empty.
+   */
+  private TasksQueueNode poll(int index) {
+    TasksQueueNode task = deques[index].pollFirst();
+    for (int i = 1; (task == null) && (i < deques.length); i++) {
+      task = deques[(index + i) % deques.length].pollLast();
+    }
+    return task;
+  }
+}
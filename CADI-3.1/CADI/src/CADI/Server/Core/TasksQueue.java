@@ -31,7 +31,9 @@ import java.util.ArrayList;
 
 /** 
  * This class implements a queue where the works to be done by a thread
- * are saved by the {@link CADI.Server.Core.Scheduler}. 
+ * are saved. The {@link CADI.Server.Core.TasksDispatcher} uses a queue for
+ * each session, so that the requests of a session are processed in order by
+ * only one worker at a time (see {@link #addAndAssign(TasksQueueNode)}).
  * <p>
  * NOTICE:
  * Implementing of different kinds of priorities is very easy.
@@ -44,7 +46,7 @@ import java.util.ArrayList;
  * &nbsp; get<br> 
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0   2007-2012/10/26
+ * @version 1.0.1 2012/07/04
  */
 public class TasksQueue {
 
@@ -55,7 +57,26 @@ public class TasksQueue {
 	 */
 	private ArrayList<TasksQueueNode> queue = null;
 
-  
+	/**
+	 * Indicates whether a worker has been assigned to process the works of
+	 * the queue (see {@link #addAndAssign(TasksQueueNode)} and
+	 * {@link #poll()}).
+	 */
+	private boolean assigned = false;
+
+	/**
+	 * Indicates whether the queue has been released by its worker once it
+	 * was empty. A retired queue does not accept new works.
+	 */
+	private boolean retired = false;
+
+	/**
+	 * Values returned by the {@link #addAndAssign(TasksQueueNode)} method.
+	 */
+	public static final int ASSIGNED = 1;
+	public static final int QUEUED = 2;
+	public static final int RETIRED = 3;
+
 	// ============================= public methods ==============================
 	/**
 	 * Constructor of RequestQueue. It initializes the queue of sets to a void queue.	 
@@ -98,6 +119,67 @@ public class TasksQueue {
 		return nodeInfo;
 	}
 
+	/**
+	 * Adds new work to the queue and checks whether a worker has to process
+	 * it. If the queue has not got an assigned worker, the queue is marked as
+	 * assigned and the caller becomes its worker.
+	 * 
+	 * @param nodeInfo
+	 * 
+	 * @return {@link #ASSIGNED} if the caller has to process the works of the
+	 * 			queue, {@link #QUEUED} if the work will be processed by the
+	 * 			assigned worker, or {@link #RETIRED} if the work has not been
+	 * 			added because the queue has been retired.
+	 */
+	public synchronized int addAndAssign(TasksQueueNode nodeInfo) {
+		if (retired) {
+			return RETIRED;
+		}
+		add(nodeInfo);
+		if (assigned) {
+			return QUEUED;
+		}
+		assigned = true;
+		return ASSIGNED;
+	}
+
+	/**
+	 * Returns the first element of the queue without waiting. If the queue
+	 * is empty, it is retired and the assigned worker must stop polling it.
+	 * 
+	 * @return returns the first node of the list, or <code>null</code> if the
+	 * 			queue is empty.
+	 */
+	public synchronized TasksQueueNode poll() {
+		if (isEmpty()) {
+			assigned = false;
+			retired = true;
+			return null;
+		}
+
+		TasksQueueNode nodeInfo = queue.get(0);
+		queue.remove(0);
+		return nodeInfo;
+	}
+
+	/**
+	 * Checks whether the queue contains a client request which does not ask
+	 * the server to complete the previous responses, that is, a request
+	 * without the <code>wait=yes</code> field.
+	 * 
+	 * @return <code>true</code> if there is such a request. Otherwise,
+	 * 			returns <code>false</code>.
+	 */
+	public synchronized boolean hasPreemptingRequest() {
+		for (TasksQueueNode node : queue) {
+			if ((node.statusCode == 0) && (node.jpipRequestFields != null)
+			    && !node.jpipRequestFields.serverControlField.wait) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Returns true if the list is empty, false otherwise
 	 *
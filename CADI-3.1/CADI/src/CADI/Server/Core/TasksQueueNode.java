@@ -31,6 +31,7 @@ import java.net.Socket;
 
 import CADI.Common.Network.HTTP.HTTPRequest;
 import CADI.Common.Network.JPIP.JPIPRequestFields;
+import CADI.Server.Request.ClientConnection;
 
 /**
  * This is an auxiliary class used to save the tasks that will be done by a
@@ -59,7 +60,8 @@ public class TasksQueueNode {
 	 * <ul>
 	 * 	<li> If it is 0, a common work is stored. Only the {@link #socket},
 	 * 			{@link #httpRequest}, and {@link #jpipRequestFields}
-	 * 			attributes are used.
+	 * 			attributes are used. If the {@link #jpipRequestFields} is
+	 * 			<code>null</code>, the request has not been decoded yet.
 	 * 	<li> Otherwise, the work is for sending an error message to the
 	 * 			client. Therefore, the this attribute indicates the HTTP
 	 * 			response, and the reasonPhrase of the HTTP response is given
@@ -68,6 +70,13 @@ public class TasksQueueNode {
 	 */
 	int statusCode = -1;
 	
+	/**
+	 * Is the client connection the task belongs to. When the response has been
+	 * sent, the connection is returned to its listener if the HTTP keep-alive
+	 * mode is set.
+	 */
+	ClientConnection connection = null;
+
 	/**
 	 * Is the socket that will used to communicate with the client.
 	 */
@@ -97,33 +106,52 @@ public class TasksQueueNode {
 	/**
 	 * Constructor.
 	 * 
-	 * @param socket is the client socket.
+	 * @param connection is the client connection.
 	 * @param httpRequest
 	 * @param jpipRequestFields
 	 */	
-	public TasksQueueNode(Socket socket, HTTPRequest httpRequest, JPIPRequestFields jpipRequestFields) {
-		if (socket == null) throw new NullPointerException();
+	public TasksQueueNode(ClientConnection connection, HTTPRequest httpRequest, JPIPRequestFields jpipRequestFields) {
+		if (connection == null) throw new NullPointerException();
 		if (httpRequest == null) throw new NullPointerException();
 		if (jpipRequestFields == null) throw new NullPointerException();
 		
 		statusCode = 0;
-		this.socket = socket;
+		this.connection = connection;
+		this.socket = connection.getSocket();
 		this.httpRequest = httpRequest;
 		this.jpipRequestFields = jpipRequestFields;		
 	}	
 
+	/**
+	 * Constructor used when the JPIP request has not been decoded yet. It will
+	 * be decoded by the worker.
+	 * 
+	 * @param connection is the client connection.
+	 * @param httpRequest
+	 */
+	public TasksQueueNode(ClientConnection connection, HTTPRequest httpRequest) {
+		if (connection == null) throw new NullPointerException();
+		if (httpRequest == null) throw new NullPointerException();
+		
+		statusCode = 0;
+		this.connection = connection;
+		this.socket = connection.getSocket();
+		this.httpRequest = httpRequest;
+	}
+
 	/**
 	 * Constructor.
 	 * 
-	 * @param socket
+	 * @param connection
 	 * @param statusCode
 	 * @param reasonPhrase
 	 */
-	public TasksQueueNode(Socket socket, int statusCode, String reasonPhrase) {
-		if (socket == null) { throw new NullPointerException(); }
+	public TasksQueueNode(ClientConnection connection, int statusCode, String reasonPhrase) {
+		if (connection == null) { throw new NullPointerException(); }
 		if (statusCode <= 0) { throw new IllegalArgumentException(); }
 		
-		this.socket = socket;
+		this.connection = connection;
+		this.socket = connection.getSocket();
 		this.statusCode = statusCode;
 		this.reasonPhrase = reasonPhrase;
 	}
@@ -137,6 +165,15 @@ public class TasksQueueNode {
 		return statusCode;
 	}
 	
+	/**
+	 * Returns the client connection.
+	 * 
+	 * @return client connection
+	 */
+	public ClientConnection getConnection() {
+		return connection;
+	}
+
 	/**
 	 * Returns the client socket.
 	 * 
@@ -178,6 +215,7 @@ public class TasksQueueNode {
 	 */
 	public void reset() {
 		statusCode = -1;
+		connection = null;
 		socket = null;
 		httpRequest.reset();
 		jpipRequestFields.reset();
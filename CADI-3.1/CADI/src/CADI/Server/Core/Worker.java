@@ -26,31 +26,29 @@
  */
 package CADI.Server.Core;
 
+import CADI.Common.Network.HierarchicalTrafficShaping;
 import CADI.Common.Network.TrafficShaping;
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 
 import CADI.Common.Network.HTTP.*;
 import CADI.Common.Network.JPIP.*;
 import CADI.Common.Log.CADILog;
-import GiciStream.BufferedDataInputStream;
 import CADI.Server.Cache.ServerCacheModel;
 import CADI.Server.LogicalTarget.*;
 import CADI.Server.LogicalTarget.JPEG2000.*;
+import CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache;
+import CADI.Server.LogicalTarget.JPEG2000.DeliveringModes.ResponsePlanCache;
 import CADI.Server.Network.*;
 import CADI.Server.Request.*;
 import CADI.Server.ServerDefaultValues;
 import CADI.Server.Session.*;
 import GiciException.*;
-import java.util.Properties;
+import java.util.concurrent.Callable;
 
 /**
  * This class performs the client request processing and it sends the server
@@ -59,11 +57,9 @@ import java.util.Properties;
  * (data or errors), etc.
  * <p>
  * This thread is launched and it will be waiting for a task. Tasks are passed
- * to this worker through a
- * <code>TaskQueue</code> queue (the
- * <code>Scheduler
- * <code> puts the task into the queue and the
- * <code>Worker</code> get them).
+ * to this worker through the
+ * <code>TasksDispatcher</code> (the listeners dispatch the requests and the
+ * <code>Worker</code> takes them and decodes them).
  * <p>
  * This thread is always running or waiting for a task. Therefore, it only can
  * be finished if the
@@ -78,14 +74,21 @@ import java.util.Properties;
  * &nbsp; finish<br>
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.1.4 2011/03/03
+ * @version 1.1.9 2012/07/04
  */
 public class Worker extends Thread implements StatusCodes, EORCodes {
 
   /**
-   * Definition in {@link CADI.Server.Core.Scheduler#tasksQueue}
+   * Is the index of the worker in the pool of workers, or -1 if the worker
+   * has been launched on demand to process only one task (see
+   * {@link CADI.Server.Core.Scheduler#virtualThreads}).
    */
-  private TasksQueue tasksQueue = null;
+  private int workerIndex = -1;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#tasksDispatcher}.
+   */
+  private TasksDispatcher dispatcher = null;
 
   /**
    * Definition in {@link CADI.Server.Core.Scheduler#logicalTargetList}.
@@ -109,7 +112,8 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
 
   /**
    * Is the path directory that will be used to save the temporary files
-   * used to cache client data.
+   * used to cache client data and the indexes of the logical targets (see
+   * {@link CADI.Server.LogicalTarget.JPEG2000.CodestreamIndexCache}).
    */
   private String cachePath = null;
 
@@ -130,11 +134,6 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
    */
   private int deliveringSubtype = -1;
 
-  /**
-   * Definition in {@link CADI.Server.Core.Scheduler#keepAliveTimeout}.
-   */
-  private int keepAliveTimeout = 0;
-
   /**
    * Definition in {@link CADI.Server.Core.Scheduler#maxTxRate}.
    */
@@ -145,6 +144,11 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
    */
   private int trafficShaping = TrafficShaping.NONE;
 
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#sharedTrafficShaping}.
+   */
+  private HierarchicalTrafficShaping sharedTrafficShaping = null;
+
   /**
    * Definition in {@link CADI.Server.Network.JPIPMessageEncoder#independentForm}.
    */
@@ -155,6 +159,26 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
    */
   private boolean predictiveModel = false;
 
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#onDemandIndexing}.
+   */
+  private boolean onDemandIndexing = false;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#packetHeadersCache}.
+   */
+  private PacketHeadersCache packetHeadersCache = null;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#responsePlanCache}.
+   */
+  private ResponsePlanCache responsePlanCache = null;
+
+  /**
+   * Is the client connection of which request is being processed.
+   */
+  private ClientConnection connection = null;
+
   /**
    * Contains the client socket of which request is being processed.
    */
@@ -171,8 +195,7 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
   private JPIPRequestFields jpipRequestFields = null;
 
   /**
-   * Indicates whether the thread has to finish when it is working with a
-   * request with the keep-alive mode set.
+   * Indicates whether the thread has to finish.
    *
    * @see #finish()
    */
@@ -186,7 +209,17 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
    */
   private boolean busy = false;
 
+  /**
+   * Is the task to be done by a worker launched on demand.
+   */
+  private TasksQueueNode pendingTask = null;
+
   // INTERNAL ATTRIBUTES
+  /**
+   * Is used to decode the JPIP requests.
+   */
+  private JPIPRequestDecoder jpipRequestDecoder = null;
+
   /**
    * Is an output stream that will be used to send the server response to the client.
    */
@@ -232,6 +265,13 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
    */
   private ServerClientSession session = null;
 
+  /**
+   * Is the session which is pinned while the request is being processed, so
+   * it is not removed by the sessions reaper, or <code>null</code> if none.
+   * See {@link CADI.Common.Session.Sessions#acquire(String)}.
+   */
+  private ServerClientSession acquiredSession = null;
+
   /**
    * Definition in {@link CADI.Common.Network.JPIP.ChannelField#cid}.
    */
@@ -265,24 +305,76 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
    */
   private long initTime = 0;
 
+  /**
+   * Is the version of the server sent in the <code>Server</code> header.
+   * <p>
+   * Further information, see {@link CADI.Server.Core.Scheduler#version}.
+   */
   private String version = null;
 
+  /**
+   * Is the queue of the requests of the session which is being processed,
+   * or <code>null</code> if the request does not belong to a session. It
+   * is used to check whether a newer request has been received.
+   */
+  private TasksQueue sessionTasksQueue = null;
+
+  /**
+   * Are used to decode the request which has been sent through the same
+   * connection while the response is being sent (HTTP pipelining).
+   */
+  private HTTPRequestReader pipelinedRequestReader = null;
+
+  private JPIPRequestDecoder pipelinedRequestDecoder = null;
+
+  /**
+   * Is the head of the last request which has been decoded from the
+   * connection while the response is being sent.
+   */
+  private String pipelinedRequestHead = null;
+
+  /**
+   * Indicates whether the {@link #pipelinedRequestHead} preempts the
+   * response.
+   */
+  private boolean pipelinedRequestPreempts = false;
+
+  /**
+   * Is the time (in nanoseconds) of the last check of newer requests.
+   */
+  private long lastPreemptionCheck = 0;
+
+  /**
+   * Minimum time (in nanoseconds) between two checks of newer requests.
+   */
+  private static final long PREEMPTION_CHECK_INTERVAL = 10000000L; // 10 ms
+
+  /**
+   * Responses longer than this value (in bytes) are sent with the chunked
+   * transfer coding, so they can be preempted by a newer request. Shorter
+   * responses are sent with a <code>Content-Length</code> header.
+   */
+  private static final long MIN_PREEMPTIBLE_LENGTH = 65536;
+
   // ============================= public methods ==============================
   /**
    * Constructor.
    *
    * @param threadName is a string with the name of the thread.
-   * @param tasksQueue definition in {@link #tasksQueue}.
+   * @param workerIndex definition in {@link #workerIndex}.
+   * @param dispatcher definition in {@link #dispatcher}.
    * @param logicalTargetList definition in {@link #logicalTargetList}.
    * @param clientSessions definition in {@link #listOfClientSessions}.
    * @param log definition in {@link #log}.
    */
-  public Worker(String threadName, TasksQueue tasksQueue,
+  public Worker(String threadName, int workerIndex,
+                TasksDispatcher dispatcher,
                 ServerLogicalTargetList logicalTargetList,
                 ServerClientSessions clientSessions,
                 CADILog log) {
 
-    this.tasksQueue = tasksQueue;
+    this.workerIndex = workerIndex;
+    this.dispatcher = dispatcher;
     this.logicalTargetList = logicalTargetList;
     this.listOfClientSessions = clientSessions;
     this.log = log;
@@ -290,13 +382,16 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
     setName(threadName);
     jpipResponseFields = new JPIPResponseFields();
     httpResponse = new HTTPResponse();
+    jpipRequestDecoder = new JPIPRequestDecoder();
+  }
 
-    try {
-      Properties cadiInfo = new Properties();
-      cadiInfo.load(getClass().getClassLoader().getResourceAsStream("CADI/Common/Info/cadiInfo.properties"));
-      version = cadiInfo.getProperty("version");
-    } catch (Exception e) {
-    }
+  /**
+   * Sets the {@link #version} attribute.
+   *
+   * @param version definition in {@link #version}.
+   */
+  public void setVersion(String version) {
+    this.version = version;
   }
 
   /**
@@ -328,15 +423,6 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
     this.deliveringSubtype = deliveringSubtype;
   }
 
-  /**
-   * Sets the {@link #keepAliveTimeout} attribute.
-   *
-   * @param keepAliveTimeout definition in {@link #keepAliveTimeout}.
-   */
-  public void setKeepAliveTimeout(int keepAliveTimeout) {
-    this.keepAliveTimeout = keepAliveTimeout;
-  }
-
   /**
    * Sets the {@link #maxTxRate} attribute.
    *
@@ -355,6 +441,15 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
     this.trafficShaping = trafficShaping;
   }
 
+  /**
+   * Sets the {@link #sharedTrafficShaping} attribute.
+   *
+   * @param sharedTrafficShaping definition in {@link #sharedTrafficShaping}.
+   */
+  public void setSharedTrafficShaping(HierarchicalTrafficShaping sharedTrafficShaping) {
+    this.sharedTrafficShaping = sharedTrafficShaping;
+  }
+
   /**
    * Sets the {@link #independentMesssageHeaders} attribute.
    *
@@ -373,11 +468,48 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
     this.predictiveModel = predictiveModel;
   }
 
+  /**
+   * Sets the {@link #onDemandIndexing} attribute.
+   *
+   * @param onDemandIndexing definition in {@link #onDemandIndexing}.
+   */
+  public void setOnDemandIndexing(boolean onDemandIndexing) {
+    this.onDemandIndexing = onDemandIndexing;
+  }
+
+  /**
+   * Sets the {@link #packetHeadersCache} attribute.
+   *
+   * @param packetHeadersCache definition in {@link #packetHeadersCache}.
+   */
+  public void setPacketHeadersCache(PacketHeadersCache packetHeadersCache) {
+    this.packetHeadersCache = packetHeadersCache;
+  }
+
+  /**
+   * Sets the {@link #responsePlanCache} attribute.
+   *
+   * @param responsePlanCache definition in {@link #responsePlanCache}.
+   */
+  public void setResponsePlanCache(ResponsePlanCache responsePlanCache) {
+    this.responsePlanCache = responsePlanCache;
+  }
+
+  /**
+   * Sets the task to be done by a worker launched on demand. The worker
+   * finishes once the task has been done.
+   *
+   * @param task definition in {@link #pendingTask}.
+   */
+  public void setTask(TasksQueueNode task) {
+    this.pendingTask = task;
+  }
+
   /**
    * This method implements the control of the thread.
    * <p>
    * When the
-   * <code>Scheduler</code> assigns a task, it will be awake. The
+   * <code>TasksDispatcher</code> assigns a task, it will be awake. The
    * task may be:<br>
    * <ul>
    * <li> Process a client request.
@@ -385,21 +517,20 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
    * </ul>
    *
    * Moreover, when the keep-alive mode of a client request is set, the
-   * thread is dedicated to wait for a new request until the timeout value
-   * is reached.
+   * connection is returned to the listener which has received the request
+   * once the response has been sent. Therefore, the thread is not dedicated
+   * to wait for new requests of the same client, and it can process requests
+   * of other connections in the meantime.
    * <p>
    * The thread will be running until the
    * <code>finish</code> attribute is
-   * <code>false</code>.
+   * <code>false</code> or, if it has been launched on demand, until its
+   * task has been done.
    */
   @Override
   public void run() {
 
     TasksQueueNode task = null;
-    int statusCode = -1;
-    String reasonPhrase = null;
-    boolean keepAlive = true;
-    boolean error = false;
 
     if (log.isLog(CADILog.LEVEL_INFO)) {
       log.logInfo(getName() + ": started");
@@ -410,119 +541,45 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
 
       busy = false;
 
-      // Thread is sleeping until a new work is added to the queue
-      try {
-        task = tasksQueue.get();
-      } catch (InterruptedException e1) {
-        finish = true;
-        break;
-      }
-
-      resetTime();
-      busy = true;
-
-      statusCode = task.statusCode;
-      this.socket = task.socket;
-      if (statusCode == 0) {
-        this.httpRequest = task.httpRequest;
-        this.jpipRequestFields = task.jpipRequestFields;
-      } else {
-        reasonPhrase = task.reasonPhrase;
-      }
-
-      if (log.isLog(CADILog.LEVEL_INFO)) {
-        log.logInfo(getName() + ": responding");
-      }
-
-      // Gets the output stream
-      try {
-        os = socket.getOutputStream();
-      } catch (IOException e) {
-        if (log.isLog(CADILog.LEVEL_INFO)) {
-          log.logInfo(getName() + ": error opening output stream");
+      // Thread is sleeping until a new work is dispatched
+      if (workerIndex < 0) {
+        task = pendingTask;
+        pendingTask = null;
+        if (task == null) {
+          break;
         }
-        // Goes to sleep
-        keepAlive = false;
-        error = true;
-      }
-
-      httpResponseSender = new HTTPResponseSender(os);
-      long maxRate = maxTxRate;
-      if (jpipRequestFields.clientCapPrefField.pref.maxBandwidth > 0) {
-        if (maxRate == 0) {
-          maxRate = jpipRequestFields.clientCapPrefField.pref.maxBandwidth;
-        } else if (maxRate > jpipRequestFields.clientCapPrefField.pref.maxBandwidth) {
-          maxRate = jpipRequestFields.clientCapPrefField.pref.maxBandwidth;
+      } else {
+        task = dispatcher.take(workerIndex);
+        if (task == null) {
+          continue;
         }
       }
-      httpResponseSender.setMaxTxRate(maxRate, trafficShaping);
-
-
-      if (!error) {
-
-        if (statusCode != 0) {	// Thread has been awoken to send an error message
-          sendHTTPResponseError(statusCode, reasonPhrase);
-          statusCode = 0;
-
-        } else { // Thread has been awoken to process a request
-          keepAlive = true;
-
-          while (keepAlive && !error && !finish) {
 
-            // Process the client request
-            try {
-              processRequest();
-            } catch (WarningException e) {
-              error = true;
-            }
+      busy = true;
 
-            if (!error) {
-              //	Check if keep-alive mode is set
-              String value = httpRequest.getHeaderField("Connection");
-              if ((value != null) && !value.equals("keep-alive")) {
-                // HTTP keep-alive mode is not set. Thread goes to sleepJPIPResponseFields
-                keepAlive = false;
-                if (log.isLog(CADILog.LEVEL_INFO)) {
-                  log.logInfo(getName() + ": response has been sent");
-                }
-              } else { // HTTP keep-alive mode is set, then wait for a new request
-                if (log.isLog(CADILog.LEVEL_INFO)) {
-                  log.logInfo(getName() + ": listening to keep-alive connections");
-                }
-                try {
-                  listenNewRequest();
-                } catch (WarningException we) {
-                  statusCode = we.getErrorCode();
-                  reasonPhrase = we.getMessage();
-                  sendHTTPResponseError(statusCode, reasonPhrase);
-                  error = true;
-                  statusCode = 0;
-                } catch (ErrorException ee) {
-                  // <<<<<<<<<< to log file
-                  keepAlive = false;
-                }
-              }
-            }
-          } // while (keepAlive && ....
-        }
-      }
-      try {
-        socket.shutdownInput();
-        socket.shutdownOutput();
-        socket.close();
-        os = null;
-        httpResponseSender = null;
-        socket = null;
-      } catch (IOException ioe) {
+      // JPIP REQUEST PARSER
+      if ((task.statusCode == 0) && (task.jpipRequestFields == null)) {
+        task = decodeRequest(task);
       }
 
-      keepAlive = false;
-      error = false;
-
-      // Thread is sleeping until the scheduler sends a signal
-      if (log.isLog(CADILog.LEVEL_INFO)) {
-        log.logInfo(getName() + ": going to sleep");
+      // Requests of a session are processed in order
+      String taskCid = (task.statusCode == 0)
+              ? task.jpipRequestFields.channelField.cid : null;
+      if (taskCid == null) {
+        respond(task);
+      } else {
+        sessionTasksQueue = dispatcher.assignSessionTask(taskCid, task);
+        if (sessionTasksQueue != null) {
+          while ((task = sessionTasksQueue.poll()) != null) {
+            respond(task);
+          }
+          dispatcher.releaseSessionTasksQueue(taskCid, sessionTasksQueue);
+          sessionTasksQueue = null;
+        } else if (log.isLog(CADILog.LEVEL_INFO)) {
+          log.logInfo(getName() + ": task queued to the worker of the session " + taskCid);
+        }
       }
+      task = null;
 
     } // while (!finish)
 
@@ -532,6 +589,7 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
 
     // Free objects
     socket = null;
+    connection = null;
     httpRequest = null;
     jpipRequestFields = null;
     httpResponse = null;
@@ -540,7 +598,6 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
     session = null;
     serverCache = null;
     jpipChannel = null;
-    reasonPhrase = null;
   }
 
   /**
@@ -569,6 +626,152 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
   }
 
   // ============================ private methods ==============================
+  /**
+   * Decodes the JPIP request of a task and checks that the session it
+   * belongs to, if any, is registered in the client session list.
+   *
+   * @param task a task whose JPIP request has not been decoded.
+   *
+   * @return the task with the decoded JPIP request fields, or a task to send
+   * 	an error message to the client.
+   */
+  private TasksQueueNode decodeRequest(TasksQueueNode task) {
+
+    try {
+      jpipRequestDecoder.decoder(task.httpRequest.getRequestURI());
+    } catch (WarningException we) {
+      return new TasksQueueNode(task.connection, we.getErrorCode(), we.getMessage());
+    }
+
+    JPIPRequestFields fields = jpipRequestDecoder.getJPIPRequestFields();
+
+    // Check if the request belongs to a session and it is registered in the client session list
+    if (fields.channelField.cid != null) {
+      if (log.isLog(CADILog.LEVEL_DEBUG)) {
+        log.logDebug(getName() + ": Request belongs to a sessions (cid="
+                + fields.channelField.cid + ")");
+      }
+      if (!listOfClientSessions.contains(fields.channelField.cid)) {
+        return new TasksQueueNode(task.connection, StatusCodes.BAD_REQUEST,
+                "The \"channel idenfier\" is wrong or from an old session");
+      }
+    }
+
+    task.jpipRequestFields = fields;
+    return task;
+  }
+
+  /**
+   * Processes a task and sends the response to the client. The task may be:
+   * <ul>
+   * <li> Process a client request.
+   * <li> Sends a message error to the client.
+   * </ul>
+   * When the response has been sent, the client connection is returned to
+   * its listener if the keep-alive mode is set. Otherwise, it is closed.
+   *
+   * @param task the task to be done.
+   */
+  private void respond(TasksQueueNode task) {
+
+    int statusCode = task.statusCode;
+    String reasonPhrase = null;
+    boolean keepAlive = false;
+    boolean error = false;
+
+    resetTime();
+
+    this.connection = task.connection;
+    this.socket = task.socket;
+    if (statusCode == 0) {
+      this.httpRequest = task.httpRequest;
+      this.jpipRequestFields = task.jpipRequestFields;
+    } else {
+      reasonPhrase = task.reasonPhrase;
+    }
+
+    if (log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": responding");
+    }
+
+    // Gets the output stream
+    try {
+      os = socket.getOutputStream();
+    } catch (IOException e) {
+      if (log.isLog(CADILog.LEVEL_INFO)) {
+        log.logInfo(getName() + ": error opening output stream");
+      }
+      // Goes to sleep
+      error = true;
+    }
+
+    if (!error) {
+      httpResponseSender = new HTTPResponseSender(os);
+      if (connection != null) {
+        httpResponseSender.setChannel(connection.getChannel());
+      }
+
+      if (statusCode != 0) {	// Thread has been awoken to send an error message
+        sendHTTPResponseError(statusCode, reasonPhrase);
+
+      } else { // Thread has been awoken to process a request
+        long maxRate = maxTxRate;
+        if (jpipRequestFields.clientCapPrefField.pref.maxBandwidth > 0) {
+          if (maxRate == 0) {
+            maxRate = jpipRequestFields.clientCapPrefField.pref.maxBandwidth;
+          } else if (maxRate > jpipRequestFields.clientCapPrefField.pref.maxBandwidth) {
+            maxRate = jpipRequestFields.clientCapPrefField.pref.maxBandwidth;
+          }
+        }
+        httpResponseSender.setMaxTxRate(maxRate, trafficShaping);
+
+        // Process the client request
+        try {
+          processRequest();
+        } catch (WarningException e) {
+          error = true;
+        } finally {
+          if (acquiredSession != null) {
+            listOfClientSessions.release(acquiredSession);
+            acquiredSession = null;
+          }
+        }
+
+        if (!error) {
+          //	Check if keep-alive mode is set
+          String value = httpRequest.getHeaderField("Connection");
+          if ((value != null) && !value.equals("keep-alive")) {
+            // HTTP keep-alive mode is not set.
+            if (log.isLog(CADILog.LEVEL_INFO)) {
+              log.logInfo(getName() + ": response has been sent");
+            }
+          } else { // HTTP keep-alive mode is set
+            keepAlive = !finish && !socket.isInputShutdown();
+          }
+        }
+      }
+    }
+
+    if (keepAlive) {
+      // The listener waits for the next request of the client
+      if (log.isLog(CADILog.LEVEL_INFO)) {
+        log.logInfo(getName() + ": connection returned to the listener (keep-alive)");
+      }
+      connection.getListener().keepAlive(connection);
+    } else {
+      try {
+        socket.shutdownInput();
+        socket.shutdownOutput();
+      } catch (IOException ioe) {
+      }
+      connection.close();
+    }
+    os = null;
+    httpResponseSender = null;
+    socket = null;
+    connection = null;
+  }
+
   /**
    * This method performs the core to process the client requests. It is a
    * manager that uses several auxiliary classess and methods to process the
@@ -597,7 +800,13 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
 
     // MANAGE LOGICAL TARGET
     if (jpipRequestFields.channelField.cid != null) {
-      session = listOfClientSessions.get(jpipRequestFields.channelField.cid);
+      acquiredSession = listOfClientSessions.acquire(jpipRequestFields.channelField.cid);
+      if (acquiredSession == null) {
+        // Session has been removed since the request was decoded
+        sendHTTPResponseError(BAD_REQUEST, "The \"channel idenfier\" used is wrong or from an old session");
+        throw new WarningException();
+      }
+      session = acquiredSession;
       jpipRequestFields.targetField.tid = session.getTID(jpipRequestFields.channelField.cid);
     }
     logicalTargetsManager(jpipRequestFields.targetField.target, jpipRequestFields.targetField.tid);
@@ -670,8 +879,24 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
     // DISPATCH REQUEST
 
     // Send http response header
-    if (jpipRequestFields.dataLimitField.len != 0) {
+    DeliveryManager deliverData = new DeliveryManager(logicalTarget, responseDataList, httpResponseSender,
+            new JPIPMessageEncoder(independentMessageHeaders, jpipRequestFields.serverControlField.useExtendedHeaders), log);
+    long contentLength = deliverData.getContentLength();
+    if ((contentLength > 0) && (contentLength <= MIN_PREEMPTIBLE_LENGTH)) {
+      // Response length is known, so the chunked transfer coding is not used
+      httpResponse.setHeaderField("Content-Length", Long.toString(contentLength));
+      httpResponseSender.setContentLength(contentLength);
+    } else {
+      // Long responses can be finished earlier by a newer request
       httpResponse.setHeaderField("Transfer-Encoding", "chunked");
+      lastPreemptionCheck = System.nanoTime();
+      pipelinedRequestHead = null;
+      deliverData.setPreemption(new DeliveryManager.Preemption() {
+
+        public boolean isPreempted() {
+          return hasPreemptingRequest();
+        }
+      });
     }
     httpResponse.setResponseCode(StatusCodes.OK);
     httpResponse.setResponseMessage("OK");
@@ -683,8 +908,13 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
 
 
     // Send http response body
-    DeliveryManager deliverData = new DeliveryManager(logicalTarget, responseDataList, httpResponseSender,
-            new JPIPMessageEncoder(independentMessageHeaders, jpipRequestFields.serverControlField.useExtendedHeaders), log);
+    HierarchicalTrafficShaping.Flow flow = null;
+    if (sharedTrafficShaping != null) {
+      flow = sharedTrafficShaping.open(socket.getInetAddress().getHostAddress(),
+              (session != null) ? session.getSessionID() : null,
+              httpResponseSender.getMaxTxRate());
+      httpResponseSender.setSharedTrafficShaping(flow);
+    }
     try {
       deliverData.run();
     } catch (IOException e1) {
@@ -694,9 +924,20 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
       throw new WarningException();
     } catch (ErrorException e1) {
       e1.printStackTrace();
+    } finally {
+      if (flow != null) {
+        httpResponseSender.setSharedTrafficShaping(null);
+        flow.close();
+      }
     }
     if (log.isLog(CADILog.LEVEL_INFO)) {
-      log.logInfo(getName() + ": response has been sent to client (" + socket.toString() + ")");
+      if (deliverData.isPreempted()) {
+        log.logInfo(getName() + ": response has been preempted by a newer request after "
+                + deliverData.getNumOfSentData() + " of " + responseDataList.size()
+                + " messages (" + socket.toString() + ")");
+      } else {
+        log.logInfo(getName() + ": response has been sent to client (" + socket.toString() + ")");
+      }
     }
 
     if (httpRequest.getHeaderField("Debug") != null) {
@@ -727,8 +968,11 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
       listOfClientSessions.remove(cid);
     } else {
       // Keeps information about the delivered data in the cache
+      // Only the messages which have been sent if the response was preempted
       jpipMessageHeaders = new ArrayList<JPIPMessageHeader>();
-      for (ResponseData responseData : responseDataList) {
+      int numOfSentData = deliverData.getNumOfSentData();
+      for (int i = 0; i < numOfSentData; i++) {
+        ResponseData responseData = responseDataList.get(i);
         if (responseData.jpipMessageHeader == null) {
           continue;
         }
@@ -825,8 +1069,8 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
           throw new WarningException();
         }
 
-        // Get the client properties
-        session = listOfClientSessions.get(cid);
+        // Get the client properties (session has been pinned)
+        session = acquiredSession;
         jpipRequestFields.targetField.tid = session.getTID(cid);
         serverCache = session.getCache(cid);
         jpipChannel = session.getJPIPChannel(cid);
@@ -850,6 +1094,7 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
         session = new ServerClientSession();
         cid = session.createSessionTarget(logicalTarget, "jpp-stream", "http");
         listOfClientSessions.add(session);
+        acquiredSession = listOfClientSessions.acquire(cid);
 
         jpipResponseFields.cid = cid;
         jpipResponseFields.path = "CADIServer";
@@ -873,6 +1118,7 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
       session = new ServerClientSession();
       cid = session.createSessionTarget(logicalTarget, "jpp-stream", "http");
       listOfClientSessions.add(session);
+      acquiredSession = listOfClientSessions.acquire(cid);
     }
 
   }
@@ -925,156 +1171,56 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
     }
 
 
-    // If the logical target is not in the linked list, it will be searched in disk
+    // If the logical target is not in the list, it will be searched in disk.
+    // Concurrent requests of the same target share only one indexing job.
     if (logicalTarget == null) {
 
-      // FIXME: the way a new logicalTarget is added to the logicalTargetList
-      // has synchronization problems. They have been detected in the CADIProxy.
-      // In the ServerLogicalTargetList the add method should not be used and a
-      // new one create session must be implemented as in the ProxySessionTargets.
-
-      // Does the target exist?
-      String absoluteFileName = (targetsPath.endsWith(File.separator) ? targetsPath : targetsPath + File.separator) + target;
-      if (log.isLog(CADILog.LEVEL_INFO)) {
-        log.logInfo("Searching in disk the target: " + absoluteFileName);	// DEBUG
-      }
-
-      BufferedDataInputStream in = null;
-      try {
-
-        in = new BufferedDataInputStream(absoluteFileName);
-
-      } catch (FileNotFoundException e) {
-        sendHTTPResponseError(NOT_FOUND, "I'm sorry, but the requested logical target \"" + jpipRequestFields.targetField.target
-                + "\" is not available or you do not have permissions for reading it.");
-        if (log.isLog(CADILog.LEVEL_DEBUG)) {
-          log.logDebug(getName() + ": remote host " + socket.getRemoteSocketAddress()
-                  + " requested for logical target " + jpipRequestFields.targetField.target + " but it is not found");
-        }
+      if (target == null) {
+        sendHTTPResponseError(BAD_REQUEST, "The \"target identifier\" is wrong or from an old logical target");
         throw new WarningException();
       }
 
-      //Check image type
-      String relativeFileName = target.substring(target.lastIndexOf("/") + 1, target.length()).toUpperCase();
-
-      if (relativeFileName.endsWith(".JPX") || relativeFileName.endsWith(".JP2") || relativeFileName.endsWith(".JPC") || relativeFileName.endsWith(".JPK")) {
+      final String requestedTarget = target;
+      try {
+        logicalTarget = logicalTargetList.load(target, new Callable<JP2KServerLogicalTarget>() {
 
-        try {
-          JP2KLogicalTargetIndexer jp2kLogicalTargetIndexing = new JP2KLogicalTargetIndexer(getName(), target, in, log);
-          if (predictiveModel) {
-            int lastPoint = absoluteFileName.lastIndexOf('.');
-            jp2kLogicalTargetIndexing.readPredictiveModel(absoluteFileName.substring(0, lastPoint) + ".pm");
-          }
-          if ((deliveringMode == ServerDefaultValues.DELIVERING_CPI)
-                  || (deliveringMode == ServerDefaultValues.DELIVERING_CoRD)) {
-            jp2kLogicalTargetIndexing.setReadCodingPasses(true);
-          }
-          jp2kLogicalTargetIndexing.run();
-          logicalTarget = jp2kLogicalTargetIndexing.getLogicalTarget();
-        } catch (WarningException we) {
-          if (log.isLog(CADILog.LEVEL_WARNING)) {
-            log.logWarning("Logical target \"" + absoluteFileName + "\" are corrupted. Reason: " + we.getMessage());
+          public JP2KServerLogicalTarget call() throws WarningException {
+            return loadLogicalTarget(requestedTarget);
           }
-          sendHTTPResponseError(NOT_IMPLEMENTED, "I'm sorry, but the CADI server cannot support some features of the requested target.");
-          throw new WarningException();
-        }
-
-      } else { // Logical target type: UNKNOWN
-
-        sendHTTPResponseError(NOT_IMPLEMENTED, "I'm sorry, but the CADI server only support JPEG2000 image files.");
-        if (log.isLog(CADILog.LEVEL_DEBUG)) {
-          log.logDebug(getName() + ": remote host " + socket.getRemoteSocketAddress()
-                  + " requested for logical target " + jpipRequestFields.targetField.target + " but it is not supported");
-        }
+        });
+      } catch (WarningException we) {
+        sendHTTPResponseError(we.getErrorCode(), we.getMessage());
         throw new WarningException();
       }
-
-      // Update common parameters
-      logicalTargetList.add(logicalTarget);
-
     }
 
     // logical target must not null
     // if not, there is an error in this method
     assert (logicalTarget != null);
+
+    logicalTargetList.addRequest(logicalTarget.getTarget());
   }
 
   /**
-   * This method will be used to read a HTTP client request. It will be used
-   * when the HTTP keep-alive mode is set. Then, this thread is assigned to
-   * this client. The received request data will be stored in the
-   * <code>
-   * httpRequestFields</code> (see
-   * @link CADI.Server.Scheduler#httpRequestFields}) and
-   * <code>
-   * jpipRequestFields</code> (see
-   * @link CADI.Server.Scheduler#httpRequestFields}) attributes.
+   * Searches a logical target in disk, and loads and indexes it.
+   *
+   * @param target definition in {@link CADI.Common.Network.JPIP.TargetField#target}.
    *
-   * @throws WarningException when an
-   * @throws ErrorException when the client has closed the socket, the
-   * socket reaches its timeout, or an I/O error has occured while client
-   * request was being received.
+   * @return the logical target.
+   *
+   * @throws WarningException if the logical target cannot be loaded. The
+   * 	error code and message of the exception are the status code and
+   * 	reason phrase to be sent to the client.
    */
-  private void listenNewRequest() throws WarningException, ErrorException {
-
-    HTTPRequestReader httpRequestReader = new HTTPRequestReader();
-
-    if (socket.isInputShutdown()) {
-      throw new ErrorException();
-    }
-
-    // Set keep alive timeout
-    if (keepAliveTimeout >= 0) {
-      try {
-        socket.setSoTimeout(keepAliveTimeout);
-      } catch (SocketException e) {
-        if (log.isLog(CADILog.LEVEL_WARNING)) {
-          log.logWarning(getName() + ": keep alive time out cannot be set");
-        }
-        throw new ErrorException();
-      }
-    }
-
-    // Wait for client connections or until timeout is reached
-    try {
-      BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      httpRequestReader.readHTTPRequest(bufferedReader);
-    } catch (ErrorException ee) {
-      if (log.isLog(CADILog.LEVEL_INFO)) {
-        log.logInfo(getName() + ": malformed URL");
-      }
-      throw new ErrorException(ee.getMessage(), ee.getErrorCode());
-    } catch (SocketTimeoutException ste) {
-      if (log.isLog(CADILog.LEVEL_INFO)) {
-        log.logInfo(getName() + ": keep alive timeout has been reached");
-      }
-      throw new ErrorException();
-    } catch (IOException e) {
-      if (log.isLog(CADILog.LEVEL_INFO)) {
-        log.logInfo(getName() + ": remote host (" + socket.getRemoteSocketAddress() + ") has been closed unexpectedly");
-      }
-      throw new ErrorException();
-    }
-
-    httpRequest = httpRequestReader.getHTTPRequest();
-    String requestLine = httpRequest.getRequestURI();
-    //Hashtable<String, String> headers = httpRequest.getHTTPHeaders();
-
-
-    if (requestLine == null) {
-      throw new ErrorException();
-    }
-
-    if (log.isLog(CADILog.LEVEL_INFO)) {
-      log.logInfo(getName() + "(Received request):\n" + (socket + "\n" + httpRequestReader.toString()));
-    }
-
-    //NOTE: HTTP headers must be parsed here
-
-    // Parses JPIP request and get JPIP fields
-    JPIPRequestDecoder jpipRequestDecoder = new JPIPRequestDecoder();
-    jpipRequestDecoder.decoder(httpRequest.getRequestURI());
-    jpipRequestFields = jpipRequestDecoder.getJPIPRequestFields();
+  private JP2KServerLogicalTarget loadLogicalTarget(String target) throws WarningException {
+    LogicalTargetLoader loader = new LogicalTargetLoader(targetsPath, log);
+    loader.setCachePath(cachePath);
+    loader.setDeliveringMode(deliveringMode);
+    loader.setPredictiveModel(predictiveModel);
+    loader.setOnDemandIndexing(onDemandIndexing);
+    loader.setPacketHeadersCache(packetHeadersCache);
+    loader.setResponsePlanCache(responsePlanCache);
+    return loader.load(getName(), target);
   }
 
   /**
@@ -1343,6 +1489,61 @@ public class Worker extends Thread implements StatusCodes, EORCodes {
     }
   }
 
+  /**
+   * Checks whether a newer request of the channel whose response is being
+   * sent has been received, and it does not ask the server to complete the
+   * current response (<code>wait=yes</code>). The newer request can be
+   * queued in the {@link #sessionTasksQueue}, or it can have been sent
+   * through the same connection. Checks are done at most every
+   * {@link #PREEMPTION_CHECK_INTERVAL} nanoseconds.
+   *
+   * @return <code>true</code> if the response has to be preempted.
+   */
+  private boolean hasPreemptingRequest() {
+    long now = System.nanoTime();
+    if (now - lastPreemptionCheck < PREEMPTION_CHECK_INTERVAL) {
+      return false;
+    }
+    lastPreemptionCheck = now;
+
+    if ((sessionTasksQueue != null) && sessionTasksQueue.hasPreemptingRequest()) {
+      return true;
+    }
+
+    if (connection == null) {
+      return false;
+    }
+    String head = connection.peekRequest();
+    if ((head == null) || head.equals(pipelinedRequestHead)) {
+      return (head != null) && pipelinedRequestPreempts;
+    }
+
+    // Decodes the pipelined request
+    pipelinedRequestHead = head;
+    pipelinedRequestPreempts = false;
+    if (pipelinedRequestReader == null) {
+      pipelinedRequestReader = new HTTPRequestReader();
+      pipelinedRequestDecoder = new JPIPRequestDecoder();
+    }
+    try {
+      HTTPRequest request = pipelinedRequestReader.readHTTPRequest(
+              new BufferedReader(new StringReader(head)));
+      pipelinedRequestDecoder.decoder(request.getRequestURI());
+    } catch (ErrorException e) {
+      return false;
+    } catch (WarningException e) {
+      return false;
+    } catch (IOException e) {
+      return false;
+    }
+    JPIPRequestFields fields = pipelinedRequestDecoder.getJPIPRequestFields();
+    String pipelinedCid = fields.channelField.cid;
+    pipelinedRequestPreempts = !fields.serverControlField.wait
+            && ((pipelinedCid == null) ? isStatelessRequest : pipelinedCid.equals(cid));
+
+    return pipelinedRequestPreempts;
+  }
+
   /**
    * This method is used to update the cache with the data that has been sent
    * to the client. Therefore, it must be called after the response has been
@@ -0,0 +1,257 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.LogicalTarget.JPEG2000.Codestream;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import CADI.Common.Util.MemoryBoundedCache;
+import GiciException.ErrorException;
+
+/**
+ * This class implements a cache of encoded packet headers which is shared by
+ * all the clients of the server.
+ * <p>
+ * The rate-distortion methods which build their own quality layers (see
+ * {@link CADI.Server.LogicalTarget.JPEG2000.DeliveringModes.CPIDelivery} and
+ * {@link CADI.Server.LogicalTarget.JPEG2000.DeliveringModes.CoRDDelivery})
+ * encode the packet headers of a precinct with a
+ * {@link CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersEncoder},
+ * whose state depends on the packets previously encoded for the same
+ * precinct. Thus, the packet headers of a precinct are a sequence, one
+ * packet header for each virtual layer, which only depends on the logical
+ * target, the precinct and the rate-distortion method (and its
+ * parameters). This cache saves
+ * the whole sequence of a precinct, so that the packet header of a virtual
+ * layer is the element of the sequence at that position.
+ * <p>
+ * Sequences are identified by the target identifier, the unique precinct
+ * identifier, the delivering mode and its subtype (for instance, the CPI
+ * type) and, optionally, a signature. The signature must be used when the
+ * sequence also depends on the request (for instance, on the scanning order
+ * of the CoRD method).
+ * <p>
+ * The memory used by the cache is bounded, and a sequence requested by
+ * several threads is only encoded once (see
+ * {@link CADI.Common.Util.MemoryBoundedCache}).
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; get<br>
+ * &nbsp; getHitRate<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.1 2012/07/04
+ */
+public class PacketHeadersCache extends MemoryBoundedCache<PacketHeadersCache.Key, byte[][]> {
+
+  /**
+   * Estimated memory, in bytes, used by an entry of the cache besides the
+   * packet headers and the signature (map entry, key and arrays headers).
+   */
+  private static final int ENTRY_OVERHEAD = 112;
+
+  /**
+   * Estimated memory, in bytes, used by an array besides its elements.
+   */
+  private static final int ARRAY_OVERHEAD = 16;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param maxMemory maximum memory, in bytes, which can be used by the
+   * 	cache.
+   */
+  public PacketHeadersCache(long maxMemory) {
+    super(maxMemory, 1024);
+  }
+
+  /**
+   * Gets the sequence of packet headers of a precinct from the cache or, if
+   * it is not in the cache, encodes it by means of the <code>encoder</code>
+   * and saves it in the cache.
+   * <p>
+   * The returned arrays are shared by all the clients, so they must not be
+   * modified.
+   *
+   * @param tid definition in {@link CADI.Common.Network.JPIP.TargetField#tid}.
+   * @param inClassIdentifier definition in {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}.
+   * @param deliveringMode the delivering mode (see
+   * 	{@link CADI.Server.ServerDefaultValues#DELIVERING_MODE}).
+   * @param subtype the subtype of the delivering mode.
+   * @param signature further data which identifies the sequence, or
+   * 	<code>null</code> if the sequence is only identified by the other
+   * 	parameters.
+   * @param encoder the job which encodes the sequence of packet headers.
+   *
+   * @return the sequence of packet headers. Indexes mean: [virtual layer][byte].
+   *
+   * @throws ErrorException if the packet headers cannot be encoded. The
+   * 	exception thrown by the encoder is passed on.
+   */
+  public byte[][] get(String tid, long inClassIdentifier, int deliveringMode,
+                      int subtype, int[] signature,
+                      Callable<byte[][]> encoder) throws ErrorException {
+    if (tid == null) {
+      throw new NullPointerException();
+    }
+
+    try {
+      return get(new Key(tid, inClassIdentifier, deliveringMode, subtype, signature),
+                 encoder);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ErrorException) {
+        throw (ErrorException)e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)e.getCause();
+      }
+      throw new ErrorException("Packet headers cannot be encoded");
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "maxMemory=" + getMaxMemory();
+    str += ", usedMemory=" + getUsedMemory();
+    str += ", sequences=" + size();
+    str += ", hits=" + getHits();
+    str += ", misses=" + getMisses();
+    str += ", evictions=" + getEvictions();
+    str += ", hitRate=" + getHitRate();
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Packet Headers Cache out to the specified output stream.
+   * This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Packet Headers Cache --");
+
+    out.println("maxMemory: " + getMaxMemory());
+    out.println("usedMemory: " + getUsedMemory());
+    out.println("sequences: " + size());
+    out.println("hits: " + getHits());
+    out.println("misses: " + getMisses());
+    out.println("evictions: " + getEvictions());
+    out.println("hitRate: " + getHitRate());
+
+    out.flush();
+  }
+
+  // =========================== protected methods =============================
+  /*
+   * (non-Javadoc)
+   * @see CADI.Common.Util.MemoryBoundedCache#getMemory(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  protected long getMemory(Key key, byte[][] headers) {
+    long memory = ENTRY_OVERHEAD + ARRAY_OVERHEAD + 8L * headers.length;
+    for (byte[] header : headers) {
+      if (header != null) {
+        memory += ARRAY_OVERHEAD + header.length;
+      }
+    }
+    if (key.signature != null) {
+      memory += ARRAY_OVERHEAD + 4L * key.signature.length;
+    }
+    return memory;
+  }
+
+  // ============================ internal classes =============================
+  /**
+   * Identifies a sequence of packet headers in the cache.
+   */
+  static final class Key {
+
+    private final String tid;
+
+    private final long inClassIdentifier;
+
+    private final int deliveringMode;
+
+    private final int subtype;
+
+    private final int[] signature;
+
+    private final int hashCode;
+
+    Key(String tid, long inClassIdentifier, int deliveringMode, int subtype,
+        int[] signature) {
+      this.tid = tid;
+      this.inClassIdentifier = inClassIdentifier;
+      this.deliveringMode = deliveringMode;
+      this.subtype = subtype;
+      this.signature = signature;
+
+      int hash = tid.hashCode();
+      hash = 31 * hash + (int)(inClassIdentifier ^ (inClassIdentifier >>> 32));
+      hash = 31 * hash + deliveringMode;
+      hash = 31 * hash + subtype;
+      hash = 31 * hash + Arrays.hashCode(signature);
+      hashCode = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key key = (Key)obj;
+      return (hashCode == key.hashCode)
+              && (inClassIdentifier == key.inClassIdentifier)
+              && (deliveringMode == key.deliveringMode)
+              && (subtype == key.subtype)
+              && tid.equals(key.tid)
+              && Arrays.equals(signature, key.signature);
+    }
+  }
+}
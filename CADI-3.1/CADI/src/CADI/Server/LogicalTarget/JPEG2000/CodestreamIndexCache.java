@@ -0,0 +1,592 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012 Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.LogicalTarget.JPEG2000;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.CodestreamIndex;
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.FragmentArrayIndex;
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.PacketHeaderIndexTable;
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.PrecinctPacketIndexTable;
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.TileHeaderIndexTable;
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.TilePartIndexTable;
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PackedHeaderParameters;
+
+/**
+ * This class saves the index of a logical target in a cache directory and
+ * loads it back, so a target does not need to be indexed again each time
+ * the server is started.
+ * <p>
+ * The index is saved in a binary file (one for each target and indexing
+ * mode) whose format is:<br>
+ * &nbsp; magic number and format version<br>
+ * &nbsp; target file name, length, and last modification time<br>
+ * &nbsp; indexing mode (packets or coding passes)<br>
+ * &nbsp; main header and tile header positions<br>
+ * &nbsp; tile-part index table (version, size, and its fragments)<br>
+ * &nbsp; location of the packed packet headers (PPM or PPT), if any<br>
+ * &nbsp; for each precinct, the file pointers and lengths of its packets
+ * and packed packet headers (or its coding passes and zero bit planes)<br>
+ * &nbsp; end mark<br>
+ * All values are written in big-endian order. The file is memory-mapped
+ * when it is loaded, and it is discarded if the target has been modified
+ * since the index was saved or if the file is not consistent with the
+ * codestream structure. Index tables are rebuilt on the heap from the
+ * mapping, since they are also filled in when precincts are indexed on
+ * demand; the mapping is released once the index has been read.
+ * <p>
+ * Files are written to a temporal file which is then renamed, so a
+ * partially written index is never read.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; load<br>
+ * &nbsp; save<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.2 2012/07/04
+ */
+public class CodestreamIndexCache {
+
+  /**
+   * Is the path of the directory where the indexes are saved.
+   */
+  private String cachePath = null;
+
+  /**
+   * Magic number of the index files ("CIDX").
+   */
+  private static final int MAGIC_NUMBER = 0x43494458;
+
+  /**
+   * Version of the index file format. It must be changed each time the
+   * format is modified, so indexes saved by previous versions are ignored.
+   */
+  public static final int FORMAT_VERSION = 3;
+
+  /**
+   * Mark written at the end of the index files ("END ").
+   */
+  private static final int END_MARK = 0x454E4420;
+
+  /**
+   * Extension of the index files.
+   */
+  public static final String FILE_EXTENSION = ".cidx";
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param cachePath definition in {@link #cachePath}.
+   */
+  public CodestreamIndexCache(String cachePath) {
+    if (cachePath == null) {
+      throw new NullPointerException();
+    }
+
+    this.cachePath = cachePath;
+  }
+
+  /**
+   * Returns the {@link #cachePath} attribute.
+   *
+   * @return the {@link #cachePath} attribute.
+   */
+  public String getCachePath() {
+    return cachePath;
+  }
+
+  /**
+   * Loads the index of a target from the cache directory. The tile-part,
+   * tile header, precinct packet, and packet header index tables of the
+   * <code>cidx</code> object are set. Its main header index table must
+   * have already been set, since it is used to check the saved index.
+   *
+   * @param targetFile the file where the target is stored.
+   * @param codingPasses indicates whether the index has been built at
+   * 	coding pass level (see
+   * 	{@link JP2KLogicalTargetIndexer#setReadCodingPasses(boolean)}).
+   * @param codestream the codestream structure of the target.
+   * @param cidx the codestream index to be filled in.
+   *
+   * @return <code>true</code> if the index has been loaded. Otherwise,
+   * 	<code>false</code> if there is not a valid saved index for the target.
+   */
+  public boolean load(File targetFile, boolean codingPasses,
+                      ServerJPEG2KCodestream codestream, CodestreamIndex cidx) {
+
+    File indexFile = getIndexFile(targetFile, codingPasses);
+    if (!indexFile.isFile()) {
+      return false;
+    }
+
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(indexFile, "r");
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer buffer =
+              channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      // Header
+      if ((buffer.getInt() != MAGIC_NUMBER)
+              || (buffer.getInt() != FORMAT_VERSION)) {
+        return false;
+      }
+      byte[] name = new byte[buffer.getInt()];
+      buffer.get(name);
+      if (!targetFile.getAbsolutePath().equals(new String(name, "UTF-8"))
+              || (buffer.getLong() != targetFile.length())
+              || (buffer.getLong() != targetFile.lastModified())
+              || ((buffer.get() != 0) != codingPasses)
+              || (buffer.getLong() != cidx.mhix.mainHeaderInitialPos)
+              || (buffer.getInt() != cidx.mhix.mainHeaderLength)) {
+        return false;
+      }
+
+      TileHeaderIndexTable thix = new TileHeaderIndexTable();
+      thix.tileHeaderFilePointer = buffer.getLong();
+      thix.tileHeaderLength = buffer.getInt();
+
+      // Tile parts
+      TilePartIndexTable tpix = new TilePartIndexTable();
+      int faixVersion = buffer.getInt();
+      if (faixVersion >= 0) {
+        int numRows = buffer.getInt();
+        int elementsPerRow = buffer.getInt();
+        FragmentArrayIndex faix =
+                new FragmentArrayIndex(faixVersion, numRows, elementsPerRow);
+        boolean hasAux = (faixVersion == FragmentArrayIndex.VERSION_2)
+                || (faixVersion == FragmentArrayIndex.VERSION_3);
+        for (int row = 0; row < numRows; row++) {
+          for (int e = 0; e < elementsPerRow; e++) {
+            faix.setOffset(row, e, buffer.getLong());
+            faix.setLength(row, e, buffer.getLong());
+            if (hasAux) {
+              faix.setAux(row, e, buffer.getInt());
+            }
+          }
+        }
+        tpix = new TilePartIndexTable(faix);
+      }
+
+      // Packed packet headers
+      PacketHeaderIndexTable phix = new PacketHeaderIndexTable();
+      int packedMode = buffer.get();
+      if (packedMode != 0) {
+        PackedHeaderParameters packedHeaders = new PackedHeaderParameters();
+        int numFragments = buffer.getInt();
+        for (int i = 0; i < numFragments; i++) {
+          packedHeaders.addFragment(buffer.getLong(), buffer.getInt());
+        }
+        int numMarkerSegments = buffer.getInt();
+        for (int i = 0; i < numMarkerSegments; i++) {
+          packedHeaders.addMarkerSegment(buffer.getLong(), buffer.getInt());
+        }
+        phix.setPackedHeaders(packedHeaders, packedMode == 2);
+      }
+
+      // Precincts
+      PrecinctPacketIndexTable ppix = new PrecinctPacketIndexTable();
+      ppix.setBaseFilePointer(thix.tileHeaderFilePointer);
+      int numPrecincts = buffer.getInt();
+      if (numPrecincts != getNumPrecincts(codestream)) {
+        return false;
+      }
+      for (int i = 0; i < numPrecincts; i++) {
+        long inClassIdentifier = buffer.getLong();
+        if (!codingPasses) {
+          int numLayers = buffer.getInt();
+          if (numLayers < 0) {
+            continue;
+          }
+          ppix.initializeIndexTable(FragmentArrayIndex.VERSION_0,
+                                    inClassIdentifier, numLayers);
+          for (int l = 0; l < numLayers; l++) {
+            ppix.setFilePointer(inClassIdentifier, l, buffer.getLong());
+            ppix.setLength(inClassIdentifier, l, buffer.getLong());
+          }
+          if (phix.isPacked()) {
+            phix.initializeIndexTable(inClassIdentifier, numLayers);
+            for (int l = 0; l < numLayers; l++) {
+              phix.setOffset(inClassIdentifier, l, buffer.getInt() & 0xFFFFFFFFL);
+              phix.setLength(inClassIdentifier, l, buffer.getInt());
+            }
+          }
+        } else {
+          int numSubbands = buffer.getInt();
+          if (numSubbands < 0) {
+            continue;
+          }
+          ServerJPEG2KPrecinct precinctObj =
+                  codestream.getPrecinct(inClassIdentifier);
+          if (numSubbands != precinctObj.getNumSubbands()) {
+            return false;
+          }
+          ppix.initializeIndexTable(FragmentArrayIndex.VERSION_0,
+                                    inClassIdentifier, true, precinctObj);
+          long[][][][] filePointers = ppix.getFilePointers(inClassIdentifier);
+          int[][][][] lengths = ppix.getLengths(inClassIdentifier);
+          int[][][] zeroBitPlanes = ppix.getZeroBitPlanes(inClassIdentifier);
+          for (int sb = 0; sb < numSubbands; sb++) {
+            if ((buffer.getInt() != filePointers[sb].length)
+                    || (buffer.getInt() != (filePointers[sb].length > 0
+                                            ? filePointers[sb][0].length : 0))) {
+              return false;
+            }
+            for (int yb = 0; yb < filePointers[sb].length; yb++) {
+              for (int xb = 0; xb < filePointers[sb][yb].length; xb++) {
+                zeroBitPlanes[sb][yb][xb] = buffer.getInt();
+                int numCodingPasses = buffer.getInt();
+                if (numCodingPasses < 0) {
+                  continue;
+                }
+                filePointers[sb][yb][xb] = new long[numCodingPasses];
+                lengths[sb][yb][xb] = new int[numCodingPasses];
+                for (int cp = 0; cp < numCodingPasses; cp++) {
+                  filePointers[sb][yb][xb][cp] = buffer.getLong();
+                  lengths[sb][yb][xb][cp] = buffer.getInt();
+                }
+              }
+            }
+          }
+          ppix.compact(inClassIdentifier);
+        }
+      }
+
+      if (buffer.getInt() != END_MARK) {
+        return false;
+      }
+
+      cidx.tpix = tpix;
+      cidx.thix = thix;
+      cidx.ppix = ppix;
+      cidx.phix = phix;
+
+    } catch (IOException e) {
+      return false;
+    } catch (RuntimeException e) {
+      // Index file is truncated or it is not consistent with the codestream
+      return false;
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Saves the index of a target in the cache directory.
+   *
+   * @param targetFile the file where the target is stored.
+   * @param codingPasses indicates whether the index has been built at
+   * 	coding pass level.
+   * @param codestream the codestream structure of the target.
+   * @param cidx the codestream index of the target.
+   *
+   * @throws IOException if the index cannot be written.
+   */
+  public void save(File targetFile, boolean codingPasses,
+                   ServerJPEG2KCodestream codestream, CodestreamIndex cidx)
+          throws IOException {
+
+    File indexFile = getIndexFile(targetFile, codingPasses);
+    File tmpFile = File.createTempFile(indexFile.getName(), ".tmp",
+                                       indexFile.getParentFile());
+    DataOutputStream out = null;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(tmpFile), 65536));
+
+      // Header
+      byte[] name = targetFile.getAbsolutePath().getBytes("UTF-8");
+      out.writeInt(MAGIC_NUMBER);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(name.length);
+      out.write(name);
+      out.writeLong(targetFile.length());
+      out.writeLong(targetFile.lastModified());
+      out.writeByte(codingPasses ? 1 : 0);
+      out.writeLong(cidx.mhix.mainHeaderInitialPos);
+      out.writeInt(cidx.mhix.mainHeaderLength);
+      out.writeLong(cidx.thix.tileHeaderFilePointer);
+      out.writeInt(cidx.thix.tileHeaderLength);
+
+      // Tile parts
+      writeTileParts(out, cidx.tpix);
+
+      // Packed packet headers
+      PacketHeaderIndexTable phix = cidx.phix;
+      boolean packed = (phix != null) && phix.isPacked();
+      if (!packed) {
+        out.writeByte(0);
+      } else {
+        PackedHeaderParameters packedHeaders = phix.getPackedHeaders();
+        out.writeByte(phix.isMainHeaderPackedHeaders() ? 2 : 1);
+        out.writeInt(packedHeaders.getNumFragments());
+        for (int i = 0; i < packedHeaders.getNumFragments(); i++) {
+          out.writeLong(packedHeaders.getFilePointer(i));
+          out.writeInt(packedHeaders.getLength(i));
+        }
+        out.writeInt(packedHeaders.getNumMarkerSegments());
+        for (int i = 0; i < packedHeaders.getNumMarkerSegments(); i++) {
+          out.writeLong(packedHeaders.getMarkerSegmentFilePointer(i));
+          out.writeInt(packedHeaders.getMarkerSegmentLength(i));
+        }
+      }
+
+      // Precincts
+      PrecinctPacketIndexTable ppix = cidx.ppix;
+      out.writeInt(getNumPrecincts(codestream));
+      int numTiles = codestream.getNumTiles();
+      for (int t = 0; t < numTiles; t++) {
+        ServerJPEG2KTile tileObj = codestream.getTile(t);
+        int numLayers = tileObj.getNumLayers();
+        int numComponents = codestream.getZSize();
+        for (int c = 0; c < numComponents; c++) {
+          ServerJPEG2KComponent componentObj = tileObj.getComponent(c);
+          int maxWTLevels = componentObj.getWTLevels();
+          for (int r = 0; r <= maxWTLevels; r++) {
+            ServerJPEG2KResolutionLevel rLevelObj =
+                    componentObj.getResolutionLevel(r);
+            int numPrecincts = rLevelObj.getNumPrecincts();
+            for (int p = 0; p < numPrecincts; p++) {
+              long inClassIdentifier =
+                      rLevelObj.getPrecinct(p).getInClassIdentifier();
+              out.writeLong(inClassIdentifier);
+              if (!ppix.isInitializedIndexTable(inClassIdentifier)) {
+                out.writeInt(-1);
+              } else if (!codingPasses) {
+                out.writeInt(numLayers);
+                for (int l = 0; l < numLayers; l++) {
+                  out.writeLong(ppix.getFilePointer(inClassIdentifier, l));
+                  out.writeLong(ppix.getLength(inClassIdentifier, l));
+                }
+                if (packed) {
+                  for (int l = 0; l < numLayers; l++) {
+                    out.writeInt(phix.getOffset(inClassIdentifier, l));
+                    out.writeInt(phix.getLength(inClassIdentifier, l));
+                  }
+                }
+              } else {
+                writeCodingPasses(out, ppix, inClassIdentifier);
+              }
+            }
+          }
+        }
+      }
+
+      out.writeInt(END_MARK);
+      out.close();
+      out = null;
+
+      if (!tmpFile.renameTo(indexFile)) {
+        // Some platforms do not replace an existing file
+        indexFile.delete();
+        if (!tmpFile.renameTo(indexFile)) {
+          throw new IOException("Index file \"" + indexFile
+                  + "\" cannot be written");
+        }
+      }
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+        }
+      }
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Returns the file where the index of a target is saved.
+   *
+   * @param targetFile the file where the target is stored.
+   * @param codingPasses indicates whether the index has been built at
+   * 	coding pass level.
+   *
+   * @return the index file.
+   */
+  public File getIndexFile(File targetFile, boolean codingPasses) {
+    // The hash code of the absolute path avoids collisions between targets
+    // with the same name in different directories. Collisions of the hash
+    // code are detected when the index is loaded.
+    String path = targetFile.getAbsolutePath();
+    String name = targetFile.getName() + "-"
+            + Integer.toHexString(path.hashCode())
+            + (codingPasses ? ".cp" : ".pk") + FILE_EXTENSION;
+    return new File(cachePath, name);
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "cachePath=" + cachePath;
+    str += ", format version=" + FORMAT_VERSION;
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Codestream Index Cache fields out to the specified output
+   * stream. This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Codestream index cache --");
+
+    out.println("Cache path: " + cachePath);
+    out.println("Format version: " + FORMAT_VERSION);
+
+    out.flush();
+  }
+
+  // ============================ private methods ==============================
+  /**
+   * Writes the fragment array of the tile-part index table. Only its
+   * version is written (-1) if the table is empty.
+   *
+   * @param out the output stream.
+   * @param tpix the tile-part index table.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeTileParts(DataOutputStream out, TilePartIndexTable tpix)
+          throws IOException {
+
+    FragmentArrayIndex faix = (tpix != null) ? tpix.faix : null;
+    if ((faix == null) || (faix.getVersion() < 0)) {
+      out.writeInt(-1);
+      return;
+    }
+
+    int version = faix.getVersion();
+    int numRows = faix.getNumRows();
+    int elementsPerRow = faix.getNumElementsPerRow();
+    boolean hasAux = (version == FragmentArrayIndex.VERSION_2)
+            || (version == FragmentArrayIndex.VERSION_3);
+    out.writeInt(version);
+    out.writeInt(numRows);
+    out.writeInt(elementsPerRow);
+    for (int row = 0; row < numRows; row++) {
+      for (int e = 0; e < elementsPerRow; e++) {
+        out.writeLong(faix.getOffset(row, e));
+        out.writeLong(faix.getLength(row, e));
+        if (hasAux) {
+          out.writeInt(faix.getAux(row, e));
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the coding passes and zero bit planes of a precinct.
+   *
+   * @param out the output stream.
+   * @param ppix the precinct packet index table.
+   * @param inClassIdentifier the precinct identifier.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeCodingPasses(DataOutputStream out,
+                                 PrecinctPacketIndexTable ppix,
+                                 long inClassIdentifier) throws IOException {
+
+    long[][][][] filePointers = ppix.getFilePointers(inClassIdentifier);
+    int[][][][] lengths = ppix.getLengths(inClassIdentifier);
+    int[][][] zeroBitPlanes = ppix.getZeroBitPlanes(inClassIdentifier);
+
+    out.writeInt(filePointers.length);
+    for (int sb = 0; sb < filePointers.length; sb++) {
+      out.writeInt(filePointers[sb].length);
+      out.writeInt(filePointers[sb].length > 0 ? filePointers[sb][0].length : 0);
+      for (int yb = 0; yb < filePointers[sb].length; yb++) {
+        for (int xb = 0; xb < filePointers[sb][yb].length; xb++) {
+          out.writeInt(zeroBitPlanes[sb][yb][xb]);
+          long[] pointers = filePointers[sb][yb][xb];
+          if (pointers == null) {
+            out.writeInt(-1);
+          } else {
+            out.writeInt(pointers.length);
+            for (int cp = 0; cp < pointers.length; cp++) {
+              out.writeLong(pointers[cp]);
+              out.writeInt(lengths[sb][yb][xb][cp]);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of precincts of a codestream.
+   *
+   * @param codestream the codestream structure.
+   *
+   * @return the number of precincts.
+   */
+  private static int getNumPrecincts(ServerJPEG2KCodestream codestream) {
+    int numPrecincts = 0;
+    int numTiles = codestream.getNumTiles();
+    for (int t = 0; t < numTiles; t++) {
+      ServerJPEG2KTile tileObj = codestream.getTile(t);
+      int numComponents = codestream.getZSize();
+      for (int c = 0; c < numComponents; c++) {
+        ServerJPEG2KComponent componentObj = tileObj.getComponent(c);
+        int maxWTLevels = componentObj.getWTLevels();
+        for (int r = 0; r <= maxWTLevels; r++) {
+          numPrecincts += componentObj.getResolutionLevel(r).getNumPrecincts();
+        }
+      }
+    }
+    return numPrecincts;
+  }
+}
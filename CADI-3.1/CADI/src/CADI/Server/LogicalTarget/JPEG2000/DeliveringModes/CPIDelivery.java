@@ -31,14 +31,19 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
 
 import CADI.Common.LogicalTarget.JPEG2000.JPCParameters;
 import CADI.Common.Network.JPIP.*;
 import CADI.Server.Cache.ServerCacheModel;
+import CADI.Server.Core.FileExtents;
+import CADI.Server.ServerDefaultValues;
 import CADI.Server.Core.ResponseData;
 import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
 import CADI.Server.LogicalTarget.JPEG2000.Codestream.JPCMainHeaderEncoder;
 import CADI.Server.LogicalTarget.JPEG2000.Codestream.JPKMainHeaderEncoder;
+import CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache;
 import CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersEncoder;
 import CADI.Server.LogicalTarget.JPEG2000.ServerJPEG2KCodestream;
 import CADI.Server.LogicalTarget.JPEG2000.ServerJPEG2KComponent;
@@ -100,9 +105,13 @@ import GiciStream.ByteStream;
  * &nbsp; runResponseData<br>
  * &nbsp; getJPIPMessageData<br>
  * &nbsp; getEORReasonCode<br>
+ * <p>
+ * Packet headers of each precinct are shared by all the clients through the
+ * packet headers cache of the logical target, if any (see
+ * {@link CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache}).
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 2.0.0 2009/04/13
+ * @version 2.1.0 2012/07/04
  */
 public class CPIDelivery {
 
@@ -747,6 +756,131 @@ public class CPIDelivery {
     return maxSubbandWeight;
   }
 
+  /**
+   * Returns the packet headers of a precinct, one for each virtual layer of
+   * a CPI type.
+   * <p>
+   * Packet headers only depend on the logical target, the precinct, the
+   * CPI type and the total number of virtual levels (which depends on the
+   * subband weights). Thus, they are taken from the packet headers cache of
+   * the logical target (see
+   * {@link CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache}),
+   * using the number of virtual levels as the signature, and they are only
+   * encoded if they are not in the cache. The returned
+   * arrays are shared with other requests, so they must not be modified.
+   *
+   * @param inClassIdentifier definition in {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}.
+   * @param cpiType the CPI type. Allowed values are
+   * 	{@link #PACKET_PER_PRECINCT}, {@link #PACKET_PER_CODING_PASS},
+   * 	{@link #PACKET_PER_BIT_PLANE} and {@link #SCALE}.
+   * @param totalNumVirtualLevels the total number of virtual coding levels or
+   * 	bit planes of the CPI type.
+   * @param codingPassesLengths a multiple array with the length of all coding
+   * 	passes belonging to the precinct.
+   *
+   * @return the packet headers. Indexes mean: [packet][byte]. A packet
+   * 	header is <code>null</code> if the packet is not built.
+   *
+   * @throws ErrorException if the packet headers cannot be built.
+   */
+  private byte[][] getPacketHeaders(final long inClassIdentifier,
+                                    final int cpiType,
+                                    final int totalNumVirtualLevels,
+                                    final int[][][][] codingPassesLengths) throws ErrorException {
+
+    PacketHeadersCache packetHeadersCache = logicalTarget.getPacketHeadersCache();
+    if (packetHeadersCache == null) {
+      return encodePacketHeaders(inClassIdentifier, cpiType, totalNumVirtualLevels, codingPassesLengths);
+    }
+
+    return packetHeadersCache.get(logicalTarget.getTID(), inClassIdentifier,
+            ServerDefaultValues.DELIVERING_CPI, cpiType,
+            new int[] {totalNumVirtualLevels},
+            new Callable<byte[][]>() {
+
+              public byte[][] call() throws ErrorException {
+                return encodePacketHeaders(inClassIdentifier, cpiType, totalNumVirtualLevels, codingPassesLengths);
+              }
+            });
+  }
+
+  /**
+   * Encodes the packet headers of a precinct for all the virtual layers of a
+   * CPI type, in the same order they are delivered.
+   * <p>
+   * Further information, see
+   * {@link #getPacketHeaders(long, int, int, int[][][][])}.
+   *
+   * @param inClassIdentifier definition in {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}.
+   * @param cpiType the CPI type.
+   * @param totalNumVirtualLevels the total number of virtual coding levels or
+   * 	bit planes of the CPI type.
+   * @param codingPassesLengths a multiple array with the length of all coding
+   * 	passes belonging to the precinct.
+   *
+   * @return the packet headers. Indexes mean: [packet][byte].
+   *
+   * @throws ErrorException if the packet headers cannot be built.
+   */
+  private byte[][] encodePacketHeaders(long inClassIdentifier, int cpiType,
+                                       int totalNumVirtualLevels,
+                                       int[][][][] codingPassesLengths) throws ErrorException {
+
+    // Create packet-headers encoder engine
+    PacketHeadersEncoder packetHeading = new PacketHeadersEncoder();
+
+    int[] TCRP = codestream.findTCRP(inClassIdentifier);
+    int tile = TCRP[0];
+    int z = TCRP[1];
+    int rLevel = TCRP[2];
+
+    byte[][] packetHeaders = null;
+
+    switch (cpiType) {
+      case PACKET_PER_PRECINCT:
+        setFirstLayerOnePacketPerPrecinct(packetHeading, inClassIdentifier, codingPassesLengths);
+        packetHeaders = new byte[1][];
+        try {
+          packetHeaders[0] = packetHeading.encodePacketHeader(inClassIdentifier, codingPassesLengths);
+        } catch (IllegalAccessException e) {
+          e.printStackTrace();
+        }
+        break;
+
+      case PACKET_PER_CODING_PASS:
+        setFirstLayerOnePacketPerCodingPass(packetHeading, inClassIdentifier, tile, z, rLevel, codingPassesLengths, totalNumVirtualLevels);
+        packetHeaders = new byte[totalNumVirtualLevels][];
+        for (int virtualCodingLevel = totalNumVirtualLevels - 1; virtualCodingLevel >= 0; virtualCodingLevel--) {
+          packetHeaders[totalNumVirtualLevels - 1 - virtualCodingLevel] =
+                  getPacketHeaderOnePacketPerCodingPass(packetHeading, inClassIdentifier, tile, z, rLevel, virtualCodingLevel, codingPassesLengths);
+        }
+        break;
+
+      case PACKET_PER_BIT_PLANE:
+        setFirstLayerOnePacketPerBitPlane(packetHeading, inClassIdentifier, tile, z, rLevel, codingPassesLengths);
+        packetHeaders = new byte[totalNumVirtualLevels + 1][];
+        for (int virtualBitPlane = 0; virtualBitPlane <= totalNumVirtualLevels; virtualBitPlane++) {
+          packetHeaders[virtualBitPlane] =
+                  getPacketHeaderOnePacketPerBitPlane(packetHeading, inClassIdentifier, tile, z, rLevel, virtualBitPlane, totalNumVirtualLevels, codingPassesLengths);
+        }
+        break;
+
+      case SCALE:
+        setFirstLayerScale(packetHeading, inClassIdentifier, tile, z, rLevel, codingPassesLengths, totalNumVirtualLevels);
+        ArrayList<byte[]> scaleHeaders = new ArrayList<byte[]>();
+        for (int virtualCodingLevel = 0; virtualCodingLevel < totalNumVirtualLevels; virtualCodingLevel = getNextCodingLevel(virtualCodingLevel)) {
+          scaleHeaders.add(getPacketHeaderScale(packetHeading, inClassIdentifier, tile, z, rLevel, totalNumVirtualLevels, virtualCodingLevel, codingPassesLengths));
+        }
+        packetHeaders = scaleHeaders.toArray(new byte[scaleHeaders.size()][]);
+        break;
+
+      default:
+        throw new IllegalArgumentException();
+    }
+
+    return packetHeaders;
+  }
+
   /**
    * This method is used to deliver the requested window of interes using
    * only one packet per precinct. Therefore, the delivered image only has
@@ -767,15 +901,14 @@ public class CPIDelivery {
     assert (actualViewWindow != null);
     assert (codestream != null);
 
-    // Create packet-headers encoder engine
-    PacketHeadersEncoder packetHeading = new PacketHeadersEncoder();
-
     // Find the precincts which are relevants to the view window
-    ArrayList<Long> relevantPrecincts =
+    long[] relevantPrecincts =
             RelevantPrecinctsFinder.TRPCOrder(codestream, actualViewWindow,
             discardLevels);
-    int numOfRelevantPrecincts = relevantPrecincts.size();
+    int numOfRelevantPrecincts = relevantPrecincts.length;
 
+    // Precincts which have been sent
+    HashSet<Long> sentPrecincts = new HashSet<Long>(numOfRelevantPrecincts);
 
     // Contains the offset of the actual data-bin. It is useful to allocate
     // each coding level in the data-bin position
@@ -794,12 +927,12 @@ public class CPIDelivery {
       //System.out.println("- Virtual coding level: "+vCodingLevel);
 
       //	LOOP ON PRECINCTS
-      int numOrderedRelevantPrecincts = relevantPrecincts.size();
+      int numOrderedRelevantPrecincts = relevantPrecincts.length;
       for (int precIndex = 0; precIndex < numOrderedRelevantPrecincts && !finish; precIndex++) {
-        long inClassIdentifier = relevantPrecincts.get(precIndex);
+        long inClassIdentifier = relevantPrecincts[precIndex];
 
         // If precinct has been sent, go to next one.
-        if (packetHeading.isSet(inClassIdentifier)) {
+        if (sentPrecincts.contains(inClassIdentifier)) {
           continue;
         }
 
@@ -816,21 +949,16 @@ public class CPIDelivery {
         int precinct = TCRP[3];
 
 
-        // PACKET HEADER
-        // Set first layer
+        // Is this the coding level of the precinct?
         int maxBitPlanes = Integer.MIN_VALUE;
-        int[][][] firstLayer = new int[(rLevel == 0 ? 1 : 3)][][];
         for (int subband = 0; subband < (rLevel == 0 ? 1 : 3); subband++) {
           int sbWeight = this.getSubbandWeight(tile, z, rLevel, subband);
-          firstLayer[subband] = new int[codingPassesLengths[subband].length][];
           for (int yBlock = 0; yBlock < codingPassesLengths[subband].length; yBlock++) {
-            firstLayer[subband][yBlock] = new int[codingPassesLengths[subband][yBlock].length];
             for (int xBlock = 0; xBlock < codingPassesLengths[subband][yBlock].length; xBlock++) {
               if (codingPassesLengths[subband][yBlock][xBlock] != null) {
                 if (maxBitPlanes < codingPassesLengths[subband][yBlock][xBlock].length + sbWeight) {
                   maxBitPlanes = codingPassesLengths[subband][yBlock][xBlock].length + sbWeight;
                 }
-                firstLayer[subband][yBlock][xBlock] = 0;
               }
             }
           }
@@ -839,17 +967,11 @@ public class CPIDelivery {
         if (vCodingLevel != maxBitPlanes) {
           continue;
         }
+        sentPrecincts.add(inClassIdentifier);
 
 
-        packetHeading.setZeroBitPlanesAndFirstLayer(inClassIdentifier, logicalTarget.getZeroBitPlanes(inClassIdentifier), firstLayer);
-
-        // Build the packet header
-        try {
-          packetHeading.encodePacketHeader(inClassIdentifier, codingPassesLengths);
-        } catch (IllegalAccessException e) {
-          e.printStackTrace();
-        }
-        byte[] packetHeader = Arrays.copyOf(packetHeading.getPacketHeaderBuffer(), packetHeading.getPacketHeaderLength());
+        // PACKET HEADER
+        byte[] packetHeader = getPacketHeaders(inClassIdentifier, PACKET_PER_PRECINCT, 1, codingPassesLengths)[0];
         //System.err.print("\t\tPacket header: " ); printByteArray(packetHeader); System.out.println(); // DEBUG
 
         // DAta in client cache
@@ -988,8 +1110,7 @@ public class CPIDelivery {
           boolean lastByte = (!finish) ? true : false;
           JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.EXTENDED_PRECINCT, inClassIdentifier, dataBinOffset, bodyLengthToSend, lastByte, 0);
 
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
+          FileExtents extents = new FileExtents();
 
           // Add coding levels to jpip message data
           for (int subband = 0; subband < codingLevelToSendLength.length; subband++) {
@@ -997,15 +1118,14 @@ public class CPIDelivery {
               for (int xBlock = 0; xBlock < codingLevelToSendLength[subband][yBlock].length; xBlock++) {
                 for (int cp = 0; cp < codingLevelToSendLength[subband][yBlock][xBlock].length; cp++) {
                   if (codingLevelToSendLength[subband][yBlock][xBlock][cp] > 0) {
-                    filePointers.add(codingLevelToSendOffset[subband][yBlock][xBlock][cp]);
-                    lengths.add(codingLevelToSendLength[subband][yBlock][xBlock][cp]);
+                    extents.add(codingLevelToSendOffset[subband][yBlock][xBlock][cp], codingLevelToSendLength[subband][yBlock][xBlock][cp]);
                   }
                 }
               }
             }
           }
 
-          responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+          responseDataList.add(new ResponseData(jpipMessageHeader, extents));
         }
 
         codingLevelToSendOffset = null;
@@ -1031,17 +1151,16 @@ public class CPIDelivery {
    */
   private void deliverOnePacketPerCodingPass() throws ErrorException {
 
-    // Create packet-headers encoder engine
-    PacketHeadersEncoder packetHeading = new PacketHeadersEncoder();
-
-
     // Find the precincts which are relevants to the view window
-    ArrayList<Long> relevantPrecincts =
+    long[] relevantPrecincts =
             RelevantPrecinctsFinder.TRPCOrder(codestream, actualViewWindow,
             discardLevels);
 
+    // Packet headers of each precinct
+    HashMap<Long, byte[][]> packetHeaders = new HashMap<Long, byte[][]>(relevantPrecincts.length);
+
     // Used to save the temporary offset for each data-bin
-    HashMap<Long, Integer> dataBinOffsets = new HashMap<Long, Integer>(relevantPrecincts.size());
+    HashMap<Long, Integer> dataBinOffsets = new HashMap<Long, Integer>(relevantPrecincts.length);
     for (long inClassIdentifier : relevantPrecincts) {
       dataBinOffsets.put(inClassIdentifier, 0);
     }
@@ -1060,9 +1179,9 @@ public class CPIDelivery {
       //System.out.println("- Virtual coding level: " + virtualCodingLevel);
 
       // LOOP ON PRECINCTS
-      int numOrderedRelevantPrecincts = relevantPrecincts.size() - 1;
+      int numOrderedRelevantPrecincts = relevantPrecincts.length - 1;
       for (int precIndex = 0; precIndex < numOrderedRelevantPrecincts && !finish; precIndex++) {
-        long inClassIdentifier = relevantPrecincts.get(precIndex);
+        long inClassIdentifier = relevantPrecincts[precIndex];
         int[] TCRP = codestream.findTCRP(inClassIdentifier);
         int tile = TCRP[0];
         int z = TCRP[1];
@@ -1083,56 +1202,13 @@ public class CPIDelivery {
           dataBinLengthInClientCache = 0;
         }
 
-        // SET FIRST LAYER
-        if (!packetHeading.isSet(inClassIdentifier)) {
-          // Adjusting the first layer following the criterion:
-          // The block(s) belonging to this precinct which has the maximum number of coding passes,
-          // is set on the first layer. And the others precincts, the first layer in which will be
-          // included is the difference, in coding passes, between the precinct(s) with the maximum
-          // number of layers and the referred precinct.
-
-          // Get max number of coding passes in the precinct
-          int maxNumCodingPasses = 0;
-          for (int subband = 0; subband < codingPassesLengths.length; subband++) {
-            int subbandAdjustment = getSubbandWeight(tile, z, rLevel, subband);
-            for (int yBlock = 0; yBlock < codingPassesLengths[subband].length; yBlock++) {
-              for (int xBlock = 0; xBlock < codingPassesLengths[subband][yBlock].length; xBlock++) {
-                if (codingPassesLengths[subband][yBlock][xBlock] != null) {
-                  int tmpMax = subbandAdjustment + codingPassesLengths[subband][yBlock][xBlock].length;
-                  if (tmpMax > maxNumCodingPasses) {
-                    maxNumCodingPasses = tmpMax;
-                  }
-                }
-              }
-            }
-          }
-
-          int[][][] zbp = logicalTarget.getZeroBitPlanes(inClassIdentifier);
-          // Set first layer value
-          int[][][] firstLayer = new int[codingPassesLengths.length][][];
-          for (int subband = 0; subband < codingPassesLengths.length; subband++) {
-            int subbandAdjustment = getSubbandWeight(tile, z, rLevel, subband);
-            firstLayer[subband] = new int[codingPassesLengths[subband].length][];
-            for (int yBlock = 0; yBlock < codingPassesLengths[subband].length; yBlock++) {
-              firstLayer[subband][yBlock] = new int[codingPassesLengths[subband][yBlock].length];
-              for (int xBlock = 0; xBlock < codingPassesLengths[subband][yBlock].length; xBlock++) {
-                if (codingPassesLengths[subband][yBlock][xBlock] != null) {
-                  int numCodingPassesBlock = codingPassesLengths[subband][yBlock][xBlock].length;
-                  firstLayer[subband][yBlock][xBlock] = totalNumVirtualCodingLevels - (numCodingPassesBlock + subbandAdjustment);
-                }
-              }
-            }
-          }
-
-          packetHeading.setZeroBitPlanesAndFirstLayer(inClassIdentifier, logicalTarget.getZeroBitPlanes(inClassIdentifier), firstLayer);
-        }
-
         // PACKET HEADER
-        byte[] packetHeader =
-                getPacketHeaderOnePacketPerCodingPass(packetHeading,
-                inClassIdentifier, tile, z, rLevel,
-                virtualCodingLevel,
-                codingPassesLengths);
+        byte[][] precinctPacketHeaders = packetHeaders.get(inClassIdentifier);
+        if (precinctPacketHeaders == null) {
+          precinctPacketHeaders = getPacketHeaders(inClassIdentifier, PACKET_PER_CODING_PASS, totalNumVirtualCodingLevels, codingPassesLengths);
+          packetHeaders.put(inClassIdentifier, precinctPacketHeaders);
+        }
+        byte[] packetHeader = precinctPacketHeaders[totalNumVirtualCodingLevels - 1 - virtualCodingLevel];
         /*System.out.print("\t\t\theader: ");
         printByteArray(packetHeader);
         System.out.println(" => length:" + packetHeader.length);*/ // DEBUG
@@ -1262,8 +1338,7 @@ public class CPIDelivery {
           lastByte = false;
           JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.EXTENDED_PRECINCT, inClassIdentifier, dataBinOffset, packetBodyToSendLength, lastByte, totalNumVirtualCodingLevels - virtualCodingLevel);
 
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
+          FileExtents extents = new FileExtents();
 
           // Add coding levels to jpip message data
           if (codingLevelToSendLength != null) {
@@ -1278,8 +1353,7 @@ public class CPIDelivery {
                 }
                 for (int xBlock = 0; xBlock < codingLevelToSendLength[subband][yBlock].length; xBlock++) {
                   if (codingLevelToSendLength[subband][yBlock][xBlock] > 0) {
-                    filePointers.add(codingLevelToSendOffset[subband][yBlock][xBlock]);
-                    lengths.add(codingLevelToSendLength[subband][yBlock][xBlock]);
+                    extents.add(codingLevelToSendOffset[subband][yBlock][xBlock], codingLevelToSendLength[subband][yBlock][xBlock]);
                   }
                 }
               }
@@ -1287,7 +1361,7 @@ public class CPIDelivery {
           }
 
 
-          responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+          responseDataList.add(new ResponseData(jpipMessageHeader, extents));
         }
         dataBinOffsets.put(inClassIdentifier, tmpDataBinOffset);
 
@@ -1296,6 +1370,75 @@ public class CPIDelivery {
     } // coding level
   }
 
+  /**
+   * This method adjusts the first layer when requested window of interest is
+   * delivered using one packet per precinct. All the blocks are included in
+   * the first layer.
+   *
+   * @param packetHeading
+   * @param inClassIdentifier
+   * @param codingPassesLengths
+   *
+   * @throws ErrorException
+   */
+  private void setFirstLayerOnePacketPerPrecinct(PacketHeadersEncoder packetHeading, long inClassIdentifier, int[][][][] codingPassesLengths) throws ErrorException {
+
+    // Set first layer value
+    int[][][] firstLayer = new int[codingPassesLengths.length][][];
+    for (int subband = 0; subband < codingPassesLengths.length; subband++) {
+      firstLayer[subband] = new int[codingPassesLengths[subband].length][];
+      for (int yBlock = 0; yBlock < codingPassesLengths[subband].length; yBlock++) {
+        firstLayer[subband][yBlock] = new int[codingPassesLengths[subband][yBlock].length];
+        for (int xBlock = 0; xBlock < codingPassesLengths[subband][yBlock].length; xBlock++) {
+          if (codingPassesLengths[subband][yBlock][xBlock] != null) {
+            firstLayer[subband][yBlock][xBlock] = 0;
+          }
+        }
+      }
+    }
+
+    packetHeading.setZeroBitPlanesAndFirstLayer(inClassIdentifier, logicalTarget.getZeroBitPlanes(inClassIdentifier), firstLayer);
+  }
+
+  /**
+   * This method adjusts the first layer when requested window of interest is
+   * delivered using one packet per coding pass.
+   * The criterion followed to adjust the first layer is:
+   * 	the block(s) belonging to this precinct which has the maximum number
+   * 	of coding passes, is set on the first layer. And for the other blocks,
+   * 	the first layer is the difference, in coding passes, between the
+   * 	block(s) with the maximum number of coding passes and the referred one.
+   *
+   * @param packetHeading
+   * @param inClassIdentifier
+   * @param z
+   * @param rLevel
+   * @param codingPassesLengths
+   * @param totalNumVirtualCodingLevels
+   *
+   * @throws ErrorException
+   */
+  private void setFirstLayerOnePacketPerCodingPass(PacketHeadersEncoder packetHeading, long inClassIdentifier, int tile, int z, int rLevel, int[][][][] codingPassesLengths, int totalNumVirtualCodingLevels) throws ErrorException {
+
+    // Set first layer value
+    int[][][] firstLayer = new int[codingPassesLengths.length][][];
+    for (int subband = 0; subband < codingPassesLengths.length; subband++) {
+      int subbandAdjustment = getSubbandWeight(tile, z, rLevel, subband);
+      firstLayer[subband] = new int[codingPassesLengths[subband].length][];
+      for (int yBlock = 0; yBlock < codingPassesLengths[subband].length; yBlock++) {
+        firstLayer[subband][yBlock] = new int[codingPassesLengths[subband][yBlock].length];
+        for (int xBlock = 0; xBlock < codingPassesLengths[subband][yBlock].length; xBlock++) {
+          if (codingPassesLengths[subband][yBlock][xBlock] != null) {
+            int numCodingPassesBlock = codingPassesLengths[subband][yBlock][xBlock].length;
+            firstLayer[subband][yBlock][xBlock] = totalNumVirtualCodingLevels - (numCodingPassesBlock + subbandAdjustment);
+          }
+        }
+      }
+    }
+
+    packetHeading.setZeroBitPlanesAndFirstLayer(inClassIdentifier, logicalTarget.getZeroBitPlanes(inClassIdentifier), firstLayer);
+  }
+
   /**
    * Builds a packet header for a specific coding level.
    * <p>
@@ -1376,21 +1519,21 @@ public class CPIDelivery {
    */
   private void deliverOnePacketPerBitPlane() throws ErrorException {
 
-    // Create packet-headers encoder engine
-    PacketHeadersEncoder packetHeading = new PacketHeadersEncoder();
-
     // Find the precincts which are relevants to the view window
-    ArrayList<Long> relevantPrecincts =
+    long[] relevantPrecincts =
             RelevantPrecinctsFinder.TRPCOrder(codestream, actualViewWindow,
             discardLevels);
 
+    // Packet headers of each precinct
+    HashMap<Long, byte[][]> packetHeaders = new HashMap<Long, byte[][]>(relevantPrecincts.length);
+
     // Temporary structure used to store the offset and length for each coding pass to be sent.
     // Indexes mean: [subband][yBlock][xBlock][cp]
     long[][][][] codingLevelToSendOffset = null;
     int[][][][] codingLevelToSendLength = null;
 
     //	Used to save the temporary offset for each data-bin
-    HashMap<Long, Integer> dataBinOffsets = new HashMap<Long, Integer>(relevantPrecincts.size());
+    HashMap<Long, Integer> dataBinOffsets = new HashMap<Long, Integer>(relevantPrecincts.length);
     for (long inClassIdentifier : relevantPrecincts) {
       dataBinOffsets.put(inClassIdentifier, 0);
     }
@@ -1408,9 +1551,9 @@ public class CPIDelivery {
       //ArrayList<Long> orderedRelevantPrecincts = relevantPrecincts; //sortingOnePacketPerBitPlanes(relevantPrecincts, virtualBitPlane, totalNumVirtualBitPlanes);
 
       // LOOP ON PRECINCTS
-      int numOrderedRelevantPrecincts = relevantPrecincts.size();
+      int numOrderedRelevantPrecincts = relevantPrecincts.length;
       for (int precIndex = 0; precIndex < numOrderedRelevantPrecincts && !finish; precIndex++) {
-        long inClassIdentifier = relevantPrecincts.get(precIndex);
+        long inClassIdentifier = relevantPrecincts[precIndex];
         int[] TCRP = codestream.findTCRP(inClassIdentifier);
         int tile = TCRP[0];
         int z = TCRP[1];
@@ -1423,17 +1566,17 @@ public class CPIDelivery {
           continue;
         }
 
-        // SET FIRST LAYER
-        if (!packetHeading.isSet(inClassIdentifier)) {
-          setFirstLayerOnePacketPerBitPlane(packetHeading, inClassIdentifier, tile, z, rLevel, codingPassesLengths);
-        }
-
         //  DATA IN CLIENT CACHE
         int dataBinLengthInClientCache = (int) serverCache.getPrecinctDataBinLength(inClassIdentifier);
 
 
         // PACKET HEADER
-        byte[] packetHeader = getPacketHeaderOnePacketPerBitPlane(packetHeading, inClassIdentifier, tile, z, rLevel, virtualBitPlane, totalNumVirtualBitPlanes, codingPassesLengths);
+        byte[][] precinctPacketHeaders = packetHeaders.get(inClassIdentifier);
+        if (precinctPacketHeaders == null) {
+          precinctPacketHeaders = getPacketHeaders(inClassIdentifier, PACKET_PER_BIT_PLANE, totalNumVirtualBitPlanes, codingPassesLengths);
+          packetHeaders.put(inClassIdentifier, precinctPacketHeaders);
+        }
+        byte[] packetHeader = precinctPacketHeaders[virtualBitPlane];
 
         //	Has the packet header to be included?
         int packetHeaderToSendLength = 0;
@@ -1605,8 +1748,7 @@ public class CPIDelivery {
           boolean lastByte = (!finish) ? true : false;
           JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.EXTENDED_PRECINCT, inClassIdentifier, dataBinOffset, bodyLengthToSend, lastByte, virtualBitPlane + 1);
 
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
+          FileExtents extents = new FileExtents();
 
           // Add coding levels to jpip message data
           for (int subband = 0; subband < codingLevelToSendLength.length; subband++) {
@@ -1616,8 +1758,7 @@ public class CPIDelivery {
                   for (int cp = 0; cp < codingLevelToSendLength[subband][yBlock][xBlock].length; cp++) {
                     if (codingLevelToSendLength[subband][yBlock][xBlock][cp] > 0) {
                       //System.out.println("\t\t\tsubband="+subband+" yBlock="+yBlock+" xBlock="+xBlock+" cp="+cp+" length="+codingLevelToSendLength[subband][yBlock][xBlock][cp]); // DEBUG
-                      filePointers.add(codingLevelToSendOffset[subband][yBlock][xBlock][cp]);
-                      lengths.add(codingLevelToSendLength[subband][yBlock][xBlock][cp]);
+                      extents.add(codingLevelToSendOffset[subband][yBlock][xBlock][cp], codingLevelToSendLength[subband][yBlock][xBlock][cp]);
                     }
                   }
                 }
@@ -1625,7 +1766,7 @@ public class CPIDelivery {
             }
           }
 
-          responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+          responseDataList.add(new ResponseData(jpipMessageHeader, extents));
         }
 
         dataBinOffsets.put(inClassIdentifier, tmpDataBinOffset);
@@ -1810,14 +1951,14 @@ public class CPIDelivery {
    */
   private void deliverScale() throws ErrorException {
 
-    // Create packet-headers encoder engine
-    PacketHeadersEncoder packetHeading = new PacketHeadersEncoder();
-
     // Find the precincts which are relevants to the view window
-    ArrayList<Long> relevantPrecincts =
+    long[] relevantPrecincts =
             RelevantPrecinctsFinder.TRPCOrder(codestream, actualViewWindow,
             discardLevels);
-    int numOfRelevantPrecincts = relevantPrecincts.size();
+    int numOfRelevantPrecincts = relevantPrecincts.length;
+
+    // Packet headers of each precinct
+    HashMap<Long, byte[][]> packetHeaders = new HashMap<Long, byte[][]>(numOfRelevantPrecincts);
 
     // Temporary structure used to store the offset and length
     // for each coding pass to be sent.
@@ -1826,7 +1967,7 @@ public class CPIDelivery {
     int[][][][] codingLevelToSendLength = null;
 
     //	Used to save the temporary offset for each data-bin
-    HashMap<Long, Integer> dataBinOffsets = new HashMap<Long, Integer>(relevantPrecincts.size());
+    HashMap<Long, Integer> dataBinOffsets = new HashMap<Long, Integer>(relevantPrecincts.length);
     for (long inClassIdentifier : relevantPrecincts) {
       dataBinOffsets.put(inClassIdentifier, 0);
     }
@@ -1837,18 +1978,18 @@ public class CPIDelivery {
     System.out.println("Total num virtual CL: " + totalNumVirtualCodingLevels);
 
     // LOOP ON CODING PASSES
-    for (int virtualCodingLevel = 0, layer = 0;
+    for (int virtualCodingLevel = 0, layer = 0, packetIndex = 0;
             (virtualCodingLevel < totalNumVirtualCodingLevels) && (layer < layers) && !finish;
-            virtualCodingLevel = getNextCodingLevel(virtualCodingLevel), layer = getLayer(virtualCodingLevel + 1)) {
+            virtualCodingLevel = getNextCodingLevel(virtualCodingLevel), layer = getLayer(virtualCodingLevel + 1), packetIndex++) {
       System.out.println("\n===============================================");
       System.out.println("- Virtual coding level: " + virtualCodingLevel + " of " + totalNumVirtualCodingLevels);
 
       //ArrayList<Long> orderedRelevantPrecincts = sortingScale(relevantPrecincts, virtualCodingLevel, totalNumVirtualCodingLevels);
 
       // LOOP ON PRECINCTS
-      numOfRelevantPrecincts = relevantPrecincts.size();
+      numOfRelevantPrecincts = relevantPrecincts.length;
       for (int precIndex = 0; precIndex < numOfRelevantPrecincts && !finish; precIndex++) {
-        long inClassIdentifier = relevantPrecincts.get(precIndex);
+        long inClassIdentifier = relevantPrecincts[precIndex];
         int[] TCRP = codestream.findTCRP(inClassIdentifier);
         int tile = TCRP[0];
         int z = TCRP[1];
@@ -1868,18 +2009,18 @@ public class CPIDelivery {
         // DATA IN CLIENT CACHE
         int dataBinLengthInClientCache = (int) serverCache.getPrecinctDataBinLength(inClassIdentifier);
 
-        // SET FIRST LAYER
-        if (!packetHeading.isSet(inClassIdentifier)) {
-          setFirstLayerScale(packetHeading, inClassIdentifier, tile, z, rLevel, codingPassesLengths, totalNumVirtualCodingLevels);
-        }
-
         // SKIP PRECINCT ?
         /*if (skipPrecinctScale(inClassIdentifier, tile, z, rLevel, totalNumVirtualCodingLevels, virtualCodingLevel, codingPassesLengths)) {
         continue;
         }*/
 
         // PACKET HEADER
-        byte[] packetHeader = getPacketHeaderScale(packetHeading, inClassIdentifier, tile, z, rLevel, totalNumVirtualCodingLevels, virtualCodingLevel, codingPassesLengths);
+        byte[][] precinctPacketHeaders = packetHeaders.get(inClassIdentifier);
+        if (precinctPacketHeaders == null) {
+          precinctPacketHeaders = getPacketHeaders(inClassIdentifier, SCALE, totalNumVirtualCodingLevels, codingPassesLengths);
+          packetHeaders.put(inClassIdentifier, precinctPacketHeaders);
+        }
+        byte[] packetHeader = precinctPacketHeaders[packetIndex];
         System.out.print("\t\theader: ");
         printByteArray(packetHeader);
         System.out.println(" => length:" + packetHeader.length); // DEBUG
@@ -2063,8 +2204,7 @@ public class CPIDelivery {
           boolean lastByte = (!finish) ? true : false;
           JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.EXTENDED_PRECINCT, inClassIdentifier, dataBinOffset, bodyLengthToSend, lastByte, layer + 1);
 
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
+          FileExtents extents = new FileExtents();
 
           // Add coding levels to jpip message data
           for (int subband = 0; subband < codingLevelToSendLength.length; subband++) {
@@ -2074,8 +2214,7 @@ public class CPIDelivery {
                   for (int cp = 0; cp < codingLevelToSendLength[subband][yBlock][xBlock].length; cp++) {
                     if (codingLevelToSendLength[subband][yBlock][xBlock][cp] > 0) {
                       //System.out.println("\t\tsb="+subband+" yb="+yBlock+" xb="+xBlock+" cp="+cp+" length="+codingLevelToSendLength[subband][yBlock][xBlock][cp]); // DEBUG
-                      filePointers.add(codingLevelToSendOffset[subband][yBlock][xBlock][cp]);
-                      lengths.add(codingLevelToSendLength[subband][yBlock][xBlock][cp]);
+                      extents.add(codingLevelToSendOffset[subband][yBlock][xBlock][cp], codingLevelToSendLength[subband][yBlock][xBlock][cp]);
                     }
                   }
                 }
@@ -2083,7 +2222,7 @@ public class CPIDelivery {
             }
           }
 
-          responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+          responseDataList.add(new ResponseData(jpipMessageHeader, extents));
         }
         dataBinOffsets.put(inClassIdentifier, tmpDataBinOffset);
 
@@ -31,16 +31,20 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
 
 import CADI.Common.LogicalTarget.JPEG2000.JPCParameters;
 import CADI.Common.Network.JPIP.EORCodes;
 import CADI.Common.Network.JPIP.JPIPMessageHeader;
 import CADI.Common.Network.JPIP.ViewWindowField;
 import CADI.Common.Util.ArraysUtil;
+import CADI.Server.ServerDefaultValues;
 import CADI.Server.Cache.ServerCacheModel;
+import CADI.Server.Core.FileExtents;
 import CADI.Server.Core.ResponseData;
 import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
 import CADI.Server.LogicalTarget.JPEG2000.Codestream.JPCMainHeaderEncoder;
+import CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache;
 import CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersEncoder;
 import CADI.Server.LogicalTarget.JPEG2000.ServerJPEG2KCodestream;
 import CADI.Server.LogicalTarget.JPEG2000.ServerJPEG2KComponent;
@@ -66,7 +70,7 @@ import GiciException.WarningException;
  * &nbsp; getEORReasonCode<br>
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.1.2 2009/05/18
+ * @version 1.1.3 2012/07/04
  */
 public class CoRDDelivery {
 
@@ -1001,8 +1005,22 @@ public class CoRDDelivery {
     // Set the first layer
     int[][][][][][] firstLayer = setFirstLayer(scanningOrder);
 
-    // Initalise packet headers
-    packetHeading = new PacketHeadersEncoder();
+    // Coding passes of each precinct, in the scanning order
+    HashMap<Long, ArrayList<CodingPassID>> precinctsScanningOrder = new HashMap<Long, ArrayList<CodingPassID>>();
+    for (CodingPassID codingPassID : scanningOrder) {
+      ArrayList<CodingPassID> precinctScanningOrder = precinctsScanningOrder.get(codingPassID.inClassIdentifier);
+      if (precinctScanningOrder == null) {
+        precinctScanningOrder = new ArrayList<CodingPassID>();
+        precinctsScanningOrder.put(codingPassID.inClassIdentifier, precinctScanningOrder);
+      }
+      precinctScanningOrder.add(codingPassID);
+    }
+
+    // Packet headers of each precinct, the index of the next packet header
+    // and the last encoded layer
+    HashMap<Long, byte[][]> packetHeaders = new HashMap<Long, byte[][]>();
+    HashMap<Long, Integer> packetIndexes = new HashMap<Long, Integer>();
+    HashMap<Long, Integer> lastEncodedLayers = new HashMap<Long, Integer>();
 
     // LOOP ON PRECINCT-SUBBAND-YBLOCK-XBLOCK-CODINGPASS
     //System.out.println("NO\tZ\tRL\tP\tSB\tYB\tXB\tCL\tLY\tLength"); // DEBUG
@@ -1028,59 +1046,36 @@ public class CoRDDelivery {
       //System.out.println(inClassIdentifier);
       //System.out.println("\t"+subband+" cl="+codingLevel+" length="+codingPassesLengths[subband][0][0][codingLevel]);
 
+      // GET PACKET HEADERS OF THE PRECINCT
+      byte[][] precinctPacketHeaders = packetHeaders.get(inClassIdentifier);
+      if (precinctPacketHeaders == null) {
+        precinctPacketHeaders = getPacketHeaders(inClassIdentifier, precinctsScanningOrder.get(inClassIdentifier), firstLayer[component][rLevel][precinct]);
+        packetHeaders.put(inClassIdentifier, precinctPacketHeaders);
+        packetIndexes.put(inClassIdentifier, 0);
+        lastEncodedLayers.put(inClassIdentifier, -1);
+        dataBinOffsets.put(inClassIdentifier, 0L);
+      }
+      int packetIndex = packetIndexes.get(inClassIdentifier);
+      packetIndexes.put(inClassIdentifier, packetIndex + 1);
+
       // Does the code-block have code blocks?
       if (codingPassesLengths[subband][yBlock][xBlock] == null) {
         continue;
       }
 
-
-      // SET FIRST LAYER
-      if (!packetHeading.isSet(inClassIdentifier)) {
-        packetHeading.setZeroBitPlanesAndFirstLayer(inClassIdentifier, logicalTarget.getZeroBitPlanes(inClassIdentifier), firstLayer[component][rLevel][precinct]);
-        dataBinOffsets.put(inClassIdentifier, 0L);
-      }
       long dataBinOffset = dataBinOffsets.get(inClassIdentifier);
 
 
       // SET LENGTHS OF CODING PASSES TO BE SENT
-      int lengthOfCodingLevelToSend = 0;
-      int[][][][] lengtsToEncode = new int[codingPassesLengths.length][][][];
-      for (int sb = 0; sb < codingPassesLengths.length; sb++) {
-        lengtsToEncode[sb] = new int[codingPassesLengths[sb].length][][];
-
-        for (int yb = 0; yb < codingPassesLengths[sb].length; yb++) {
-          lengtsToEncode[sb][yb] = new int[codingPassesLengths[sb][yb].length][];
-
-          for (int xb = 0; xb < codingPassesLengths[sb][yb].length; xb++) {
-            if ((sb == subband) && (yb == yBlock) && (xb == xBlock)) {
-              if (codingPassesLengths[sb][yb][xb] != null) {
-                lengtsToEncode[sb][yb][xb] = new int[1];
-                lengtsToEncode[sb][yb][xb][0] = codingPassesLengths[sb][yb][xb][codingLevel];
-                lengthOfCodingLevelToSend += lengtsToEncode[sb][yb][xb][0];
-              }
-            } else {
-              lengtsToEncode[sb][yb][xb] = null;
-            }
-          }
-        }
-      }
+      int lengthOfCodingLevelToSend = codingPassesLengths[subband][yBlock][xBlock][codingLevel];
 
       //  DATA IN CLIENT CACHE
       int dataBinLengthInClientCache = (int)serverCache.getPrecinctDataBinLength(inClassIdentifier);
 
       // PACKET HEADERS
-
-      // Build the packet header
-      byte[] packetHeader = null;
-      try {
-        packetHeader = packetHeading.encodePacketHeader(inClassIdentifier, lengtsToEncode);
-      } catch (IllegalAccessException e) {
-        e.printStackTrace();
-        assert (true);
-      } finally {
-        lengtsToEncode = null;
-      }
-      int layer = packetHeading.getLastEncodedLayer(inClassIdentifier);
+      byte[] packetHeader = precinctPacketHeaders[packetIndex];
+      int layer = lastEncodedLayers.get(inClassIdentifier) + 1;
+      lastEncodedLayers.put(inClassIdentifier, layer);
 
       //	Has the packet header to be included?
       long packetHeaderToSendLength = packetHeader.length;
@@ -1184,11 +1179,8 @@ public class CoRDDelivery {
 
         // Send packet body
         if (codingLevelToSendLength > 0) {
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          filePointers.add(codingLevelToSendFilePointer);
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
-          lengths.add((int)codingLevelToSendLength);
-          responseDataList.add(new ResponseData(filePointers, lengths));
+          FileExtents extents = new FileExtents(codingLevelToSendFilePointer, (int)codingLevelToSendLength);
+          responseDataList.add(new ResponseData(extents));
         }
       }
 
@@ -1206,6 +1198,139 @@ public class CoRDDelivery {
 
   }
 
+  /**
+   * Returns the packet headers of a precinct, one for each coding pass of
+   * the precinct in the scanning order.
+   * <p>
+   * Packet headers only depend on the logical target, the precinct and the
+   * order of its coding passes in the scanning order (the first layer of each
+   * code-block is also obtained from this order). Thus, they are taken from
+   * the packet headers cache of the logical target (see
+   * {@link CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache}),
+   * using the order of the coding passes as the signature, and they are only
+   * encoded if they are not in the cache. The returned arrays are shared
+   * with other requests, so they must not be modified.
+   *
+   * @param inClassIdentifier definition in {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}.
+   * @param precinctScanningOrder the coding passes of the precinct, in the
+   * 	scanning order.
+   * @param firstLayer the first layer of each code-block of the precinct.
+   * 	Indexes mean: [subband][yBlock][xBlock].
+   *
+   * @return the packet headers. Indexes mean: [coding pass][byte]. A packet
+   * 	header is <code>null</code> if the code-block has not any contribution.
+   *
+   * @throws ErrorException if the packet headers cannot be built.
+   */
+  private byte[][] getPacketHeaders(final long inClassIdentifier,
+                                    final ArrayList<CodingPassID> precinctScanningOrder,
+                                    final int[][][] firstLayer) throws ErrorException {
+
+    PacketHeadersCache packetHeadersCache = logicalTarget.getPacketHeadersCache();
+    int[] signature = getSignature(precinctScanningOrder);
+    if ((packetHeadersCache == null) || (signature == null)) {
+      return encodePacketHeaders(inClassIdentifier, precinctScanningOrder, firstLayer);
+    }
+
+    return packetHeadersCache.get(logicalTarget.getTID(), inClassIdentifier,
+            ServerDefaultValues.DELIVERING_CoRD, maxNumLayers, signature,
+            new Callable<byte[][]>() {
+
+              public byte[][] call() throws ErrorException {
+                return encodePacketHeaders(inClassIdentifier, precinctScanningOrder, firstLayer);
+              }
+            });
+  }
+
+  /**
+   * Encodes the packet headers of a precinct, one for each coding pass of the
+   * precinct in the scanning order.
+   * <p>
+   * Further information, see
+   * {@link #getPacketHeaders(long, ArrayList, int[][][])}.
+   *
+   * @param inClassIdentifier definition in {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}.
+   * @param precinctScanningOrder the coding passes of the precinct, in the
+   * 	scanning order.
+   * @param firstLayer the first layer of each code-block of the precinct.
+   *
+   * @return the packet headers. Indexes mean: [coding pass][byte].
+   *
+   * @throws ErrorException if the packet headers cannot be built.
+   */
+  private byte[][] encodePacketHeaders(long inClassIdentifier,
+                                       ArrayList<CodingPassID> precinctScanningOrder,
+                                       int[][][] firstLayer) throws ErrorException {
+
+    PacketHeadersEncoder packetHeadersEncoder = new PacketHeadersEncoder();
+    packetHeadersEncoder.setZeroBitPlanesAndFirstLayer(inClassIdentifier, logicalTarget.getZeroBitPlanes(inClassIdentifier), firstLayer);
+
+    int[][][][] codingPassesLengths = logicalTarget.getLengthsOfCodingPasses(inClassIdentifier);
+    byte[][] packetHeaders = new byte[precinctScanningOrder.size()][];
+
+    for (int index = 0; index < packetHeaders.length; index++) {
+      CodingPassID codingPassID = precinctScanningOrder.get(index);
+      int subband = codingPassID.subband;
+      int yBlock = codingPassID.yBlock;
+      int xBlock = codingPassID.xBlock;
+
+      // Does the code-block have code blocks?
+      if (codingPassesLengths[subband][yBlock][xBlock] == null) {
+        continue;
+      }
+
+      // Set lengths of coding passes to be sent
+      int[][][][] lengtsToEncode = new int[codingPassesLengths.length][][][];
+      for (int sb = 0; sb < codingPassesLengths.length; sb++) {
+        lengtsToEncode[sb] = new int[codingPassesLengths[sb].length][][];
+        for (int yb = 0; yb < codingPassesLengths[sb].length; yb++) {
+          lengtsToEncode[sb][yb] = new int[codingPassesLengths[sb][yb].length][];
+        }
+      }
+      lengtsToEncode[subband][yBlock][xBlock] = new int[1];
+      lengtsToEncode[subband][yBlock][xBlock][0] = codingPassesLengths[subband][yBlock][xBlock][codingPassID.codingLevel];
+
+      // Build the packet header
+      try {
+        packetHeaders[index] = packetHeadersEncoder.encodePacketHeader(inClassIdentifier, lengtsToEncode);
+      } catch (IllegalAccessException e) {
+        e.printStackTrace();
+        assert (true);
+      }
+    }
+
+    return packetHeaders;
+  }
+
+  /**
+   * Builds the signature of the scanning order of a precinct. Each coding
+   * pass is packed in an integer as: 8 bits for the coding level, 2 bits for
+   * the subband, and 11 bits for each the yBlock and the xBlock.
+   *
+   * @param precinctScanningOrder the coding passes of the precinct, in the
+   * 	scanning order.
+   *
+   * @return the signature, or <code>null</code> if a coding pass cannot be
+   * 	packed.
+   */
+  private static int[] getSignature(ArrayList<CodingPassID> precinctScanningOrder) {
+    int[] signature = new int[precinctScanningOrder.size()];
+
+    for (int index = 0; index < signature.length; index++) {
+      CodingPassID codingPassID = precinctScanningOrder.get(index);
+      if ((codingPassID.codingLevel < 0) || (codingPassID.codingLevel > 0xFF)
+              || (codingPassID.subband < 0) || (codingPassID.subband > 0x3)
+              || (codingPassID.yBlock < 0) || (codingPassID.yBlock > 0x7FF)
+              || (codingPassID.xBlock < 0) || (codingPassID.xBlock > 0x7FF)) {
+        return null;
+      }
+      signature[index] = (codingPassID.codingLevel << 24) | (codingPassID.subband << 22)
+              | (codingPassID.yBlock << 11) | codingPassID.xBlock;
+    }
+
+    return signature;
+  }
+
   /**
    * This method is used to deliver the requested window of interest when the
    * layers parameter of the view window has been set.
@@ -1413,11 +1538,8 @@ public class CoRDDelivery {
 
         // Send packet body
         if (codingLevelToSendLength > 0) {
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          filePointers.add(codingLevelToSendFilePointer);
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
-          lengths.add((int)codingLevelToSendLength);
-          responseDataList.add(new ResponseData(filePointers, lengths));
+          FileExtents extents = new FileExtents(codingLevelToSendFilePointer, (int)codingLevelToSendLength);
+          responseDataList.add(new ResponseData(extents));
         }
       }
 
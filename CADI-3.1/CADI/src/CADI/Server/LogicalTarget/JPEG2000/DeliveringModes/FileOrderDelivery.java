@@ -35,6 +35,7 @@ import CADI.Common.Network.JPIP.EORCodes;
 import CADI.Common.Network.JPIP.JPIPMessageHeader;
 import CADI.Common.Network.JPIP.ViewWindowField;
 import CADI.Server.Cache.ServerCacheModel;
+import CADI.Server.Core.FileExtents;
 import CADI.Server.Core.ResponseData;
 import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
 import CADI.Server.LogicalTarget.JPEG2000.ServerJPEG2KCodestream;
@@ -55,7 +56,7 @@ import GiciException.ErrorException;
  * &nbsp; getEORReasonCode<br>
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2008/09/08
+ * @version 1.0.3 2012/07/04
  */
 public class FileOrderDelivery {
 
@@ -139,20 +140,19 @@ public class FileOrderDelivery {
   private int layers = -1;
 
   /**
-   * Is an array list which contains precinct identifiers. This attribute is
+   * Is an array which contains precinct identifiers. This attribute is
    * used to save the order in which precincts will be sent.
    */
-  private ArrayList<Long> relevantPrecincts = null;
+  private long[] relevantPrecincts = null;
 
   /**
-   * Is a two-dimension array of array lists which contains precinct
-   * identifiers. This attribute is used to save the order in which precincts
-   * will be sent.
+   * Is a three-dimension array which contains precinct identifiers. This
+   * attribute is used to save the order in which precincts will be sent.
    * <p>
-   * The first index of the array is the tile and the second one is the
-   * resolution level.
+   * The first index of the array is the tile, the second one is the
+   * resolution level and the third one is the precinct.
    */
-  private ArrayList<Long>[][] relevantPrecinctsR_CP = null;
+  private long[][][] relevantPrecinctsR_CP = null;
 
   // ============================= public methods ==============================
   /**
@@ -208,7 +208,7 @@ public class FileOrderDelivery {
     // If the frame size has been omitted, no compressed image data is sent.
     if ((viewWindow.fsiz[0] < 0) && (viewWindow.fsiz[1] < 0)) {
       responseViewWindow = new ViewWindowField();
-      relevantPrecincts = new ArrayList<Long>();
+      relevantPrecincts = new long[0];
       responseDataList = new ArrayList<ResponseData>();
       return;
     }
@@ -447,24 +447,25 @@ public class FileOrderDelivery {
   /**
    *
    */
-  private void runResponseDataLayerPosition(ArrayList<Long> relevantPrecincts) throws ErrorException {
+  private void runResponseDataLayerPosition(long[] relevantPrecincts) throws ErrorException {
 
     boolean finish = false;
-    int numberOfRelevantPrecincts = relevantPrecincts.size();
+    int numberOfRelevantPrecincts = relevantPrecincts.length;
     //System.out.println("Number of relevant precincts: " + numberOfRelevantPrecincts);
 
+    // The cache model is not updated while the response is built, so it is
+    // queried once for all the precincts instead of once per layer
+    int[] layersOfDataSent = getLayersOfDataSent(relevantPrecincts);
+
     // Loop on layers
     for (int layer = 0; layer < actualViewWindow.layers && !finish; layer++) {
       //System.out.println("\n=> layer="+layer);
       // Loop on precincts
       for (int i = 0; i < numberOfRelevantPrecincts && !finish; i++) {
-        long inClassIdentifier = relevantPrecincts.get(i);
+        long inClassIdentifier = relevantPrecincts[i];
         //System.out.println("precinct="+inClassIdentifier);
 
-        int lengthOfDataBinSent = (int) serverCache.getPrecinctDataBinLength(inClassIdentifier);
-        //System.out.println("Client has: " + lengthOfDataBinSent +" (bytes)");
-
-        int layerOfDataSent = logicalTarget.getLastCompleteLayer(inClassIdentifier, lengthOfDataBinSent);
+        int layerOfDataSent = layersOfDataSent[i];
         //System.out.println("   client has: " + layerOfDataSent + " in its cache");	// DEBUG
 
         // Check if data of this layer has been sent
@@ -501,30 +502,26 @@ public class FileOrderDelivery {
         //System.out.println(" - Sending: PrecinctID="+inClassIdentifier+"(z="+z+" r="+rLevel+" p="+precinct+") layer="+layer+" Data Length: "+packetLength+" Offset: "+offset);
         // END DEBUG
 
-        ArrayList<Long> filePointers = new ArrayList<Long>();
-        filePointers.add((long) logicalTarget.getPacketOffset(inClassIdentifier, layer));
-        ArrayList<Integer> lengths = new ArrayList<Integer>();
-        lengths.add(packetLength);
-        responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+        FileExtents extents = new FileExtents();
+        logicalTarget.addPacketExtents(extents, inClassIdentifier, layer, 0, packetLength);
+        responseDataList.add(new ResponseData(jpipMessageHeader, extents));
       }
     }
-
-    relevantPrecincts.clear();
   }
 
   /**
    *
    *
    */
-  private void runResponseDataPositionLayer(ArrayList<Long> relevantPrecincts) throws ErrorException {
+  private void runResponseDataPositionLayer(long[] relevantPrecincts) throws ErrorException {
 
     boolean finish = false;
-    int numberOfRelevantPrecincts = relevantPrecincts.size();
+    int numberOfRelevantPrecincts = relevantPrecincts.length;
     //System.out.println("Number of relevant precincts: " + numberOfRelevantPrecincts);
 
     for (int i = 0; i < numberOfRelevantPrecincts && !finish; i++) {
 
-      long inClassIdentifier = relevantPrecincts.get(i);
+      long inClassIdentifier = relevantPrecincts[i];
 
       // DEBUG
 			/*int[] TCRP = JPEG2000Util.InClassIdentifierToTCRP(inClassIdentifier, 1, zSize, xSize, ySize, XOsize, YOsize, WTLevels, jpcParameters.resolutionPrecinctWidths, jpcParameters.resolutionPrecinctHeights);
@@ -552,7 +549,7 @@ public class FileOrderDelivery {
 
         //	Send the piece of layer
         long offset = logicalTarget.getPacketOffsetWithDataBin(inClassIdentifier, layerOfDataSent);
-        long packetFilePointer = logicalTarget.getPacketOffset(inClassIdentifier, layerOfDataSent);
+        int packetOffset = (int)(lengthOfDataBinSent - offset);
         int packetLength = logicalTarget.getPacketLength(inClassIdentifier, layerOfDataSent);
         boolean lastByte = ((offset + packetLength) == logicalTarget.getDataBinLength(inClassIdentifier)) ? true : false;
         int lastCompleteLayer = logicalTarget.getLastCompleteLayer(inClassIdentifier, (offset + packetLength));
@@ -560,9 +557,8 @@ public class FileOrderDelivery {
         //System.out.println("Sended Offset: " + lengthOfDataBinSent);
         //System.out.println("Packet Offset: " + offset + " Packet Length: " + packetLength + "  Total: " + (offset+packetLength));
 
-        // Update pointer and length
-        packetFilePointer += (lengthOfDataBinSent - offset);
-        packetLength -= (lengthOfDataBinSent - offset);
+        // Update offset and length
+        packetLength -= packetOffset;
 
         //System.out.println("Updated data");
         //System.out.println("Layer Offset: " + offset + " Packet Length: " + packetLength + "  Total: " + (offset+packetLength));
@@ -582,13 +578,11 @@ public class FileOrderDelivery {
 
 
           //System.out.println("Packet length: " + packetLength);
-          JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.EXTENDED_PRECINCT, inClassIdentifier, offset, packetLength, lastByte, lastCompleteLayer);
+          JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.EXTENDED_PRECINCT, inClassIdentifier, offset + packetOffset, packetLength, lastByte, lastCompleteLayer);
           //System.out.println(" - identifier: " + inClassIdentifier + " layer: " +layerOfDataSent + " Data Length: " + packetLength + " Offset: " + offset);
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          filePointers.add((long) logicalTarget.getPacketOffset(inClassIdentifier, layerOfDataSent));
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
-          lengths.add(packetLength);
-          responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+          FileExtents extents = new FileExtents();
+          logicalTarget.addPacketExtents(extents, inClassIdentifier, layerOfDataSent, packetOffset, packetLength);
+          responseDataList.add(new ResponseData(jpipMessageHeader, extents));
         }
       }
 
@@ -620,24 +614,20 @@ public class FileOrderDelivery {
 
         //System.out.println(" - Sending: identifier: " + inClassIdentifier + " layer: " +layer + " Data Length: " + packetLength + " Offset: " + offset);
         //System.out.println(" - identifier: " + inClassIdentifier + " layer: " +layer + " Data Length: " + packetLength + " Offset: " + offset);
-        ArrayList<Long> filePointers = new ArrayList<Long>();
-        filePointers.add((long) logicalTarget.getPacketOffset(inClassIdentifier, layer));
-        ArrayList<Integer> lengths = new ArrayList<Integer>();
-        lengths.add(packetLength);
-        responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+        FileExtents extents = new FileExtents();
+        logicalTarget.addPacketExtents(extents, inClassIdentifier, layer, 0, packetLength);
+        responseDataList.add(new ResponseData(jpipMessageHeader, extents));
       }
 
     }
 
-    relevantPrecincts.clear();
-
   }
 
   /**
    *
    *
    */
-  private void runResponseDataRLCP(ArrayList<Long>[][] relevantPrecinctsR_CP) throws ErrorException {
+  private void runResponseDataRLCP(long[][][] relevantPrecinctsR_CP) throws ErrorException {
 
     boolean finish = false;
     int numResolutionLevels = relevantPrecinctsR_CP[0].length;
@@ -645,15 +635,17 @@ public class FileOrderDelivery {
     // Loop on resolution levels
     for (int rLevel = 0; rLevel < numResolutionLevels && !finish; rLevel++) {
 
+      int[] layersOfDataSent = getLayersOfDataSent(relevantPrecinctsR_CP[0][rLevel]);
+
       // Loop on layers
       for (int layer = 0; layer < layers && !finish; layer++) {
-        int numberOfRelevantPrecincts = relevantPrecinctsR_CP[0][rLevel].size();
+        int numberOfRelevantPrecincts = relevantPrecinctsR_CP[0][rLevel].length;
         //System.out.println("Number of relevant precincts: " + numberOfRelevantPrecincts);
 
         // Loop on precincts
         for (int i = 0; i < numberOfRelevantPrecincts && !finish; i++) {
 
-          long inClassIdentifier = relevantPrecinctsR_CP[0][rLevel].get(i);
+          long inClassIdentifier = relevantPrecinctsR_CP[0][rLevel][i];
 
           // DEBUG
 					/*int[] TCRP = JPEG2000Util.InClassIdentifierToTCRP(inClassIdentifier, 1, zSize, xSize, ySize, XOsize, YOsize, WTLevels, jpcParameters.codParameters.precinctWidths, jpcParameters.codParameters.precinctHeights);
@@ -668,10 +660,7 @@ public class FileOrderDelivery {
           //System.out.print("\n-- precinct: "+ inClassIdentifier + "  --");		// DEBUG
           //System.out.println("Response length: " + responseLength);
 
-          int lengthOfDataBinSent = (int) serverCache.getPrecinctDataBinLength(inClassIdentifier);
-          //System.out.println("Client has: " + lengthOfDataBinSent +" (bytes)");
-
-          int layerOfDataSent = logicalTarget.getLastCompleteLayer(inClassIdentifier, lengthOfDataBinSent);
+          int layerOfDataSent = layersOfDataSent[i];
           //System.out.println("   client has: " + layerOfDataSent + " in its cache");	// DEBUG
 
           // Check if data of this layer has been sent
@@ -703,21 +692,32 @@ public class FileOrderDelivery {
           JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.EXTENDED_PRECINCT, inClassIdentifier, offset, packetLength, lastByte, lastCompleteLayer);
           //System.out.println(" - Sending: identifier: " + inClassIdentifier + " layer: " +layer + " Data Length: " + packetLength + " Offset: " + offset);
 
-          ArrayList<Long> filePointers = new ArrayList<Long>();
-          filePointers.add((long) logicalTarget.getPacketOffset(inClassIdentifier, layer));
-          ArrayList<Integer> lengths = new ArrayList<Integer>();
-          lengths.add(packetLength);
-          responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+          FileExtents extents = new FileExtents();
+          logicalTarget.addPacketExtents(extents, inClassIdentifier, layer, 0, packetLength);
+          responseDataList.add(new ResponseData(jpipMessageHeader, extents));
         }
 
       }
     }
 
-    for (int t = 0; t < relevantPrecinctsR_CP.length; t++) {
-      for (int r = 0; r < relevantPrecinctsR_CP[t].length; r++) {
-        relevantPrecinctsR_CP[t][r].clear();
-      }
-    }
     relevantPrecinctsR_CP = null;
   }
+
+  /**
+   * Returns the last complete layer the client has in its cache for each of
+   * the <code>relevantPrecincts</code>, using a single query to the server
+   * cache model.
+   *
+   * @param relevantPrecincts an array of unique precinct identifiers.
+   *
+   * @return an array with the last complete layer of each precinct.
+   */
+  private int[] getLayersOfDataSent(long[] relevantPrecincts) {
+    int[] lengthsOfDataBinSent = serverCache.getPrecinctDataBinLengths(relevantPrecincts);
+    int[] layersOfDataSent = new int[relevantPrecincts.length];
+    for (int i = 0; i < relevantPrecincts.length; i++) {
+      layersOfDataSent[i] = logicalTarget.getLastCompleteLayer(relevantPrecincts[i], lengthsOfDataBinSent[i]);
+    }
+    return layersOfDataSent;
+  }
 }
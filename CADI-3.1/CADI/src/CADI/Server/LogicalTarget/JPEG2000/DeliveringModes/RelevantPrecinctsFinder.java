@@ -41,15 +41,24 @@ import CADI.Common.Util.CADIRectangle;
 /**
  * This class is used to obtain which precincts belong to a WOI and what is the
  * progression order to be delivered. 
+ * <p>
+ * For each tile-component-resolution level, the support region of the WOI is
+ * mapped to a range of columns and rows of the precinct grid, and the
+ * identifiers of the precincts in that range are computed directly (see
+ * {@link CADI.Common.LogicalTarget.JPEG2000.JPEG2KResolutionLevel#getInClassIdentifiers(int, int, int, int)}).
+ * Therefore, the cost of a search only depends on the number of relevant
+ * precincts, not on the size of the image. Precinct identifiers are returned
+ * as arrays of primitive types.
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.1.1 2011/08/21
+ * @version 1.2 2012/07/04
  */
 public class RelevantPrecinctsFinder {
 
   /**
    * Calculates which are the relevant precincts which belong to the WOI
-   * (fsiz, roff, rsiz).
+   * (fsiz, roff, rsiz), sorted by tile, resolution level, component and
+   * precinct.
    * <p>
    * Further information, see ISO/IEC 15444-9 section K.4.1
    *
@@ -57,11 +66,11 @@ public class RelevantPrecinctsFinder {
    * @param actualViewWindow
    * @param discardLevels
    *
-   * @return a array list with the unique precinct number which belongs to the WOI.
+   * @return an array with the unique precinct identifiers which belong to the WOI.
    */
-  public static ArrayList<Long> TRCPOrder(JPEG2KCodestream codestream,
-                                          ViewWindowField actualViewWindow,
-                                          int discardLevels) {
+  public static long[] TRCPOrder(JPEG2KCodestream codestream,
+                                 ViewWindowField actualViewWindow,
+                                 int discardLevels) {
 
     if (codestream == null) {
       throw new NullPointerException();
@@ -73,880 +82,439 @@ public class RelevantPrecinctsFinder {
       throw new IllegalArgumentException();
     }
 
-    JPEG2KTile tileObj = null;
-    JPEG2KComponent compObj = null;
-    JPEG2KResolutionLevel rLevelObj = null;
-    ArrayList<Long> relevantPrecincts = new ArrayList<Long>();
+    ArrayList<long[]> relevantPrecincts = new ArrayList<long[]>();
     ArrayList<Integer> relevantTiles = codestream.calculateRelevantTiles(actualViewWindow, discardLevels);
-    int[] components = null;
-    if (actualViewWindow.comps != null) {
-      components = ArraysUtil.rangesToIndexes(actualViewWindow.comps);
-    } else {
-      int maxComps = codestream.getZSize();
-      components = new int[maxComps];
-      for (int c = 0; c < maxComps; c++) {
-        components[c] = c;
-      }
-    }
+    int[] components = getComponents(codestream, actualViewWindow);
+    int maxRLevel = getMaxRLevel(codestream, relevantTiles, components);
 
-    //actualViewWindow.list(System.out);
-    //System.out.println("Discard levels="+discardLevels);
-
-    // Calculate the max. resol. level over the tile-components
-    int maxRLevel = 0;
     for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
-      for (int comp : components) {
-        if (maxRLevel < tileObj.getComponent(comp).getWTLevels()) {
-          maxRLevel = tileObj.getComponent(comp).getWTLevels();
-        }
-      }
-    }
-
-    for (int tileIndex : relevantTiles) {
-      //System.out.println("tile=" + tileIndex); // DEBUG
-      tileObj = codestream.getTile(tileIndex);
-
       for (int rLevel = 0; rLevel <= maxRLevel; rLevel++) {
-        //System.out.println("\trLevel=" + rLevel); // DEBUG
-
         for (int component : components) {
-          //System.out.println("\t\tcomponent=" + component); // DEBUG
-
-          compObj = tileObj.getComponent(component);
-          rLevelObj = compObj.getResolutionLevel(rLevel);
-
-          // Max. resol. levels of this tile-component
-          int maxRLevelsComponent = compObj.getWTLevels();
-          //System.out.println("\t\tmaxRLevelsComponent="+maxRLevelsComponent);
-
-
-          if (maxRLevelsComponent >= discardLevels) {
-            // Discard the r highest res. levels
-            if (rLevel > maxRLevelsComponent - discardLevels) {
-              continue;
-            }
-          } else {
-            // It should discard more res. levels than ones available in this
-            // tile-component. Then, includes only the LL sub-band.
-            if (rLevel != 0) {
-              continue;
-            }
-          }
-
-          CADIDimension frameSize = JPEG2000Util.calculateFrameSize(
-                  codestream.getXSize(), codestream.getYSize(),
-                  codestream.getXOSize(), codestream.getYOSize(),
-                  maxRLevelsComponent - rLevel);
-          //System.out.println("\t\t\tframe size=" + frameSize.toString()); // DEBUG
-
-
-          // Translation of requested region with from the desired frame size reference grid
-          // into the sub-sampled reference grid at this frame size
-          CADIRectangle supportRegion = new CADIRectangle(
-                  actualViewWindow.roff[0], actualViewWindow.roff[1],
-                  actualViewWindow.rsiz[0], actualViewWindow.rsiz[1]);
-          codestream.calculateSupportRegion(tileIndex, component, rLevel,
-                  supportRegion, discardLevels);
-          //System.out.println("\t\t\tsupport region=" + supportRegion.toString()); // DEBUG
-
-
-          // Number of precincts for each resolution level
-          int precinctWidth = rLevelObj.getPrecinctWidth();
-          int precinctHeight = rLevelObj.getPrecinctHeight();
-          if (precinctWidth > frameSize.width) {
-            precinctWidth = frameSize.width;
-          }
-          if (precinctHeight > frameSize.height) {
-            precinctHeight = frameSize.height;
-          }
-          //System.out.println("\t\t\tprecinct sizes: "+precinctWidth+" x "+precinctHeight); // DEBUG
-
-          int numPrecinctsWidth = rLevelObj.getNumPrecinctsWide();
-          int numPrecinctsHeight = rLevelObj.getNumPrecinctsHeigh();
-          //System.out.println("\t\t\tnum precincts: " + numPrecinctsWidth + " x " + numPrecinctsHeight);
-
-          // Find the start and end precincts
-          int startXPrecinct = 0, endXPrecinct = 0;
-          int startYPrecinct = 0, endYPrecinct = 0;
-          startXPrecinct = (int)(Math.floor((double)supportRegion.x / (double)(precinctWidth)));
-          startYPrecinct = (int)(Math.floor((double)supportRegion.y / (double)(precinctHeight)));
-          endXPrecinct = (int)(Math.ceil((double)(supportRegion.x + supportRegion.width) / (double)(precinctWidth)));	// not included
-          endYPrecinct = (int)(Math.ceil((double)(supportRegion.y + supportRegion.height) / (double)(precinctHeight)));	// not included
-          //System.out.println("\t\t\tstart precinct: "+startXPrecinct+" "+startYPrecinct+"     end precinct: "+(endXPrecinct-1)+" "+(endYPrecinct-1) );
-
-          for (int yPrecinct = startYPrecinct; yPrecinct < endYPrecinct; yPrecinct++) {
-            for (int xPrecinct = startXPrecinct; xPrecinct < endXPrecinct; xPrecinct++) {
-              //System.out.println("\t\t\t\txp="+ xPrecinct+" yp="+yPrecinct); // DEBUG
-              long inClassIdentifier = rLevelObj.getInClassIdentifier(yPrecinct * numPrecinctsWidth + xPrecinct);
-              //System.out.println(" => inClassIdentifier=" + inClassIdentifier); // DEBUG
-              relevantPrecincts.add(inClassIdentifier);
-            }
+          long[] precincts = findPrecincts(codestream, tileIndex, component,
+                  rLevel, actualViewWindow, discardLevels);
+          if (precincts != null) {
+            relevantPrecincts.add(precincts);
           }
         }
       }
     }
 
-    //for (RelevantPrecinct rp : relevantPrecincts) System.out.println(rp.toStringSummary()); // DEBUG
-
-    return relevantPrecincts;
+    return concat(relevantPrecincts);
   }
 
   /**
    * Calculates which are the relevants precincts which belong to the WOI
-   * (fsiz, roff, rsiz).
-   *
+   * (fsiz, roff, rsiz), sorted by tile, component, resolution level and
+   * precinct.
+   * <p>
    * Further information, see ISO/IEC 15444-9 section K.4.1
    *
-   * @param fsiz definition in {@link CADI.Common.Network.JPIP.ViewWindowField#fsiz}.
-   * @param roff definition in {@link CADI.Common.Network.JPIP.ViewWindowField#roff}.
-   * @param rsiz definition in {@link CADI.Common.Network.JPIP.ViewWindowField#rsiz}.
-   * @param ySize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#ySize}.
-   * @param xSize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#xSize}.
-   * @param XOsize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#XOsize}.
-   * @param YOsize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#YOsize}.
-   * @param resolutionPrecinctWidths definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.CODParameters#precinctWidths}.
-   * @param resolutionPrecinctHeights  definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.CODParameters#precinctHeights}.
+   * @param codestream
+   * @param actualViewWindow
+   * @param discardLevels
    *
-   * @return a array list with the unique precinct number which belongs to the WOI.
+   * @return an array with the unique precinct identifiers which belong to the WOI.
    */
-  public static ArrayList<Long> TCRPOrder(JPEG2KCodestream codestream,
-                                          ViewWindowField actualViewWindow,
-                                          int discardLevels) {
+  public static long[] TCRPOrder(JPEG2KCodestream codestream,
+                                 ViewWindowField actualViewWindow,
+                                 int discardLevels) {
 
     assert (discardLevels >= 0);
     if (actualViewWindow == null) {
       throw new NullPointerException();
     }
 
-    JPEG2KTile tileObj = null;
-    JPEG2KComponent compObj = null;
-    JPEG2KResolutionLevel rLevelObj = null;
-    ArrayList<Long> relevantPrecincts = new ArrayList<Long>();
-    int[] components = ArraysUtil.rangesToIndexes(actualViewWindow.comps);
+    ArrayList<long[]> relevantPrecincts = new ArrayList<long[]>();
     ArrayList<Integer> relevantTiles = codestream.calculateRelevantTiles(actualViewWindow, discardLevels);
+    int[] components = getComponents(codestream, actualViewWindow);
 
-    //actualViewWindow.list(System.out);
-    //System.out.println("Discard levels="+discardLevels);
-
-    // Calculate the max. resol. level over the tile-components
-    int maxRLevel = 0;
     for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
-      for (int comp : components) {
-        if (maxRLevel < tileObj.getComponent(comp).getWTLevels()) {
-          maxRLevel = tileObj.getComponent(comp).getWTLevels();
-        }
-      }
-    }
-
-
-    for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
+      JPEG2KTile tileObj = codestream.getTile(tileIndex);
 
       for (int component : components) {
-        compObj = tileObj.getComponent(component);
-
-        // Max. resol. levels of this tile-component
-        int maxRLevelsComp = compObj.getWTLevels();
+        int maxRLevelsComp = tileObj.getComponent(component).getWTLevels();
 
         for (int rLevel = 0; rLevel <= maxRLevelsComp; rLevel++) {
-          //System.out.println("\tTile="+tile+" rLevel="+rLevel+" component="+component);
-          rLevelObj = compObj.getResolutionLevel(rLevel);
-
-          if (maxRLevelsComp >= discardLevels) {
-            // Discard the r highest res. levels
-            if (rLevel > maxRLevelsComp - discardLevels) {
-              continue;
-            }
-          } else {
-            // It should discard more res. levels than ones available in this
-            // tile-component. Then, includes only the LL sub-band.
-            if (rLevel != 0) {
-              continue;
-            }
-          }
-
-          CADIDimension frameSize = JPEG2000Util.calculateFrameSize(
-                  codestream.getXSize(), codestream.getYSize(),
-                  codestream.getXOSize(), codestream.getYOSize(),
-                  maxRLevelsComp - rLevel);
-          //System.out.println("FAME SIZE="+frameSize.toString());
-
-
-          // Translation of requested region with from the desired frame size reference grid
-          // into the sub-sampled reference grid at this frame size
-          CADIRectangle supportRegion = new CADIRectangle(actualViewWindow.roff[0],
-                  actualViewWindow.roff[1],
-                  actualViewWindow.rsiz[0],
-                  actualViewWindow.rsiz[1]);
-          codestream.calculateSupportRegion(tileIndex, component, rLevel, supportRegion, discardLevels);
-          //System.out.println("SUPPORT REGION="+supportRegion.toString());
-
-
-          // Number of precincts for each resolution level
-          int precinctWidth = rLevelObj.getPrecinctWidth();
-          int precinctHeight = rLevelObj.getPrecinctHeight();
-          //System.out.println("Precinct Sizes: " + precinctSize[X] + " x " + precinctSize[Y]);
-          if (precinctWidth > frameSize.width) {
-            precinctWidth = frameSize.width;
-          }
-          if (precinctHeight > frameSize.height) {
-            precinctHeight = frameSize.height;
-          }
-          //System.out.println("Precinct Sizes: " + precinctWidth + " x " + precinctHeight);
-
-          int numPrecinctsWidth = rLevelObj.getNumPrecinctsWide();
-          int numPrecinctsHeight = rLevelObj.getNumPrecinctsHeigh();
-          //System.out.println("Num Precincts: " + numPrecinctsWidth + " x " + numPrecinctsHeight);
-
-          // Find the start and end precincts
-          int startXPrecinct = 0, endXPrecinct = 0;
-          int startYPrecinct = 0, endYPrecinct = 0;
-          startXPrecinct = (int)(Math.floor((double)supportRegion.x / (double)(precinctWidth)));
-          startYPrecinct = (int)(Math.floor((double)supportRegion.y / (double)(precinctHeight)));
-          endXPrecinct = (int)(Math.ceil((double)(supportRegion.x + supportRegion.width) / (double)(precinctWidth)));	// not included
-          endYPrecinct = (int)(Math.ceil((double)(supportRegion.y + supportRegion.height) / (double)(precinctHeight)));	// not included
-          //System.out.println("Start Precinct: " + startPrecinct[X] + " " + startPrecinct[Y] + "     End Precinct: " + (endPrecinct[X]-1) + " " + (endPrecinct[Y]-1) );
-
-          for (int yPrecinct = startYPrecinct; yPrecinct < endYPrecinct; yPrecinct++) {
-            for (int xPrecinct = startXPrecinct; xPrecinct < endXPrecinct; xPrecinct++) {
-              long inClassIdentifier = rLevelObj.getInClassIdentifier(yPrecinct * numPrecinctsWidth + xPrecinct);
-              //System.out.println("\tJPIP MESSAGE: inClassID=" + inClassIdentifier + " -> z="+component + " r="+rLevel+" xp="+ xPrecinct+" yp="+yPrecinct);
-              relevantPrecincts.add(inClassIdentifier);
-            }
+          long[] precincts = findPrecincts(codestream, tileIndex, component,
+                  rLevel, actualViewWindow, discardLevels);
+          if (precincts != null) {
+            relevantPrecincts.add(precincts);
           }
         }
       }
     }
 
-    //for (RelevantPrecinct rp : relevantPrecincts) System.out.println(rp.toStringSummary()); // DEBUG
-
-    return relevantPrecincts;
+    return concat(relevantPrecincts);
   }
 
   /**
    * Calculates which are the relevants precincts which belong to the WOI
-   * (fsiz, roff, rsiz).
-   *
+   * (fsiz, roff, rsiz), sorted by tile, component, position and resolution
+   * level. Positions are interleaved by their index within the relevant
+   * precincts of each resolution level.
+   * <p>
    * Further information, see ISO/IEC 15444-9 section K.4.1
    *
-   * @param fsiz definition in {@link CADI.Common.Network.JPIP.ViewWindowField#fsiz}.
-   * @param roff definition in {@link CADI.Common.Network.JPIP.ViewWindowField#roff}.
-   * @param rsiz definition in {@link CADI.Common.Network.JPIP.ViewWindowField#rsiz}.
-   * @param ySize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#ySize}.
-   * @param xSize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#xSize}.
-   * @param XOsize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#XOsize}.
-   * @param YOsize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#YOsize}.
-   * @param resolutionPrecinctWidths definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.CODParameters#precinctWidths}.
-   * @param resolutionPrecinctHeights  definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.CODParameters#precinctHeights}.
+   * @param codestream
+   * @param actualViewWindow
+   * @param discardLevels
    *
-   * @return a array list with the unique precinct number which belongs to the WOI.
+   * @return an array with the unique precinct identifiers which belong to the WOI.
    */
-  public static ArrayList<Long> TCPROrder(JPEG2KCodestream codestream,
-                                          ViewWindowField actualViewWindow,
-                                          int discardLevels) {
+  public static long[] TCPROrder(JPEG2KCodestream codestream,
+                                 ViewWindowField actualViewWindow,
+                                 int discardLevels) {
 
     assert (discardLevels >= 0);
     if (actualViewWindow == null) {
       throw new NullPointerException();
     }
 
-
-    JPEG2KTile tileObj = null;
-    JPEG2KComponent compObj = null;
-    JPEG2KResolutionLevel rLevelObj = null;
-    ArrayList<Long> relevantPrecincts = new ArrayList<Long>();
-    int[] components = ArraysUtil.rangesToIndexes(actualViewWindow.comps);
+    ArrayList<long[]> relevantPrecincts = new ArrayList<long[]>();
     ArrayList<Integer> relevantTiles = codestream.calculateRelevantTiles(actualViewWindow, discardLevels);
+    int[] components = getComponents(codestream, actualViewWindow);
 
-    //actualViewWindow.list(System.out);
-    //System.out.println("Discard levels="+discardLevels);
-
-    // Calculate the max. resol. level over the tile-components
-    int maxAllRLevel = 0;
     for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
-      for (int comp : components) {
-        if (maxAllRLevel < tileObj.getComponent(comp).getWTLevels()) {
-          maxAllRLevel = tileObj.getComponent(comp).getWTLevels();
-        }
-      }
-    }
-
-
-    for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
+      JPEG2KTile tileObj = codestream.getTile(tileIndex);
 
       for (int component : components) {
-        compObj = tileObj.getComponent(component);
-
-        int maxNumPrecincts = compObj.getNumPrecincts();
-        int maxRLevelsComp = compObj.getWTLevels() + 1;
-        long[][] precinctIdentifiers = new long[maxRLevelsComp][];
-
-        for (int precinct = 0; precinct < maxNumPrecincts; precinct++) {
-
-          for (int rLevel = 0; rLevel < maxRLevelsComp; rLevel++) {
-            //System.out.println("\tTile="+tile+" rLevel="+rLevel+" component="+component);
-            rLevelObj = compObj.getResolutionLevel(rLevel);
-
-            if (maxRLevelsComp >= discardLevels) {
-              // Discard the r highest res. levels
-              if (rLevel > maxRLevelsComp - discardLevels) {
-                continue;
-              }
-            } else {
-              // It should discard more res. levels than ones available in this
-              // tile-component. Then, includes only the LL sub-band.
-              if (rLevel != 0) {
-                continue;
-              }
-            }
-
-            CADIDimension frameSize = JPEG2000Util.calculateFrameSize(
-                    codestream.getXSize(), codestream.getYSize(),
-                    codestream.getXOSize(), codestream.getYOSize(),
-                    maxRLevelsComp - rLevel);
-            //System.out.println("FAME SIZE="+frameSize.toString());
-
-
-            // Translation of requested region with from the desired frame size reference grid
-            // into the sub-sampled reference grid at this frame size
-            CADIRectangle supportRegion = new CADIRectangle(actualViewWindow.roff[0],
-                    actualViewWindow.roff[1],
-                    actualViewWindow.rsiz[0],
-                    actualViewWindow.rsiz[1]);
-            codestream.calculateSupportRegion(tileIndex, component, rLevel, supportRegion, discardLevels);
-            //System.out.println("SUPPORT REGION="+supportRegion.toString());
-
-
-            // Number of precincts for each resolution level
-            int precinctWidth = rLevelObj.getPrecinctWidth();
-            int precinctHeight = rLevelObj.getPrecinctHeight();
-            //System.out.println("Precinct Sizes: " + precinctSize[X] + " x " + precinctSize[Y]);
-            if (precinctWidth > frameSize.width) {
-              precinctWidth = frameSize.width;
-            }
-            if (precinctHeight > frameSize.height) {
-              precinctHeight = frameSize.height;
-            }
-            //System.out.println("Precinct Sizes: " + precinctWidth + " x " + precinctHeight);
-
-            int numPrecinctsWidth = rLevelObj.getNumPrecinctsWide();
-            int numPrecinctsHeight = rLevelObj.getNumPrecinctsHeigh();
-            //System.out.println("Num Precincts: " + numPrecinctsWidth + " x " + numPrecinctsHeight);
-
-            // Find the start and end precincts
-            int startXPrecinct = 0, endXPrecinct = 0;
-            int startYPrecinct = 0, endYPrecinct = 0;
-            startXPrecinct = (int)(Math.floor((double)supportRegion.x / (double)(precinctWidth)));
-            startYPrecinct = (int)(Math.floor((double)supportRegion.y / (double)(precinctHeight)));
-            endXPrecinct = (int)(Math.ceil((double)(supportRegion.x + supportRegion.width) / (double)(precinctWidth)));	// not included
-            endYPrecinct = (int)(Math.ceil((double)(supportRegion.y + supportRegion.height) / (double)(precinctHeight)));	// not included
-            //System.out.println("Start Precinct: " + startPrecinct[X] + " " + startPrecinct[Y] + "     End Precinct: " + (endPrecinct[X]-1) + " " + (endPrecinct[Y]-1) );
-            int numPrecincts = (endYPrecinct - startYPrecinct) * (endXPrecinct - startXPrecinct);
-            precinctIdentifiers[rLevel] = new long[numPrecincts];
-            int precIndex = 0;
-
-            for (int yPrecinct = startYPrecinct; yPrecinct < endYPrecinct; yPrecinct++) {
-              for (int xPrecinct = startXPrecinct; xPrecinct < endXPrecinct; xPrecinct++) {
-                long inClassIdentifier = rLevelObj.getInClassIdentifier(yPrecinct * numPrecinctsWidth + xPrecinct);
-                //System.out.println("\tJPIP MESSAGE: inClassID=" + inClassIdentifier + " -> z="+component + " r="+rLevel+" xp="+ xPrecinct+" yp="+yPrecinct);
-                precinctIdentifiers[rLevel][precIndex++] = inClassIdentifier;
-              }
-            }
-          }
-
-          // Add precinct indexes to ArrayList
-          for (int i = 0; i < maxNumPrecincts; i++) {
-            for (int r = 0; r < maxRLevelsComp; r++) {
-              if (precinctIdentifiers[r] == null) {
-                continue;
-              }
-              if (precinctIdentifiers[r].length > i) {
-                relevantPrecincts.add(precinctIdentifiers[r][i]);
-              }
-            }
-          }
+        int maxRLevelsComp = tileObj.getComponent(component).getWTLevels();
+        long[][] precinctIdentifiers = new long[maxRLevelsComp + 1][];
 
+        for (int rLevel = 0; rLevel <= maxRLevelsComp; rLevel++) {
+          precinctIdentifiers[rLevel] = findPrecincts(codestream, tileIndex,
+                  component, rLevel, actualViewWindow, discardLevels);
         }
+
+        relevantPrecincts.add(interleave(precinctIdentifiers));
       }
     }
 
-    //for (RelevantPrecinct rp : relevantPrecincts) System.out.println(rp.toStringSummary()); // DEBUG
-    return relevantPrecincts;
+    return concat(relevantPrecincts);
   }
 
   /**
    * Calculates which are the relevants precincts which belong to the WOI
-   * (fsiz, roff, rsiz).
-   *
+   * (fsiz, roff, rsiz), sorted by tile, resolution level, position and
+   * component. Positions are interleaved by their index within the relevant
+   * precincts of each component.
+   * <p>
    * Further information, see ISO/IEC 15444-9 section K.4.1
    *
-   * @param fsiz definition in {@link CADI.Common.Network.JPIP.ViewWindowField#fsiz}.
-   * @param roff definition in {@link CADI.Common.Network.JPIP.ViewWindowField#roff}.
-   * @param rsiz definition in {@link CADI.Common.Network.JPIP.ViewWindowField#rsiz}.
-   * @param ySize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#ySize}.
-   * @param xSize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#xSize}.
-   * @param XOsize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#XOsize}.
-   * @param YOsize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#YOsize}.
-   * @param resolutionPrecinctWidths definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.CODParameters#precinctWidths}.
-   * @param resolutionPrecinctHeights  definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.CODParameters#precinctHeights}.
+   * @param codestream
+   * @param actualViewWindow
+   * @param discardLevels
    *
-   * @return a array list with the unique precinct number which belongs to the WOI.
+   * @return an array with the unique precinct identifiers which belong to the WOI.
    */
-  public static ArrayList<Long> TRPCOrder(JPEG2KCodestream codestream,
-                                          ViewWindowField actualViewWindow,
-                                          int discardLevels) {
+  public static long[] TRPCOrder(JPEG2KCodestream codestream,
+                                 ViewWindowField actualViewWindow,
+                                 int discardLevels) {
 
     assert (discardLevels >= 0);
     if (actualViewWindow == null) {
       throw new NullPointerException();
     }
 
-    JPEG2KTile tileObj = null;
-    JPEG2KComponent compObj = null;
-    JPEG2KResolutionLevel rLevelObj = null;
-    ArrayList<Long> relevantPrecincts = new ArrayList<Long>();
-    int[] components = ArraysUtil.rangesToIndexes(actualViewWindow.comps);
+    ArrayList<long[]> relevantPrecincts = new ArrayList<long[]>();
     ArrayList<Integer> relevantTiles = codestream.calculateRelevantTiles(actualViewWindow, discardLevels);
+    int[] components = getComponents(codestream, actualViewWindow);
+    int maxRLevel = getMaxRLevel(codestream, relevantTiles, components);
 
-    //actualViewWindow.list(System.out);
-    //System.out.println("Discard levels="+discardLevels);
-
-    // Calculate the max. resol. level over the tile-components
-    int maxRLevel = 0;
     for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
-      for (int comp : components) {
-        if (maxRLevel < tileObj.getComponent(comp).getWTLevels()) {
-          maxRLevel = tileObj.getComponent(comp).getWTLevels();
-        }
-      }
-    }
-
-
-    for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
-
       for (int rLevel = 0; rLevel <= maxRLevel; rLevel++) {
-
         long[][] precinctIdentifiers = new long[components.length][];
-        int maxLength = 0;
 
         for (int zIndex = 0; zIndex < components.length; zIndex++) {
-
-          int z = components[zIndex];
-          compObj = tileObj.getComponent(z);
-
-          // Max. resol. levels of this tile-component
-          int maxRLevelsComp = compObj.getWTLevels();
-
-          if (rLevel > maxRLevelsComp) {
-            continue;
-          }
-
-          //System.out.println("\tTile="+tile+" rLevel="+rLevel+" component="+component);
-
-
-          if (maxRLevelsComp >= discardLevels) {
-            // Discard the r highest res. levels
-            if (rLevel > maxRLevelsComp - discardLevels) {
-              continue;
-            }
-          } else {
-            // It should discard more res. levels than ones available in this
-            // tile-component. Then, includes only the LL sub-band.
-            if (rLevel != 0) {
-              continue;
-            }
-          }
-
-          rLevelObj = compObj.getResolutionLevel(rLevel);
-
-
-          CADIDimension frameSize = JPEG2000Util.calculateFrameSize(
-                  codestream.getXSize(), codestream.getYSize(),
-                  codestream.getXOSize(), codestream.getYOSize(),
-                  maxRLevelsComp - rLevel);
-          //System.out.println("FAME SIZE="+frameSize.toString());
-
-
-          // Translation of requested region with from the desired frame size reference grid
-          // into the sub-sampled reference grid at this frame size
-          CADIRectangle supportRegion = new CADIRectangle(actualViewWindow.roff[0],
-                  actualViewWindow.roff[1],
-                  actualViewWindow.rsiz[0],
-                  actualViewWindow.rsiz[1]);
-          codestream.calculateSupportRegion(tileIndex, z, rLevel, supportRegion, discardLevels);
-          //System.out.println("SUPPORT REGION="+supportRegion.toString());
-
-
-          // Number of precincts for each resolution level
-          int precinctWidth = rLevelObj.getPrecinctWidth();
-          int precinctHeight = rLevelObj.getPrecinctHeight();
-          //System.out.println("Precinct Sizes: " + precinctSize[X] + " x " + precinctSize[Y]);
-          if (precinctWidth > frameSize.width) {
-            precinctWidth = frameSize.width;
-          }
-          if (precinctHeight > frameSize.height) {
-            precinctHeight = frameSize.height;
-          }
-          //System.out.println("Precinct Sizes: " + precinctWidth + " x " + precinctHeight);
-
-          int numPrecinctsWidth = rLevelObj.getNumPrecinctsWide();
-          int numPrecinctsHeight = rLevelObj.getNumPrecinctsHeigh();
-          //System.out.println("Num Precincts: " + numPrecinctsWidth + " x " + numPrecinctsHeight);
-
-          // Find the start and end precincts
-          int startXPrecinct = 0, endXPrecinct = 0;
-          int startYPrecinct = 0, endYPrecinct = 0;
-          startXPrecinct = (int)(Math.floor((double)supportRegion.x / (double)(precinctWidth)));
-          startYPrecinct = (int)(Math.floor((double)supportRegion.y / (double)(precinctHeight)));
-          endXPrecinct = (int)(Math.ceil((double)(supportRegion.x + supportRegion.width) / (double)(precinctWidth)));	// not included
-          endYPrecinct = (int)(Math.ceil((double)(supportRegion.y + supportRegion.height) / (double)(precinctHeight)));	// not included
-          //System.out.println("Start Precinct: " + startPrecinct[X] + " " + startPrecinct[Y] + "     End Precinct: " + (endPrecinct[X]-1) + " " + (endPrecinct[Y]-1) );
-
-          int numPrecincts = (endYPrecinct - startYPrecinct) * (endXPrecinct - startXPrecinct);
-          if (maxLength < numPrecincts) {
-            maxLength = numPrecincts;
-          }
-
-          precinctIdentifiers[zIndex] = new long[numPrecincts];
-          int precIndex = 0;
-          for (int yPrecinct = startYPrecinct; yPrecinct < endYPrecinct; yPrecinct++) {
-            for (int xPrecinct = startXPrecinct; xPrecinct < endXPrecinct; xPrecinct++) {
-              long inClassIdentifier = rLevelObj.getInClassIdentifier(yPrecinct * numPrecinctsWidth + xPrecinct);
-              //System.out.println("\tJPIP MESSAGE: inClassID=" + inClassIdentifier + " -> z="+component + " r="+rLevel+" xp="+ xPrecinct+" yp="+yPrecinct);
-              precinctIdentifiers[zIndex][precIndex++] = inClassIdentifier;
-            }
-          }
+          precinctIdentifiers[zIndex] = findPrecincts(codestream, tileIndex,
+                  components[zIndex], rLevel, actualViewWindow, discardLevels);
         }
 
-        // Add precinct indexes to ArrayList
-        for (int i = 0; i < maxLength; i++) {
-          for (int zIndex = 0; zIndex < components.length; zIndex++) {
-            if (precinctIdentifiers[zIndex].length > i) {
-              relevantPrecincts.add(precinctIdentifiers[zIndex][i]);
-            }
-          }
-        }
+        relevantPrecincts.add(interleave(precinctIdentifiers));
       }
     }
 
-    //for (RelevantPrecinct rp : relevantPrecincts) System.out.println(rp.toStringSummary()); // DEBUG
-
-    return relevantPrecincts;
+    return concat(relevantPrecincts);
   }
 
   /**
    * Calculates which are the relevants precincts which belong to the WOI
-   * (fsiz, roff, rsiz).
-   *
+   * (fsiz, roff, rsiz), sorted by tile, position, component and resolution
+   * level. Positions are interleaved by their index within the relevant
+   * precincts of each component-resolution level.
+   * <p>
    * Further information, see ISO/IEC 15444-9 section K.4.1
    *
-   * @param fsiz definition in {@link CADI.Common.Network.JPIP.ViewWindowField#fsiz}.
-   * @param roff definition in {@link CADI.Common.Network.JPIP.ViewWindowField#roff}.
-   * @param rsiz definition in {@link CADI.Common.Network.JPIP.ViewWindowField#rsiz}.
-   * @param ySize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#ySize}.
-   * @param xSize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#xSize}.
-   * @param XOsize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#XOsize}.
-   * @param YOsize definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.SIZParameters#YOsize}.
-   * @param resolutionPrecinctWidths definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.CODParameters#precinctWidths}.
-   * @param resolutionPrecinctHeights  definition in {@link CADI.Common.LogicalTarget.JPEG2000.Parameters.CODParameters#precinctHeights}.
+   * @param codestream
+   * @param actualViewWindow
+   * @param discardLevels
    *
-   * @return a array list with the unique precinct number which belongs to the WOI.
+   * @return an array with the unique precinct identifiers which belong to the WOI.
    */
-  public static ArrayList<Long> TPCROrder(JPEG2KCodestream codestream,
-                                          ViewWindowField actualViewWindow,
-                                          int discardLevels) {
+  public static long[] TPCROrder(JPEG2KCodestream codestream,
+                                 ViewWindowField actualViewWindow,
+                                 int discardLevels) {
 
     assert (discardLevels >= 0);
     if (actualViewWindow == null) {
       throw new NullPointerException();
     }
 
-    JPEG2KTile tileObj = null;
-    JPEG2KComponent compObj = null;
-    JPEG2KResolutionLevel rLevelObj = null;
-    ArrayList<Long> relevantPrecincts = new ArrayList<Long>();
-    int[] components = ArraysUtil.rangesToIndexes(actualViewWindow.comps);
+    ArrayList<long[]> relevantPrecincts = new ArrayList<long[]>();
     ArrayList<Integer> relevantTiles = codestream.calculateRelevantTiles(actualViewWindow, discardLevels);
+    int[] components = getComponents(codestream, actualViewWindow);
 
-    //actualViewWindow.list(System.out);
-    //System.out.println("Discard levels="+discardLevels);
-
-    // Calculate the max. resol. level over the tile-components
-    int maxRLevel = 0;
     for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
-      for (int comp : components) {
-        if (maxRLevel < tileObj.getComponent(comp).getWTLevels()) {
-          maxRLevel = tileObj.getComponent(comp).getWTLevels();
-        }
-      }
-    }
-
-
-    for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
+      JPEG2KTile tileObj = codestream.getTile(tileIndex);
 
-      long[][][] precinctIdentifiers = new long[components.length][][];
-      int maxNumPrecincts = 0;
-      int maxResolutionLevel = 0;
-
-      for (int zIndex = 0; zIndex < components.length; zIndex++) {
-
-        int maxRLevelsComp = compObj.getWTLevels() + 1;
-        int z = components[zIndex];
-        precinctIdentifiers[zIndex] = new long[maxRLevelsComp][];
-        if (maxResolutionLevel < maxRLevelsComp) {
-          maxResolutionLevel = maxRLevelsComp;
+      // Component-resolution levels, sorted by component and resolution level
+      ArrayList<long[]> precinctIdentifiers = new ArrayList<long[]>();
+      for (int component : components) {
+        int maxRLevelsComp = tileObj.getComponent(component).getWTLevels();
+        for (int rLevel = 0; rLevel <= maxRLevelsComp; rLevel++) {
+          precinctIdentifiers.add(findPrecincts(codestream, tileIndex,
+                  component, rLevel, actualViewWindow, discardLevels));
         }
+      }
 
-        compObj = tileObj.getComponent(z);
-
-        for (int rLevel = 0; rLevel < maxRLevelsComp; rLevel++) {
-          //System.out.println("\tTile="+tile+" rLevel="+rLevel+" component="+component);
-          if (rLevel > maxRLevelsComp) {
-            continue;
-          }
-
-          if (maxRLevelsComp >= discardLevels) {
-            // Discard the r highest res. levels
-            if (rLevel > maxRLevelsComp - discardLevels) {
-              continue;
-            }
-          } else {
-            // It should discard more res. levels than ones available in this
-            // tile-component. Then, includes only the LL sub-band.
-            if (rLevel != 0) {
-              continue;
-            }
-          }
-
-          rLevelObj = compObj.getResolutionLevel(rLevel);
-
-
-          CADIDimension frameSize = JPEG2000Util.calculateFrameSize(
-                  codestream.getXSize(), codestream.getYSize(),
-                  codestream.getXOSize(), codestream.getYOSize(),
-                  maxRLevelsComp - rLevel);
-          //System.out.println("FAME SIZE="+frameSize.toString());
-
+      relevantPrecincts.add(interleave(
+              precinctIdentifiers.toArray(new long[precinctIdentifiers.size()][])));
+    }
 
-          // Translation of requested region with from the desired frame size reference grid
-          // into the sub-sampled reference grid at this frame size
-          CADIRectangle supportRegion = new CADIRectangle(actualViewWindow.roff[0],
-                  actualViewWindow.roff[1],
-                  actualViewWindow.rsiz[0],
-                  actualViewWindow.rsiz[1]);
-          codestream.calculateSupportRegion(tileIndex, z, rLevel, supportRegion, discardLevels);
-          //System.out.println("SUPPORT REGION="+supportRegion.toString());
+    return concat(relevantPrecincts);
+  }
 
+  /**
+   * Calculates which are the relevants precincts which belong to the WOI
+   * (fsiz, roff, rsiz) for each tile and resolution level. Precincts of a
+   * tile-resolution level are sorted by component and precinct.
+   *
+   * @param codestream
+   * @param actualViewWindow
+   * @param discardLevels
+   *
+   * @return a three-dimension array with the unique precinct identifiers
+   * 	which belong to the WOI. Indexes mean [tile][resolution level][precinct].
+   * 	Tiles which are not relevant are <code>null</code>.
+   */
+  public static long[][][] TR_CPOrder(JPEG2KCodestream codestream,
+                                      ViewWindowField actualViewWindow,
+                                      int discardLevels) {
 
-          // Number of precincts for each resolution level
-          int precinctWidth = rLevelObj.getPrecinctWidth();
-          int precinctHeight = rLevelObj.getPrecinctHeight();
-          //System.out.println("Precinct Sizes: " + precinctSize[X] + " x " + precinctSize[Y]);
-          if (precinctWidth > frameSize.width) {
-            precinctWidth = frameSize.width;
-          }
-          if (precinctHeight > frameSize.height) {
-            precinctHeight = frameSize.height;
-          }
-          //System.out.println("Precinct Sizes: " + precinctWidth + " x " + precinctHeight);
-
-          int numPrecinctsWidth = rLevelObj.getNumPrecinctsWide();
-          int numPrecinctsHeight = rLevelObj.getNumPrecinctsHeigh();
-          //System.out.println("Num Precincts: " + numPrecinctsWidth + " x " + numPrecinctsHeight);
-
-          // Find the start and end precincts
-          int startXPrecinct = 0, endXPrecinct = 0;
-          int startYPrecinct = 0, endYPrecinct = 0;
-          startXPrecinct = (int)(Math.floor((double)supportRegion.x / (double)(precinctWidth)));
-          startYPrecinct = (int)(Math.floor((double)supportRegion.y / (double)(precinctHeight)));
-          endXPrecinct = (int)(Math.ceil((double)(supportRegion.x + supportRegion.width) / (double)(precinctWidth)));	// not included
-          endYPrecinct = (int)(Math.ceil((double)(supportRegion.y + supportRegion.height) / (double)(precinctHeight)));	// not included
-          //System.out.println("Start Precinct: " + startPrecinct[X] + " " + startPrecinct[Y] + "     End Precinct: " + (endPrecinct[X]-1) + " " + (endPrecinct[Y]-1) );
-
-          int numPrecincts = (endYPrecinct - startYPrecinct) * (endXPrecinct - startXPrecinct);
-          if (maxNumPrecincts < numPrecincts) {
-            maxNumPrecincts = numPrecincts;
-          }
+    assert (discardLevels >= 0);
+    if (actualViewWindow == null) {
+      throw new NullPointerException();
+    }
 
-          precinctIdentifiers[zIndex][rLevel] = new long[numPrecincts];
-          int precIndex = 0;
+    long[][][] relevantPrecincts = new long[codestream.getNumTiles()][][];
+    ArrayList<Integer> relevantTiles = codestream.calculateRelevantTiles(actualViewWindow, discardLevels);
+    int[] components = getComponents(codestream, actualViewWindow);
 
+    for (int tileIndex : relevantTiles) {
+      JPEG2KTile tileObj = codestream.getTile(tileIndex);
 
-          for (int yPrecinct = startYPrecinct; yPrecinct < endYPrecinct; yPrecinct++) {
-            for (int xPrecinct = startXPrecinct; xPrecinct < endXPrecinct; xPrecinct++) {
-              long inClassIdentifier = rLevelObj.getInClassIdentifier(yPrecinct * numPrecinctsWidth + xPrecinct);
-              //System.out.println("\tJPIP MESSAGE: inClassID=" + inClassIdentifier + " -> z="+component + " r="+rLevel+" xp="+ xPrecinct+" yp="+yPrecinct);
-              precinctIdentifiers[zIndex][rLevel][precIndex++] = inClassIdentifier;
-            }
-          }
+      // Find maximum resolution level
+      int maxRLevel = 0;
+      for (int z = 0; z < codestream.getZSize(); z++) {
+        if (maxRLevel < tileObj.getComponent(z).getWTLevels()) {
+          maxRLevel = tileObj.getComponent(z).getWTLevels();
         }
       }
+      relevantPrecincts[tileIndex] = new long[maxRLevel + 1][];
 
-      // Add precinct indexes to ArrayList
-      for (int i = 0; i < maxNumPrecincts; i++) {
-        for (int zIndex = 0; zIndex < components.length; zIndex++) {
-          for (int r = 0; r <= maxResolutionLevel; r++) {
-            if (precinctIdentifiers[zIndex] == null) {
-              continue;
-            }
-            if (precinctIdentifiers[zIndex][r] == null) {
-              continue;
-            }
-            if (precinctIdentifiers[zIndex][r].length > i) {
-              relevantPrecincts.add(precinctIdentifiers[zIndex][r][i]);
-            }
+      for (int rLevel = 0; rLevel <= maxRLevel; rLevel++) {
+        ArrayList<long[]> precinctIdentifiers = new ArrayList<long[]>();
+        for (int component : components) {
+          long[] precincts = findPrecincts(codestream, tileIndex, component,
+                  rLevel, actualViewWindow, discardLevels);
+          if (precincts != null) {
+            precinctIdentifiers.add(precincts);
           }
         }
+        relevantPrecincts[tileIndex][rLevel] = concat(precinctIdentifiers);
       }
     }
 
-    //for (RelevantPrecinct rp : relevantPrecincts) System.out.println(rp.toStringSummary()); // DEBUG
-
     return relevantPrecincts;
   }
 
+  // ============================ private methods ==============================
   /**
+   * Finds the precincts of a tile-component-resolution level which are
+   * relevant to the WOI.
    *
+   * @param codestream
+   * @param tileIndex the tile index.
+   * @param component the component.
+   * @param rLevel the resolution level.
    * @param actualViewWindow
    * @param discardLevels
-   * @return
+   *
+   * @return the unique precinct identifiers, in raster order, or
+   * 	<code>null</code> if the resolution level is discarded.
    */
-  @SuppressWarnings("unchecked")
-  public static ArrayList<Long>[][] TR_CPOrder(JPEG2KCodestream codestream,
-                                               ViewWindowField actualViewWindow,
-                                               int discardLevels) {
+  private static long[] findPrecincts(JPEG2KCodestream codestream,
+                                      int tileIndex, int component, int rLevel,
+                                      ViewWindowField actualViewWindow,
+                                      int discardLevels) {
 
-    assert (discardLevels >= 0);
-    if (actualViewWindow == null) {
-      throw new NullPointerException();
+    JPEG2KComponent compObj = codestream.getTile(tileIndex).getComponent(component);
+
+    // Max. resol. levels of this tile-component
+    int maxRLevelsComponent = compObj.getWTLevels();
+    if (rLevel > maxRLevelsComponent) {
+      return null;
     }
 
+    if (maxRLevelsComponent >= discardLevels) {
+      // Discard the r highest res. levels
+      if (rLevel > maxRLevelsComponent - discardLevels) {
+        return null;
+      }
+    } else {
+      // It should discard more res. levels than ones available in this
+      // tile-component. Then, includes only the LL sub-band.
+      if (rLevel != 0) {
+        return null;
+      }
+    }
 
-    ArrayList<Long>[][] relevantPrecincts = new ArrayList[codestream.getNumTiles()][];
-    int[] components = ArraysUtil.rangesToIndexes(actualViewWindow.comps);
-    ArrayList<Integer> relevantTiles = codestream.calculateRelevantTiles(actualViewWindow, discardLevels);
+    JPEG2KResolutionLevel rLevelObj = compObj.getResolutionLevel(rLevel);
+
+    CADIDimension frameSize = JPEG2000Util.calculateFrameSize(
+            codestream.getXSize(), codestream.getYSize(),
+            codestream.getXOSize(), codestream.getYOSize(),
+            maxRLevelsComponent - rLevel);
+
+    // Translation of requested region with from the desired frame size reference grid
+    // into the sub-sampled reference grid at this frame size
+    CADIRectangle supportRegion = new CADIRectangle(
+            actualViewWindow.roff[0], actualViewWindow.roff[1],
+            actualViewWindow.rsiz[0], actualViewWindow.rsiz[1]);
+    codestream.calculateSupportRegion(tileIndex, component, rLevel,
+            supportRegion, discardLevels);
+
+    // Precinct sizes of the resolution level
+    int precinctWidth = rLevelObj.getPrecinctWidth();
+    int precinctHeight = rLevelObj.getPrecinctHeight();
+    if (precinctWidth > frameSize.width) {
+      precinctWidth = frameSize.width;
+    }
+    if (precinctHeight > frameSize.height) {
+      precinctHeight = frameSize.height;
+    }
 
+    // Find the start and end precincts
+    int startXPrecinct = (int)(Math.floor((double)supportRegion.x / (double)(precinctWidth)));
+    int startYPrecinct = (int)(Math.floor((double)supportRegion.y / (double)(precinctHeight)));
+    int endXPrecinct = (int)(Math.ceil((double)(supportRegion.x + supportRegion.width) / (double)(precinctWidth)));	// not included
+    int endYPrecinct = (int)(Math.ceil((double)(supportRegion.y + supportRegion.height) / (double)(precinctHeight)));	// not included
 
-    //actualViewWindow.list(System.out);
-    //System.out.println("Discard levels="+discardLevels);
+    return rLevelObj.getInClassIdentifiers(startXPrecinct, startYPrecinct,
+            endXPrecinct, endYPrecinct);
+  }
 
-    // Calculate the max. resol. level over the tile-components
-		/*int maxRLevel = 0;
-    for (int tileIndex : relevantTiles) {
-    for (int comp : components)
-    if (maxRLevel < tiles.get(tileIndex).components.get(comp).getWTLevels())
-    maxRLevel = tiles.get(tileIndex).components.get(comp).getWTLevels();
-    }*/
-
-    JPEG2KTile tileObj = null;
-    JPEG2KComponent compObj = null;
-    JPEG2KResolutionLevel rLevelObj = null;
-    for (int tileIndex : relevantTiles) {
-      tileObj = codestream.getTile(tileIndex);
+  /**
+   * Returns the components of the WOI. If they have not been set, all the
+   * image components are returned.
+   *
+   * @param codestream
+   * @param actualViewWindow
+   *
+   * @return the component indexes.
+   */
+  private static int[] getComponents(JPEG2KCodestream codestream,
+                                     ViewWindowField actualViewWindow) {
+    if (actualViewWindow.comps != null) {
+      return ArraysUtil.rangesToIndexes(actualViewWindow.comps);
+    }
 
-      // Find maximum resolution level
-      int maxRLevel = 0;
-      for (int z = 0; z < codestream.getZSize(); z++) {
-        compObj = tileObj.getComponent(z);
-        if (maxRLevel < compObj.getWTLevels()) {
-          maxRLevel = compObj.getWTLevels();
+    int maxComps = codestream.getZSize();
+    int[] components = new int[maxComps];
+    for (int c = 0; c < maxComps; c++) {
+      components[c] = c;
+    }
+    return components;
+  }
+
+  /**
+   * Calculates the max. resol. level over the tile-components.
+   *
+   * @param codestream
+   * @param relevantTiles the tile indexes.
+   * @param components the component indexes.
+   *
+   * @return the maximum resolution level.
+   */
+  private static int getMaxRLevel(JPEG2KCodestream codestream,
+                                  ArrayList<Integer> relevantTiles,
+                                  int[] components) {
+    int maxRLevel = 0;
+    for (int tileIndex : relevantTiles) {
+      JPEG2KTile tileObj = codestream.getTile(tileIndex);
+      for (int comp : components) {
+        if (maxRLevel < tileObj.getComponent(comp).getWTLevels()) {
+          maxRLevel = tileObj.getComponent(comp).getWTLevels();
         }
       }
-      relevantPrecincts[tileIndex] = (ArrayList<Long>[])new ArrayList[maxRLevel + 1];
-
-
-      for (int rLevel = 0; rLevel <= maxRLevel; rLevel++) {
-
-        relevantPrecincts[tileIndex][rLevel] = new ArrayList<Long>();
-
-
-        for (int component : components) {
-          //System.out.println("\tTile="+tile+" rLevel="+rLevel+" component="+component);
-          compObj = tileObj.getComponent(component);
-          rLevelObj = compObj.getResolutionLevel(rLevel);
-
-          // Max. resol. levels of this tile-component
-          int maxRLevelsComponent = compObj.getWTLevels();
-          //System.out.println("\t\tmaxRLevelsComponent="+maxRLevelsComponent);
-
-
-          if (maxRLevelsComponent >= discardLevels) {
-            // Discard the r highest res. levels
-            if (rLevel > maxRLevelsComponent - discardLevels) {
-              continue;
-            }
-          } else {
-            // It should discard more res. levels than ones available in this
-            // tile-component. Then, includes only the LL sub-band.
-            if (rLevel != 0) {
-              continue;
-            }
-          }
+    }
+    return maxRLevel;
+  }
 
-          CADIDimension frameSize = JPEG2000Util.calculateFrameSize(
-                  codestream.getXSize(), codestream.getYSize(),
-                  codestream.getXOSize(), codestream.getYOSize(),
-                  maxRLevelsComponent - rLevel);
-          //System.out.println("FAME SIZE="+frameSize.toString());
-
-
-          // Translation of requested region with from the desired frame size reference grid
-          // into the sub-sampled reference grid at this frame size
-          CADIRectangle supportRegion = new CADIRectangle(actualViewWindow.roff[0],
-                  actualViewWindow.roff[1],
-                  actualViewWindow.rsiz[0],
-                  actualViewWindow.rsiz[1]);
-          codestream.calculateSupportRegion(tileIndex, component, rLevel, supportRegion, discardLevels);
-          //System.out.println("SUPPORT REGION="+supportRegion.toString());
-
-
-          // Number of precincts for each resolution level
-          int precinctWidth = rLevelObj.getPrecinctWidth();
-          int precinctHeight = rLevelObj.getPrecinctHeight();
-          //System.out.println("Precinct Sizes: " + precinctSize[X] + " x " + precinctSize[Y]);
-          if (precinctWidth > frameSize.width) {
-            precinctWidth = frameSize.width;
-          }
-          if (precinctHeight > frameSize.height) {
-            precinctHeight = frameSize.height;
-          }
-          //System.out.println("Precinct Sizes: " + precinctWidth + " x " + precinctHeight);
-
-          int numPrecinctsWidth = rLevelObj.getNumPrecinctsWide();
-          int numPrecinctsHeight = rLevelObj.getNumPrecinctsHeigh();
-          //System.out.println("Num Precincts: " + numPrecinctsWidth + " x " + numPrecinctsHeight);
-
-          // Find the start and end precincts
-          int startXPrecinct = 0, endXPrecinct = 0;
-          int startYPrecinct = 0, endYPrecinct = 0;
-          startXPrecinct = (int)(Math.floor((double)supportRegion.x / (double)(precinctWidth)));
-          startYPrecinct = (int)(Math.floor((double)supportRegion.y / (double)(precinctHeight)));
-          endXPrecinct = (int)(Math.ceil((double)(supportRegion.x + supportRegion.width) / (double)(precinctWidth)));	// not included
-          endYPrecinct = (int)(Math.ceil((double)(supportRegion.y + supportRegion.height) / (double)(precinctHeight)));	// not included
-          //System.out.println("Start Precinct: " + startPrecinct[X] + " " + startPrecinct[Y] + "     End Precinct: " + (endPrecinct[X]-1) + " " + (endPrecinct[Y]-1) );
-
-          for (int yPrecinct = startYPrecinct; yPrecinct < endYPrecinct; yPrecinct++) {
-            for (int xPrecinct = startXPrecinct; xPrecinct < endXPrecinct; xPrecinct++) {
-              long inClassIdentifier = rLevelObj.getInClassIdentifier(yPrecinct * numPrecinctsWidth + xPrecinct);
-              //System.out.println("\tJPIP MESSAGE: inClassID=" + inClassIdentifier + " -> z="+component + " r="+rLevel+" xp="+ xPrecinct+" yp="+yPrecinct);
-              relevantPrecincts[tileIndex][rLevel].add(inClassIdentifier);
-            }
-          }
+  /**
+   * Interleaves several arrays of precinct identifiers: the first element of
+   * each array, then the second one, and so on. <code>null</code> arrays are
+   * skipped.
+   *
+   * @param precinctIdentifiers the arrays of precinct identifiers.
+   *
+   * @return the interleaved precinct identifiers.
+   */
+  private static long[] interleave(long[][] precinctIdentifiers) {
+    int length = 0;
+    int maxLength = 0;
+    for (long[] precincts : precinctIdentifiers) {
+      if (precincts != null) {
+        length += precincts.length;
+        if (maxLength < precincts.length) {
+          maxLength = precincts.length;
         }
       }
     }
 
-    //for (RelevantPrecinct rp : relevantPrecincts) System.out.println(rp.toStringSummary()); // DEBUG
+    long[] interleaved = new long[length];
+    int index = 0;
+    for (int i = 0; i < maxLength; i++) {
+      for (long[] precincts : precinctIdentifiers) {
+        if ((precincts != null) && (precincts.length > i)) {
+          interleaved[index++] = precincts[i];
+        }
+      }
+    }
 
-    return relevantPrecincts;
+    return interleaved;
   }
 
+  /**
+   * Concatenates several arrays of precinct identifiers.
+   *
+   * @param precinctIdentifiers the arrays of precinct identifiers.
+   *
+   * @return the concatenated precinct identifiers.
+   */
+  private static long[] concat(ArrayList<long[]> precinctIdentifiers) {
+    int length = 0;
+    for (long[] precincts : precinctIdentifiers) {
+      length += precincts.length;
+    }
+
+    long[] concatenated = new long[length];
+    int offset = 0;
+    for (long[] precincts : precinctIdentifiers) {
+      System.arraycopy(precincts, 0, concatenated, offset, precincts.length);
+      offset += precincts.length;
+    }
+
+    return concatenated;
+  }
 }
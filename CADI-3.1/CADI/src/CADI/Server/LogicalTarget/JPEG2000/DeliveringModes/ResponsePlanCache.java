@@ -0,0 +1,264 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.LogicalTarget.JPEG2000.DeliveringModes;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import CADI.Common.LogicalTarget.JPEG2000.RelevantPrecinct;
+import CADI.Common.Network.JPIP.ViewWindowField;
+import CADI.Common.Util.MemoryBoundedCache;
+import GiciException.ErrorException;
+
+/**
+ * This class implements a cache of response plans which is shared by all
+ * the clients of the server.
+ * <p>
+ * A response plan is the ordered list of precincts relevant to a view
+ * window, with the data which do not depend on the client (overlap and
+ * scaling factors). It only depends on the logical target, the delivering
+ * mode and the view window once it has been fitted to the codestream, so
+ * clients requesting the same view window (for instance, the default view
+ * of a popular image) share the same plan. Each response filters the plan
+ * against the cache model of its session and then sequences the packets.
+ * <p>
+ * Plans are identified by the target identifier, the delivering mode, the
+ * frame size, region offset, region size, components and layers of the
+ * view window, and the number of discarded resolution levels (which takes
+ * the round direction into account).
+ * <p>
+ * The memory used by the cache is bounded, and a plan requested by several
+ * threads is only computed once (see
+ * {@link CADI.Common.Util.MemoryBoundedCache}).
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; get<br>
+ * &nbsp; getHitRate<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.1 2012/07/04
+ */
+public class ResponsePlanCache extends MemoryBoundedCache<ResponsePlanCache.Key, RelevantPrecinct[]> {
+
+  /**
+   * Estimated memory, in bytes, used by an entry of the cache besides the
+   * precincts of the plan (map entry, key and arrays headers).
+   */
+  private static final int ENTRY_OVERHEAD = 160;
+
+  /**
+   * Estimated memory, in bytes, used by a precinct of a plan.
+   */
+  private static final int PRECINCT_MEMORY = 96;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param maxMemory maximum memory, in bytes, which can be used by the
+   * 	cache.
+   */
+  public ResponsePlanCache(long maxMemory) {
+    super(maxMemory, 256);
+  }
+
+  /**
+   * Gets the response plan of a view window from the cache or, if it is not
+   * in the cache, computes it by means of the <code>planner</code> and saves
+   * it in the cache.
+   * <p>
+   * The returned precincts are shared by all the clients, so they must not
+   * be modified. They have to be copied before being sequenced.
+   *
+   * @param tid definition in {@link CADI.Common.Network.JPIP.TargetField#tid}.
+   * @param deliveringMode the delivering mode (see
+   * 	{@link CADI.Server.ServerDefaultValues#DELIVERING_MODE}).
+   * @param viewWindow the view window fitted to the codestream. All its
+   * 	fields must be set.
+   * @param discardLevels number of discarded resolution levels.
+   * @param planner the job which computes the response plan.
+   *
+   * @return the ordered list of relevant precincts.
+   *
+   * @throws ErrorException if the plan cannot be computed. The exception
+   * 	thrown by the planner is passed on.
+   */
+  public RelevantPrecinct[] get(String tid, int deliveringMode,
+                                ViewWindowField viewWindow, int discardLevels,
+                                Callable<RelevantPrecinct[]> planner) throws ErrorException {
+    if (tid == null) {
+      throw new NullPointerException();
+    }
+    if (viewWindow == null) {
+      throw new NullPointerException();
+    }
+
+    try {
+      return get(new Key(tid, deliveringMode, getWindow(viewWindow, discardLevels)),
+                 planner);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ErrorException) {
+        throw (ErrorException)e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)e.getCause();
+      }
+      throw new ErrorException("Response plan cannot be computed");
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "maxMemory=" + getMaxMemory();
+    str += ", usedMemory=" + getUsedMemory();
+    str += ", plans=" + size();
+    str += ", hits=" + getHits();
+    str += ", misses=" + getMisses();
+    str += ", evictions=" + getEvictions();
+    str += ", hitRate=" + getHitRate();
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Response Plan Cache out to the specified output stream.
+   * This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Response Plan Cache --");
+
+    out.println("maxMemory: " + getMaxMemory());
+    out.println("usedMemory: " + getUsedMemory());
+    out.println("plans: " + size());
+    out.println("hits: " + getHits());
+    out.println("misses: " + getMisses());
+    out.println("evictions: " + getEvictions());
+    out.println("hitRate: " + getHitRate());
+
+    out.flush();
+  }
+
+  // =========================== protected methods =============================
+  /*
+   * (non-Javadoc)
+   * @see CADI.Common.Util.MemoryBoundedCache#getMemory(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  protected long getMemory(Key key, RelevantPrecinct[] plan) {
+    return ENTRY_OVERHEAD + 4L * key.window.length
+            + (long)(8 + PRECINCT_MEMORY) * plan.length;
+  }
+
+  // ============================ private methods ==============================
+  /**
+   * Packs the fields of a view window which identify a response plan.
+   *
+   * @param viewWindow the view window fitted to the codestream.
+   * @param discardLevels number of discarded resolution levels.
+   *
+   * @return the packed view window.
+   */
+  private static int[] getWindow(ViewWindowField viewWindow, int discardLevels) {
+    int numRanges = (viewWindow.comps == null) ? 0 : viewWindow.comps.length;
+    int[] window = new int[8 + 2 * numRanges];
+
+    window[0] = viewWindow.fsiz[0];
+    window[1] = viewWindow.fsiz[1];
+    window[2] = viewWindow.roff[0];
+    window[3] = viewWindow.roff[1];
+    window[4] = viewWindow.rsiz[0];
+    window[5] = viewWindow.rsiz[1];
+    window[6] = viewWindow.layers;
+    window[7] = discardLevels;
+    for (int i = 0; i < numRanges; i++) {
+      window[8 + 2 * i] = viewWindow.comps[i][0];
+      window[9 + 2 * i] = viewWindow.comps[i][1];
+    }
+
+    return window;
+  }
+
+  // ============================ internal classes =============================
+  /**
+   * Identifies a response plan in the cache.
+   */
+  static final class Key {
+
+    private final String tid;
+
+    private final int deliveringMode;
+
+    private final int[] window;
+
+    private final int hashCode;
+
+    Key(String tid, int deliveringMode, int[] window) {
+      this.tid = tid;
+      this.deliveringMode = deliveringMode;
+      this.window = window;
+
+      int hash = tid.hashCode();
+      hash = 31 * hash + deliveringMode;
+      hash = 31 * hash + Arrays.hashCode(window);
+      hashCode = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key key = (Key)obj;
+      return (hashCode == key.hashCode)
+              && (deliveringMode == key.deliveringMode)
+              && tid.equals(key.tid)
+              && Arrays.equals(window, key.window);
+    }
+  }
+}
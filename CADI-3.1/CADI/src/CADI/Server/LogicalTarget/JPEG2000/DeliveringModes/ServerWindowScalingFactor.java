@@ -28,13 +28,16 @@ package CADI.Server.LogicalTarget.JPEG2000.DeliveringModes;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
 
 import CADI.Common.LogicalTarget.JPEG2000.RelevantPrecinct;
 import CADI.Common.LogicalTarget.JPEG2000.WindowScalingFactor;
 import CADI.Common.Network.JPIP.JPIPMessageHeader;
 import CADI.Common.Network.JPIP.ViewWindowField;
 import CADI.Server.Cache.ServerCacheModel;
+import CADI.Server.Core.FileExtents;
 import CADI.Server.Core.ResponseData;
+import CADI.Server.ServerDefaultValues;
 import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
 import GiciException.ErrorException;
 
@@ -42,9 +45,14 @@ import GiciException.ErrorException;
  * This class implements an extension of the
  * {@link CADI.Common.LogicalTarget.JPEG2000.WindowScalingFactor} class to be
  * used by the CADIServer.
+ * <p>
+ * If the logical target has a
+ * {@link CADI.Server.LogicalTarget.JPEG2000.DeliveringModes.ResponsePlanCache},
+ * response plans are shared by all the clients which request the same view
+ * window, so relevant precincts are only searched the first time.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2011/01/11
+ * @version 1.0.2 2012/07/04
  */
 public class ServerWindowScalingFactor extends WindowScalingFactor {
 
@@ -123,8 +131,7 @@ public class ServerWindowScalingFactor extends WindowScalingFactor {
 
     ArrayList<RelevantPrecinct>relevantPrecincts = runResponseData(maximumResponseLength);
 
-    ArrayList<Long> filePointers = null;
-    ArrayList<Integer> lengths = null;
+    FileExtents extents = null;
 
     // Read relevant precincts and save in response data list
     for (RelevantPrecinct precinct : relevantPrecincts) {
@@ -134,8 +141,7 @@ public class ServerWindowScalingFactor extends WindowScalingFactor {
         int lastCompleteLayer = logicalTarget.getLastCompleteLayer(precinct.inClassIdentifier, (precinct.msgOffset + precinct.msgLength));
         JPIPMessageHeader jpipMessageHeader = new JPIPMessageHeader(-1, JPIPMessageHeader.EXTENDED_PRECINCT, precinct.inClassIdentifier, precinct.msgOffset, precinct.msgLength, lastByte, lastCompleteLayer);
 
-        filePointers = new ArrayList<Long>();
-        lengths = new ArrayList<Integer>();
+        extents = new FileExtents();
         int cumLength = 0;
 
         for (int nlayer = precinct.startLayer; (nlayer < precinct.actualNumPacket); nlayer++) {
@@ -146,12 +152,11 @@ public class ServerWindowScalingFactor extends WindowScalingFactor {
           if (packetLength <= 0) {
             break;
           }
-          filePointers.add((long)logicalTarget.getPacketOffset(precinct.inClassIdentifier, nlayer));
-          lengths.add(packetLength);
+          logicalTarget.addPacketExtents(extents, precinct.inClassIdentifier, nlayer, 0, packetLength);
           cumLength += packetLength;
         }
 
-        this.responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+        this.responseDataList.add(new ResponseData(jpipMessageHeader, extents));
       }
     }
 
@@ -200,6 +205,31 @@ public class ServerWindowScalingFactor extends WindowScalingFactor {
 
     out.flush();
   }
+  // =========================== protected methods =============================
+  /*
+   * (non-Javadoc)
+   * @see CADI.Common.LogicalTarget.JPEG2000.WindowScalingFactor#getResponsePlan(CADI.Common.Network.JPIP.ViewWindowField, int)
+   */
+  @Override
+  protected RelevantPrecinct[] getResponsePlan(final ViewWindowField actualViewWindow,
+                                               final int discardLevels) throws ErrorException {
+    ResponsePlanCache responsePlanCache = logicalTarget.getResponsePlanCache();
+    if (responsePlanCache == null) {
+      return computeResponsePlan(actualViewWindow, discardLevels);
+    }
+
+    return responsePlanCache.get(logicalTarget.getTID(),
+            ServerDefaultValues.DELIVERING_WINDOW_SCALING_FACTOR,
+            actualViewWindow, discardLevels,
+            new Callable<RelevantPrecinct[]>() {
+
+              @Override
+              public RelevantPrecinct[] call() {
+                return computeResponsePlan(actualViewWindow, discardLevels);
+              }
+            });
+  }
+
   // ============================ private methods ==============================
   
   
@@ -211,11 +241,8 @@ public class ServerWindowScalingFactor extends WindowScalingFactor {
   private void addTileHeader(int tileIndex) {
     JPIPMessageHeader jpipMessageHeader =
             new JPIPMessageHeader(-1, JPIPMessageHeader.TILE_HEADER, tileIndex, 0, logicalTarget.getTileHeaderLength(tileIndex), true, -1);
-    ArrayList<Long> filePointers = new ArrayList<Long>();
-    ArrayList<Integer> lengths = new ArrayList<Integer>();
-    filePointers.add(logicalTarget.getTileHeaderFilePointer(tileIndex));
-    lengths.add(logicalTarget.getTileHeaderLength(tileIndex));
-    responseDataList.add(new ResponseData(jpipMessageHeader, filePointers, lengths));
+    FileExtents extents = new FileExtents(logicalTarget.getTileHeaderFilePointer(tileIndex), logicalTarget.getTileHeaderLength(tileIndex));
+    responseDataList.add(new ResponseData(jpipMessageHeader, extents));
 
   }
 }
\ No newline at end of file
@@ -29,7 +29,9 @@ package CADI.Server.LogicalTarget.JPEG2000;
 import CADI.Common.LogicalTarget.JPEG2000.Indexing.HeaderIndexTable;
 import CADI.Common.LogicalTarget.JPEG2000.Indexing.FileIndex;
 import CADI.Common.LogicalTarget.JPEG2000.Indexing.CodestreamIndex;
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.PrecinctPacketIndexTable;
 import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -53,9 +55,12 @@ import GiciStream.BufferedDataInputStream;
  * Window of Interest of the logical target. How the logical target
  * structure is kept in memory, it is more easy and faster to find the
  * precincts which belong to the requested WOI.
+ * <p>
+ * Precincts can also be indexed on demand, when they are required by a
+ * client request (see {@link #setOnDemandIndexing(boolean)}).
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.4 2012/01/14
+ * @version 1.0.11 2012/07/03
  */
 public class JP2KLogicalTargetIndexer {
 
@@ -103,6 +108,26 @@ public class JP2KLogicalTargetIndexer {
    */
   private boolean doTranscoding = false;
 
+  /**
+   * Is the cache where the index of the logical target is saved, or
+   * <code>null</code> if indexes are not saved.
+   */
+  private CodestreamIndexCache indexCache = null;
+
+  /**
+   * Is the file where the logical target is stored. It is used to check
+   * whether the index saved in the {@link #indexCache} is up to date.
+   */
+  private File targetFile = null;
+
+  /**
+   * Indicates whether precincts are indexed on demand, when they are
+   * required by client requests, instead of indexing the whole codestream
+   * before the logical target is delivered (see
+   * {@link CADI.Server.LogicalTarget.JPEG2000.OnDemandCodestreamIndexing}).
+   */
+  private boolean onDemandIndexing = false;
+
   // ============================= public methods ==============================
   /**
    * Constructor.
@@ -151,6 +176,29 @@ public class JP2KLogicalTargetIndexer {
     this.predictiveModelFileName = predictiveModelFileName;
   }
 
+  /**
+   * Sets the {@link #indexCache} and {@link #targetFile} attributes.
+   *
+   * @param indexCache definition in {@link #indexCache}.
+   * @param targetFile definition in {@link #targetFile}.
+   */
+  public void setIndexCache(CodestreamIndexCache indexCache, File targetFile) {
+    if ((indexCache != null) && (targetFile == null)) {
+      throw new NullPointerException();
+    }
+    this.indexCache = indexCache;
+    this.targetFile = targetFile;
+  }
+
+  /**
+   * Sets the {@link #onDemandIndexing} attribute.
+   *
+   * @param onDemandIndexing definition in {@link #onDemandIndexing}.
+   */
+  public void setOnDemandIndexing(boolean onDemandIndexing) {
+    this.onDemandIndexing = onDemandIndexing;
+  }
+
   /**
    *
    * @throws WarningException
@@ -251,7 +299,6 @@ public class JP2KLogicalTargetIndexer {
     int numComponents = 0;
     ServerJPEG2KTile tileObj = null;
     ServerJPEG2KComponent componentObj = null;
-    ServerJPEG2KResolutionLevel rLevelObj = null;
 
     for (int t = 0; t < numTiles; t++) {
       codestream.createTile(t);
@@ -261,13 +308,9 @@ public class JP2KLogicalTargetIndexer {
         tileObj.createComponent(c);
         componentObj = tileObj.getComponent(c);
         int maxWTLevels = componentObj.getWTLevels();
+        // Precincts are not created, see ServerJPEG2KResolutionLevel
         for (int r = 0; r <= maxWTLevels; r++) {
           componentObj.createResolutionLevel(r);
-          rLevelObj = componentObj.getResolutionLevel(r);
-          int numPrecincts = rLevelObj.getNumPrecincts();
-          for (int p = 0; p < numPrecincts; p++) {
-            rLevelObj.createPrecinct(p);
-          }
         }
       }
     }
@@ -275,24 +318,52 @@ public class JP2KLogicalTargetIndexer {
     //codestream.list(System.out); // DEBUG
     
     // FILE INDEXING
-    log.logInfo(parentName + " (logical target delivery): file indexing ...");
-    CodestreamIndexing fi = null;
-    try {
-      fi = new CodestreamIndexing(in, codestream);
-      
-      if (readCodingPasses) {
-        fi.setReadingCodingPasses(true);
+    OnDemandCodestreamIndexing onDemandCodestreamIndexing = null;
+    if ((indexCache != null)
+            && indexCache.load(targetFile, readCodingPasses, codestream, cidx)) {
+      log.logInfo(parentName + " (logical target delivery): index loaded from "
+              + indexCache.getIndexFile(targetFile, readCodingPasses));
+    } else {
+      log.logInfo(parentName + " (logical target delivery): file indexing ...");
+      CodestreamIndexing fi = null;
+      try {
+        fi = new CodestreamIndexing(in, codestream);
+        fi.setPacketLengths(jpcParameters.plmParameters);
+        fi.setPackedHeaders(jpcParameters.ppmParameters);
+
+        if (readCodingPasses) {
+          fi.setReadingCodingPasses(true);
+        }
+        fi.setNumThreads(Runtime.getRuntime().availableProcessors());
+        if (onDemandIndexing) {
+          fi.start();
+        } else {
+          fi.run();
+        }
+      } catch (ErrorException e1) {
+        //e1.printStackTrace(System.out);
+        throw new WarningException("file can not be indexed correctly (packet header can not be decoded)");
       }
-      fi.run();
-    } catch (ErrorException e1) {
-      //e1.printStackTrace(System.out);
-      throw new WarningException("file can not be indexed correctly (packet header can not be decoded)");
-    }
 
-    cidx.tpix = fi.getTilePartIndexTable();
-    cidx.thix = fi.getTileHeaderIndexTable();
-    cidx.ppix = fi.getPrecinctPacketIndexTable();
-    cidx.phix = fi.getPacketHeaderIndexTable();
+      cidx.tpix = fi.getTilePartIndexTable();
+      cidx.thix = fi.getTileHeaderIndexTable();
+      cidx.ppix = fi.getPrecinctPacketIndexTable();
+      cidx.phix = fi.getPacketHeaderIndexTable();
+
+      if (onDemandIndexing && !fi.isIndexed()) {
+        onDemandCodestreamIndexing =
+                new OnDemandCodestreamIndexing(fi, codestream, cidx,
+                                               readCodingPasses, log, parentName);
+        onDemandCodestreamIndexing.setIndexCache(indexCache, targetFile);
+      } else if (indexCache != null) {
+        try {
+          indexCache.save(targetFile, readCodingPasses, codestream, cidx);
+        } catch (IOException e) {
+          log.logWarning(parentName + " (logical target delivery): index cannot be saved ("
+                  + e.getMessage() + ")");
+        }
+      }
+    }
 
 
     // DO TRANSCODING
@@ -303,6 +374,7 @@ public class JP2KLogicalTargetIndexer {
 
     // BUILDS THE LOGICAL TARGET
     logicalTarget = new JP2KServerLogicalTarget(target, in, codestream, cidx);
+    logicalTarget.setOnDemandIndexing(onDemandCodestreamIndexing);
 
     // READ PREDICTIVE MODEL
     if (predictiveModelFileName != null) {
@@ -314,7 +386,18 @@ public class JP2KLogicalTargetIndexer {
       }
     }
     
-    log.logInfo(parentName + " (logical target delivery): file indexing done");
+    if (onDemandCodestreamIndexing != null) {
+      log.logInfo(parentName + " (logical target delivery): file indexing started (precincts are indexed on demand)");
+    } else {
+      log.logInfo(parentName + " (logical target delivery): file indexing done");
+    }
+    if (log.isLog(CADILog.LEVEL_DEBUG)) {
+      PrecinctPacketIndexTable ppix = cidx.ppix;
+      long indexSize = ppix.getMemoryUsage();
+      log.logDebug(parentName + " (logical target delivery): precinct index size is "
+              + indexSize + " bytes (" + (ppix.getNumPrecincts() > 0 ? indexSize / ppix.getNumPrecincts() : 0)
+              + " bytes per precinct)");
+    }
   }
 
   /**
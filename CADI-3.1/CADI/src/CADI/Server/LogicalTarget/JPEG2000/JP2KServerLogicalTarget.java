@@ -32,15 +32,25 @@ import java.io.PrintStream;
 import java.util.Map;
 
 import CADI.Common.LogicalTarget.JPEG2000.Indexing.CodestreamIndex;
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.PacketHeaderIndexTable;
+import CADI.Common.LogicalTarget.JPEG2000.Parameters.PackedHeaderParameters;
+import CADI.Server.Core.FileExtents;
+import CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache;
+import CADI.Server.LogicalTarget.JPEG2000.DeliveringModes.ResponsePlanCache;
+import CADI.Server.LogicalTarget.LogicalTargetDataSource;
 import GiciStream.BufferedDataInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 
 /**
  * This class is used to store the indexed JPEG2000 image in the server.
+ * <p>
+ * When the codestream is indexed on demand (see
+ * {@link CADI.Server.LogicalTarget.JPEG2000.OnDemandCodestreamIndexing}),
+ * precincts are indexed the first time their index is required.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.4 2012/01/14
+ * @version 1.0.9 2012/07/04
  */
 public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
 
@@ -54,14 +64,38 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
    */
   private BufferedDataInputStream in = null;
 
+  /**
+   * Is the data source used to read precinct data. It allows concurrent
+   * reads from the target without locking the {@link #in} stream.
+   */
+  private LogicalTargetDataSource dataSource = null;
+
   //private HashMap<Integer, CodestreamIndex> codestreamIndexes = null;
   private CodestreamIndex codestreamIndex = null;
+
+  /**
+   * Is the object used to index the precincts on demand, or
+   * <code>null</code> if the codestream has been completely indexed.
+   */
+  private OnDemandCodestreamIndexing onDemandIndexing = null;
   
   /**
    * Definition in {@link CADI.Common.LogicalTarget.JPEG2000.PredictiveScalingFactors}.
    */
   private PredictiveScalingFactors scalingFactors = null;
 
+  /**
+   * Is the cache of encoded packet headers shared by the clients of this
+   * logical target, or <code>null</code> if packet headers are not cached.
+   */
+  private PacketHeadersCache packetHeadersCache = null;
+
+  /**
+   * Is the cache of response plans shared by the clients of this logical
+   * target, or <code>null</code> if response plans are not cached.
+   */
+  private ResponsePlanCache responsePlanCache = null;
+
   // INTERNAL ATTRIBUTES
   /**
    * The Most Significant Bit Plane of the whole image.
@@ -112,6 +146,7 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
     // Data copy
     this.target = target;
     this.in = in;
+    dataSource = new LogicalTargetDataSource(in);
     codestreams.put(codestream.getIdentifier(), codestream);
     //this.codestreamIndexes.put(codestream.getIdentifier(), codestreamIndex);
     this.codestreamIndex = codestreamIndex;
@@ -148,9 +183,19 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
     // Copy data
     this.target = target;
     this.in = in;
+    dataSource = new LogicalTargetDataSource(in);
     this.codestreams.put(codestream.getIdentifier(), codestream);
   }
   
+  /**
+   * Sets the {@link #onDemandIndexing} attribute.
+   *
+   * @param onDemandIndexing definition in {@link #onDemandIndexing}.
+   */
+  public void setOnDemandIndexing(OnDemandCodestreamIndexing onDemandIndexing) {
+    this.onDemandIndexing = onDemandIndexing;
+  }
+
   public void setScalingFactors(PredictiveScalingFactors scalingFactors) {
     this.scalingFactors = scalingFactors;
   }
@@ -159,6 +204,42 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
     return scalingFactors;
   }
 
+  /**
+   * Sets the {@link #packetHeadersCache} attribute.
+   *
+   * @param packetHeadersCache definition in {@link #packetHeadersCache}.
+   */
+  public void setPacketHeadersCache(PacketHeadersCache packetHeadersCache) {
+    this.packetHeadersCache = packetHeadersCache;
+  }
+
+  /**
+   * Returns the {@link #packetHeadersCache} attribute.
+   *
+   * @return the {@link #packetHeadersCache} attribute.
+   */
+  public PacketHeadersCache getPacketHeadersCache() {
+    return packetHeadersCache;
+  }
+
+  /**
+   * Sets the {@link #responsePlanCache} attribute.
+   *
+   * @param responsePlanCache definition in {@link #responsePlanCache}.
+   */
+  public void setResponsePlanCache(ResponsePlanCache responsePlanCache) {
+    this.responsePlanCache = responsePlanCache;
+  }
+
+  /**
+   * Returns the {@link #responsePlanCache} attribute.
+   *
+   * @return the {@link #responsePlanCache} attribute.
+   */
+  public ResponsePlanCache getResponsePlanCache() {
+    return responsePlanCache;
+  }
+
   /**
    * Returns the {@link #target} attribute.
    *
@@ -191,6 +272,15 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
     return in;
   }
 
+  /**
+   * Returns the {@link #dataSource} attribute.
+   *
+   * @return the {@link #dataSource} attribute.
+   */
+  public final LogicalTargetDataSource getDataSource() {
+    return dataSource;
+  }
+
   /**
    *
    * @param filePointer
@@ -206,6 +296,9 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
   }
 
   /**
+   * Reads <code>len</code> bytes from the file position
+   * <code>filePointer</code>. Several threads can read from the same target
+   * at the same time (see {@link #dataSource}).
    *
    * @param filePointer
    * @param b
@@ -229,13 +322,7 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
       }
     }
 
-    try {
-      in.lock();
-      in.seek(filePointer);
-      in.readFully(b, off, len);
-    } finally {
-      in.unlock();
-    }
+    dataSource.readFully(filePointer, b, off, len);
   }
 
   /**
@@ -248,12 +335,55 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
   }
 
   /**
-   * Returns the length of the JPEG2000 main header.
+   * Returns the length of the JPEG2000 main header. PPM marker segments are
+   * not included because packet headers are sent in the precinct data-bins.
    *
    * @see #mainHeaderLength
    */
   public int getMainHeaderLength() {
-      return codestreamIndex.mhix.mainHeaderLength;
+    int length = codestreamIndex.mhix.mainHeaderLength;
+    PacketHeaderIndexTable phix = codestreamIndex.phix;
+    if ((phix != null) && phix.isPacked() && phix.isMainHeaderPackedHeaders()) {
+      PackedHeaderParameters ppm = phix.getPackedHeaders();
+      for (int i = 0; i < ppm.getNumMarkerSegments(); i++) {
+        length -= ppm.getMarkerSegmentLength(i);
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Adds to a list the file extents of a part of the main header. PPM marker
+   * segments are skipped (see {@link #getMainHeaderLength()}).
+   *
+   * @param extents the list where file extents are added.
+   * @param offset the offset of the first byte in the main header.
+   * @param length the number of bytes.
+   */
+  public void addMainHeaderExtents(FileExtents extents, int offset, int length) {
+    long filePointer = codestreamIndex.mhix.mainHeaderInitialPos;
+    PacketHeaderIndexTable phix = codestreamIndex.phix;
+    if ((phix != null) && phix.isPacked() && phix.isMainHeaderPackedHeaders()) {
+      // Copy the pieces between PPM marker segments
+      PackedHeaderParameters ppm = phix.getPackedHeaders();
+      long segmentOffset = 0;
+      for (int i = 0; (i < ppm.getNumMarkerSegments()) && (length > 0); i++) {
+        long segmentLength = ppm.getMarkerSegmentFilePointer(i) - filePointer;
+        if (offset < segmentOffset + segmentLength) {
+          int pieceLength = (int)Math.min(length, segmentOffset + segmentLength - offset);
+          extents.add(filePointer + (offset - segmentOffset), pieceLength);
+          offset += pieceLength;
+          length -= pieceLength;
+        }
+        segmentOffset += segmentLength;
+        filePointer = ppm.getMarkerSegmentFilePointer(i) + ppm.getMarkerSegmentLength(i);
+      }
+      if (length > 0) {
+        extents.add(filePointer + (offset - segmentOffset), length);
+      }
+    } else {
+      extents.add(filePointer + offset, length);
+    }
   }
   
   public long getTileHeaderFilePointer(int tileIndex) {
@@ -276,8 +406,9 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
    *
    * @return the offset of the packet.
    */
-  public int getPacketOffset(long inClassIdentifier, int layer) {
-    return codestreamIndex.ppix.getOffset(inClassIdentifier, layer);
+  public long getPacketOffset(long inClassIdentifier, int layer) {
+    indexPrecinct(inClassIdentifier);
+    return codestreamIndex.ppix.getFilePointer(inClassIdentifier, layer);
   }
 
   /**
@@ -320,11 +451,72 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
    */
   @Override
   public int getPacketLength(long inClassIdentifier, int layer) {
+    indexPrecinct(inClassIdentifier);
     return (int)codestreamIndex.ppix.getLength(inClassIdentifier, layer);
   }
 
+  /**
+   * Adds to a list the file extents of a part of a packet. When packet
+   * headers are packed, the packet is built joining its SOP marker segment,
+   * its header and its body, as they are in the precinct data-bin.
+   *
+   * @param extents the list where file extents are added.
+   * @param inClassIdentifier
+   * definition in
+   *          {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}
+   * .
+   * @param layer the number of the layer.
+   * @param offset the offset of the first byte in the packet.
+   * @param length the number of bytes.
+   */
+  public void addPacketExtents(FileExtents extents, long inClassIdentifier,
+                               int layer, int offset, int length) {
+    indexPrecinct(inClassIdentifier);
+    long filePointer = codestreamIndex.ppix.getFilePointer(inClassIdentifier, layer);
+    PacketHeaderIndexTable phix = codestreamIndex.phix;
+    if ((phix == null) || !phix.isPacked()) {
+      extents.add(filePointer + offset, length);
+      return;
+    }
+
+    int sopLength = codestreams.get(0).getTile(0).useSOP() ? 6 : 0;
+    int headerLength = phix.getLength(inClassIdentifier, layer);
+    int end = offset + length;
+
+    // SOP marker segment
+    if (offset < sopLength) {
+      int pieceLength = Math.min(end, sopLength) - offset;
+      extents.add(filePointer + offset, pieceLength);
+      offset += pieceLength;
+    }
+
+    // Packet header, which may be split in several fragments
+    if ((offset < sopLength + headerLength) && (offset < end)) {
+      PackedHeaderParameters packedHeaders = phix.getPackedHeaders();
+      long headerOffset = phix.getOffset(inClassIdentifier, layer) + (offset - sopLength);
+      int pendingLength = Math.min(end, sopLength + headerLength) - offset;
+      offset += pendingLength;
+      int fragment = phix.findFragment(headerOffset);
+      while (pendingLength > 0) {
+        long fragmentOffset = headerOffset - phix.getFragmentOffset(fragment);
+        int pieceLength = (int)Math.min(pendingLength,
+                                        packedHeaders.getLength(fragment) - fragmentOffset);
+        extents.add(packedHeaders.getFilePointer(fragment) + fragmentOffset, pieceLength);
+        headerOffset += pieceLength;
+        pendingLength -= pieceLength;
+        fragment++;
+      }
+    }
+
+    // Packet body
+    if (offset < end) {
+      extents.add(filePointer + (offset - headerLength), end - offset);
+    }
+  }
+
   @Override
   public long getDataLength(long inClassIdentifier) {
+    indexPrecinct(inClassIdentifier);
     return codestreamIndex.ppix.getLength(inClassIdentifier);
   }
 
@@ -402,6 +594,7 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
     assert (yBlock >= 0);
     assert (xBlock >= 0);
     assert (codingPass >= 0);
+    indexPrecinct(inClassIdentifier);
     return codestreamIndex.ppix.getFilePointer(inClassIdentifier, subband, yBlock, xBlock, codingPass);
   }
 
@@ -414,6 +607,7 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
    */
   public int[][][][] getLengthsOfCodingPasses(long inClassIdentifier) {
     assert (inClassIdentifier >= 0);
+    indexPrecinct(inClassIdentifier);
     return codestreamIndex.ppix.getLengths(inClassIdentifier);
   }
 
@@ -434,6 +628,7 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
     assert (yBlock >= 0);
     assert (xBlock >= 0);
     assert (codingPass >= 0);
+    indexPrecinct(inClassIdentifier);
     return codestreamIndex.ppix.getLength(inClassIdentifier, subband, yBlock, xBlock, codingPass);
   }
 
@@ -444,6 +639,7 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
    */
   public int[][][] getZeroBitPlanes(long inClassIdentifier) {
     assert (inClassIdentifier >= 0);
+    indexPrecinct(inClassIdentifier);
     return codestreamIndex.ppix.getZeroBitPlanes(inClassIdentifier);
   }
 
@@ -479,6 +675,7 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
     assert (yBlock >= 0);
     assert (xBlock >= 0);
 
+    indexPrecinct(inClassIdentifier);
     ServerJPEG2KCodestream codestream = getCodestream(0);
     int[] TCRP = codestream.findTCP(inClassIdentifier);
     int tile = TCRP[0];
@@ -550,6 +747,21 @@ public class JP2KServerLogicalTarget extends JPEG2KLogicalTarget {
   }
 
   // ============================ private methods ==============================
+  /**
+   * Indexes a precinct when the codestream is indexed on demand and the
+   * precinct has not been indexed yet.
+   *
+   * @param inClassIdentifier
+   * definition in
+   *          {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}
+   * .
+   */
+  private void indexPrecinct(long inClassIdentifier) {
+    if (onDemandIndexing != null) {
+      onDemandIndexing.indexPrecinct(inClassIdentifier);
+    }
+  }
+
   /**
    *
    * @param codestream
@@ -0,0 +1,287 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012 Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.LogicalTarget.JPEG2000;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import CADI.Common.Log.CADILog;
+import CADI.Common.LogicalTarget.JPEG2000.Codestream.CodestreamIndexing;
+import CADI.Common.LogicalTarget.JPEG2000.Indexing.CodestreamIndex;
+import GiciException.ErrorException;
+
+/**
+ * This class indexes the packets of a logical target on demand. Precincts
+ * are indexed when they are required by a client request, instead of
+ * indexing the whole codestream before the first response is delivered.
+ * <p>
+ * Packets are read in the progression order of the codestream, so when a
+ * precinct is required, all the packets which precede it in the codestream
+ * are also indexed. Therefore, the low resolution levels are indexed
+ * quickly when resolution is the first progression dimension (RLCP and RPCL)
+ * and the top-left regions when position is the first dimension (PCRL and
+ * CPRL), but most of the codestream is indexed for the first request when
+ * layer is the first dimension (LRCP).
+ * <p>
+ * Indexed precincts are checked without locking, and the indexing of new
+ * precincts is serialized. When all the packets have been indexed, the index
+ * is saved in the index cache, if any.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; indexPrecinct or indexAll<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/06/26
+ */
+public class OnDemandCodestreamIndexing {
+
+  /**
+   * Is the object used to index the codestream. It must have been started
+   * (see {@link CADI.Common.LogicalTarget.JPEG2000.Codestream.CodestreamIndexing#start()}).
+   */
+  private CodestreamIndexing codestreamIndexing = null;
+
+  /**
+   * Is the codestream being indexed.
+   */
+  private ServerJPEG2KCodestream codestream = null;
+
+  /**
+   * Is the index of the codestream, which is filled in by the
+   * {@link #codestreamIndexing}.
+   */
+  private CodestreamIndex codestreamIndex = null;
+
+  /**
+   * Definition in {@link CADI.Server.LogicalTarget.JPEG2000.JP2KLogicalTargetIndexer#readCodingPasses}.
+   */
+  private boolean readCodingPasses = false;
+
+  /**
+   * Definition in {@link CADI.Server.LogicalTarget.JPEG2000.JP2KLogicalTargetIndexer#indexCache}.
+   */
+  private CodestreamIndexCache indexCache = null;
+
+  /**
+   * Definition in {@link CADI.Server.LogicalTarget.JPEG2000.JP2KLogicalTargetIndexer#targetFile}.
+   */
+  private File targetFile = null;
+
+  /**
+   * Is the log where warnings are written.
+   */
+  private CADILog log = null;
+
+  /**
+   * Is the name used as prefix of the log messages.
+   */
+  private String logName = "";
+
+  /**
+   * Indicates whether an error has been found while the codestream was being
+   * indexed. Then, no more packets are indexed.
+   */
+  private volatile boolean failed = false;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param codestreamIndexing definition in {@link #codestreamIndexing}.
+   * @param codestream definition in {@link #codestream}.
+   * @param codestreamIndex definition in {@link #codestreamIndex}.
+   * @param readCodingPasses definition in {@link #readCodingPasses}.
+   * @param log definition in {@link #log}.
+   * @param logName definition in {@link #logName}.
+   */
+  public OnDemandCodestreamIndexing(CodestreamIndexing codestreamIndexing,
+                                    ServerJPEG2KCodestream codestream,
+                                    CodestreamIndex codestreamIndex,
+                                    boolean readCodingPasses,
+                                    CADILog log, String logName) {
+
+    // Check input parameters
+    if (codestreamIndexing == null) {
+      throw new NullPointerException();
+    }
+    if (codestream == null) {
+      throw new NullPointerException();
+    }
+    if (codestreamIndex == null) {
+      throw new NullPointerException();
+    }
+    if (log == null) {
+      throw new NullPointerException();
+    }
+
+    // Copy input parameters
+    this.codestreamIndexing = codestreamIndexing;
+    this.codestream = codestream;
+    this.codestreamIndex = codestreamIndex;
+    this.readCodingPasses = readCodingPasses;
+    this.log = log;
+    this.logName = (logName == null) ? "" : logName;
+  }
+
+  /**
+   * Sets the {@link #indexCache} and {@link #targetFile} attributes.
+   *
+   * @param indexCache definition in {@link #indexCache}.
+   * @param targetFile definition in {@link #targetFile}.
+   */
+  public void setIndexCache(CodestreamIndexCache indexCache, File targetFile) {
+    if ((indexCache != null) && (targetFile == null)) {
+      throw new NullPointerException();
+    }
+    this.indexCache = indexCache;
+    this.targetFile = targetFile;
+  }
+
+  /**
+   * Indexes a precinct, if it has not been indexed yet.
+   *
+   * @param inClassIdentifier
+   * definition in
+   *          {@link CADI.Common.Network.JPIP.JPIPMessageHeader#inClassIdentifier}
+   * .
+   */
+  public void indexPrecinct(long inClassIdentifier) {
+    if (failed || codestreamIndexing.isIndexed(inClassIdentifier)) {
+      return;
+    }
+
+    synchronized (this) {
+      if (failed || codestreamIndexing.isIndexed()) {
+        return;
+      }
+      try {
+        codestreamIndexing.indexPrecinct(inClassIdentifier);
+      } catch (ErrorException e) {
+        fail(e);
+        return;
+      }
+      if (codestreamIndexing.isIndexed()) {
+        saveIndex();
+      }
+    }
+  }
+
+  /**
+   * Indexes all the pending precincts.
+   */
+  public void indexAll() {
+    if (failed || codestreamIndexing.isIndexed()) {
+      return;
+    }
+
+    synchronized (this) {
+      if (failed || codestreamIndexing.isIndexed()) {
+        return;
+      }
+      try {
+        codestreamIndexing.indexAll();
+      } catch (ErrorException e) {
+        fail(e);
+        return;
+      }
+      saveIndex();
+    }
+  }
+
+  /**
+   * Checks whether all the precincts have been indexed.
+   *
+   * @return <code>true</code> if all the precincts have been indexed.
+   */
+  public boolean isIndexed() {
+    return codestreamIndexing.isIndexed();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "readCodingPasses=" + readCodingPasses;
+    str += ", indexed=" + codestreamIndexing.isIndexed();
+    str += ", failed=" + failed;
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this On-Demand Codestream Indexing out to the specified output
+   * stream. This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- On-Demand Codestream Indexing --");
+
+    out.println("readCodingPasses: " + readCodingPasses);
+    out.println("indexed: " + codestreamIndexing.isIndexed());
+    out.println("failed: " + failed);
+
+    out.flush();
+  }
+
+  // ============================ private methods ==============================
+  /**
+   * Stops indexing the codestream after an error. Precincts which have not
+   * been indexed are considered empty.
+   *
+   * @param e the exception thrown by the {@link #codestreamIndexing}.
+   */
+  private void fail(ErrorException e) {
+    failed = true;
+    log.logWarning(logName + " (logical target delivery): file can not be indexed correctly ("
+            + e.getMessage() + ")");
+  }
+
+  /**
+   * Saves the index in the {@link #indexCache}, if any.
+   */
+  private void saveIndex() {
+    if (indexCache == null) {
+      return;
+    }
+    try {
+      indexCache.save(targetFile, readCodingPasses, codestream, codestreamIndex);
+    } catch (IOException e) {
+      log.logWarning(logName + " (logical target delivery): index cannot be saved ("
+              + e.getMessage() + ")");
+    }
+  }
+}
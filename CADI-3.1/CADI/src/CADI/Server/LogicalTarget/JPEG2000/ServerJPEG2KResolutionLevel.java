@@ -33,8 +33,14 @@ import CADI.Common.Util.CADIDimension;
 import CADI.Common.Util.CADIRectangle;
 
 /**
+ * Precincts are not stored (see {@link #getPrecinct(int)}), so the memory
+ * used by the codestream structure does not grow with the number of
+ * precincts. Only precincts created with the {@link #createPrecinct(int, int)}
+ * method, which record the original precinct of a transcoded codestream,
+ * are stored.
+ *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.2 2011/10/12
+ * @version 1.0.3 2012/07/03
  */
 public class ServerJPEG2KResolutionLevel extends JPEG2KResolutionLevel {
 
@@ -56,10 +62,14 @@ public class ServerJPEG2KResolutionLevel extends JPEG2KResolutionLevel {
     return (ServerJPEG2KComponent)parent;
   }
 
+  /**
+   * Precinct objects are created when they are requested (see
+   * {@link #getPrecinct(int)}), so this method only checks the index.
+   */
   @Override
   public void createPrecinct(int index) {
-    if (!precincts.containsKey(index))
-      precincts.put(index, new ServerJPEG2KPrecinct(this, index));
+    if ((index < 0) || (index >= getNumPrecincts()))
+      throw new IllegalArgumentException();
   }
 
   /**
@@ -76,11 +86,26 @@ public class ServerJPEG2KResolutionLevel extends JPEG2KResolutionLevel {
   }
 
   /**
-   * 
+   * Returns a precinct object. As the geometry of the precinct is computed
+   * from the coding parameters, the object is created each time it is
+   * requested and it is not stored.
+   *
+   * @param index the precinct index within the tile-component-resolution
+   *          level.
+   *
+   * @return a precinct object, or <code>null</code> if the index is out of
+   *          range.
    */
   @Override
   public ServerJPEG2KPrecinct getPrecinct(int index) {
-    return (ServerJPEG2KPrecinct)precincts.get(index);
+    if (!precincts.isEmpty() && precincts.containsKey(index))
+      return (ServerJPEG2KPrecinct)precincts.get(index);
+    return isPrecinct(index) ? new ServerJPEG2KPrecinct(this, index) : null;
+  }
+
+  @Override
+  public boolean isPrecinct(int index) {
+    return (index >= 0) && (index < getNumPrecincts());
   }
   
   @Override
@@ -0,0 +1,188 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.LogicalTarget;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import GiciStream.BufferedDataInputStream;
+
+/**
+ * This class is the data source of a server logical target. It allows
+ * several threads to read from the same target at the same time.
+ * <p>
+ * When the target is stored in a file, data are read through the file
+ * channel using positional reads, which neither use nor modify the file
+ * pointer. Therefore, no lock is held while reading and the delivery of
+ * several responses of the same target can be performed in parallel.
+ * Otherwise, reads fall back to the input stream, which is locked while
+ * the file pointer is moved and data are read.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; readFully<br>
+ * &nbsp; ...<br>
+ * &nbsp; close<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/06/13
+ */
+public class LogicalTargetDataSource {
+
+  /**
+   * Is the input stream used to read the target.
+   */
+  private BufferedDataInputStream in = null;
+
+  /**
+   * Is the channel of the file where the target is stored, or
+   * <code>null</code> if the input stream does not read from a file.
+   */
+  private FileChannel channel = null;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param in definition in {@link #in}.
+   */
+  public LogicalTargetDataSource(BufferedDataInputStream in) {
+    if (in == null) {
+      throw new NullPointerException();
+    }
+
+    this.in = in;
+    channel = in.getChannel();
+  }
+
+  /**
+   * Returns the {@link #channel} attribute.
+   *
+   * @return the {@link #channel} attribute.
+   */
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Reads <code>len</code> bytes from the position <code>filePointer</code>
+   * of the target into the array <code>b</code>. This method blocks until
+   * all the bytes are read.
+   *
+   * @param filePointer the position of the first byte to be read.
+   * @param b the buffer into which the data are read.
+   * @param off the start offset in <code>b</code>.
+   * @param len the number of bytes to read.
+   *
+   * @throws EOFException if the end of the target is reached before reading
+   * 	all the bytes.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void readFully(long filePointer, byte[] b, int off, int len)
+          throws IOException {
+
+    if (channel == null) {
+      try {
+        in.lock();
+        in.seek(filePointer);
+        in.readFully(b, off, len);
+      } finally {
+        in.unlock();
+      }
+      return;
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+    while (buffer.hasRemaining()) {
+      int numBytes = channel.read(buffer, filePointer + buffer.position() - off);
+      if (numBytes < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  /**
+   * Returns the length of the target.
+   *
+   * @return the length of the target in bytes, or -1 if an I/O error occurs.
+   */
+  public long length() {
+    if (channel != null) {
+      try {
+        return channel.size();
+      } catch (IOException e) {
+        return -1;
+      }
+    }
+    return in.length();
+  }
+
+  /**
+   * Closes the data source.
+   *
+   * @throws IOException if an I/O error occurs.
+   */
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "positional reads=" + (channel != null);
+    str += ", " + in.toString();
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Logical Target Data Source fields out to the specified output
+   * stream. This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Logical target data source --");
+
+    out.println("Positional reads: " + (channel != null));
+    in.list(out);
+
+    out.flush();
+  }
+  // ============================ private methods ==============================
+}
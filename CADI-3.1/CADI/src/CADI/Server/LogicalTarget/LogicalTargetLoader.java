@@ -0,0 +1,327 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.LogicalTarget;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import CADI.Common.Log.CADILog;
+import CADI.Common.Network.HTTP.StatusCodes;
+import CADI.Server.ServerDefaultValues;
+import CADI.Server.LogicalTarget.JPEG2000.CodestreamIndexCache;
+import CADI.Server.LogicalTarget.JPEG2000.Codestream.PacketHeadersCache;
+import CADI.Server.LogicalTarget.JPEG2000.DeliveringModes.ResponsePlanCache;
+import CADI.Server.LogicalTarget.JPEG2000.JP2KLogicalTargetIndexer;
+import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
+import GiciException.WarningException;
+import GiciStream.BufferedDataInputStream;
+
+/**
+ * This class searches a logical target in the targets directory, and loads
+ * and indexes it. It is used by the workers, when a client requests a
+ * target which has not been loaded yet, and by the
+ * {@link CADI.Server.LogicalTarget.LogicalTargetsPreloader}.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; set functions<br>
+ * &nbsp; load<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.1 2012/07/04
+ */
+public class LogicalTargetLoader {
+
+  /**
+   * Is the path directory where the logical targets are stored.
+   */
+  private String targetsPath = null;
+
+  /**
+   * Is the path directory where the indexes of the logical targets are
+   * saved, or <code>null</code> if indexes are not saved (see
+   * {@link CADI.Server.LogicalTarget.JPEG2000.CodestreamIndexCache}).
+   */
+  private String cachePath = null;
+
+  /**
+   * Further information, see {@link CADI.Server.ServerParser#serverArguments}.
+   */
+  private int deliveringMode = -1;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#predictiveModel}.
+   */
+  private boolean predictiveModel = false;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#onDemandIndexing}.
+   */
+  private boolean onDemandIndexing = false;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#packetHeadersCache}.
+   */
+  private PacketHeadersCache packetHeadersCache = null;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#responsePlanCache}.
+   */
+  private ResponsePlanCache responsePlanCache = null;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#log}.
+   */
+  private CADILog log = null;
+
+  /**
+   * Extensions of the files which can be loaded as logical targets.
+   */
+  private static final String[] FILE_EXTENSIONS = {".JPX", ".JP2", ".JPC", ".JPK"};
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param targetsPath definition in {@link #targetsPath}.
+   * @param log definition in {@link #log}.
+   */
+  public LogicalTargetLoader(String targetsPath, CADILog log) {
+
+    // Check input parameters
+    if (targetsPath == null) {
+      throw new NullPointerException();
+    }
+    if (log == null) {
+      throw new NullPointerException();
+    }
+
+    // Copy input parameters
+    this.targetsPath = targetsPath;
+    this.log = log;
+  }
+
+  /**
+   * Sets the {@link #cachePath} attribute.
+   *
+   * @param cachePath definition in {@link #cachePath}.
+   */
+  public void setCachePath(String cachePath) {
+    this.cachePath = cachePath;
+  }
+
+  /**
+   * Sets the {@link #deliveringMode} attribute.
+   *
+   * @param deliveringMode definition in {@link #deliveringMode}.
+   */
+  public void setDeliveringMode(int deliveringMode) {
+    this.deliveringMode = deliveringMode;
+  }
+
+  /**
+   * Sets the {@link #predictiveModel} attribute.
+   *
+   * @param predictiveModel definition in {@link #predictiveModel}.
+   */
+  public void setPredictiveModel(boolean predictiveModel) {
+    this.predictiveModel = predictiveModel;
+  }
+
+  /**
+   * Sets the {@link #onDemandIndexing} attribute.
+   *
+   * @param onDemandIndexing definition in {@link #onDemandIndexing}.
+   */
+  public void setOnDemandIndexing(boolean onDemandIndexing) {
+    this.onDemandIndexing = onDemandIndexing;
+  }
+
+  /**
+   * Sets the {@link #packetHeadersCache} attribute.
+   *
+   * @param packetHeadersCache definition in {@link #packetHeadersCache}.
+   */
+  public void setPacketHeadersCache(PacketHeadersCache packetHeadersCache) {
+    this.packetHeadersCache = packetHeadersCache;
+  }
+
+  /**
+   * Sets the {@link #responsePlanCache} attribute.
+   *
+   * @param responsePlanCache definition in {@link #responsePlanCache}.
+   */
+  public void setResponsePlanCache(ResponsePlanCache responsePlanCache) {
+    this.responsePlanCache = responsePlanCache;
+  }
+
+  /**
+   * Returns the {@link #targetsPath} attribute.
+   *
+   * @return the {@link #targetsPath} attribute.
+   */
+  public String getTargetsPath() {
+    return targetsPath;
+  }
+
+  /**
+   * Checks whether a file can be loaded as a logical target, i.e., whether
+   * it is a JPEG2000 file.
+   *
+   * @param fileName the name of the file.
+   *
+   * @return <code>true</code> if the file can be loaded.
+   */
+  public static boolean isSupported(String fileName) {
+    String relativeFileName = fileName.substring(fileName.lastIndexOf("/") + 1, fileName.length()).toUpperCase();
+    for (String extension : FILE_EXTENSIONS) {
+      if (relativeFileName.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Searches a logical target in disk, and loads and indexes it.
+   *
+   * @param name the name of the thread which loads the target. It is used
+   * 	as prefix of the log messages.
+   * @param target definition in {@link CADI.Common.Network.JPIP.TargetField#target}.
+   *
+   * @return the logical target.
+   *
+   * @throws WarningException if the logical target cannot be loaded. The
+   * 	error code and message of the exception are the status code and
+   * 	reason phrase to be sent to the client.
+   */
+  public JP2KServerLogicalTarget load(String name, String target) throws WarningException {
+
+    // Does the target exist?
+    String absoluteFileName = (targetsPath.endsWith(File.separator) ? targetsPath : targetsPath + File.separator) + target;
+    if (log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo("Searching in disk the target: " + absoluteFileName);	// DEBUG
+    }
+
+    BufferedDataInputStream in = null;
+    try {
+
+      in = new BufferedDataInputStream(absoluteFileName);
+
+    } catch (FileNotFoundException e) {
+      if (log.isLog(CADILog.LEVEL_DEBUG)) {
+        log.logDebug(name + ": requested logical target " + target + " is not found");
+      }
+      throw new WarningException("I'm sorry, but the requested logical target \"" + target
+              + "\" is not available or you do not have permissions for reading it.", StatusCodes.NOT_FOUND);
+    }
+
+    //Check image type
+    if (!isSupported(target)) {
+      // Logical target type: UNKNOWN
+      try {
+        in.close();
+      } catch (IOException e) {
+      }
+      if (log.isLog(CADILog.LEVEL_DEBUG)) {
+        log.logDebug(name + ": requested logical target " + target + " is not supported");
+      }
+      throw new WarningException("I'm sorry, but the CADI server only support JPEG2000 image files.", StatusCodes.NOT_IMPLEMENTED);
+    }
+
+    try {
+      JP2KLogicalTargetIndexer jp2kLogicalTargetIndexing = new JP2KLogicalTargetIndexer(name, target, in, log);
+      if (predictiveModel) {
+        int lastPoint = absoluteFileName.lastIndexOf('.');
+        jp2kLogicalTargetIndexing.readPredictiveModel(absoluteFileName.substring(0, lastPoint) + ".pm");
+      }
+      if ((deliveringMode == ServerDefaultValues.DELIVERING_CPI)
+              || (deliveringMode == ServerDefaultValues.DELIVERING_CoRD)) {
+        jp2kLogicalTargetIndexing.setReadCodingPasses(true);
+      }
+      if (cachePath != null) {
+        jp2kLogicalTargetIndexing.setIndexCache(new CodestreamIndexCache(cachePath),
+                                                new File(absoluteFileName));
+      }
+      jp2kLogicalTargetIndexing.setOnDemandIndexing(onDemandIndexing);
+      jp2kLogicalTargetIndexing.run();
+      JP2KServerLogicalTarget logicalTarget = jp2kLogicalTargetIndexing.getLogicalTarget();
+      logicalTarget.setPacketHeadersCache(packetHeadersCache);
+      logicalTarget.setResponsePlanCache(responsePlanCache);
+      return logicalTarget;
+    } catch (WarningException we) {
+      if (log.isLog(CADILog.LEVEL_WARNING)) {
+        log.logWarning("Logical target \"" + absoluteFileName + "\" are corrupted. Reason: " + we.getMessage());
+      }
+      throw new WarningException("I'm sorry, but the CADI server cannot support some features of the requested target.", StatusCodes.NOT_IMPLEMENTED);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "targetsPath=" + targetsPath;
+    str += ", cachePath=" + cachePath;
+    str += ", deliveringMode=" + deliveringMode;
+    str += ", predictiveModel=" + predictiveModel;
+    str += ", onDemandIndexing=" + onDemandIndexing;
+    str += ", packetHeadersCache=" + packetHeadersCache;
+    str += ", responsePlanCache=" + responsePlanCache;
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Logical Target Loader out to the specified output stream.
+   * This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Logical Target Loader --");
+
+    out.println("targetsPath: " + targetsPath);
+    out.println("cachePath: " + cachePath);
+    out.println("deliveringMode: " + deliveringMode);
+    out.println("predictiveModel: " + predictiveModel);
+    out.println("onDemandIndexing: " + onDemandIndexing);
+    out.println("packetHeadersCache: " + packetHeadersCache);
+    out.println("responsePlanCache: " + responsePlanCache);
+
+    out.flush();
+  }
+}
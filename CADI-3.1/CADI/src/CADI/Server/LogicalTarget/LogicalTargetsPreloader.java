@@ -0,0 +1,586 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.LogicalTarget;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import CADI.Common.Log.CADILog;
+import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
+import GiciException.WarningException;
+
+/**
+ * This class loads and indexes the logical targets of the targets directory
+ * before they are requested by the clients, so indexing is done off the
+ * request path. When a persisted index is available (see
+ * {@link CADI.Server.LogicalTarget.JPEG2000.CodestreamIndexCache}), it is
+ * loaded instead.
+ * <p>
+ * Targets are loaded in two phases:<br>
+ * &nbsp; warm-up: the targets of a configurable list are loaded, in the
+ * order of the list, before the server accepts requests (see
+ * {@link #warmUp()}).<br>
+ * &nbsp; crawling: the targets directory is scanned and the rest of
+ * targets are loaded in background (see {@link #run()}). The most popular
+ * targets of the previous executions are loaded first. Crawling stops when
+ * {@link #maxTargets} targets have been loaded or when the memory usage
+ * reaches {@link #maxMemoryUsage}, since each loaded target keeps its file
+ * open and its index in memory.<br>
+ * Targets are loaded by a bounded pool of threads and registered in the
+ * {@link CADI.Server.LogicalTarget.ServerLogicalTargetList}, so a target
+ * requested by a client while it is being loaded is only loaded once.
+ * <p>
+ * The popularity of the targets is saved in the cache directory when the
+ * server finishes. The number of requests of each target is added to
+ * the half of its previous popularity, so recent requests weigh more.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; set functions<br>
+ * &nbsp; warmUp<br>
+ * &nbsp; start<br>
+ * &nbsp; ....<br>
+ * &nbsp; finish<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0.2 2012/07/04
+ */
+public class LogicalTargetsPreloader extends Thread {
+
+  /**
+   * Is the list where logical targets are registered.
+   */
+  private ServerLogicalTargetList logicalTargetList = null;
+
+  /**
+   * Is the object used to load the logical targets.
+   */
+  private LogicalTargetLoader loader = null;
+
+  /**
+   * Definition in {@link CADI.Server.Core.Scheduler#log}.
+   */
+  private CADILog log = null;
+
+  /**
+   * Is the number of threads used to load the logical targets.
+   */
+  private int numThreads = 1;
+
+  /**
+   * Is the maximum number of logical targets in the list after which the
+   * crawling phase stops.
+   */
+  private int maxTargets = Integer.MAX_VALUE;
+
+  /**
+   * Is the maximum memory usage, as a percentage of the maximum heap size,
+   * after which the crawling phase stops.
+   */
+  private int maxMemoryUsage = 100;
+
+  /**
+   * Is the list of targets to be loaded in the warm-up phase.
+   */
+  private ArrayList<String> warmUpTargets = new ArrayList<String>();
+
+  /**
+   * Is the directory where the popularity of the targets is saved, or
+   * <code>null</code> if it is not saved.
+   */
+  private String cachePath = null;
+
+  /**
+   * Indicates whether the thread has to finish.
+   */
+  private volatile boolean finish = false;
+
+  // INTERNAL ATTRIBUTES
+  /**
+   * Is the pool of threads which is loading targets.
+   */
+  private ExecutorService executor = null;
+
+  /**
+   * Is the popularity of the targets in previous executions of the server.
+   */
+  private HashMap<String, Double> popularity = null;
+
+  /**
+   * Name of the file where the popularity of the targets is saved.
+   */
+  public static final String POPULARITY_FILE_NAME = "targets.popularity";
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param logicalTargetList definition in {@link #logicalTargetList}.
+   * @param loader definition in {@link #loader}.
+   * @param log definition in {@link #log}.
+   */
+  public LogicalTargetsPreloader(ServerLogicalTargetList logicalTargetList,
+                                 LogicalTargetLoader loader, CADILog log) {
+
+    // Check input parameters
+    if (logicalTargetList == null) {
+      throw new NullPointerException();
+    }
+    if (loader == null) {
+      throw new NullPointerException();
+    }
+    if (log == null) {
+      throw new NullPointerException();
+    }
+
+    // Copy input parameters
+    this.logicalTargetList = logicalTargetList;
+    this.loader = loader;
+    this.log = log;
+
+    setName("Preloader");
+    setDaemon(true);
+  }
+
+  /**
+   * Sets the {@link #numThreads} attribute.
+   *
+   * @param numThreads definition in {@link #numThreads}.
+   */
+  public void setNumThreads(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Sets the {@link #maxTargets} attribute.
+   *
+   * @param maxTargets definition in {@link #maxTargets}.
+   */
+  public void setMaxTargets(int maxTargets) {
+    if (maxTargets < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxTargets = maxTargets;
+  }
+
+  /**
+   * Sets the {@link #maxMemoryUsage} attribute.
+   *
+   * @param maxMemoryUsage definition in {@link #maxMemoryUsage}.
+   */
+  public void setMaxMemoryUsage(int maxMemoryUsage) {
+    if ((maxMemoryUsage < 0) || (maxMemoryUsage > 100)) {
+      throw new IllegalArgumentException();
+    }
+    this.maxMemoryUsage = maxMemoryUsage;
+  }
+
+  /**
+   * Sets the {@link #cachePath} attribute and reads the popularity of the
+   * targets saved in it.
+   *
+   * @param cachePath definition in {@link #cachePath}.
+   */
+  public void setCachePath(String cachePath) {
+    this.cachePath = cachePath;
+    popularity = (cachePath != null) ? readPopularity() : null;
+  }
+
+  /**
+   * Reads the list of targets to be loaded in the warm-up phase from a
+   * file. The file must have a target per line, with its name relative to
+   * the targets directory. Empty lines and lines beginning with # are
+   * ignored.
+   *
+   * @param fileName the name of the file.
+   *
+   * @throws IOException if the file cannot be read.
+   */
+  public void readWarmUpTargets(String fileName) throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(fileName));
+    try {
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if ((line.length() > 0) && !line.startsWith("#")) {
+          warmUpTargets.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Loads the targets of the warm-up list. This method blocks until all of
+   * them have been loaded.
+   */
+  public void warmUp() {
+    if (warmUpTargets.isEmpty()) {
+      return;
+    }
+
+    if (log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": warm-up of " + warmUpTargets.size() + " targets ...");
+    }
+    load(warmUpTargets, false);
+    if (log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": warm-up done");
+    }
+  }
+
+  /**
+   * Scans the targets directory and loads, in background, the targets
+   * which have not been loaded yet.
+   */
+  @Override
+  public void run() {
+
+    ArrayList<String> targets = new ArrayList<String>();
+    scanDirectory(new File(loader.getTargetsPath()), "", targets);
+
+    // The most popular targets are loaded first
+    if (popularity != null) {
+      final HashMap<String, Double> targetsPopularity = popularity;
+      Collections.sort(targets, new Comparator<String>() {
+
+        public int compare(String target1, String target2) {
+          Double popularity1 = targetsPopularity.get(target1);
+          Double popularity2 = targetsPopularity.get(target2);
+          return Double.compare((popularity2 == null) ? 0 : popularity2,
+                                (popularity1 == null) ? 0 : popularity1);
+        }
+      });
+    }
+
+    if (log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": " + targets.size() + " targets found in the targets directory");
+    }
+    load(targets, true);
+    if (!finish && log.isLog(CADILog.LEVEL_INFO)) {
+      log.logInfo(getName() + ": pre-indexing done, " + logicalTargetList.size()
+              + " targets loaded, " + getUsedMemory() + " MB of memory used");
+    }
+  }
+
+  /**
+   * This method is used to indicate that the thread has to finish. Targets
+   * which have not started to be loaded are skipped, whereas the ones which
+   * are being loaded are completed in background (indexing cannot be
+   * cancelled). The popularity of the targets is saved in the cache
+   * directory.
+   */
+  public void finish() {
+    finish = true;
+    synchronized (this) {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+    if (cachePath != null) {
+      savePopularity();
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "numThreads=" + numThreads;
+    str += ", maxTargets=" + maxTargets;
+    str += ", maxMemoryUsage=" + maxMemoryUsage;
+    str += ", warmUpTargets=" + warmUpTargets.size();
+    str += ", cachePath=" + cachePath;
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Logical Targets Preloader out to the specified output
+   * stream. This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Logical Targets Preloader --");
+
+    out.println("numThreads: " + numThreads);
+    out.println("maxTargets: " + maxTargets);
+    out.println("maxMemoryUsage: " + maxMemoryUsage);
+    out.println("warmUpTargets: " + warmUpTargets.size());
+    out.println("cachePath: " + cachePath);
+
+    out.flush();
+  }
+
+  // ============================ private methods ==============================
+  /**
+   * Loads a list of targets with a pool of {@link #numThreads} threads.
+   * Targets which have already been loaded are skipped. Progress and memory
+   * use are logged after each target.
+   *
+   * @param targets the list of targets.
+   * @param limited indicates whether loading stops when the limits of
+   * 	{@link #maxTargets} and {@link #maxMemoryUsage} are reached.
+   */
+  private void load(ArrayList<String> targets, final boolean limited) {
+
+    // Targets to be loaded
+    final ArrayList<String> pendingTargets = new ArrayList<String>();
+    for (String target : new LinkedHashSet<String>(targets)) {
+      if (logicalTargetList.getByTarget(target) == null) {
+        pendingTargets.add(target);
+      }
+    }
+    if (pendingTargets.isEmpty()) {
+      return;
+    }
+
+    final int numTargets = pendingTargets.size();
+    final AtomicInteger numLoaded = new AtomicInteger();
+    final AtomicBoolean limitReached = new AtomicBoolean();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, numTargets));
+    synchronized (this) {
+      if (finish) {
+        pool.shutdown();
+        return;
+      }
+      executor = pool;
+    }
+
+    for (final String target : pendingTargets) {
+      pool.execute(new Runnable() {
+
+        public void run() {
+          if (finish || limitReached.get()) {
+            return;
+          }
+          if (limited && isLimitReached()) {
+            if (!limitReached.getAndSet(true) && log.isLog(CADILog.LEVEL_INFO)) {
+              log.logInfo(getName() + ": pre-indexing stopped, limit of "
+                      + maxTargets + " targets or " + maxMemoryUsage
+                      + "% of memory has been reached");
+            }
+            return;
+          }
+          String result = "loaded";
+          try {
+            logicalTargetList.load(target, new Callable<JP2KServerLogicalTarget>() {
+
+              public JP2KServerLogicalTarget call() throws WarningException {
+                return loader.load(getName(), target);
+              }
+            });
+          } catch (WarningException e) {
+            result = "not loaded (" + e.getMessage() + ")";
+          }
+          if (log.isLog(CADILog.LEVEL_INFO)) {
+            log.logInfo(getName() + ": (" + numLoaded.incrementAndGet() + "/" + numTargets
+                    + ") target " + target + " " + result + ", "
+                    + getUsedMemory() + " MB of memory used");
+          }
+        }
+      });
+    }
+
+    pool.shutdown();
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+        if (finish) {
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      // Loads in progress are not interrupted, they share the file channels
+      // of the targets with the requests. They finish in background.
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this) {
+      executor = null;
+    }
+  }
+
+  /**
+   * Checks whether the limits of the crawling phase have been reached.
+   *
+   * @return <code>true</code> if the number of loaded targets is
+   * 	{@link #maxTargets} or the memory usage exceeds {@link #maxMemoryUsage}.
+   */
+  private boolean isLimitReached() {
+    if (logicalTargetList.size() >= maxTargets) {
+      return true;
+    }
+    Runtime runtime = Runtime.getRuntime();
+    long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+    return usedMemory > runtime.maxMemory() / 100 * maxMemoryUsage;
+  }
+
+  /**
+   * Scans a directory, and its subdirectories, looking for files which can
+   * be loaded as logical targets.
+   *
+   * @param directory the directory.
+   * @param prefix the path of the directory relative to the targets
+   * 	directory.
+   * @param targets the list where targets are appended.
+   */
+  private void scanDirectory(File directory, String prefix, ArrayList<String> targets) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      if (finish) {
+        return;
+      }
+      if (file.isDirectory()) {
+        scanDirectory(file, prefix + file.getName() + "/", targets);
+      } else if (LogicalTargetLoader.isSupported(file.getName())) {
+        targets.add(prefix + file.getName());
+      }
+    }
+  }
+
+  /**
+   * Reads the popularity of the targets from the cache directory.
+   *
+   * @return the popularity of each target. It is empty if the popularity
+   * 	has not been saved.
+   */
+  private HashMap<String, Double> readPopularity() {
+    HashMap<String, Double> targetsPopularity = new HashMap<String, Double>();
+    File file = new File(cachePath, POPULARITY_FILE_NAME);
+    if (!file.exists()) {
+      return targetsPopularity;
+    }
+
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+          int separator = line.indexOf('\t');
+          if (separator > 0) {
+            try {
+              targetsPopularity.put(line.substring(separator + 1),
+                                    Double.parseDouble(line.substring(0, separator)));
+            } catch (NumberFormatException e) {
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      log.logWarning(getName() + ": popularity of the targets cannot be read ("
+              + e.getMessage() + ")");
+    }
+    return targetsPopularity;
+  }
+
+  /**
+   * Saves the popularity of the targets in the cache directory. The
+   * popularity of a target is the number of requests since the server was
+   * started plus the half of its previous popularity.
+   */
+  private void savePopularity() {
+    HashMap<String, Double> targetsPopularity = new HashMap<String, Double>();
+    if (popularity != null) {
+      for (Map.Entry<String, Double> entry : popularity.entrySet()) {
+        if (entry.getValue() >= 1) {
+          targetsPopularity.put(entry.getKey(), entry.getValue() / 2);
+        }
+      }
+    }
+    for (Map.Entry<String, Long> entry : logicalTargetList.getRequests().entrySet()) {
+      Double value = targetsPopularity.get(entry.getKey());
+      targetsPopularity.put(entry.getKey(), ((value == null) ? 0 : value) + entry.getValue());
+    }
+
+    File file = new File(cachePath, POPULARITY_FILE_NAME);
+    File tmpFile = new File(cachePath, POPULARITY_FILE_NAME + ".tmp");
+    try {
+      PrintWriter writer = new PrintWriter(new FileWriter(tmpFile));
+      try {
+        for (Map.Entry<String, Double> entry : targetsPopularity.entrySet()) {
+          writer.println(entry.getValue() + "\t" + entry.getKey());
+        }
+      } finally {
+        writer.close();
+      }
+      if (!tmpFile.renameTo(file)) {
+        file.delete();
+        if (!tmpFile.renameTo(file)) {
+          throw new IOException("file " + file + " cannot be written");
+        }
+      }
+    } catch (IOException e) {
+      log.logWarning(getName() + ": popularity of the targets cannot be saved ("
+              + e.getMessage() + ")");
+    }
+  }
+
+  /**
+   * Returns the memory used by the Java virtual machine.
+   *
+   * @return the used memory in megabytes.
+   */
+  private static long getUsedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    return (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+  }
+}
@@ -29,19 +29,34 @@ package CADI.Server.LogicalTarget;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import CADI.Common.Network.HTTP.StatusCodes;
+import CADI.Common.Util.SingleFlightCache;
 import CADI.Server.LogicalTarget.JPEG2000.JP2KServerLogicalTarget;
+import GiciException.WarningException;
 
 /**
  * This class implements a list of loaded logical targets. Logical targets
  * will be loaded and indexed the first time they are requested. Then they
  * are saved to improve the response of the next requests. 
  * <p>
- * <bold>NOTICE:</bold> Methods are not synchronized yet. It may be a
- * problem with the threads.
+ * The list can be shared by several threads. Logical targets can be found
+ * by their target identifier or by their target name in constant time.
+ * Moreover, when several threads request a logical target which has not
+ * been loaded yet, it is only loaded once (see
+ * {@link #load(String, Callable)} and
+ * {@link CADI.Common.Util.SingleFlightCache}) and the rest of threads wait
+ * for it.
+ * <p>
+ * The number of requests of each logical target is also counted, in order
+ * to know which targets are the most popular.
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1  2007-2012/12/04
+ * @version 1.2.2  2012/07/04
  */
 public class ServerLogicalTargetList {
 	
@@ -50,7 +65,29 @@ public class ServerLogicalTargetList {
 	 * key: tid
 	 * value: logical target
 	 */
-	private Map<String, JP2KServerLogicalTarget> logicalTargets = null;
+	private ConcurrentHashMap<String, JP2KServerLogicalTarget> logicalTargets = null;
+	
+	/**
+	 * Contains the same logical targets as {@link #logicalTargets}.
+	 * key: target
+	 * value: logical target
+	 */
+	private ConcurrentHashMap<String, JP2KServerLogicalTarget> targets = null;
+	
+	/**
+	 * Loads each logical target only once. Loaded targets are looked up in,
+	 * and appended to, the {@link #targets}.
+	 */
+	private SingleFlightCache<String, JP2KServerLogicalTarget> loadedTargets = null;
+	
+	/**
+	 * Contains the number of requests of each logical target since the
+	 * server was started. It is used to know the most popular targets (see
+	 * {@link CADI.Server.LogicalTarget.LogicalTargetsPreloader}).
+	 * key: target
+	 * value: number of requests
+	 */
+	private ConcurrentHashMap<String, AtomicLong> requests = null;
 	
 	
 	// ============================= public methods ==============================
@@ -58,7 +95,21 @@ public class ServerLogicalTargetList {
 	 * Constructor of LogicalTargetList. It initializes the list to a void list.	 
 	 */
 	public ServerLogicalTargetList(){
-		logicalTargets = new HashMap<String, JP2KServerLogicalTarget>();
+		logicalTargets = new ConcurrentHashMap<String, JP2KServerLogicalTarget>();
+		targets = new ConcurrentHashMap<String, JP2KServerLogicalTarget>();
+		loadedTargets = new SingleFlightCache<String, JP2KServerLogicalTarget>() {
+			
+			@Override
+			protected JP2KServerLogicalTarget lookup(String target) {
+				return targets.get(target);
+			}
+			
+			@Override
+			protected void store(String target, JP2KServerLogicalTarget logicalTarget) {
+				add(logicalTarget);
+			}
+		};
+		requests = new ConcurrentHashMap<String, AtomicLong>();
 	}
 
 	/**
@@ -67,11 +118,43 @@ public class ServerLogicalTargetList {
 	 * @param logicalTarget logical target to be appended to the list.
 	 */
 	public void add(JP2KServerLogicalTarget logicalTarget) {
-		if ( logicalTargets.containsKey(logicalTarget.getTID()) ) {
-			assert(true);
-		}
-		
 		logicalTargets.put(logicalTarget.getTID(), logicalTarget);
+		targets.put(logicalTarget.getTarget(), logicalTarget);
+	}
+	
+	/**
+	 * Gets a logical target from the list or, if it is not in the list, loads
+	 * it by means of the <code>loader</code> and appends it to the list.
+	 * <p>
+	 * If other thread is already loading the same target, the loader is not
+	 * called and the thread waits for the logical target loaded by the other
+	 * one. If the load fails, all waiting threads receive the same exception
+	 * and the target is not appended to the list, so it will be loaded again
+	 * the next time it is requested.
+	 * 
+	 * @param target definition in {@link CADI.Common.Network.JPIP.TargetField#target}.
+	 * @param loader the job which loads and indexes the logical target.
+	 * 
+	 * @return the logical target.
+	 * 
+	 * @throws WarningException if the logical target cannot be loaded. The
+	 * 			exception thrown by the loader is passed on.
+	 */
+	public JP2KServerLogicalTarget load(String target,
+	                                    Callable<JP2KServerLogicalTarget> loader)
+	                                    throws WarningException {
+		if (target == null) throw new NullPointerException();
+		if (loader == null) throw new NullPointerException();
+		
+		try {
+			return loadedTargets.get(target, loader);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof WarningException) {
+				throw (WarningException)e.getCause();
+			}
+			throw new WarningException("The logical target cannot be loaded",
+			                           StatusCodes.SERVICE_UNAVAILABLE);
+		}
 	}
 	
 	/**
@@ -104,13 +187,7 @@ public class ServerLogicalTargetList {
 	 * 			</code>
 	 */
 	public JP2KServerLogicalTarget getByTarget(String target) {
-		if (target == null) return null;
-		
-		for (Map.Entry<String, JP2KServerLogicalTarget> entry : logicalTargets.entrySet()) {
-			if (entry.getValue().getTarget().compareTo(target) == 0)
-				return entry.getValue();
-		}
-		return null;
+		return (target == null) ? null : targets.get(target);
 	}
 	
 	/**
@@ -125,12 +202,44 @@ public class ServerLogicalTargetList {
 	public boolean equals(String target, String tid) {
 		if ((target == null) || (tid == null)) return false;
 		
-		if (logicalTargets.get(tid).getTarget().compareTo(target) == 0)
+		JP2KServerLogicalTarget logicalTarget = logicalTargets.get(tid);
+		if ((logicalTarget != null) && (logicalTarget.getTarget().compareTo(target) == 0))
 			return true;
 		else 
 			return false;
 	}
 	
+	/**
+	 * Counts a request of a logical target.
+	 * 
+	 * @param target definition in {@link CADI.Common.Network.JPIP.TargetField#target}.
+	 */
+	public void addRequest(String target) {
+		AtomicLong counter = requests.get(target);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = requests.putIfAbsent(target, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the number of requests of each logical target.
+	 * 
+	 * @return a map whose keys are the targets and whose values are the
+	 * 			number of requests.
+	 */
+	public HashMap<String, Long> getRequests() {
+		HashMap<String, Long> counters = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : requests.entrySet()) {
+			counters.put(entry.getKey(), entry.getValue().get());
+		}
+		return counters;
+	}
+	
 	/**
 	 * Returns <code>true</code> if the list contains no elements. Otherwise,
 	 * returns false.
@@ -149,7 +258,7 @@ public class ServerLogicalTargetList {
 	public int size() {
 		return logicalTargets.size();
 	}
-		
+	
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Object#toString()
@@ -195,4 +304,4 @@ public class ServerLogicalTargetList {
 		out.flush();
 	}
 	
-}
\ No newline at end of file
+}
@@ -26,9 +26,14 @@
  */
 package CADI.Server.Network;
 
+import CADI.Common.Network.HierarchicalTrafficShaping;
 import CADI.Common.Network.TrafficShaping;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Date;
 
 import CADI.Common.Network.HTTP.HTTPResponse;
@@ -36,9 +41,20 @@ import CADI.Common.Network.HTTP.StatusCodes;
 
 /**
  * This class implements a wrapper to send an HTTP Response. 
+ * <p>
+ * Data of the HTTP body are not sent as soon as they are passed to the
+ * <code>sendChunk</code> methods, but they are accumulated in a buffer of
+ * {@link #maxChunkLength} bytes. Thus, lots of small JPIP messages are
+ * packed in a few large HTTP chunks, and each chunk (its length line, data
+ * and trailing CRLF) is sent by means of a single gathering write when the
+ * {@link #channel} attribute has been set.
+ * <p>
+ * If the length of the body is known before it is sent (see
+ * {@link #setContentLength(long)}), the body is sent without the chunked
+ * transfer coding.
  * 
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.3 2012/03/22
+ * @version 1.0.5 2012/07/04
  */
 public class HTTPResponseSender {
 
@@ -57,6 +73,17 @@ public class HTTPResponseSender {
    */
   private OutputStream os = null;
 
+  /**
+   * Is the channel of the connection to the client. When it is available,
+   * HTTP chunks are sent with gathering writes, and data stored in files are
+   * transferred directly from the file to the channel (see
+   * {@link #sendChunk(FileChannel, long, int)}) instead of being copied into
+   * an intermediate buffer.
+   * <p>
+   * It must write to the same connection as {@link #os}.
+   */
+  private GatheringByteChannel channel = null;
+
   /**
    * Definition in {@link CADI.Server.Core.Scheduler#maxTxRate}. But a O
    * value does not mean unlimited rate delivery, it means to delivery at
@@ -64,11 +91,21 @@ public class HTTPResponseSender {
    */
   private long maxTxRate = Long.MAX_VALUE;
 
+  /**
+   * Is the length of the HTTP body, or -1 if it is not known in advance.
+   * <p>
+   * When the length is known, the body is sent as it is, and the response
+   * must have a <code>Content-Length</code> header. Otherwise, the chunked
+   * transfer coding is used.
+   */
+  private long contentLength = -1;
+
   // INTERNAL ATTRIBUTES
   private static final String HTTP_VERSION_11 = "HTTP/1.1";
 
   /**
-   * Not used yet.
+   * Indicates whether the HTTP body is sent with the chunked transfer
+   * coding. It is set by the {@link #setContentLength(long)} method.
    */
   private boolean chunkedMode = true;
 
@@ -86,9 +123,51 @@ public class HTTPResponseSender {
    *
    */
   private TrafficShaping trafficShaping = null;
-  // TODO:
 
-  private long maxChunkLength = 1024; // 1 KB
+  /**
+   * Is the flow used to share the server bandwidth with the rest of
+   * responses, or <code>null</code> if the bandwidth is not shared. See
+   * {@link CADI.Common.Network.HierarchicalTrafficShaping}.
+   */
+  private HierarchicalTrafficShaping.Flow sharedTrafficShaping = null;
+
+  /**
+   * Is the maximum length of the data accumulated in the {@link #buffer}
+   * before they are sent.
+   */
+  private int maxChunkLength = 16384; // 16 KB
+
+  /**
+   * Contains the body data which have been passed to the
+   * <code>sendChunk</code> methods but have not been sent yet. It is always
+   * in <i>write</i> mode.
+   */
+  private ByteBuffer buffer = null;
+
+  /**
+   * Contains the head of the HTTP response (status line and headers) until
+   * the {@link #endOfHeaders()} method is called.
+   */
+  private StringBuilder head = null;
+
+  /**
+   * Is <code>true</code> when the last chunk has been completed by a file
+   * transfer and its closing CRLF has not been sent yet. The CRLF is sent
+   * together with the next chunk.
+   */
+  private boolean pendingChunkEnd = false;
+
+  /**
+   * Is the number of body bytes sent so far.
+   */
+  private long bodyLength = 0;
+
+  /**
+   * Data read from files which are shorter than this value are copied into
+   * the {@link #buffer} instead of being transferred to the channel. It
+   * avoids a system call for each of the small JPIP messages.
+   */
+  private static final int MIN_TRANSFER_LENGTH = 4096;
 
   // ============================= public methods ==============================
   /**
@@ -111,6 +190,27 @@ public class HTTPResponseSender {
     }
 
     trafficShaping = new TrafficShaping(-1, -1, TrafficShaping.NONE);
+    head = new StringBuilder();
+  }
+
+  /**
+   * Sets the {@link #channel} attribute.
+   *
+   * @param channel definition in {@link #channel}.
+   */
+  public final void setChannel(GatheringByteChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Sets the {@link #contentLength} attribute. It must be called before
+   * sending the body.
+   *
+   * @param contentLength definition in {@link #contentLength}.
+   */
+  public final void setContentLength(long contentLength) {
+    this.contentLength = (contentLength >= 0) ? contentLength : -1;
+    chunkedMode = (this.contentLength < 0);
   }
 
   /**
@@ -133,9 +233,29 @@ public class HTTPResponseSender {
             this.maxTxRate, algorithm);
   }
 
+  /**
+   * Returns the {@link #maxTxRate} attribute.
+   *
+   * @return the {@link #maxTxRate} attribute.
+   */
+  public final long getMaxTxRate() {
+    return maxTxRate;
+  }
+
+  /**
+   * Sets the {@link #sharedTrafficShaping} attribute.
+   *
+   * @param sharedTrafficShaping definition in {@link #sharedTrafficShaping}.
+   */
+  public final void setSharedTrafficShaping(HierarchicalTrafficShaping.Flow sharedTrafficShaping) {
+    this.sharedTrafficShaping = sharedTrafficShaping;
+  }
+
   /**
    * Sends the HTTP protocol's headers. Headers must be passed as a
    * HTTPResponse object.
+   * <p>
+   * Headers are sent when the {@link #endOfHeaders()} method is called.
    *
    * @param headers the HTTP protocol's header to send.
    *
@@ -154,16 +274,16 @@ public class HTTPResponseSender {
 
 
     // Status line
-    os.write((HTTP_VERSION_11 + " " + headers.getResponseCode() + " " + headers.getResponseMessage() + " " + CRLF).getBytes());
+    head.append(HTTP_VERSION_11 + " " + headers.getResponseCode() + " " + headers.getResponseMessage() + " " + CRLF);
 
     // General header: date
-    os.write(("Date: " + (new Date().toString()) + CRLF).getBytes());	// rfc 2616 section 14.18
+    head.append("Date: " + (new Date().toString()) + CRLF);	// rfc 2616 section 14.18
 
     if ((headers.getResponseCode() == StatusCodes.OK) || (headers.getResponseCode() == StatusCodes.ACCEPTED)) {
       String value;
       for (String key : headers.getHeaders()) {
         value = headers.getHeaderField(key);
-        os.write((key + ": " + value + CRLF).getBytes());
+        head.append(key + ": " + value + CRLF);
       }
     }
   }
@@ -176,7 +296,7 @@ public class HTTPResponseSender {
   public void sendHeaders(String... args) throws IOException {
     for (int i = 0; i < args.length; i++) {
       if ((args[i] != null) || (args[i].length() > 0)) {
-        os.write((args[i] + CRLF).getBytes());
+        head.append(args[i] + CRLF);
       }
     }
   }
@@ -196,8 +316,7 @@ public class HTTPResponseSender {
       return;
     }
 
-    os.write(header.getBytes());
-    os.write(CRLF_Bytes);
+    head.append(header + CRLF);
   }
 
   /**
@@ -216,23 +335,28 @@ public class HTTPResponseSender {
       return;
     }
 
-    os.write((key + ": " + value + CRLF).getBytes());
+    head.append(key + ": " + value + CRLF);
   }
 
   /**
+   * Sends the head of the response (status line and headers) in a single
+   * write.
    *
    * @throws IOException if there is not connection to the remote host or the
    * 						operation has been interrupted.
    */
   public void endOfHeaders() throws IOException {
-    os.write(CRLF_Bytes);
+    head.append(CRLF);
+    os.write(head.toString().getBytes());
+    head.setLength(0);
   }
 
   /**
    * Sends a chunk of the HTTP body. If the <code>chunk<code> data is <code>
    * null</code>, this method returns and does nothing.
    * <p>
-   * This method is only used when the HTTP chunked mode mode is set.
+   * Data are accumulated until {@link #maxChunkLength} bytes are available
+   * (see {@link #flush()}).
    *
    * @param chunk a byte array with chunk data to send.
    *
@@ -250,7 +374,9 @@ public class HTTPResponseSender {
    *  Sends a chunk of the HTTP body. If the <code>chunk<code> data is <code>
    * null</code>, this method returns and does nothing.
    * <p>
-   * This method is only used when the HTTP chunked mode mode is set.
+   * Data are accumulated until {@link #maxChunkLength} bytes are available
+   * (see {@link #flush()}). Data longer than {@link #maxChunkLength} are
+   * sent without being copied.
    *
    * @param chunk a byte array with chunk data to send.
    * @param off offset of the first byte to be sent.
@@ -265,51 +391,85 @@ public class HTTPResponseSender {
     }
     if ((off < 0) || (len < 0)) throw new IllegalArgumentException();
 
-    int offChunk = off;
-    int lenChunk = 0;
-    byte[] lenBytes = null;
-    int lenAllowed = 0;
-    int offInChunk = 0;
-    int lenInChunk = 0;
-
-    do {
-      lenChunk = (offChunk + maxChunkLength < len)
-              ? (int)maxChunkLength
-              : len - offChunk;
-
-      // Send chunk length
-      lenBytes = Long.toHexString(lenChunk).getBytes();
-      lenAllowed = trafficShaping.getTokens(lenBytes.length + 2);
-      assert (lenAllowed == (lenBytes.length + 2));
-      os.write(lenBytes);
-      os.write(CRLF_Bytes);
-
-      // Send chunk data
-      offInChunk = offChunk;
-      lenInChunk = lenChunk;
-      do {
-        lenInChunk = offChunk + lenChunk - offInChunk;
-        lenAllowed = trafficShaping.getTokens(lenInChunk);
-        assert (lenAllowed > 0);
-        os.write(chunk, offInChunk, lenAllowed);
-        offInChunk += lenAllowed;
-      } while (offInChunk < (offChunk + lenChunk));
-
-      lenAllowed = trafficShaping.getTokens(2);
-      assert (lenAllowed == 2);
-      os.write(CRLF_Bytes);
-
-      offChunk += lenChunk;
-
-    } while (offChunk < len);
+    if (len >= maxChunkLength) {
+      writeChunk(ByteBuffer.wrap(chunk, off, len), null, 0, 0, false);
+      return;
+    }
+
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(maxChunkLength);
+    }
+
+    int offInChunk = off;
+    int endOfChunk = off + len;
+    while (offInChunk < endOfChunk) {
+      if (!buffer.hasRemaining()) {
+        writeChunk(null, null, 0, 0, false);
+      }
+      int length = Math.min(buffer.remaining(), endOfChunk - offInChunk);
+      buffer.put(chunk, offInChunk, length);
+      offInChunk += length;
+    }
+  }
+
+  /**
+   * Sends a chunk of the HTTP body whose data are read from a file. If the
+   * {@link #channel} attribute has been set, long data are transferred from
+   * the file to the channel without being copied into the Java heap, and
+   * only the chunk framing and the data accumulated in the buffer are
+   * written from memory. Otherwise, data are read into the buffer as with
+   * {@link #sendChunk(byte[], int, int)}.
+   *
+   * @param file the file channel to read the data from.
+   * @param position position in the file of the first byte to be sent.
+   * @param len length of data to be sent.
+   *
+   * @throws IOException if there is not connection to the remote host or the
+   * 						operation has been interrupted.
+   */
+  public void sendChunk(FileChannel file, long position, int len) throws IOException {
+    if (file == null) {
+      throw new NullPointerException();
+    }
+    if ((position < 0) || (len < 0)) throw new IllegalArgumentException();
+    if (len == 0) {
+      return;
+    }
+
+    if ((channel != null) && (len >= MIN_TRANSFER_LENGTH)) {
+      writeChunk(null, file, position, len, false);
+      return;
+    }
+
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(maxChunkLength);
+    }
+
+    long offInFile = position;
+    long endOfData = position + len;
+    while (offInFile < endOfData) {
+      if (!buffer.hasRemaining()) {
+        writeChunk(null, null, 0, 0, false);
+      }
+      int limit = buffer.limit();
+      buffer.limit(buffer.position()
+                   + (int)Math.min(buffer.remaining(), endOfData - offInFile));
+      while (buffer.hasRemaining()) {
+        int numBytes = file.read(buffer, offInFile);
+        if (numBytes < 0) {
+          buffer.limit(limit);
+          throw new EOFException();
+        }
+        offInFile += numBytes;
+      }
+      buffer.limit(limit);
+    }
   }
 
   /**
    * Sends multiple chunks as a only one chunk. The sent chunk length is the
    * total amount of all chunk parameters. If some of the <code>chunk<code>
    * parameter is <code>null</code>, it is discarded.
-   * <p>
-   * This method is only used when the HTTP chunked mode mode is set.
    *
    * @param args the chunk data
    *
@@ -323,32 +483,210 @@ public class HTTPResponseSender {
   }
 
   /**
-   * Flushes this output stream and forces any buffered output bytes to be sent.
+   * Sends the data accumulated in the buffer, flushes this output stream and
+   * forces any buffered output bytes to be sent.
    *
    * @throws IOException if there is not connection to the remote host or the
    * 						operation has been interrupted.
    */
   public void flush() throws IOException {
+    writeChunk(null, null, 0, 0, false);
     os.flush();
   }
 
   /**
-   * Sends the end of the chunk. The end of the chunk consists of:
+   * Sends the end of the body. In the chunked mode, the end of the chunks
+   * consists of:
    * 0<br>
    * CRLF<br>
    * CRLF<br>
+   * and it is sent together with the data accumulated in the buffer.
    *
    * @throws IOException if there is not connection to the remote host or the
    * 						operation has been interrupted.
    */
   public void endOfChunk() throws IOException {
-    os.write(Integer.toHexString(0).getBytes());
-    os.write(CRLF_Bytes);
-    os.write(CRLF_Bytes);
+    writeChunk(null, null, 0, 0, true);
     os.flush();
+
+    assert (chunkedMode || (bodyLength == contentLength));
   }
 
   // ============================ private methods ==============================
+  /**
+   * Sends the data accumulated in the {@link #buffer} followed by the
+   * <code>data</code> and <code>len</code> bytes of the <code>file</code>.
+   * In the chunked mode, all of them are framed as a single chunk.
+   *
+   * @param data data to be sent after the buffer. It can be
+   * 			<code>null</code>.
+   * @param file the file to read data from. It can be <code>null</code>.
+   * @param position position in the file of the first byte to be sent.
+   * @param len length of data to be read from the file.
+   * @param last if <code>true</code>, the end of the chunks is also sent.
+   *
+   * @throws IOException if there is not connection to the remote host or the
+   * 						operation has been interrupted.
+   */
+  private void writeChunk(ByteBuffer data, FileChannel file, long position,
+                          int len, boolean last) throws IOException {
+
+    if (buffer != null) {
+      buffer.flip();
+    }
+    long length = ((buffer != null) ? buffer.remaining() : 0)
+            + ((data != null) ? data.remaining() : 0)
+            + ((file != null) ? len : 0);
+
+    ByteBuffer[] srcs = new ByteBuffer[4];
+    int numSrcs = 0;
+
+    if (chunkedMode) {
+      String framing = pendingChunkEnd ? CRLF : "";
+      if (length > 0) {
+        framing += Long.toHexString(length) + CRLF;
+      }
+      if (framing.length() > 0) {
+        srcs[numSrcs++] = ByteBuffer.wrap(framing.getBytes());
+      }
+      pendingChunkEnd = false;
+    }
+    if ((buffer != null) && buffer.hasRemaining()) {
+      srcs[numSrcs++] = buffer;
+    }
+    if ((data != null) && data.hasRemaining()) {
+      srcs[numSrcs++] = data;
+    }
+    if (chunkedMode && (file == null)) {
+      if (length > 0) {
+        srcs[numSrcs++] = ByteBuffer.wrap(last ? (CRLF + "0" + CRLF + CRLF).getBytes() : CRLF_Bytes);
+      } else if (last) {
+        srcs[numSrcs++] = ByteBuffer.wrap(("0" + CRLF + CRLF).getBytes());
+      }
+    }
+
+    write(srcs, numSrcs);
+    bodyLength += length - ((file != null) ? len : 0);
+    if (buffer != null) {
+      buffer.clear();
+    }
+
+    if (file != null) {
+      transfer(file, position, len);
+      bodyLength += len;
+      if (chunkedMode) {
+        pendingChunkEnd = true;
+        if (last) {
+          writeChunk(null, null, 0, 0, true);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the <code>numSrcs</code> first buffers of <code>srcs</code>
+   * taking into account the {@link #trafficShaping}. A gathering write is
+   * used when the {@link #channel} attribute has been set.
+   *
+   * @param srcs the buffers to be written. All of them must have an
+   * 			accessible backing array.
+   * @param numSrcs number of buffers of <code>srcs</code> to be written.
+   *
+   * @throws IOException if there is not connection to the remote host or the
+   * 						operation has been interrupted.
+   */
+  private void write(ByteBuffer[] srcs, int numSrcs) throws IOException {
+
+    long remaining = 0;
+    for (int i = 0; i < numSrcs; i++) {
+      remaining += srcs[i].remaining();
+    }
+
+    int first = 0;
+    while (remaining > 0) {
+      int allowed = getTokens((int)Math.min(remaining, Integer.MAX_VALUE));
+      assert (allowed > 0);
+
+      // Restrict the buffers to the allowed bytes
+      int last = first;
+      long length = srcs[last].remaining();
+      while (length < allowed) {
+        length += srcs[++last].remaining();
+      }
+      int limit = srcs[last].limit();
+      srcs[last].limit(limit - (int)(length - allowed));
+
+      if (channel != null) {
+        long written = 0;
+        while (written < allowed) {
+          written += channel.write(srcs, first, last - first + 1);
+        }
+      } else {
+        for (int i = first; i <= last; i++) {
+          ByteBuffer src = srcs[i];
+          os.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+          src.position(src.limit());
+        }
+      }
+
+      srcs[last].limit(limit);
+      first = srcs[last].hasRemaining() ? last : last + 1;
+      remaining -= allowed;
+    }
+  }
+
+  /**
+   * Transfers <code>len</code> bytes of a file to the {@link #channel}
+   * taking into account the {@link #trafficShaping}.
+   *
+   * @param file the file to read data from.
+   * @param position position in the file of the first byte to be sent.
+   * @param len length of data to be transferred.
+   *
+   * @throws IOException if there is not connection to the remote host or the
+   * 						operation has been interrupted.
+   */
+  private void transfer(FileChannel file, long position, int len) throws IOException {
+    long offInFile = position;
+    long endOfData = position + len;
+    while (offInFile < endOfData) {
+      int lenAllowed = getTokens((int)(endOfData - offInFile));
+      assert (lenAllowed > 0);
+      long endOfSegment = offInFile + lenAllowed;
+      while (offInFile < endOfSegment) {
+        long numBytes = file.transferTo(offInFile, endOfSegment - offInFile, channel);
+        if (numBytes <= 0) {
+          if (offInFile >= file.size()) {
+            throw new EOFException();
+          }
+          Thread.yield();
+        }
+        offInFile += numBytes;
+      }
+    }
+  }
+
+  /**
+   * Gets the tokens to send data from the {@link #sharedTrafficShaping} and
+   * the {@link #trafficShaping} of the connection.
+   *
+   * @param length the number of bytes to be sent.
+   *
+   * @return the number of bytes which can be sent.
+   */
+  private int getTokens(int length) {
+    if (sharedTrafficShaping == null) {
+      return trafficShaping.getTokens(length);
+    }
+
+    int shared = sharedTrafficShaping.getTokens(length);
+    int allowed = trafficShaping.getTokens(shared);
+    if (allowed < shared) {
+      sharedTrafficShaping.returnTokens(shared - allowed);
+    }
+    return allowed;
+  }
+
   /**
    * This method updates the {@link #bytesSent} and {@link #times} attributes
    * with new new values which are parssed as input parameters.
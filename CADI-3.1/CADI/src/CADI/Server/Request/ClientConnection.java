@@ -0,0 +1,457 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.Request;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import CADI.Common.Network.HTTP.StatusCodes;
+import GiciException.ErrorException;
+
+/**
+ * This class keeps the state of a client connection while its HTTP request
+ * is being received by the {@link CADI.Server.Request.RequestListener}.
+ * <p>
+ * Bytes are read from a non-blocking socket channel as they arrive and
+ * accumulated in a buffer. The request head (request line and headers) is
+ * only returned once the empty line which closes it has been received, so a
+ * slow client never blocks the rest of connections.
+ * <p>
+ * When the HTTP keep-alive mode is set, the connection is returned to its
+ * listener once the response has been sent (see
+ * {@link CADI.Server.Request.RequestListener#keepAlive(ClientConnection)}).
+ * Thus, idle connections do not hold a worker thread while they are waiting
+ * for the next request, and bytes already received from the client are kept
+ * between requests.
+ * <p>
+ * Usage example:<br>
+ * &nbsp; construct<br>
+ * &nbsp; read<br>
+ * &nbsp; nextRequest<br>
+ * &nbsp; ...<br>
+ * &nbsp; close<br>
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0.2 2012/07/04
+ */
+public class ClientConnection {
+
+  /**
+   * Is the socket channel of the client connection.
+   */
+  private SocketChannel channel = null;
+
+  /**
+   * Is the listener which has accepted the connection.
+   */
+  private RequestListener listener = null;
+
+  /**
+   * Is the index of the worker whose queue receives the requests of this
+   * connection, or -1 if it has not been assigned yet. Keeping the requests
+   * of a connection in the same worker improves the locality of the session
+   * data.
+   */
+  private int affinity = -1;
+
+  /**
+   * Is the maximum length (in bytes) allowed for the head of an HTTP request.
+   * Longer requests are rejected.
+   */
+  public static final int MAX_REQUEST_LENGTH = 16384;
+
+  // INTERNAL ATTRIBUTES
+
+  /**
+   * Contains the bytes received from the client which have not been returned
+   * as a request yet. The buffer is always in <i>write</i> mode, so bytes
+   * are in the range [0, position).
+   */
+  private ByteBuffer buffer = null;
+
+  /**
+   * Is the position of the buffer from which the end of the request head
+   * will be searched. It avoids scanning the same bytes several times when
+   * a request arrives in several segments.
+   */
+  private int scanOffset = 0;
+
+  /**
+   * Is the time (in milliseconds) of the last read from the channel.
+   */
+  private long lastAccessTime = 0L;
+
+  /**
+   * Is the time (in milliseconds) when the reception of the current request
+   * head started, i.e., when the connection was accepted or when the first
+   * byte following the previous request was received.
+   */
+  private long requestStartTime = 0L;
+
+  /**
+   * Is the number of requests whose head has been completely received.
+   */
+  private int numOfRequests = 0;
+
+  /**
+   * Initial length of the {@link #buffer} attribute.
+   */
+  private static final int INITIAL_BUFFER_LENGTH = 1024;
+
+  // ============================= public methods ==============================
+  /**
+   * Constructor.
+   *
+   * @param channel definition in {@link #channel}.
+   * @param listener definition in {@link #listener}.
+   */
+  public ClientConnection(SocketChannel channel, RequestListener listener) {
+    if (channel == null) {
+      throw new NullPointerException();
+    }
+    if (listener == null) {
+      throw new NullPointerException();
+    }
+
+    this.channel = channel;
+    this.listener = listener;
+    buffer = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+    lastAccessTime = System.currentTimeMillis();
+    requestStartTime = lastAccessTime;
+  }
+
+  /**
+   * Returns the {@link #channel} attribute.
+   *
+   * @return the {@link #channel} attribute.
+   */
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Returns the socket associated with the {@link #channel}.
+   *
+   * @return the client socket.
+   */
+  public Socket getSocket() {
+    return channel.socket();
+  }
+
+  /**
+   * Returns the {@link #listener} attribute.
+   *
+   * @return the {@link #listener} attribute.
+   */
+  public RequestListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Returns the {@link #affinity} attribute.
+   *
+   * @return the {@link #affinity} attribute.
+   */
+  public int getAffinity() {
+    return affinity;
+  }
+
+  /**
+   * Sets the {@link #affinity} attribute.
+   *
+   * @param affinity definition in {@link #affinity}.
+   */
+  public void setAffinity(int affinity) {
+    this.affinity = affinity;
+  }
+
+  /**
+   * Returns the {@link #lastAccessTime} attribute.
+   *
+   * @return the {@link #lastAccessTime} attribute.
+   */
+  public long getLastAccessTime() {
+    return lastAccessTime;
+  }
+
+  /**
+   * Returns the {@link #requestStartTime} attribute.
+   *
+   * @return the {@link #requestStartTime} attribute.
+   */
+  public long getRequestStartTime() {
+    return requestStartTime;
+  }
+
+  /**
+   * Checks whether the head of a request is being received, that is, the
+   * connection has not completed any request yet or there are received
+   * bytes which do not form a complete request.
+   *
+   * @return <code>true</code> if a request is being received.
+   */
+  public boolean isReceivingRequest() {
+    return (numOfRequests == 0) || hasPendingData();
+  }
+
+  /**
+   * Sets the {@link #lastAccessTime} attribute to the current time.
+   */
+  public void updateLastAccessTime() {
+    lastAccessTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Reads the bytes which are available in the channel without blocking.
+   *
+   * @return the number of bytes which have been read, or -1 if the client
+   * 	has closed the connection.
+   *
+   * @throws ErrorException if the request is longer than
+   * 	{@link #MAX_REQUEST_LENGTH}.
+   * @throws IOException if an I/O error occurs.
+   */
+  public int read() throws ErrorException, IOException {
+    int totalRead = 0;
+    int numBytes = 0;
+    boolean wasEmpty = (buffer.position() == 0);
+
+    do {
+      if (!buffer.hasRemaining()) {
+        if (buffer.capacity() >= MAX_REQUEST_LENGTH) {
+          throw new ErrorException("Request is too long",
+                                   StatusCodes.BAD_REQUEST);
+        }
+        ByteBuffer tmp = ByteBuffer.allocate(
+                Math.min(2 * buffer.capacity(), MAX_REQUEST_LENGTH));
+        buffer.flip();
+        tmp.put(buffer);
+        buffer = tmp;
+      }
+      numBytes = channel.read(buffer);
+      if (numBytes > 0) {
+        totalRead += numBytes;
+      }
+    } while (numBytes > 0);
+
+    if ((numBytes < 0) && (totalRead == 0)) {
+      return -1;
+    }
+
+    lastAccessTime = System.currentTimeMillis();
+    if (wasEmpty && (totalRead > 0) && (numOfRequests > 0)) {
+      requestStartTime = lastAccessTime;
+    }
+    return totalRead;
+  }
+
+  /**
+   * Returns the head of the next request (request line and headers) if it
+   * has been completely received. The returned bytes are removed from the
+   * buffer, whereas the following ones (if any) are kept for the next call.
+   *
+   * @return the head of the request, or <code>null</code> if it has not
+   * 	been completely received yet.
+   */
+  public String nextRequest() {
+
+    // Skip empty lines before the request line (RFC 2616 section 4.1)
+    int begin = 0;
+    int end = buffer.position();
+    byte[] data = buffer.array();
+    while ((begin < end) && ((data[begin] == '\r') || (data[begin] == '\n'))) {
+      begin++;
+    }
+    if (scanOffset < begin) {
+      scanOffset = begin;
+    }
+
+    // Search the empty line which closes the head
+    int headEnd = findHeadEnd(data, scanOffset, end);
+
+    if (headEnd < 0) {
+      scanOffset = (end > 2) ? end - 2 : 0;
+      if (begin == end) {
+        buffer.clear();
+        scanOffset = 0;
+      }
+      return null;
+    }
+
+    String head = null;
+    try {
+      head = new String(data, begin, headEnd - begin, "ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      assert (true);
+    }
+
+    // Remove the request from the buffer
+    buffer.flip();
+    buffer.position(headEnd);
+    buffer.compact();
+    scanOffset = 0;
+    numOfRequests++;
+    if (buffer.position() > 0) {
+      requestStartTime = System.currentTimeMillis();
+    }
+
+    return head;
+  }
+
+  /**
+   * Reads, without blocking, the bytes which the client has sent while its
+   * current request is being responded, and returns the head of the next
+   * request if it has been completely received. Unlike
+   * {@link #nextRequest()}, the head is kept in the buffer, so it will be
+   * returned again when the connection goes back to the listener.
+   * <p>
+   * It must only be called by the thread which is responding the current
+   * request, while the connection is not registered in a selector.
+   *
+   * @return the head of the next request, or <code>null</code> if it has not
+   * 	been completely received yet.
+   */
+  public String peekRequest() {
+    if (buffer == null) {
+      return null;
+    }
+
+    try {
+      channel.configureBlocking(false);
+      try {
+        read();
+      } finally {
+        channel.configureBlocking(true);
+      }
+    } catch (ErrorException e) {
+      // The listener will reject the request
+    } catch (IOException e) {
+      // The error will be detected when the response is sent
+    }
+
+    int begin = 0;
+    int end = buffer.position();
+    byte[] data = buffer.array();
+    while ((begin < end) && ((data[begin] == '\r') || (data[begin] == '\n'))) {
+      begin++;
+    }
+    int headEnd = findHeadEnd(data, begin, end);
+    if (headEnd < 0) {
+      return null;
+    }
+
+    String head = null;
+    try {
+      head = new String(data, begin, headEnd - begin, "ISO-8859-1");
+    } catch (UnsupportedEncodingException e) {
+      assert (true);
+    }
+    return head;
+  }
+
+  /**
+   * Checks whether there are received bytes which have not been returned as
+   * a request yet.
+   *
+   * @return <code>true</code> if the buffer is not empty.
+   */
+  public boolean hasPendingData() {
+    return (buffer != null) && (buffer.position() > 0);
+  }
+
+  /**
+   * Closes the client connection.
+   */
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+    }
+    buffer = null;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String str = "";
+
+    str = getClass().getName() + " [";
+    str += "channel=" + channel;
+    str += ", pending bytes=" + ((buffer != null) ? buffer.position() : 0);
+    str += ", lastAccessTime=" + lastAccessTime;
+    str += "]";
+
+    return str;
+  }
+
+  /**
+   * Prints this Client Connection fields out to the specified output stream.
+   * This method is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out) {
+
+    out.println("-- Client connection --");
+
+    out.println("Channel: " + channel);
+    out.println("Pending bytes: " + ((buffer != null) ? buffer.position() : 0));
+    out.println("Last access time: " + lastAccessTime);
+
+    out.flush();
+  }
+  // ============================ private methods ==============================
+  /**
+   * Searches the empty line which closes the head of a request.
+   *
+   * @param data the received bytes.
+   * @param begin position where the search starts.
+   * @param end position after the last received byte.
+   *
+   * @return the position after the empty line, or -1 if it has not been
+   * 	received yet.
+   */
+  private static int findHeadEnd(byte[] data, int begin, int end) {
+    for (int i = begin; i < end; i++) {
+      if (data[i] == '\n') {
+        if ((i + 1 < end) && (data[i + 1] == '\n')) {
+          return i + 2;
+        } else if ((i + 2 < end) && (data[i + 1] == '\r') && (data[i + 2] == '\n')) {
+          return i + 3;
+        }
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * CADI Software - a JPIP Client/Server framework
+ * Copyright (C) 2007-2012  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * gici-info@deic.uab.es
+ */
+package CADI.Server.Request;
+
+import java.io.PrintStream;
+
+/**
+ * This interface defines the object which receives the client requests
+ * read by a {@link CADI.Server.Request.RequestListener} and passes them to
+ * be processed.
+ * <p>
+ * It can be a queue shared by all the threads which process the requests,
+ * such as the {@link CADI.Server.Request.RequestQueue}, or a dispatcher which
+ * assigns the requests directly to those threads.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0 2012/06/08
+ */
+public interface RequestDispatcher {
+
+  /**
+   * Passes a new client request to be processed. This method may be called
+   * concurrently by several listeners.
+   *
+   * @param nodeInfo the client request.
+   */
+  public void dispatch(RequestQueueNode nodeInfo);
+
+  /**
+   * Prints this dispatcher out to the specified output stream. This method
+   * is useful for debugging.
+   *
+   * @param out an output stream.
+   */
+  public void list(PrintStream out);
+}
@@ -27,14 +27,23 @@
 package CADI.Server.Request;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.StringReader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import CADI.Common.Log.CADILog;
 import CADI.Common.Network.HTTP.HTTPRequest;
@@ -46,15 +55,33 @@ import GiciException.ErrorException;
 /**
  * This class listens to the client requests and enqueues them.
  * <p>
+ * Connections are accepted and read through a non-blocking server socket
+ * channel and a selector, so many connections can be receiving their requests
+ * at the same time and a slow or idle client does not delay the rest. Each
+ * connection keeps its partially received request in a
+ * {@link CADI.Server.Request.ClientConnection} object, and only complete
+ * requests are passed to the request queue. Then, the socket is switched to
+ * blocking mode and it is owned by the worker which processes the request.
+ * <p>
+ * When the HTTP keep-alive mode is set, the worker returns the connection to
+ * the listener after sending the response (see {@link #keepAlive}), and it is
+ * watched by the selector again until the next request arrives or the
+ * keep-alive timeout is reached. Therefore, workers are not pinned to idle
+ * connections.
+ * <p>
+ * Connections which do not complete the head of a request within the request
+ * timeout are closed, whether or not the keep-alive mode is set, so clients
+ * sending their requests very slowly do not keep connections open forever.
+ * <p>
  * None prioritization criterion is performed. Request are enqueued in the same
- * order they are received.
+ * order they are completely received.
  * <p>
  * Usage example:<br>
  * &nbsp; construct<br>
  * &nbsp; run<br>
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.2 2009/08/16
+ * @version 1.1.1 2012/06/04
  */
 public class RequestListener extends Thread {
 
@@ -65,18 +92,32 @@ public class RequestListener extends Thread {
 	private int port;
 
 	/**
-	 * It is a queue where the client request are stored. This queue is shared
-	 * memory between the <data>daemon</data> which stored the client requests
-	 * and the <data>RequestDispatcher</data> which gets them to process.
+	 * Is the object where the received client requests are passed to be
+	 * processed. It may be shared by several listeners.
 	 * <p>
-	 * Definition in {@link CADI.Server.Core.Scheduler#requestQueue}.
+	 * Definition in {@link CADI.Server.Request.RequestDispatcher}.
 	 */
-	private RequestQueue requestQueue = null;
+	private RequestDispatcher requestDispatcher = null;
 
 	/**
 	 * Definition in {@link CADI.Server.Core.Scheduler#log}.
 	 */
 	private CADILog log = null;	
+
+	/**
+	 * Definition in {@link CADI.Server.Core.Scheduler#keepAliveTimeout}.
+	 * Connections which do not receive any byte during this time are closed.
+	 * A 0 value means that idle connections are never closed.
+	 */
+	private int keepAliveTimeout = 0;
+	
+	/**
+	 * Is the maximum time (in milliseconds) to receive the head of a request.
+	 * Connections which have not completed the head of their request in this
+	 * time are closed, even if they keep sending bytes slowly. It does not
+	 * depend on the {@link #keepAliveTimeout}.
+	 */
+	private int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
 	
 	/**
 	 * Indicates if the thread must be finished.
@@ -87,9 +128,38 @@ public class RequestListener extends Thread {
 	// INTERNAL ATTRIBUTES
 
 	/**
-	 * Server socket where server is listening to client requests.
+	 * Server socket channel where server is listening to client requests.
+	 */
+	private ServerSocketChannel serverChannel = null;
+
+	/**
+	 * Selector used to multiplex the server socket channel and the channels
+	 * of the connections whose request has not been completely received.
+	 */
+	private Selector selector = null;
+
+	/**
+	 * Is the maximum time (in milliseconds) the selector waits for a ready
+	 * channel before checking the {@link #finish} attribute.
+	 */
+	private static final int SELECT_TIMEOUT = 1000;
+
+	/**
+	 * Is the default value of {@link #requestTimeout}.
 	 */
-	private ServerSocket serverSocket;
+	public static final int DEFAULT_REQUEST_TIMEOUT = 10000;
+
+	/**
+	 * Contains the connections which have been returned by the workers to
+	 * wait for a new request. They are registered in the selector by the
+	 * listener thread.
+	 */
+	private ConcurrentLinkedQueue<ClientConnection> keepAliveConnections = null;
+
+	/**
+	 * Is the last time (in milliseconds) idle connections were checked.
+	 */
+	private long lastIdleCheckTime = 0L;
 
 	/**
 	 * A object that reads the HTTP request from a input stream.
@@ -103,34 +173,40 @@ public class RequestListener extends Thread {
 	 * @param threadName is the name of the thread.
 	 * @param port it is the port where the server will listen to the client
 	 * 		requests
-	 * @param requestQueue it is the queue where the received client request
-	 * 		will be saved.
+	 * @param requestDispatcher it is the object where the received client
+	 * 		requests will be passed.
 	 * @param log
 	 * 
 	 * @throws ErrorException if the socket server can not be opened.
 	 */
-	public RequestListener(String threadName, int port, RequestQueue requestQueue,
-													CADILog log) throws ErrorException {
+	public RequestListener(String threadName, int port,
+	                       RequestDispatcher requestDispatcher,
+	                       CADILog log) throws ErrorException {
 		
 		if (port <= 0) {
 			throw new IllegalArgumentException();
 		}
 		
-		if (requestQueue == null) {
+		if (requestDispatcher == null) {
 			throw new NullPointerException();
 		}
 		
 		this.port = port;
-		this.requestQueue = requestQueue;
+		this.requestDispatcher = requestDispatcher;
 		this.log = log;
 
 		httpRequestReader = new HTTPRequestReader();
+		keepAliveConnections = new ConcurrentLinkedQueue<ClientConnection>();
 		
 		setName(threadName);
 		
 		// Opens the server socket
 		try {
-			serverSocket = new ServerSocket(port);
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 		} catch (IOException e) {
 			throw new ErrorException("Server socket can not be opened. The port "
 					+ port+ " is aready openned or you do not have permissions");
@@ -139,6 +215,49 @@ public class RequestListener extends Thread {
 		log.logInfo(getName() + ": started");		
 	}
 
+	/**
+	 * Sets the {@link #keepAliveTimeout} attribute.
+	 * 
+	 * @param keepAliveTimeout definition in {@link #keepAliveTimeout}.
+	 */
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		if (keepAliveTimeout < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.keepAliveTimeout = keepAliveTimeout;
+	}
+
+	/**
+	 * Sets the {@link #requestTimeout} attribute.
+	 * 
+	 * @param requestTimeout definition in {@link #requestTimeout}.
+	 */
+	public void setRequestTimeout(int requestTimeout) {
+		if (requestTimeout <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.requestTimeout = requestTimeout;
+	}
+
+	/**
+	 * Returns a connection whose response has been sent to the listener, in
+	 * order to wait for a new request of the client without holding the
+	 * worker thread.
+	 * <p>
+	 * This method can be called from any thread. The connection must be in
+	 * blocking mode and it must not be used by the caller anymore.
+	 * 
+	 * @param connection the client connection.
+	 */
+	public void keepAlive(ClientConnection connection) {
+		if (finish) {
+			connection.close();
+			return;
+		}
+		keepAliveConnections.add(connection);
+		selector.wakeup();
+	}
+
 	/**
 	 * Listens to in a port and receives the client requests. All recieved
 	 * request are stored in a shared queue.
@@ -148,55 +267,63 @@ public class RequestListener extends Thread {
 	 */
   @Override
 	public void run() {
-		
-		boolean error = false;
 
 		log.logInfo(getName()+": listening to client connections (port "+port+")");
 
-			
+		ArrayList<RequestQueueNode> completedRequests =
+			new ArrayList<RequestQueueNode>();
+		
 		// Main loop 	
 		while (!finish) {
-			Socket socket = null;
-			error = false;
 			
-			// Accept connection request
-			try{			
-				socket = serverSocket.accept();
+			// Wait for ready channels
+			try {
+				selector.select(Math.min(getIdleCheckPeriod(), SELECT_TIMEOUT));
 			} catch (IOException e) {
-				error = true;
+				log.logWarning(getName() + ": selector has failed ("+e.getMessage()+")");
+				break;
 			}
 			
-			if (!error) {
-				try {
-					// Read HTTP request
-					BufferedReader bufferedReader =
-						new BufferedReader(new InputStreamReader(socket.getInputStream()));
-					HTTPRequest httpRequest =
-						httpRequestReader.readHTTPRequest(bufferedReader);				
-					
-					// Adds request to request queue. Then it runs the request dispatcher.				
-					requestQueue.add(new RequestQueueNode(socket, httpRequest));
-				} catch (ErrorException ee) {
-					sendHTTPResponseError(socket, ee.getErrorCode(), ee.getMessage());
-					error = true;
-				} catch (SocketTimeoutException ste) {
-					error = true;
-				} catch (IOException e) {
-					error = true;
-					// <<<<<< to log file
+			// Register connections returned by the workers
+			registerKeepAliveConnections(completedRequests);
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				if (!key.isValid()) {
+					continue;
 				}
-				
-				if (error) {
-					try {
-						socket.close();
-					} catch (IOException e) {}
+				if (key.isAcceptable()) {
+					acceptConnection();
+				} else if (key.isReadable()) {
+					readRequest(key, completedRequests);
 				}
 			}
+			
+			// Pass complete requests to the request queue
+			if (!completedRequests.isEmpty()) {
+				dispatchRequests(completedRequests);
+				completedRequests.clear();
+			}
+			
+			closeIdleConnections();
 		}   		
 
 		// Close connections
+		ClientConnection connection = null;
+		while ((connection = keepAliveConnections.poll()) != null) {
+			connection.close();
+		}
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null) {
+				((ClientConnection)key.attachment()).close();
+			}
+		}
 		try {
-			serverSocket.close();
+			serverChannel.close();
+			selector.close();
 		} catch (IOException e) {}   		
 
 		log.logInfo(getName() + ": stopped");
@@ -207,6 +334,7 @@ public class RequestListener extends Thread {
 	 */
 	public synchronized void finish() {
 		this.finish = true;
+		selector.wakeup();
 	}
 	
 	/*
@@ -220,7 +348,7 @@ public class RequestListener extends Thread {
 		str = getClass().getName() + " [";
 
 		str += "Port="+port;
-		if (requestQueue != null) str += ", RequestQueue="+requestQueue.toString();
+		if (requestDispatcher != null) str += ", RequestDispatcher="+requestDispatcher.toString();
 		if (log != null) str += ", Log="+log.toString();	
 		str += ", Finish="+finish;
 		//if (serverSocket != null) showSocket(serverSocket);
@@ -242,10 +370,10 @@ public class RequestListener extends Thread {
 		out.println("-- Request listener --");		
 		
 		out.println("Port: "+port);
-		if (requestQueue != null) requestQueue.list(out);
+		if (requestDispatcher != null) requestDispatcher.list(out);
 		if (log != null) log.list(out);	
 		out.println("Finish: "+finish);
-		if (serverSocket != null) showServerSocket(serverSocket);
+		if (serverChannel != null) showServerSocket(serverChannel.socket());
 		if (httpRequestReader != null) httpRequestReader.list(out);
 						
 		out.flush();
@@ -427,25 +555,210 @@ public class RequestListener extends Thread {
 	}
 	
 	// ============================ private methods ==============================
+	/**
+	 * Accepts a new client connection and registers it in the selector to be
+	 * notified when request data are available.
+	 */
+	private void acceptConnection() {
+		SocketChannel channel = null;
+		try {
+			channel = serverChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ,
+			                 new ClientConnection(channel, this));
+		} catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {}
+			}
+		}
+	}
+
+	/**
+	 * Registers in the selector the connections which have been returned by
+	 * the workers. If a connection has already received bytes of the next
+	 * request, they are processed without waiting for new data.
+	 * 
+	 * @param completedRequests list where complete requests are added.
+	 */
+	private void registerKeepAliveConnections(
+	                      ArrayList<RequestQueueNode> completedRequests) {
+
+		ClientConnection connection = null;
+		while ((connection = keepAliveConnections.poll()) != null) {
+			connection.updateLastAccessTime();
+			try {
+				connection.getChannel().configureBlocking(false);
+				connection.getChannel().register(selector, SelectionKey.OP_READ,
+				                                 connection);
+			} catch (IOException e) {
+				connection.close();
+				continue;
+			}
+			if (connection.hasPendingData()) {
+				parseRequest(connection, completedRequests);
+			}
+		}
+	}
+
+	/**
+	 * Reads the available bytes of a client connection. If the request has
+	 * been completely received, it is parsed and added to the
+	 * <code>completedRequests</code> list.
+	 * 
+	 * @param key the selection key of the client connection.
+	 * @param completedRequests list where complete requests are added.
+	 */
+	private void readRequest(SelectionKey key,
+	                         ArrayList<RequestQueueNode> completedRequests) {
+
+		ClientConnection connection = (ClientConnection)key.attachment();
+		
+		try {
+			if (connection.read() < 0) {
+				// Client has closed the connection
+				connection.close();
+				return;
+			}
+		} catch (ErrorException ee) {
+			sendHTTPResponseError(connection.getChannel(), ee.getErrorCode(),
+			                      ee.getMessage());
+			connection.close();
+			return;
+		} catch (IOException e) {
+			connection.close();
+			return;
+		}
+		
+		parseRequest(connection, completedRequests);
+	}
+
+	/**
+	 * Parses the next request of a client connection if it has been
+	 * completely received, and adds it to the <code>completedRequests</code>
+	 * list.
+	 * 
+	 * @param connection the client connection.
+	 * @param completedRequests list where complete requests are added.
+	 */
+	private void parseRequest(ClientConnection connection,
+	                          ArrayList<RequestQueueNode> completedRequests) {
+
+		String head = connection.nextRequest();
+		if (head == null) {
+			// Request has not been completely received yet
+			return;
+		}
+
+		try {
+			HTTPRequest httpRequest = httpRequestReader.readHTTPRequest(
+					new BufferedReader(new StringReader(head)));
+			completedRequests.add(new RequestQueueNode(connection, httpRequest));
+		} catch (ErrorException ee) {
+			sendHTTPResponseError(connection.getChannel(), ee.getErrorCode(),
+			                      ee.getMessage());
+			connection.close();
+		} catch (IOException e) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Closes the connections which have not received any byte during the
+	 * {@link #keepAliveTimeout}, and the connections which have not completed
+	 * the head of their request during the {@link #requestTimeout}. 
+	 */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		if (now - lastIdleCheckTime < Math.min(getIdleCheckPeriod(), SELECT_TIMEOUT)) {
+			return;
+		}
+		lastIdleCheckTime = now;
+		
+		for (SelectionKey key : selector.keys()) {
+			ClientConnection connection = (ClientConnection)key.attachment();
+			if ((connection == null) || !key.isValid()) {
+				continue;
+			}
+			if (connection.isReceivingRequest()
+					&& (now - connection.getRequestStartTime() > requestTimeout)) {
+				if (log.isLog(CADILog.LEVEL_INFO)) {
+					log.logInfo(getName() + ": request timeout has been reached ("
+							+ connection.getSocket().getRemoteSocketAddress() + ")");
+				}
+				connection.close();
+			} else if ((keepAliveTimeout > 0)
+					&& (now - connection.getLastAccessTime() > keepAliveTimeout)) {
+				if (log.isLog(CADILog.LEVEL_INFO)) {
+					log.logInfo(getName() + ": keep alive timeout has been reached ("
+							+ connection.getSocket().getRemoteSocketAddress() + ")");
+				}
+				connection.close();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the period (in milliseconds) the idle connections are checked.
+	 * 
+	 * @return the minimum of the {@link #keepAliveTimeout}, if it is set, and
+	 * 	the {@link #requestTimeout}.
+	 */
+	private int getIdleCheckPeriod() {
+		return ((keepAliveTimeout > 0) && (keepAliveTimeout < requestTimeout))
+		       ? keepAliveTimeout : requestTimeout;
+	}
+
+	/**
+	 * Removes from the selector the connections whose requests have been
+	 * completely received, sets them to blocking mode, and passes the requests
+	 * to the request dispatcher.
+	 * 
+	 * @param completedRequests list of complete requests.
+	 */
+	private void dispatchRequests(ArrayList<RequestQueueNode> completedRequests) {
+
+		for (RequestQueueNode node : completedRequests) {
+			SelectionKey key = node.getConnection().getChannel().keyFor(selector);
+			if (key != null) {
+				key.cancel();
+			}
+		}
+		
+		// Channels are deregistered in the next selection operation
+		try {
+			selector.selectNow();
+		} catch (IOException e) {}
+		
+		for (RequestQueueNode node : completedRequests) {
+			try {
+				node.getConnection().getChannel().configureBlocking(true);
+				requestDispatcher.dispatch(node);
+			} catch (IOException e) {
+				node.getConnection().close();
+			}
+		}
+	}
+
 	/**
 	 * This method will be used to send an HTTP error response to the client.
+	 * As the channel is in non-blocking mode, the response is firstly built in
+	 * memory and then it is written to the channel. 
 	 * 
+	 * @param channel the client channel.
 	 * @param statusCode definition in
 	 * 	{@link CADI.Common.Network.HTTP.StatusCodes}.
 	 * @param reasonPhrase a reason phrase related with the status code.
 	 */
-	private void sendHTTPResponseError(Socket socket, int statusCode,
+	private void sendHTTPResponseError(SocketChannel channel, int statusCode,
 																			String reasonPhrase) {
 		
-		HTTPResponseSender httpResponseSender = null;
-		try {
-			httpResponseSender = new HTTPResponseSender(socket.getOutputStream());
-		} catch (IOException e1) {
-			log.logInfo(getName() + ": remote host ("
-					+socket.getRemoteSocketAddress()
-					+") has been closed unexpectedly or it is unreachable");
-			return;
-		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		HTTPResponseSender httpResponseSender = new HTTPResponseSender(baos);
 		HTTPResponse httpResponse = new HTTPResponse();
 		
 		httpResponse.setResponseCode(statusCode);
@@ -456,8 +769,9 @@ public class RequestListener extends Thread {
 		try {
 			httpResponseSender.sendHeaders(httpResponse);
 			httpResponseSender.endOfHeaders();
+			channel.write(ByteBuffer.wrap(baos.toByteArray()));
 		} catch (IOException e) {
-			log.logInfo(getName()+": remote host ("+socket.getRemoteSocketAddress()
+			log.logInfo(getName()+": remote host ("+channel.socket().getRemoteSocketAddress()
 					+ ") has been closed unexpectedly or it is unreachable");
 		}
 	}
@@ -47,7 +47,7 @@ import java.util.ArrayList;
  * @author Group on Interactive Coding of Images (GICI)
  * @version 1.0   2007-2012/10/26
  */
-public class RequestQueue {
+public class RequestQueue implements RequestDispatcher {
 	
 	/**
 	 * Contains a list of the client request. The <data>ArrayList</data> is not
@@ -75,6 +75,14 @@ public class RequestQueue {
 		notify();
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * @see CADI.Server.Request.RequestDispatcher#dispatch(CADI.Server.Request.RequestQueueNode)
+	 */
+	public void dispatch(RequestQueueNode nodeInfo) {
+		add(nodeInfo);
+	}
+	
 	/**
 	 * Returns the first element of the queue if it isn't empty, otherwise null.
 	 * 
@@ -98,6 +106,22 @@ public class RequestQueue {
 		return nodeInfo;
 	}
 	
+	/**
+	 * Returns the first element of the queue without waiting.
+	 * 
+	 * @return returns the first element of the queue, or <code>null</code> if
+	 * 			the queue is empty.
+	 */
+	public synchronized RequestQueueNode poll() {
+		if (isEmpty()) {
+			return null;
+		}
+
+		RequestQueueNode nodeInfo = queue.get(0);
+		queue.remove(0);
+		return nodeInfo;
+	}
+
 	/**
 	 * Returns true if the list is empty, false otherwise.
 	 */
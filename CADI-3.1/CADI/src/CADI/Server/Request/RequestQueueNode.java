@@ -45,6 +45,11 @@ import java.util.Map;
  */
 public class RequestQueueNode {
 
+	/**
+	 * Is the client connection where the request has been received.
+	 */
+	protected ClientConnection connection = null;
+
 	/**
 	 * Contains the client socket.
 	 */
@@ -59,17 +64,27 @@ public class RequestQueueNode {
 	/**
 	 * Constructor.
 	 * 
-	 * @param socket definition in {@link #socket}.
+	 * @param connection definition in {@link #connection}.
 	 * @param httpRequest definition in {@link #httpRequest}.
 	 */
-	public RequestQueueNode(Socket socket, HTTPRequest httpRequest) {
-		if (socket == null) throw new NullPointerException();
+	public RequestQueueNode(ClientConnection connection, HTTPRequest httpRequest) {
+		if (connection == null) throw new NullPointerException();
 		if (httpRequest == null) throw new NullPointerException();
 		
-		this.socket = socket;
+		this.connection = connection;
+		this.socket = connection.getSocket();
 		this.httpRequest = httpRequest;
 	}
 	
+	/**
+	 * Returns the client connection.
+	 * 
+	 * @return client connection
+	 */
+	public ClientConnection getConnection() {
+		return connection;
+	}
+	
 	/**
 	 * Returns the client socket.
 	 * 
@@ -92,6 +107,7 @@ public class RequestQueueNode {
 	 * Set attributes to its initials values.
 	 */
 	public void reset() {
+		connection = null;
 		socket = null;
 		httpRequest = null;
 	}
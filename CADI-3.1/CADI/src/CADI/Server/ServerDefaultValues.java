@@ -55,6 +55,72 @@ public interface ServerDefaultValues {
 	 * Timeout used when HTTP keep-alive feature is used. Value is milliseconds.
 	 */
 	int KEEP_ALIVE_TIMEOUT = 1000;
+
+	/**
+	 * Indicates whether workers are launched on demand on virtual threads
+	 * instead of using a fixed pool of threads.
+	 */
+	boolean VIRTUAL_THREADS = false;
+
+	/**
+	 * Indicates whether the precincts of the logical targets are indexed on
+	 * demand instead of indexing the whole codestream when it is loaded.
+	 */
+	boolean ON_DEMAND_INDEXING = false;
+
+	/**
+	 * Number of threads used to index in background the logical targets of
+	 * the targets directory. Value 0 means that targets are not pre-indexed.
+	 */
+	int PRE_INDEXING_THREADS = 0;
+
+	/**
+	 * Maximum number of logical targets which are loaded when the targets
+	 * directory is pre-indexed. Each loaded target keeps its file open and its
+	 * index in memory.
+	 */
+	int PRE_INDEXING_MAX_TARGETS = 1000;
+
+	/**
+	 * Maximum memory usage, as a percentage of the maximum heap size, at which
+	 * the pre-indexing of the targets directory stops.
+	 */
+	int PRE_INDEXING_MAX_MEMORY = 50;
+
+	/**
+	 * Maximum memory, in megabytes, used to cache the encoded packet headers
+	 * when the delivering mode is {@link #DELIVERING_CPI} or
+	 * {@link #DELIVERING_CoRD}. Value 0 means that packet headers are not
+	 * cached.
+	 */
+	int PACKET_HEADERS_CACHE_SIZE = 64;
+
+	/**
+	 * Maximum memory, in megabytes, used to cache the response plans (the
+	 * ordered list of precincts relevant to a view window) when the
+	 * delivering mode is {@link #DELIVERING_WINDOW_SCALING_FACTOR}. Value 0
+	 * means that response plans are not cached.
+	 */
+	int RESPONSE_PLAN_CACHE_SIZE = 16;
+
+	/**
+	 * Time, in seconds, a client session is kept alive without receiving
+	 * any request.
+	 */
+	int SESSION_TIMEOUT = 86400;
+
+	/**
+	 * Maximum memory, in megabytes, used by the client sessions. When it is
+	 * exceeded, the least recently used sessions are removed. Value 0 means
+	 * that there is no limit.
+	 */
+	int SESSIONS_MEMORY = 256;
+
+	/**
+	 * Maximum rate, in bytes per second, shared by all the responses sent by
+	 * the server. Value 0 means unlimited.
+	 */
+	int GLOBAL_MAX_RATE = 0;
 	
 	int DELIVERING_FILE_ORDER = 1;
 	int DELIVERING_CPI = 2;
@@ -71,7 +71,7 @@ public class ServerParser extends ArgumentsParser {
       + "when a log level is set, all upper levels are automatically set but lower severity messages are filtered."
     },
     {"-cd", "--cacheDirectory", "{string}", "", "0", "1",
-     "Directory used as a temporal directory to save the cache data (not implemented yet)."
+     "Directory used to save the indexes of the logical targets. Saved indexes are loaded instead of indexing the targets again when they have not been modified."
     },
     {"-dm", "--deliveringMode", "{int}", ServerDefaultValues.DELIVERING_MODE + "", "0", "1",
      "Indicates the rate distortion method which is used in a JPEG2000 image to calculate de Window Of Interest. Available values are:\n"
@@ -124,6 +124,35 @@ public class ServerParser extends ArgumentsParser {
      "This parameter indicates that a predictive model can be applied in the image delivering. The predictive model to be applied is read from a text file whose name is the same as the compressed image but with the extension \"pm\". The file must have a line for each spatial region (precinct) with the following format \"precinct_id value\", where the precinct_id is the unique precinct identifier defined in the JPIP protocol and the value is a real number in the range [0, 1] with the relevance of the relevance of the precinct. The remainder precincts not included in the file will be considered with relevance 0. And if the beginning-of-line character is an #, it is considered a comment and ignored."
       + "This parameter is only allowed if the \"-dm\" parameter is " + ServerDefaultValues.DELIVERING_WINDOW_SCALING_FACTOR + "."
     },
+    {"-vt", "--virtualThreads", "{boolean}", ServerDefaultValues.VIRTUAL_THREADS ? "1" : "0", "0", "1",
+     "Requests are processed by workers launched on demand, each one on its own virtual thread, instead of using the pool of threads set by the \"-nt\" parameter. Thus, the number of requests processed concurrently is only limited by the available memory. Requests of the same session are processed in order. If the Java platform does not support virtual threads, platform threads are launched on demand."
+    },
+    {"-odi", "--onDemandIndexing", "{boolean}", ServerDefaultValues.ON_DEMAND_INDEXING ? "1" : "0", "0", "1",
+     "Precincts of the logical targets are indexed on demand, when they are requested by a client, instead of indexing the whole codestream before the first response is delivered. Packets are indexed in the progression order of the codestream, so it is useful when the progression order begins by resolution (RLCP or RPCL) or by position (PCRL or CPRL). When the whole codestream has been indexed, its index is saved in the cache directory (see the \"-cd\" parameter)."
+    },
+    {"-wu", "--warmUpTargets", "{string}", "", "0", "1",
+     "File with the logical targets to be loaded and indexed before the server begins to accept client requests. The file must have a target per line, relative to the targets directory (see the \"-tp\" parameter). If the beginning-of-line character is an #, it is considered a comment and ignored."
+    },
+    {"-pi", "--preIndexing", "{int}", "" + ServerDefaultValues.PRE_INDEXING_THREADS, "0", "1",
+     "Number of threads which load and index in background the logical targets of the targets directory, so the first request of a target does not have to wait for its indexing. Targets are indexed in decreasing order of popularity, which is saved in the cache directory (see the \"-cd\" parameter). Value 0 means that targets are not pre-indexed."
+    },
+    {"-phc", "--packetHeadersCache", "{int}", "" + ServerDefaultValues.PACKET_HEADERS_CACHE_SIZE, "0", "1",
+     "Maximum memory (in megabytes) used to cache the packet headers encoded by the CPI and CoRD delivering modes. Packet headers of a precinct are encoded once and shared by all the clients which request it. When the memory is exceeded, the least recently used packet headers are removed. Value 0 means that packet headers are not cached. "
+      + "This parameter is only used if the \"-dm\" parameter is " + ServerDefaultValues.DELIVERING_CPI + " or " + ServerDefaultValues.DELIVERING_CoRD + "."
+    },
+    {"-rpc", "--responsePlanCache", "{int}", "" + ServerDefaultValues.RESPONSE_PLAN_CACHE_SIZE, "0", "1",
+     "Maximum memory (in megabytes) used to cache the response plans, that is, the ordered list of precincts relevant to a view window. The plan of a view window is computed once and shared by all the clients which request it, and each response only filters out the data already sent to its client. When the memory is exceeded, the least recently used plans are removed. Value 0 means that response plans are not cached. "
+      + "This parameter is only used if the \"-dm\" parameter is " + ServerDefaultValues.DELIVERING_WINDOW_SCALING_FACTOR + "."
+    },
+    {"-st", "--sessionTimeout", "{int}", "" + ServerDefaultValues.SESSION_TIMEOUT, "0", "1",
+     "Time (in seconds) a client session is kept alive without receiving any request. Expired sessions, and their cache models, are removed in background."
+    },
+    {"-sm", "--sessionsMemory", "{int}", "" + ServerDefaultValues.SESSIONS_MEMORY, "0", "1",
+     "Maximum memory (in megabytes) used by the client sessions, mainly by their cache models. When the memory is exceeded, the cache models of the idle sessions are compacted and, if it is not enough, the least recently active sessions are removed. Value 0 means that there is no limit."
+    },
+    {"-gmr", "--globalMaxRate", "{int}", "" + ServerDefaultValues.GLOBAL_MAX_RATE, "0", "1",
+     "Specifies the maximum rate (bytes per second) shared by all the responses sent by the server (0 means unlimited). The rate is shared fairly among the client addresses, then among the sessions of each client, and then among the channels of each session. Active responses are served in turns of 16 KB. The \"-mr\" parameter and the maximum bandwidth requested by the clients still limit each channel."
+    },
     {"-h", "--help", "", "", "0", "1",
      "Displays this help and exits program."
     },
@@ -175,6 +204,24 @@ public class ServerParser extends ArgumentsParser {
 
   private boolean predictiveModel = false;
 
+  private boolean virtualThreads = ServerDefaultValues.VIRTUAL_THREADS;
+
+  private boolean onDemandIndexing = ServerDefaultValues.ON_DEMAND_INDEXING;
+
+  private String warmUpTargets = null;
+
+  private int preIndexingThreads = ServerDefaultValues.PRE_INDEXING_THREADS;
+
+  private int packetHeadersCacheSize = ServerDefaultValues.PACKET_HEADERS_CACHE_SIZE;
+
+  private int responsePlanCacheSize = ServerDefaultValues.RESPONSE_PLAN_CACHE_SIZE;
+
+  private int sessionTimeout = ServerDefaultValues.SESSION_TIMEOUT;
+
+  private int sessionsMemory = ServerDefaultValues.SESSIONS_MEMORY;
+
+  private int globalMaxRate = ServerDefaultValues.GLOBAL_MAX_RATE;
+
   // ============================= public methods ==============================
   /**
    * Receives program arguments and parses it, setting to arguments variables.
@@ -257,6 +304,11 @@ public class ServerParser extends ArgumentsParser {
               + "only be used when the max. rate (\"-mr\") is defined.");
     }
 
+    if (sessionTimeout <= 0) {
+      throw new ParameterException("The session timeout parameter (\"-st\")"
+              + " must be greater than 0");
+    }
+
   }
 
   /**
@@ -322,7 +374,34 @@ public class ServerParser extends ArgumentsParser {
       case 16: // -pm  --predictiveModel
         predictiveModel = parseBoolean(options);
         break;
-      case 17: // -h  --help
+      case 17: // -vt  --virtualThreads
+        virtualThreads = parseBoolean(options);
+        break;
+      case 18: // -odi  --onDemandIndexing
+        onDemandIndexing = parseBoolean(options);
+        break;
+      case 19: // -wu  --warmUpTargets
+        warmUpTargets = parseString(options);
+        break;
+      case 20: // -pi  --preIndexing
+        preIndexingThreads = parseIntegerPositive(options);
+        break;
+      case 21: // -phc  --packetHeadersCache
+        packetHeadersCacheSize = parseIntegerPositive(options);
+        break;
+      case 22: // -rpc  --responsePlanCache
+        responsePlanCacheSize = parseIntegerPositive(options);
+        break;
+      case 23: // -st  --sessionTimeout
+        sessionTimeout = parseIntegerPositive(options);
+        break;
+      case 24: // -sm  --sessionsMemory
+        sessionsMemory = parseIntegerPositive(options);
+        break;
+      case 25: // -gmr  --globalMaxRate
+        globalMaxRate = parseIntegerPositive(options);
+        break;
+      case 26: // -h  --help
         try {
           Properties cadiInfo = new Properties();
           InputStream cadiInfoURL = getClass().getClassLoader().getResourceAsStream("CADI/Common/Info/cadiInfo.properties");
@@ -336,15 +415,15 @@ public class ServerParser extends ArgumentsParser {
         //showArgsInfoLatexTable();
         System.exit(0);
         break;
-      case 18: // -w  --warranty
+      case 27: // -w  --warranty
         printWarranty();
         System.exit(0);
         break;
-      case 19: // -l  --liability
+      case 28: // -l  --liability
         printLiability();
         System.exit(0);
         break;
-      case 20: // -c  --copyright
+      case 29: // -c  --copyright
         printCopyright();
         System.exit(0);
         break;
@@ -414,6 +493,42 @@ public class ServerParser extends ArgumentsParser {
     return predictiveModel;
   }
 
+  public boolean getVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public boolean getOnDemandIndexing() {
+    return onDemandIndexing;
+  }
+
+  public String getWarmUpTargets() {
+    return warmUpTargets;
+  }
+
+  public int getPreIndexingThreads() {
+    return preIndexingThreads;
+  }
+
+  public int getPacketHeadersCacheSize() {
+    return packetHeadersCacheSize;
+  }
+
+  public int getResponsePlanCacheSize() {
+    return responsePlanCacheSize;
+  }
+
+  public int getSessionTimeout() {
+    return sessionTimeout;
+  }
+
+  public int getSessionsMemory() {
+    return sessionsMemory;
+  }
+
+  public int getGlobalMaxRate() {
+    return globalMaxRate;
+  }
+
   // ============================ private methods ==============================
   /**
    * Prints out the warranty.
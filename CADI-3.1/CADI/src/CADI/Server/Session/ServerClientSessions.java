@@ -38,7 +38,7 @@ import CADI.Common.Session.Sessions;
  * methods must guarantee the access to the list.
  *
  * @author Group on Interactive Coding of Images (GICI)
- * @version 1.0.1 2010/12/13
+ * @version 1.0.3 2012/07/04
  */
 public class ServerClientSessions extends Sessions {
 
@@ -57,7 +57,7 @@ public class ServerClientSessions extends Sessions {
 	 * @param session element to be appended to this list.
 	 */
 	public synchronized void add(ServerClientSession session) {	
-		sessions.put(session.getSessionID(), session);
+		super.add(session);
 	}
 		
 	/**
@@ -83,12 +83,26 @@ public class ServerClientSessions extends Sessions {
 		if (cid == null) throw new NullPointerException();
 		
 		for (Entry<String,Session> session : sessions.entrySet())
-			if (session.getValue().contains(cid))
+			if (session.getValue().contains(cid)) {
+				session.getValue().touch();
 				return (ServerClientSession)session.getValue();
+			}
 		
 		return null;				
 	}
 	
+	/**
+	 * Returns the session a channel identifier belongs to and pins it. See
+	 * {@link CADI.Common.Session.Sessions#acquire(String)}.
+	 * 
+	 * @param cid the channel identifier.
+	 * 
+	 * @return the session.
+	 */
+	public synchronized ServerClientSession acquire(String cid) {
+		return (ServerClientSession)super.acquire(cid);
+	}
+	
 	/**
 	 * Closes all channels that belongs to the same sessions, so the session
 	 * is closed but not removed. 
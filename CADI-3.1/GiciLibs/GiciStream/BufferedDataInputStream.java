@@ -44,6 +44,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -681,6 +682,18 @@ public class BufferedDataInputStream implements DataInput {
 		}
 	}
 
+	/**
+	 * Returns the channel of the file used as data source. Reads performed
+	 * through the channel with an explicit position do not modify the file
+	 * pointer of this stream, so they do not need to hold the stream lock.
+	 * 
+	 * @return the file channel, or <code>null</code> if the data source is a
+	 * 			buffer.
+	 */
+	public FileChannel getChannel() {
+		return (readFromFile && (file != null)) ? file.getChannel() : null;
+	}
+
 	/**
 	 * 
 	 * @throws IOException